@@ -0,0 +1,134 @@
+package ch.eonum.pipeline.examples;
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.text.ParseException;
+
+import ch.eonum.pipeline.classification.lstm.LSTMClassifier;
+import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.DenseSequence;
+import ch.eonum.pipeline.core.Features;
+import ch.eonum.pipeline.core.SequenceDataSet;
+import ch.eonum.pipeline.evaluation.Evaluator;
+import ch.eonum.pipeline.evaluation.RecognitionRateSequence;
+import ch.eonum.pipeline.reader.LetterReader;
+import ch.eonum.pipeline.util.FileUtil;
+
+/**
+ * Benchmark of the single precision (float32) storage of the training data.
+ * The LSTM of {@link PredictLetter} (argument "letters", default) or
+ * {@link PredictCode} (argument "code") is trained for a fixed number of
+ * epochs with the parameter floatPrecision set to 0 and to 1. For each run the
+ * throughput (sequences per second), the memory of the training and
+ * validation data, the peak heap during training and the recognition rate on
+ * the validation set are printed.
+ * 
+ * The time points of the input sequences are shared with the data set and are
+ * therefore kept in double precision. The gain comes from the targets, which
+ * are as large as the inputs for these next character prediction tasks.
+ * 
+ * Execute with enough memory: -Xmx1024m
+ * 
+ * @author tim
+ * 
+ */
+public class PrecisionBenchmark {
+	private static final String resultsFolder = "examples/results/precision/";
+
+	/**
+	 * @param args
+	 *            "letters" or "code" and optionally the number of epochs
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static void main(String[] args) throws IOException, ParseException {
+		boolean code = args.length > 0 && args[0].equals("code");
+		int epochs = args.length > 1 ? Integer.parseInt(args[1]) : (code ? 5 : 50);
+		FileUtil.mkdir(resultsFolder);
+		
+		char[] allowedChars = code ? PredictCode.allowedChars : PredictLetter.allowedChars;
+		Features allowedCharMap = new Features();
+		for(int i = 0; i < allowedChars.length; i++)
+			allowedCharMap.addFeature("" + allowedChars[i]);
+		allowedCharMap.recalculateIndex();
+		
+		SequenceDataSet<DenseSequence> dataTraining = LetterReader.readTraining(
+				code ? PredictCode.dataset : PredictLetter.dataset, true, code, allowedCharMap);
+		dataTraining.setTimeLag(1, allowedCharMap);
+		Features dims = Features.createFromDataSets(dataTraining);
+		DataSet<DenseSequence> dataValidation = dataTraining.extractSubSet(code ? 0.3 : 0.5);
+		Evaluator<DenseSequence> recRate = new RecognitionRateSequence<DenseSequence>();
+		
+		System.out.println("precision\tseconds\tsequences/s\tdata KiB\tpeak heap MiB\trecognition rate");
+		for (double floatPrecision : new double[] { 0.0, 1.0 }) {
+			LSTMClassifier<DenseSequence> lstm = new LSTMClassifier<DenseSequence>();
+			lstm.setClasses(dims);
+			lstm.setForgetGateUse(code);
+			lstm.setInputGateUse(true);
+			lstm.setOutputGateUse(true);
+			lstm.setFeatures(dims);
+			String dir = resultsFolder + (floatPrecision > 0.5 ? "float32/" : "float64/");
+			FileUtil.mkdir(dir);
+			lstm.setBaseDir(dir);
+			lstm.putParameter("numNets", 1.0);
+			lstm.putParameter("numNetsTotal", 1.0);
+			lstm.putParameter("numLSTM", code ? 8.0 : 2.0);
+			lstm.putParameter("memoryCellBlockSize", code ? 6.0 : 2.0);
+			lstm.putParameter("numHidden", 0.0);
+			lstm.putParameter("maxEpochsAfterMax", epochs);
+			lstm.putParameter("maxEpochs", epochs);
+			lstm.putParameter("learningRate", code ? 0.011 : 0.01);
+			lstm.putParameter("momentum", code ? 0.0 : 0.1);
+			lstm.putParameter("floatPrecision", floatPrecision);
+			lstm.setTestSet(dataValidation);
+			lstm.setTrainingSet(dataTraining);
+			
+			System.gc();
+			long baseline = resetPeakHeap();
+			long millis = System.currentTimeMillis();
+			lstm.train();
+			double seconds = (System.currentTimeMillis() - millis) / 1000.0;
+			long peak = peakHeap() - baseline;
+			lstm.test();
+			
+			System.out.println((floatPrecision > 0.5 ? "float32" : "float64") + "\t"
+					+ seconds + "\t"
+					+ (dataTraining.size() * (double) epochs / seconds) + "\t"
+					+ (lstm.getDataBytes() / 1024) + "\t"
+					+ (peak / (1024 * 1024)) + "\t"
+					+ recRate.evaluate(dataValidation));
+		}
+	}
+
+	/**
+	 * Reset the peak usage of all heap memory pools.
+	 * 
+	 * @return current heap usage
+	 */
+	private static long resetPeakHeap() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				used += pool.getUsage().getUsed();
+			}
+		return used;
+	}
+
+	/**
+	 * Sum of the peak usages of all heap memory pools since the last reset.
+	 * 
+	 * @return
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+		
+}
@@ -82,6 +82,32 @@ public abstract class Classifier<E extends Instance> extends Parameters implemen
 		return this.testDataSet;
 	}
 	
+	/**
+	 * Check if this classifier can compute results without storing them in
+	 * the instances (@see {@link #results(List)}).
+	 * 
+	 * @return
+	 */
+	public boolean supportsResults() {
+		return false;
+	}
+
+	/**
+	 * Compute the result "result", which {@link #test()} would store in each
+	 * instance, without modifying the instances or this classifier. Hence
+	 * several threads can score the same or different instances concurrently
+	 * once the classifier is trained.
+	 * 
+	 * @param instances
+	 * @return result of each instance
+	 * @throws UnsupportedOperationException
+	 *             if not supported (@see {@link #supportsResults()})
+	 */
+	public double[] results(List<? extends E> instances) {
+		throw new UnsupportedOperationException(getClass().getSimpleName()
+				+ " can only be scored with test()");
+	}
+	
 	/**
 	 * Test one instance. test the instance once for each feature, which is set
 	 * to zero. the feature is stored in the label of the created instance.
@@ -0,0 +1,268 @@
+package ch.eonum.pipeline.classification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Expectation Maximization for mixtures of Gaussians with diagonal covariance
+ * matrices, one mixture per class. The responsibilities of the Gaussians are
+ * computed once per point and accumulated into sufficient statistics
+ * (responsibilities, weighted sums and weighted squared deviations from the
+ * current means). The points of each class are split into shards, each shard
+ * has its own statistics and all shards of all classes are processed in
+ * parallel. The statistics of the shards are added in shard order.
+ *
+ * @author tim
+ *
+ */
+public class GaussianMixtureEM {
+	/** sufficient statistics of one shard. */
+	private static class Statistics {
+		/** sum of the responsibilities of each Gaussian. */
+		final double[] counts;
+		/** responsibility weighted sum of the points. */
+		final double[][] sums;
+		/** responsibility weighted squared deviation from the current means. */
+		final double[][] squares;
+		/** number of points. */
+		int points;
+
+		Statistics(int gaussians, int dim) {
+			counts = new double[gaussians];
+			sums = new double[gaussians][dim];
+			squares = new double[gaussians][dim];
+		}
+
+		void add(Statistics other) {
+			points += other.points;
+			for (int g = 0; g < counts.length; g++) {
+				counts[g] += other.counts[g];
+				for (int f = 0; f < sums[g].length; f++) {
+					sums[g][f] += other.sums[g][f];
+					squares[g][f] += other.squares[g][f];
+				}
+			}
+		}
+	}
+
+	private final int numThreads;
+
+	/**
+	 * @param numThreads
+	 *            number of threads and shards per class
+	 */
+	public GaussianMixtureEM(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * One EM iteration for the mixtures of all classes. The parameters of
+	 * class c are replaced by the re-estimated ones. The variances are the
+	 * responsibility weighted squared deviations from the previous means
+	 * divided by the number of features, floored at varianceThreshold.
+	 *
+	 * @param points
+	 *            points of each class: the time points of each sequence
+	 * @param logWeights
+	 *            class x Gaussian log mixture weights
+	 * @param means
+	 *            class x Gaussian x feature
+	 * @param variances
+	 *            class x Gaussian x feature diagonal covariances
+	 * @param constants
+	 *            class x Gaussian log normalization constants
+	 * @param varianceThreshold
+	 * @return log of the summed responsibilities of each class
+	 */
+	public double[] iterate(List<List<double[][]>> points,
+			final double[][] logWeights, final double[][][] means,
+			final double[][][] variances, final double[][] constants,
+			double varianceThreshold) {
+		int classes = points.size();
+		/** inverse variances, N() multiplies instead of divides. */
+		final double[][][] precisions = new double[classes][][];
+		for (int c = 0; c < classes; c++) {
+			precisions[c] = new double[variances[c].length][];
+			for (int g = 0; g < variances[c].length; g++) {
+				precisions[c][g] = new double[variances[c][g].length];
+				for (int f = 0; f < variances[c][g].length; f++)
+					precisions[c][g][f] = 1.0 / variances[c][g][f];
+			}
+		}
+
+		/** Expectation. */
+		List<List<Statistics>> shards = new ArrayList<List<Statistics>>();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int c = 0; c < classes; c++) {
+			final int cl = c;
+			final List<double[][]> sequences = points.get(c);
+			int numShards = Math.max(1, Math.min(numThreads, sequences.size()));
+			List<Statistics> classShards = new ArrayList<Statistics>();
+			for (int s = 0; s < numShards; s++) {
+				final int from = (int) ((long) s * sequences.size() / numShards);
+				final int to = (int) ((long) (s + 1) * sequences.size() / numShards);
+				final Statistics stats = new Statistics(means[c].length,
+						means[c].length == 0 ? 0 : means[c][0].length);
+				classShards.add(stats);
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						double[] buffer = new double[logWeights[cl].length];
+						for (int i = from; i < to; i++)
+							for (double[] point : sequences.get(i))
+								accumulate(point, logWeights[cl], means[cl],
+										precisions[cl], constants[cl], stats,
+										buffer);
+					}
+				});
+			}
+			shards.add(classShards);
+		}
+		run(tasks);
+
+		/** Maximization. */
+		double[] totalG = new double[classes];
+		for (int c = 0; c < classes; c++) {
+			Statistics stats = shards.get(c).get(0);
+			for (int s = 1; s < shards.get(c).size(); s++)
+				stats.add(shards.get(c).get(s));
+			int gaussians = stats.counts.length;
+			double total = GaussianMixtureModel.LOG_ZERO;
+			double[] w = new double[gaussians];
+			for (int g = 0; g < gaussians; g++) {
+				double probGauss = stats.counts[g];
+				if (probGauss == 0.0) {
+					/**
+					 * no point has a responsibility for this Gaussian in
+					 * double precision: keep its parameters, weight 0.
+					 */
+					stats.sums[g] = means[c][g];
+					stats.squares[g] = variances[c][g];
+					w[g] = GaussianMixtureModel.LOG_ZERO;
+					continue;
+				}
+				double[] mn = stats.sums[g];
+				double[] cov = stats.squares[g];
+				for (int f = 0; f < mn.length; f++) {
+					mn[f] /= probGauss;
+					cov[f] /= probGauss;
+					cov[f] /= mn.length;
+					if (cov[f] < varianceThreshold)
+						cov[f] = varianceThreshold;
+				}
+				w[g] = Math.log(probGauss);
+				total = GaussianMixtureModel.logAdd(total, w[g]);
+			}
+			if (total == GaussianMixtureModel.LOG_ZERO)
+				/** no points at all. */
+				w = logWeights[c];
+			else
+				for (int g = 0; g < gaussians; g++)
+					w[g] -= total;
+			means[c] = stats.sums;
+			variances[c] = stats.squares;
+			logWeights[c] = w;
+			totalG[c] = total;
+		}
+		return totalG;
+	}
+
+	/**
+	 * Add the responsibilities of all Gaussians for one point to the
+	 * statistics. The log sum is taken relative to the maximum, hence one
+	 * exp per Gaussian.
+	 */
+	private static void accumulate(double[] point, double[] logWeights,
+			double[][] means, double[][] precisions, double[] constants,
+			Statistics stats, double[] logGauss) {
+		int gaussians = logWeights.length;
+		double max = GaussianMixtureModel.LOG_ZERO;
+		for (int g = 0; g < gaussians; g++) {
+			logGauss[g] = logWeights[g]
+					+ logN(point, means[g], precisions[g], constants[g]);
+			if (logGauss[g] > max)
+				max = logGauss[g];
+		}
+		stats.points++;
+		if (max == GaussianMixtureModel.LOG_ZERO)
+			return;
+		double sum = 0.0;
+		for (int g = 0; g < gaussians; g++) {
+			double diff = logGauss[g] - max;
+			logGauss[g] = Math.exp(diff);
+			sum += logGauss[g];
+		}
+		for (int g = 0; g < gaussians; g++) {
+			/** underflow, the exact responsibility is 0 in double precision. */
+			if (logGauss[g] == 0.0)
+				continue;
+			double r = logGauss[g] / sum;
+			stats.counts[g] += r;
+			double[] mean = means[g];
+			double[] s = stats.sums[g];
+			double[] sq = stats.squares[g];
+			for (int f = 0; f < point.length; f++) {
+				double d = point[f] - mean[f];
+				s[f] += r * point[f];
+				sq[f] += r * d * d;
+			}
+		}
+	}
+
+	/**
+	 * Log density of a Gaussian with diagonal covariance.
+	 *
+	 * @param x
+	 * @param center
+	 * @param precisions
+	 *            inverse diagonal of the covariance matrix
+	 * @param constant
+	 *            log normalization constant
+	 * @return
+	 */
+	static double logN(double[] x, double[] center, double[] precisions,
+			double constant) {
+		double e0 = 0.0, e1 = 0.0;
+		int n = center.length & ~1;
+		int f = 0;
+		for (; f < n; f += 2) {
+			double d0 = x[f] - center[f];
+			double d1 = x[f + 1] - center[f + 1];
+			e0 += d0 * d0 * precisions[f];
+			e1 += d1 * d1 * precisions[f + 1];
+		}
+		for (; f < center.length; f++) {
+			double d = x[f] - center[f];
+			e0 += d * d * precisions[f];
+		}
+		return constant + -0.5 * (e0 + e1);
+	}
+
+	private void run(List<Runnable> tasks) {
+		if (numThreads == 1 || tasks.size() == 1) {
+			for (Runnable task : tasks)
+				task.run();
+			return;
+		}
+		ExecutorService service = Executors.newFixedThreadPool(Math.min(
+				numThreads, tasks.size()));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (Runnable task : tasks)
+			futures.add(service.submit(task));
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		service.shutdown();
+	}
+}
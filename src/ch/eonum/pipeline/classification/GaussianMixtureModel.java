@@ -1,10 +1,14 @@
 package ch.eonum.pipeline.classification;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
-import ch.eonum.pipeline.clustering.KmeansClustering;
+import ch.eonum.pipeline.clustering.KMeans;
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
@@ -28,7 +32,7 @@ import ch.eonum.pipeline.util.Log;
  */
 public class GaussianMixtureModel<E extends Sequence> extends Classifier<E> {
 	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
-	private static final double LOG_ZERO = Double.NEGATIVE_INFINITY;
+	static final double LOG_ZERO = Double.NEGATIVE_INFINITY;
 	private static final double MINUS_LOG_THRESHOLD = -39000.14;
 	private static final double VARIANCE_TRESHOLD = 0.001;
 
@@ -37,6 +41,7 @@ public class GaussianMixtureModel<E extends Sequence> extends Classifier<E> {
 		PARAMETERS
 				.put("maxIter",
 						"maximum number of iterations in the Expectation Maximization algorithm (default 25)");
+		PARAMETERS.put("seed", "seed for the k-means++ initialization of the Gaussians (default 1)");
 	}
 
 	private double[][] logWeights;
@@ -52,6 +57,7 @@ public class GaussianMixtureModel<E extends Sequence> extends Classifier<E> {
 		this.setSupportedParameters(GaussianMixtureModel.PARAMETERS);
 		this.putParameter("g", 1.0);
 		this.putParameter("maxIter", 6.0);
+		this.putParameter("seed", 1.0);
 	}
 
 	/**
@@ -59,7 +65,6 @@ public class GaussianMixtureModel<E extends Sequence> extends Classifier<E> {
 	 */
 	@Override
 	public void train() {
-		int totalGaussians = (int) this.getDoubleParameter("g");
 		Set<String> classes = this.trainingDataSet.collectClasses();
 		this.classIndexMapping = new HashMap<String, Integer>();
 		int index = 0;
@@ -69,116 +74,49 @@ public class GaussianMixtureModel<E extends Sequence> extends Classifier<E> {
 		double[] oldTotalG = new double[this.classIndexMapping.size()];
 		this.calculateClassAPriori();
 
-		this.initRandom(classes);
+		List<List<double[][]>> points = this.densePoints();
+		this.initRandom(classes, points);
+		GaussianMixtureEM em = new GaussianMixtureEM(Runtime.getRuntime()
+				.availableProcessors());
 		for (int i = 0; i < (int) this.getDoubleParameter("maxIter"); i++) {
 			System.out.println("Iteration " + i);
+			double[] totalG = em.iterate(points, logWeights, means,
+					diagonalCovariance, constants,
+					GaussianMixtureModel.VARIANCE_TRESHOLD);
 			for (String className : this.classIndexMapping.keySet()) {
 				int classIndex = this.classIndexMapping.get(className);
-				double[] weights = this.logWeights[classIndex];
-				double[] constants = this.constants[classIndex];
-				double[][] mns = this.means[classIndex];
-				double[][] covDiags = this.diagonalCovariance[classIndex];
-				double[] logProbGauss = new double[totalGaussians];
-				for (int gauss = 0; gauss < totalGaussians; gauss++)
-					logProbGauss[gauss] = GaussianMixtureModel.LOG_ZERO;
-				double[][] mu = new double[totalGaussians][features.size()];
-				double[][] sigma2 = new double[totalGaussians][features.size()];
-				int T = 0;
-				double[] w = new double[totalGaussians];
-				
-				/** Expectation. */
-				for (Sequence seq : this.trainingDataSet) {
-					if (!seq.groundTruth.equals(className))
-						continue;
-					double[][] points = seq.getDenseRepresentation(features);
-					for (int s = 0; s < seq.getSequenceLength(); s++) {
-						double[] point = points[s];
-						T++;
-						double logPoint = LOG_ZERO;
-						double[] logGauss = new double[totalGaussians];
-						for (int gauss = 0; gauss < totalGaussians; gauss++) {
-							logGauss[gauss] = weights[gauss]
-									+ GaussianMixtureModel.N(point, mns[gauss], covDiags[gauss],
-											constants[gauss]);
-							logPoint = logAdd(logPoint, logGauss[gauss]);
-						}
-						for (int gauss = 0; gauss < totalGaussians; gauss++) {
-							logProbGauss[gauss] = logAdd(logProbGauss[gauss],
-									logGauss[gauss] - logPoint);
-						}
-					}
-				}
-				
-				/** Maximization. */
-				for (Sequence seq : this.trainingDataSet) {
-					if (!seq.groundTruth.equals(className))
-						continue;
-					double[][] points = seq.getDenseRepresentation(features);
-					for (int s = 0; s < seq.getSequenceLength(); s++) {
-						double[] point = points[s];
-						double logPoint = LOG_ZERO;
-						double[] logGauss = new double[totalGaussians];
-						for (int gauss = 0; gauss < totalGaussians; gauss++) {
-							logGauss[gauss] = weights[gauss]
-									+ GaussianMixtureModel.N(point, mns[gauss], covDiags[gauss],
-											constants[gauss]);
-							logPoint = logAdd(logPoint, logGauss[gauss]);
-						}
-
-						for (int gauss = 0; gauss < totalGaussians; gauss++) {
-							double probGauss = Math.exp(logGauss[gauss]
-									- logPoint);
-							for (int feature = 0; feature < point.length; feature++) {
-								mu[gauss][feature] += point[feature]
-										* probGauss;
-								sigma2[gauss][feature] += Math.pow(
-										point[feature] - mns[gauss][feature],
-										2.0)
-										* probGauss;
-							}
-						}
-					}
-				}
-				double totalG = LOG_ZERO;
-
-				for (int gauss = 0; gauss < totalGaussians; gauss++) {
-					double[] mn = mu[gauss];
-					double[] cov = sigma2[gauss];
-					double probGauss = Math.exp(logProbGauss[gauss]);
-					for (int feature = 0; feature < mn.length; feature++) {
-						mn[feature] /= probGauss;
-						cov[feature] /= probGauss;
-						cov[feature] /= mn.length;
-					}
-					w[gauss] = logProbGauss[gauss] - T;
-					totalG = logAdd(totalG, logProbGauss[gauss]);
-				}
-				this.means[classIndex] = mu;
-				for (int x = 0; x < sigma2.length; x++)
-					for (int y = 0; y < sigma2[x].length; y++)
-						sigma2[x][y] = sigma2[x][y] < GaussianMixtureModel.VARIANCE_TRESHOLD ? GaussianMixtureModel.VARIANCE_TRESHOLD
-								: sigma2[x][y];
-				this.diagonalCovariance[classIndex] = sigma2;
-				this.logWeights[classIndex] = w;
-				double totalWeights = LOG_ZERO;
-				for (double weight : this.logWeights[classIndex])
-					totalWeights = logAdd(totalWeights, weight);
-				for (int iw = 0; iw < this.logWeights[classIndex].length; iw++) {
-					this.logWeights[classIndex][iw] -= totalWeights;
-				}
 				for (int iw = 0; iw < this.logWeights[classIndex].length; iw++)
 					System.out.println("Weights for class " + className + ": "
 							+ Math.exp(this.logWeights[classIndex][iw]));
 				System.out.println("Total Likelihood for class " + className
-						+ ": " + totalG + " (" + Math.exp(totalG) + ")"
-						+ " Delta: "
-						+ (Math.exp(oldTotalG[classIndex]) - Math.exp(totalG)));
-				oldTotalG[classIndex] = totalG;
+						+ ": " + totalG[classIndex] + " ("
+						+ Math.exp(totalG[classIndex]) + ")" + " Delta: "
+						+ (Math.exp(oldTotalG[classIndex]) - Math.exp(totalG[classIndex])));
+				oldTotalG[classIndex] = totalG[classIndex];
 			}
 			this.calculateConstants();
 		}
 	}
 
+	/**
+	 * Dense representations of the time points of the training sequences by
+	 * class index. Computed once for all EM iterations.
+	 * 
+	 * @return
+	 */
+	private List<List<double[][]>> densePoints() {
+		List<List<double[][]>> points = new ArrayList<List<double[][]>>();
+		for (int c = 0; c < this.classIndexMapping.size(); c++)
+			points.add(new ArrayList<double[][]>());
+		for (Sequence seq : this.trainingDataSet) {
+			if (seq.getSequenceLength() == 0)
+				continue;
+			points.get(this.classIndexMapping.get(seq.groundTruth)).add(seq
+					.getDenseRepresentation(features));
+		}
+		return points;
+	}
+
 	private void calculateClassAPriori() {
 		this.aPrioriClassLogLikelihoods = new HashMap<String, Double>();
 		for (Instance each : this.trainingDataSet)
@@ -194,7 +132,7 @@ public class GaussianMixtureModel<E extends Sequence> extends Classifier<E> {
 							/ this.trainingDataSet.size()));
 	}
 
-	private void initRandom(Set<String> classes) {
+	private void initRandom(Set<String> classes, List<List<double[][]>> densePoints) {
 		int g = (int) this.getDoubleParameter("g");
 		this.logWeights = new double[this.classIndexMapping.size()][g];
 		this.means = new double[this.classIndexMapping.size()][g][features
@@ -202,34 +140,27 @@ public class GaussianMixtureModel<E extends Sequence> extends Classifier<E> {
 		this.diagonalCovariance = new double[this.classIndexMapping.size()][g][features
 				.size()];
 
+		Random rand = new Random((long) this.getDoubleParameter("seed"));
 		for (String cl : classes) {
-			DataSet<Instance> set = new DataSet<Instance>();
-			for (Sequence seq : this.trainingDataSet)
-				if (seq.groundTruth.equals(cl)) {
-					set.addAll(seq.createDataSetFromTimePoints());
-					if (set.size() > 8000)
-						break;
-				}
-			KmeansClustering<Instance> clusterer = new KmeansClustering<Instance>();
-			clusterer.setFeatures(features);
-			clusterer.setTrainingSet(set);
-			clusterer.putParameter("k", (double) g);
-			clusterer.train();
-			Map<String, Instance> centers = clusterer.getClusters();
 			int classIndex = this.classIndexMapping.get(cl);
+			List<double[]> points = new ArrayList<double[]>();
+			for (double[][] seq : densePoints.get(classIndex)) {
+				points.addAll(Arrays.asList(seq));
+				if (points.size() > 8000)
+					break;
+			}
+			KMeans kmeans = new KMeans(g, rand.nextLong());
+			kmeans.fit(points.toArray(new double[points.size()][]));
+			double[][] centers = kmeans.getCenters();
 
 			double totalWeights = 0.0;
 			for (int i = 0; i < g; i++) {
-				this.logWeights[classIndex][i] = Math.random() + 0.1;
+				this.logWeights[classIndex][i] = rand.nextDouble() + 0.1;
 				totalWeights += this.logWeights[classIndex][i];
-				String clusterName = String.valueOf(i);
-				double[] mean = new double[features.size()];
+				double[] mean = centers[i].clone();
 				double[] cov = new double[features.size()];
-				Instance center = centers.get(clusterName);
 				for (int feature = 0; feature < mean.length; feature++) {
-					mean[feature] = center.get(this.features
-							.getFeatureByIndex(feature));
-					cov[feature] = Math.random() * 10 * GaussianMixtureModel.VARIANCE_TRESHOLD
+					cov[feature] = rand.nextDouble() * 10 * GaussianMixtureModel.VARIANCE_TRESHOLD
 							+ GaussianMixtureModel.VARIANCE_TRESHOLD;
 				}
 				this.means[classIndex][i] = mean;
@@ -366,6 +297,9 @@ public class GaussianMixtureModel<E extends Sequence> extends Classifier<E> {
 			log_a = log_b;
 			log_b = tmp;
 		}
+		/** log(0) + log(0) is log(0), not NaN. */
+		if (log_b == LOG_ZERO)
+			return log_a;
 
 		double minusdif = log_b - log_a;
 
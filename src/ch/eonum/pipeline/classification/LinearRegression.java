@@ -58,9 +58,11 @@ public class LinearRegression<E extends Instance> extends Classifier<E> {
 		int i = 0;
 		for(Instance each : this.trainingDataSet){
 			Y.set(i, 0, each.outcome);
-			for(String feature : each.features())
-				if(features.hasFeature(feature)) 
-					X.set(i, features.getIndexFromFeature(feature) + 1, each.get(feature));
+			for(String feature : each.features()){
+				int index = features.indexOf(feature);
+				if(index != -1)
+					X.set(i, index + 1, each.get(feature));
+			}
 			X.set(i,0,1.0);
 			i++;
 		}
@@ -93,11 +95,12 @@ public class LinearRegression<E extends Instance> extends Classifier<E> {
 		for(Instance each : this.testDataSet){
 			each.putResult("result", 0.);
 			double prediction = this.beta.get(0, 0);
-			for(String feature : each.features())
-				if(features.hasFeature(feature))
-					prediction += this.beta.get(
-							features.getIndexFromFeature(feature) + 1, 0)
+			for(String feature : each.features()){
+				int index = features.indexOf(feature);
+				if(index != -1)
+					prediction += this.beta.get(index + 1, 0)
 							* each.get(feature);
+			}
 			each.putResult("result", Math.max(0, prediction));
 		}
 		return this.testDataSet;
@@ -1,15 +1,19 @@
 package ch.eonum.pipeline.classification;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.distance.Distance;
 import ch.eonum.pipeline.distance.EuclidianDistance;
+import ch.eonum.pipeline.distance.MinkowskiDistance;
+import ch.eonum.pipeline.distance.index.BruteForceIndex;
+import ch.eonum.pipeline.distance.index.HNSW;
+import ch.eonum.pipeline.distance.index.KDTree;
+import ch.eonum.pipeline.distance.index.NeighborHeap;
+import ch.eonum.pipeline.distance.index.NeighborIndex;
+import ch.eonum.pipeline.distance.index.VPTree;
 import ch.eonum.pipeline.util.Log;
 
 /**
@@ -21,56 +25,94 @@ import ch.eonum.pipeline.util.Log;
 public class NearestNeighbor<E extends Instance> extends Classifier<E> {
 	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
 
+	/** maximum number of features for the kdtree index in auto mode. */
+	private static final int MAX_KDTREE_DIMENSIONS = 20;
+
 	static {
 		PARAMETERS.put("k",
 						"number of neighbors which are taken into account. (default: 3.0)");
 		PARAMETERS.put("f",
 						"density function for the neighbors (uniform|linear|gauss|inverse-distance) (default:uniform)");
+		PARAMETERS.put("index",
+						"neighbor index (auto|bruteforce|kdtree|vptree|hnsw). auto: kdtree for minkowski distances with up to 20 features, bruteforce otherwise. hnsw is approximate (default:auto)");
+		PARAMETERS.put("m", "maximum number of links per prototype of the hnsw index (default: 16.0)");
+		PARAMETERS.put("efSearch", "size of the candidate list of the hnsw index (default: 50.0)");
 	}
 
 	protected Distance<E> distance;
+	/** neighbor index over the training set. */
+	protected NeighborIndex<E> index;
+	/** training set the index has been built with. */
+	private DataSet<E> indexedDataSet;
+	/** index provided by the user. null: index selected by the parameter "index". */
+	private NeighborIndex<E> customIndex;
 
 	public NearestNeighbor() {
 		this.setSupportedParameters(NearestNeighbor.PARAMETERS);
 		this.putParameter("k", 3.0);
 		this.putParameter("f", "uniform");
+		this.putParameter("index", "auto");
+		this.putParameter("m", 16.0);
+		this.putParameter("efSearch", 50.0);
 		this.distance = new EuclidianDistance<E>();
 	}
 
 	/**
-	 * There is no training. The training data is the model.
+	 * There is no training. The training data is the model. The neighbor
+	 * index is built over the training data.
 	 */
 	@Override
-	public void train() {}
+	public void train() {
+		buildIndex();
+	}
+
+	private void buildIndex() {
+		index = customIndex != null ? customIndex : createIndex();
+		index.build(this.trainingDataSet);
+		indexedDataSet = this.trainingDataSet;
+	}
+
+	private NeighborIndex<E> createIndex() {
+		String type = this.getStringParameter("index");
+		if ("auto".equals(type))
+			type = distance instanceof MinkowskiDistance && features != null
+					&& features.size() <= MAX_KDTREE_DIMENSIONS ? "kdtree"
+					: "bruteforce";
+		if ("bruteforce".equals(type))
+			return new BruteForceIndex<E>(distance);
+		if ("kdtree".equals(type)) {
+			if (!(distance instanceof MinkowskiDistance) || features == null)
+				Log.error("The kdtree index requires features and a minkowski distance");
+			return new KDTree<E>(features,
+					distance.getDoubleParameter("minkowski"));
+		}
+		if ("vptree".equals(type))
+			return new VPTree<E>(distance, 17);
+		if ("hnsw".equals(type))
+			return new HNSW<E>(distance, (int) this.getDoubleParameter("m"),
+					200, (int) this.getDoubleParameter("efSearch"), 17);
+		Log.error("Unsupported neighbor index " + type);
+		return null;
+	}
 
 	@Override
 	public DataSet<E> test() {
+		if (index == null || indexedDataSet != this.trainingDataSet)
+			buildIndex();
 		int k = (int) this.getDoubleParameter("k");
-		int num = 0;
-		for (E inst : this.testDataSet) {
-			num++;
-			if (num % 100 == 0)
-				Log.puts(num + " cases tested");
-			List<Neighbor> neighbors = new ArrayList<Neighbor>();
-			double length = this.distance.length(inst);
-			for (E prototype : this.trainingDataSet) {
-				if (inst == prototype)
-					/**avoid overfitting when testing the training set. */
-					continue;
-				double distance = this.distance.distance(prototype, inst,
-						length);
-				neighbors.add(new Neighbor(prototype, distance));
-			}
-			Collections.sort(neighbors);
+		/** avoid overfitting when testing the training set. */
+		NeighborHeap[] neighbors = index.searchAll(this.testDataSet, k, true);
+		for (int n = 0; n < neighbors.length; n++) {
+			NeighborHeap heap = neighbors[n];
 			double result = 0.0;
 			double totalDensity = 0.0;
-			for (int i = 0; i < k; i++) {
-				double density = this.densityFunction(k, i, neighbors.get(i)
-						.getDelta());
+			for (int i = 0; i < heap.size(); i++) {
+				double density = this.densityFunction(k, i,
+						heap.getDistance(i));
 				totalDensity += density;
-				result += density * neighbors.get(i).getInstance().outcome;
+				result += density * index.get(heap.getIndex(i)).outcome;
 			}
-			inst.putResult("result", result / totalDensity);
+			this.testDataSet.get(n).putResult("result", result / totalDensity);
 		}
 		return this.testDataSet;
 	}
@@ -98,36 +140,22 @@ public class NearestNeighbor<E extends Instance> extends Classifier<E> {
 		return 0;
 	}
 
-	protected class Neighbor implements Comparable<Neighbor> {
-		private E inst;
-		private double delta;
-
-		public Neighbor(E inst, double delta) {
-			this.inst = inst;
-			this.delta = delta;
-		}
-
-		public E getInstance() {
-			return inst;
-		}
-
-		public double getDelta() {
-			return delta;
-		}
-
-		@Override
-		public int compareTo(Neighbor other) {
-			return delta - other.getDelta() > 0 ? 1 : -1;
-		}
-
-		@Override
-		public String toString() {
-			return this.inst + ": " + this.delta;
-		}
-	}
-
 	public void setDistanceFunction(Distance<E> distance) {
 		this.distance = distance;
+		this.index = null;
+		this.indexedDataSet = null;
+	}
+
+	/**
+	 * Use a custom neighbor index instead of the index selected by the
+	 * parameter "index". The index is rebuilt on the training set.
+	 * 
+	 * @param index
+	 */
+	public void setNeighborIndex(NeighborIndex<E> index) {
+		this.customIndex = index;
+		this.index = null;
+		this.indexedDataSet = null;
 	}
 
 }
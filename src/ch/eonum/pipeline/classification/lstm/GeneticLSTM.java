@@ -13,6 +13,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.DenseSequenceMatrix;
 import ch.eonum.pipeline.core.Sequence;
 import ch.eonum.pipeline.evaluation.Evaluator;
 import ch.eonum.pipeline.util.FileUtil;
@@ -209,7 +210,7 @@ public class GeneticLSTM<E extends Sequence> extends LSTM<E> {
 	
 	public double evaluate(double[][] weightMatrix, int iteration,
 			int population, int individual, DataSet<E> dataSet,
-			double[][][] inputs, double[][][] targets) {
+			DenseSequenceMatrix inputs, DenseSequenceMatrix targets) {
 		for(Sequence each : dataSet)
 			each.putResult("result", 0.0);
 		
@@ -1,5 +1,6 @@
 package ch.eonum.pipeline.classification.lstm;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -10,9 +11,12 @@ import java.util.concurrent.TimeUnit;
 
 import ch.eonum.pipeline.classification.Classifier;
 import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.DenseSequenceMatrix;
+import ch.eonum.pipeline.core.Folds;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.core.Sequence;
 import ch.eonum.pipeline.util.FileUtil;
+import ch.eonum.pipeline.util.Log;
 
 /**
  * Long Short Term Memory Recurrent Neural Network for regression.
@@ -31,22 +35,22 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 	 * matrix for storing the target per training element per sequence element
 	 * per output component
 	 */
-	protected double target[][][];
+	protected DenseSequenceMatrix target;
 	/**
 	 * matrix for storing the input per training element per sequence element per
 	 * input component
 	 */
-	protected double input[][][];
+	protected DenseSequenceMatrix input;
 	/**
 	 * matrix for storing the target per test element per sequence element per
 	 * output component
 	 */
-	protected double targetTest[][][];
+	protected DenseSequenceMatrix targetTest;
 	/**
 	 * matrix for storing the input per test element per sequence element per
 	 * input component
 	 */
-	protected double inputTest[][][];
+	protected DenseSequenceMatrix inputTest;
 	/** do always use the test set for epoch validation, even when using n-fold cross validation. */
 	protected boolean alwaysUseValidationSet;
 	/** maximum target value. 1.0 if norm is false. */
@@ -63,6 +67,10 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 	protected boolean dropout;
 	/** train in parallel on the core level. */
 	protected boolean trainInParallel;
+	/** nets shared by all streaming inference sessions. */
+	private List<LSTMCore<E>> sessionNets;
+	/** memory of the values of the training and validation data of the last training. */
+	protected long dataBytes;
 	
 	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
 	
@@ -85,8 +93,13 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 		PARAMETERS.put("normTarget", "norm all targets by dividing by normTarget." +
 				" If set to -1.0, maxOutcome is used for norming (default: -1.0)");
 		PARAMETERS.put("lambda", "lambda for weight decay. Default: 0.0 (no weight decay)");
-		PARAMETERS.put("batchSize", "batch size for mini-batch weight updates Default: 1.0 (online learning)");
+		PARAMETERS.put("batchSize", "number of sequences which are stepped through time together in one" +
+				" batched forward/backward pass followed by one weight update. Default: 1.0 (online learning)");
 		PARAMETERS.put("momentum",  "momentum for weigth updates in backpropagation : 0.0 (no momentum)");
+		PARAMETERS.put("asyncValidation", "validate snapshots of the weights on a separate thread while the training continues."
+				+ " The best weights are kept in memory. 1 --> asynchronous 0 --> synchronous (default 0.0)");
+		PARAMETERS.put("floatPrecision", "store the training and validation data and the nets in single precision (float32)."
+				+ " All computations are done in double precision. 1 --> float32 0 --> float64 (default 0.0)");
 	}
 
 	public LSTM() {
@@ -107,6 +120,8 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 		this.putParameter("lambda", 0.0);
 		this.putParameter("momentum", 0.0);
 		this.putParameter("batchSize", 1.0);
+		this.putParameter("floatPrecision", 0.0);
+		this.putParameter("asyncValidation", 0.0);
 		alwaysUseValidationSet = false;
 		norm = false;
 		forgetGates = true;
@@ -118,6 +133,7 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 
 	@Override
 	public void train() {
+		this.resetSessions();
 		
 		int numNetsTotal = (int)this.getDoubleParameter("numNetsTotal");
 		int numNets = (int)this.getDoubleParameter("numNets");
@@ -130,27 +146,31 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 		else if(this.getDoubleParameter("normTarget") > 0.0)
 			maxOutcome = getDoubleParameter("normTarget");
 		
-		double[][][][] trainInputs = null;
-		double[][][][] trainTargets = null;
+		/** k-fold cross validation: views of the whole training set. */
+		Folds folds = null;
+		DenseSequenceMatrix allInputs = null;
+		DenseSequenceMatrix allTargets = null;
+		dataBytes = 0;
 		if(numNetsTotal > 1){
-			trainInputs = new double[numNetsTotal][][][];
-			trainTargets = new double[numNetsTotal][][][];
-			int i = 0;
-			for (DataSet<E> each : this.trainingDataSet.splitIntoNSubsets(numNetsTotal)) {
-				trainInputs[i] = this.loadDataSet(each);
-				trainTargets[i] = this.loadTargets(each);
-				i++;
-			}
+			folds = new Folds(this.trainingDataSet.size(), numNetsTotal);
+			allInputs = this.loadDataSet(this.trainingDataSet);
+			allTargets = this.loadTargetMatrix(this.trainingDataSet);
+			dataBytes = allInputs.valueBytes() + allTargets.valueBytes();
 			if(this.alwaysUseValidationSet){
 				this.inputTest = this.loadDataSet(this.testDataSet);
-				this.targetTest = this.loadTargets(this.testDataSet);
+				this.targetTest = this.loadTargetMatrix(this.testDataSet);
+				dataBytes += inputTest.valueBytes() + targetTest.valueBytes();
 			}
 		} else {
 			this.input = this.loadDataSet(this.trainingDataSet);
-			this.target = this.loadTargets(this.trainingDataSet);
+			this.target = this.loadTargetMatrix(this.trainingDataSet);
 			this.inputTest = this.loadDataSet(this.testDataSet);
-			this.targetTest = this.loadTargets(this.testDataSet);
+			this.targetTest = this.loadTargetMatrix(this.testDataSet);
+			dataBytes = input.valueBytes() + target.valueBytes()
+					+ inputTest.valueBytes() + targetTest.valueBytes();
 		}
+		Log.puts("LSTM: training and validation data " + (dataBytes / 1024)
+				+ " KiB" + (singlePrecision() ? " (float32)" : ""));
 		
 		ExecutorService service = Executors.newFixedThreadPool(Runtime
 				.getRuntime().availableProcessors());
@@ -160,22 +180,12 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 		for (int netNumber = 0; netNumber < numNetsTotal; netNumber++) {
 			if (numNetsTotal > 1) {
 				if (!this.alwaysUseValidationSet){
-					inputTest = trainInputs[netNumber];
-					targetTest = trainTargets[netNumber];
+					inputTest = allInputs.selectSequences(folds.validation(netNumber));
+					targetTest = allTargets.selectSequences(folds.validation(netNumber));
 				}
-				int length = 0;
-				for (int i = 0; i < trainInputs.length; i++)
-					if(i != netNumber)
-						length += trainInputs[i].length;
-				input = new double[length][][];
-				target = new double[length][][];
-				int k = 0;
-				for (int i = 0; i < trainInputs.length; i++)
-					if (i != netNumber)
-						for(int j = 0; j < trainInputs[i].length; j++){
-							input[k] = trainInputs[i][j];
-							target[k++] = trainTargets[i][j];
-						}
+				int[] training = folds.training(netNumber);
+				input = allInputs.selectSequences(training);
+				target = allTargets.selectSequences(training);
 			}
 			
 			ArrayList<LSTMCore<E>> randomNets = new ArrayList<LSTMCore<E>>();
@@ -264,18 +274,35 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 		return data;
 	}
 
-	private double[][][] loadDataSet(DataSet<E> set) {
-		double data[][][] = new double[set.size()][][];
-		for(int i = 0; i < set.size(); i++)
-			data[i] = set.get(i).getDenseRepresentation(features);
-		return data;
+	/**
+	 * targets of a data set (see {@link #loadTargets(DataSet)}) in the
+	 * precision given by the parameter floatPrecision.
+	 * 
+	 * @param set
+	 * @return
+	 */
+	protected DenseSequenceMatrix loadTargetMatrix(DataSet<E> set) {
+		return DenseSequenceMatrix.create(this.loadTargets(set), singlePrecision());
+	}
+
+	/**
+	 * store the data in single precision.
+	 * 
+	 * @return
+	 */
+	protected boolean singlePrecision() {
+		return this.getDoubleParameter("floatPrecision") > 0.5;
+	}
+
+	private DenseSequenceMatrix loadDataSet(DataSet<E> set) {
+		return DenseSequenceMatrix.fromSequences(set, features, singlePrecision());
 	}
 
 	@Override
 	public DataSet<E> test() {
 		
 		this.inputTest = this.loadDataSet(this.testDataSet);
-		this.targetTest = this.loadTargets(this.testDataSet);
+		this.targetTest = this.loadTargetMatrix(this.testDataSet);
 		
 		for(Instance each : this.testDataSet)
 			each.putResult("result", 0.0);
@@ -284,6 +311,7 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 		for(int netNumber = 0; netNumber < numNetsTotal; netNumber++){
 			LSTMCore<E> net = createNet("Test" + netNumber, this.getBaseDir(), 0);
 			net.setTestData(inputTest, targetTest);
+			/** the weights are taken from the model cache after the first call. */
 			net.test("maxNNglobal" + netNumber, this.testDataSet);
 			net.destroy();
 		}
@@ -296,6 +324,48 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 		return this.testDataSet;
 	}
 
+	/**
+	 * Create a streaming inference session for one sequence. The nets are
+	 * loaded once from the base directory and shared read-only by all
+	 * sessions.
+	 * 
+	 * @param id
+	 *            id of the sequence
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized LSTMSession createSession(String id) throws IOException {
+		if (sessionNets == null) {
+			List<LSTMCore<E>> nets = new ArrayList<LSTMCore<E>>();
+			int numNetsTotal = (int) this.getDoubleParameter("numNetsTotal");
+			for (int netNumber = 0; netNumber < numNetsTotal; netNumber++) {
+				LSTMCore<E> net = createNet("Session" + netNumber,
+						this.getBaseDir(), 0);
+				net.loadForInference("maxNNglobal" + netNumber);
+				nets.add(net);
+			}
+			sessionNets = nets;
+		}
+		return new LSTMSession(id, features, sessionNets, outputScale());
+	}
+
+	/**
+	 * Factor for the averaged outputs of a streaming inference session.
+	 * 
+	 * @return
+	 */
+	protected double outputScale() {
+		return this.maxOutcome;
+	}
+
+	/**
+	 * Forget the nets of the streaming inference sessions. New sessions load
+	 * the nets again.
+	 */
+	protected synchronized void resetSessions() {
+		this.sessionNets = null;
+	}
+
 	/**
 	 * store results. normalize results.
 	 * @param numNetsTotal
@@ -364,6 +434,17 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 		return this.maxOutcome;
 	}
 
+	/**
+	 * Memory of the values of the training and validation data of the last
+	 * training in bytes. Rows shared with the data sets (see
+	 * {@link DenseSequenceMatrix#fromSequences}) are included.
+	 * 
+	 * @return
+	 */
+	public long getDataBytes() {
+		return this.dataBytes;
+	}
+
 	/**
 	 * Use the dropout technique in training.
 	 */
@@ -372,8 +453,10 @@ public class LSTM<E extends Sequence> extends Classifier<E> {
 	}
 
 	/**
-	 * train using all processors even if you have only one net. Training in
-	 * parallel on the core level is not deterministic yet!!
+	 * train using all processors even if you have only one net. The sequences
+	 * of each mini batch are split among the processors and the gradients are
+	 * added in a fixed order, hence training is deterministic for a given
+	 * seed and number of processors.
 	 */
 	public void trainInParallel() {
 		this.trainInParallel = true;
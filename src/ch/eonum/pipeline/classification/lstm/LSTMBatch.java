@@ -0,0 +1,496 @@
+package ch.eonum.pipeline.classification.lstm;
+
+import ch.eonum.pipeline.core.DenseSequenceMatrix;
+
+/**
+ * Mini-batched forward and backward pass of an {@link LSTMCore}. A batch of
+ * sequences is stepped through time together. The activations, internal
+ * states and derivatives of all sequences are packed into contiguous tensors
+ * (sequence major), such that each weight row is applied to all sequences of
+ * the batch while it is in the cache. Sequences shorter than the longest
+ * sequence of the batch are masked after their last element.
+ *
+ * The weight update contributions of all sequences are accumulated in the DW
+ * of the core. The math is the same as in {@link LSTMCore#forwardPass(boolean)}
+ * and {@link LSTMCore#backwardPass()}.
+ *
+ * @author tim
+ *
+ */
+class LSTMBatch {
+	private final LSTMCore<?> net;
+	private final DenseSequenceMatrix input;
+	private final DenseSequenceMatrix target;
+	/** buffers for rows stored in single precision. */
+	private double[] inputBuffer;
+	private double[] targetBuffer;
+
+	/** architecture. */
+	private final int numAll;
+	private final int numInputs;
+	private final int numHiddenAndInput;
+	private final int numInpHidCells;
+	private final int numTargets;
+	private final int numBlocks;
+	private final int numCells;
+	private final int cellblockSize;
+	/** unit index of the gates by block. -1 if the gate is not used. */
+	private final int[] inGateUnit;
+	private final int[] outGateUnit;
+	private final int[] forgetGateUnit;
+	/** unit index by cell (block * cellblockSize + cell). */
+	private final int[] cellUnit;
+	/** end of the hidden units without the bias unit of the outputs. */
+	private final int endHidden;
+	/** number of gates and cells per memory block. */
+	private final int unitsPerBlock;
+
+	/** capacity in sequences. */
+	private int capacity;
+	/** old and new activations [b * numAll + unit]. */
+	private double[] yOld;
+	private double[] yNew;
+	/** net inputs [b * numAll + unit]. */
+	private double[] z;
+	/** gate activations [b * numBlocks + block]. */
+	private double[] yIn;
+	private double[] yOut;
+	private double[] yForget;
+	/** g, h and internal state [b * numCells + cell]. */
+	private double[] g;
+	private double[] h;
+	private double[] s;
+	/** derivatives of the internal states [(b * numCells + cell) * numInpHidCells + j]. */
+	private double[] si;
+	private double[] sc;
+	private double[] sf;
+	/** error signals by unit, internal state and output gate. */
+	private double[] e;
+	private double[] es;
+	private double[] eo;
+	/** targets and output errors [b * numTargets + k]. */
+	private double[] t;
+	private double[] err;
+	/** learning rate by sequence. */
+	private double[] alphas;
+	/** active memory blocks (dropout) [b * numBlocks + block]. */
+	private boolean[] blockActive;
+	/** sequences with an element / a target at the current time step. */
+	private boolean[] active;
+	private boolean[] hasTarget;
+
+	LSTMBatch(LSTMCore<?> net, DenseSequenceMatrix input, DenseSequenceMatrix target) {
+		this.net = net;
+		this.input = input;
+		this.target = target;
+		this.numAll = net.numAll;
+		this.numInputs = net.numInputs;
+		this.numHiddenAndInput = net.numHiddenAndInput;
+		this.numInpHidCells = net.numInpHidCells;
+		this.numTargets = net.numTargets;
+		this.numBlocks = net.numBlocks;
+		this.cellblockSize = net.cellblockSize;
+		this.numCells = numBlocks * cellblockSize;
+		this.endHidden = numHiddenAndInput - (net.biasOut ? 1 : 0);
+		this.unitsPerBlock = numBlocks == 0 ? 1
+				: (numInpHidCells - numHiddenAndInput) / numBlocks;
+		inGateUnit = new int[numBlocks];
+		outGateUnit = new int[numBlocks];
+		forgetGateUnit = new int[numBlocks];
+		cellUnit = new int[numCells];
+		int i = numHiddenAndInput - 1;
+		for (int u = 0; u < numBlocks; u++) {
+			inGateUnit[u] = net.inGates ? ++i : -1;
+			outGateUnit[u] = net.outGates ? ++i : -1;
+			forgetGateUnit[u] = net.forgetGates ? ++i : -1;
+			for (int v = 0; v < cellblockSize; v++)
+				cellUnit[u * cellblockSize + v] = ++i;
+		}
+	}
+
+	private void allocate(int n) {
+		if (n <= capacity)
+			return;
+		capacity = n;
+		yOld = new double[n * numAll];
+		yNew = new double[n * numAll];
+		z = new double[n * numAll];
+		yIn = new double[n * numBlocks];
+		yOut = new double[n * numBlocks];
+		yForget = new double[n * numBlocks];
+		g = new double[n * numCells];
+		h = new double[n * numCells];
+		s = new double[n * numCells];
+		si = net.inGates ? new double[n * numCells * numInpHidCells] : null;
+		sc = new double[n * numCells * numInpHidCells];
+		sf = net.forgetGates ? new double[n * numCells * numInpHidCells] : null;
+		e = new double[n * numAll];
+		es = new double[n * numCells];
+		eo = new double[n * numBlocks];
+		t = new double[n * numTargets];
+		err = new double[n * numTargets];
+		alphas = new double[n];
+		blockActive = new boolean[n * numBlocks];
+		active = new boolean[n];
+		hasTarget = new boolean[n];
+	}
+
+	/**
+	 * Run the sequences examples[from, to) through the net and accumulate
+	 * their weight update contributions in DW of the net.
+	 *
+	 * @param examples
+	 * @param from
+	 * @param to
+	 * @param alphaOld
+	 *            learning rate
+	 */
+	void accumulate(int[] examples, int from, int to, double alphaOld) {
+		int n = to - from;
+		allocate(n);
+		int length = 0;
+		for (int b = 0; b < n; b++) {
+			int example = examples[from + b];
+			net.alpha = alphaOld;
+			for (int u = 0; u < numBlocks; u++)
+				blockActive[b * numBlocks + u] = !net.dropout
+						|| net.rand.nextBoolean();
+			net.adjustAlpha(example);
+			alphas[b] = net.alpha;
+			net.parentCore.numbSeq++;
+			reset(b);
+			length = Math.max(length, input.sequenceLength(example));
+		}
+		net.alpha = alphaOld;
+
+		for (int step = 0; step < length; step++) {
+			int numTargetsInStep = 0;
+			for (int b = 0; b < n; b++) {
+				int example = examples[from + b];
+				active[b] = step < input.sequenceLength(example);
+				hasTarget[b] = false;
+				if (!active[b])
+					continue;
+				int row = input.row(example, step);
+				inputBuffer = LSTMCore.rowBuffer(inputBuffer, input.rowLength(row));
+				double[] in = input.getRow(row, inputBuffer);
+				row = target.row(example, step);
+				targetBuffer = LSTMCore.rowBuffer(targetBuffer, target.rowLength(row));
+				setInput(b, in, target.getRow(row, targetBuffer));
+				if (hasTarget[b])
+					numTargetsInStep++;
+			}
+			forward(n);
+			for (int b = 0; b < n; b++)
+				if (hasTarget[b])
+					net.parentCore.epochErr += net.batchError(
+							examples[from + b], yNew, b * numAll, t,
+							err, b * numTargets);
+			backward(n, numTargetsInStep);
+			for (int b = 0; b < n; b++)
+				if (active[b])
+					System.arraycopy(yNew, b * numAll, yOld, b * numAll, numAll);
+		}
+	}
+
+	/** state of sequence b at the beginning of a sequence. */
+	private void reset(int b) {
+		double y = net.dropout ? 0.0 : 0.5;
+		for (int i = b * numAll; i < (b + 1) * numAll; i++) {
+			yNew[i] = y;
+			yOld[i] = y;
+		}
+		for (int c = b * numCells; c < (b + 1) * numCells; c++) {
+			s[c] = 0;
+			g[c] = 0;
+			h[c] = 0;
+		}
+		int from = b * numCells * numInpHidCells;
+		int to = from + numCells * numInpHidCells;
+		for (int j = from; j < to; j++) {
+			if (si != null)
+				si[j] = 0;
+			sc[j] = 0;
+			if (sf != null)
+				sf[j] = 0;
+		}
+	}
+
+	private void setInput(int b, double[] in, double[] tar) {
+		int o = b * numAll;
+		for (int i = 0; i < numInputs - (net.biasHidden ? 1 : 0); i++) {
+			yNew[o + i] = in[i];
+			yOld[o + i] = in[i];
+		}
+		if (net.biasHidden) {
+			yNew[o + numInputs - 1] = 1.0;
+			yOld[o + numInputs - 1] = 1.0;
+		}
+		hasTarget[b] = true;
+		for (int k = 0; k < numTargets; k++) {
+			t[b * numTargets + k] = tar[k];
+			if (Double.isNaN(tar[k]))
+				hasTarget[b] = false;
+		}
+	}
+
+	private boolean isActive(int b, int unit) {
+		if (!active[b])
+			return false;
+		if (!net.dropout || unit < numHiddenAndInput)
+			return true;
+		return blockActive[b * numBlocks + (unit - numHiddenAndInput)
+				/ unitsPerBlock];
+	}
+
+	private void forward(int n) {
+		double[][] w = net.W_mod;
+		/** net input of all hidden units, gates and cells. */
+		for (int i = numInputs; i < numInpHidCells; i++) {
+			if (i >= endHidden && i < numHiddenAndInput)
+				continue;
+			double[] row = w[i];
+			for (int b = 0; b < n; b++) {
+				if (!isActive(b, i))
+					continue;
+				int o = b * numAll;
+				double sum = 0;
+				for (int j = 0; j < numInpHidCells; j++)
+					sum += row[j] * yOld[o + j];
+				z[o + i] = sum;
+			}
+		}
+
+		for (int b = 0; b < n; b++) {
+			if (!active[b])
+				continue;
+			int o = b * numAll;
+			for (int i = numInputs; i < endHidden; i++)
+				yNew[o + i] = 1 / (1 + Math.exp(-z[o + i]));
+			if (net.biasOut)
+				yNew[o + numHiddenAndInput - 1] = 1.0;
+			for (int u = 0; u < numBlocks; u++) {
+				int bu = b * numBlocks + u;
+				if (!blockActive[bu])
+					continue;
+				if (net.inGates) {
+					yIn[bu] = 1 / (1 + Math.exp(-z[o + inGateUnit[u]]));
+					yNew[o + inGateUnit[u]] = yIn[bu];
+				}
+				if (net.outGates) {
+					yOut[bu] = 1 / (1 + Math.exp(-z[o + outGateUnit[u]]));
+					yNew[o + outGateUnit[u]] = yOut[bu];
+				}
+				if (net.forgetGates) {
+					yForget[bu] = 1 / (1 + Math.exp(-z[o + forgetGateUnit[u]]));
+					yNew[o + forgetGateUnit[u]] = yForget[bu];
+				}
+				double forget = net.forgetGates ? yForget[bu] : 1.0;
+				double in = net.inGates ? yIn[bu] : 1.0;
+				for (int v = 0; v < cellblockSize; v++) {
+					int c = u * cellblockSize + v;
+					int bc = b * numCells + c;
+					g[bc] = 4.0 / (1 + Math.exp(-z[o + cellUnit[c]])) - 2.0;
+					s[bc] = forget * s[bc] + in * g[bc];
+					h[bc] = 2.0 / (1 + Math.exp(-s[bc])) - 1.0;
+					yNew[o + cellUnit[c]] = net.outGates ? h[bc] * yOut[bu]
+							: h[bc];
+				}
+			}
+		}
+
+		/** output units. dropped cells have activation 0. */
+		for (int k = numInpHidCells; k < numAll; k++) {
+			double[] row = w[k];
+			for (int b = 0; b < n; b++) {
+				if (!hasTarget[b])
+					continue;
+				int o = b * numAll;
+				double sum = 0;
+				for (int i = numInputs; i < numHiddenAndInput; i++)
+					sum += row[i] * yNew[o + i];
+				for (int c = 0; c < numCells; c++)
+					if (blockActive[b * numBlocks + c / cellblockSize])
+						sum += row[cellUnit[c]] * yNew[o + cellUnit[c]];
+				yNew[o + k] = net.softmax ? Math.exp(sum) : 1 / (1 + Math
+						.exp(-sum));
+			}
+		}
+		for (int b = 0; b < n; b++) {
+			if (!hasTarget[b])
+				continue;
+			int o = b * numAll;
+			if (net.softmax) {
+				double total = 0.0;
+				for (int k = numInpHidCells; k < numAll; k++)
+					total += yNew[o + k];
+				for (int k = numInpHidCells; k < numAll; k++)
+					yNew[o + k] /= total;
+			}
+			for (int k = numInpHidCells, j = 0; k < numAll; k++, j++)
+				err[b * numTargets + j] = t[b * numTargets + j] - yNew[o + k];
+		}
+	}
+
+	private void backward(int n, int numTargetsInStep) {
+		double[][] w = net.W_mod;
+		double[][] dw = net.DW;
+
+		/** output units */
+		for (int b = 0; b < n; b++) {
+			if (!hasTarget[b])
+				continue;
+			int o = b * numAll;
+			for (int k = numInpHidCells, j = 0; k < numAll; k++, j++) {
+				double error = err[b * numTargets + j];
+				e[o + k] = net.softmax ? error : error * (1.0 - yNew[o + k])
+						* yNew[o + k];
+			}
+		}
+		for (int k = numInpHidCells; k < numAll; k++) {
+			double[] d = dw[k];
+			for (int b = 0; b < n; b++) {
+				if (!hasTarget[b])
+					continue;
+				int o = b * numAll;
+				double f = alphas[b] * e[o + k];
+				for (int i = numInputs; i < numHiddenAndInput; i++)
+					d[i] += f * yNew[o + i];
+				for (int c = 0; c < numCells; c++)
+					if (blockActive[b * numBlocks + c / cellblockSize])
+						d[cellUnit[c]] += f * yNew[o + cellUnit[c]];
+			}
+		}
+
+		/** hidden units */
+		for (int i = numInputs; i < numHiddenAndInput; i++) {
+			double[] d = dw[i];
+			for (int b = 0; b < n; b++) {
+				if (!hasTarget[b])
+					continue;
+				int o = b * numAll;
+				double sum = 0;
+				for (int k = numInpHidCells; k < numAll; k++)
+					sum += w[k][i] * e[o + k];
+				double ei = sum * (1.0 - yNew[o + i]) * yNew[o + i];
+				double f = alphas[b] * ei;
+				for (int j = 0; j < numInpHidCells; j++)
+					d[j] += f * yOld[o + j];
+			}
+		}
+
+		/** error to memory cells and internal states, output gates */
+		for (int b = 0; b < n; b++) {
+			if (!hasTarget[b])
+				continue;
+			int o = b * numAll;
+			for (int u = 0; u < numBlocks; u++) {
+				int bu = b * numBlocks + u;
+				if (!blockActive[bu])
+					continue;
+				double sumO = 0;
+				for (int v = 0; v < cellblockSize; v++) {
+					int c = u * cellblockSize + v;
+					int bc = b * numCells + c;
+					double sum = 0;
+					for (int k = numInpHidCells; k < numAll; k++)
+						sum += w[k][cellUnit[c]] * e[o + k];
+					double dh = 0.5 * (1.0 + h[bc]) * (1.0 - h[bc]);
+					es[bc] = net.outGates ? yOut[bu] * dh * sum : dh * sum;
+					sumO += h[bc] * sum;
+				}
+				if (net.outGates)
+					eo[bu] = sumO * (1.0 - yOut[bu]) * yOut[bu];
+			}
+		}
+
+		derivatives(n);
+
+		/** updates for weights to input, output and forget gates and cells */
+		for (int u = 0; u < numBlocks; u++) {
+			for (int b = 0; b < n; b++) {
+				int bu = b * numBlocks + u;
+				if (!hasTarget[b] || !blockActive[bu])
+					continue;
+				int o = b * numAll;
+				double alpha = alphas[b];
+				int base = (b * numCells + u * cellblockSize) * numInpHidCells;
+				if (net.inGates) {
+					double[] d = dw[inGateUnit[u]];
+					for (int v = 0; v < cellblockSize; v++) {
+						double f = alpha * es[b * numCells + u * cellblockSize + v];
+						int off = base + v * numInpHidCells;
+						for (int j = 0; j < numInpHidCells; j++)
+							d[j] += f * si[off + j];
+					}
+				}
+				if (net.outGates) {
+					double[] d = dw[outGateUnit[u]];
+					double f = alpha * eo[bu];
+					for (int j = 0; j < numInpHidCells; j++)
+						d[j] += f * yOld[o + j];
+				}
+				if (net.forgetGates) {
+					double[] d = dw[forgetGateUnit[u]];
+					for (int v = 0; v < cellblockSize; v++) {
+						double f = alpha * es[b * numCells + u * cellblockSize + v];
+						int off = base + v * numInpHidCells;
+						for (int j = 0; j < numInpHidCells; j++)
+							d[j] += f * sf[off + j];
+					}
+				}
+				for (int v = 0; v < cellblockSize; v++) {
+					double[] d = dw[cellUnit[u * cellblockSize + v]];
+					double f = alpha * es[b * numCells + u * cellblockSize + v];
+					int off = base + v * numInpHidCells;
+					for (int j = 0; j < numInpHidCells; j++)
+						d[j] += f * sc[off + j];
+				}
+			}
+		}
+
+		/**
+		 * weight decay, once per element with a target in this step, as in the
+		 * online training.
+		 */
+		double lambda = net.parent.getDoubleParameter("lambda");
+		if (lambda != 0 && numTargetsInStep > 0) {
+			double[][] wp = net.parentCore.W_mod;
+			for (int i = 0; i < dw.length; i++)
+				for (int j = 0; j < dw[i].length; j++)
+					dw[i][j] += numTargetsInStep * lambda * wp[i][j];
+		}
+	}
+
+	/** derivatives of the internal states over time. */
+	private void derivatives(int n) {
+		for (int b = 0; b < n; b++) {
+			if (!active[b])
+				continue;
+			int o = b * numAll;
+			for (int u = 0; u < numBlocks; u++) {
+				int bu = b * numBlocks + u;
+				if (!blockActive[bu])
+					continue;
+				double in = net.inGates ? yIn[bu] : 1.0;
+				double dIn = net.inGates ? (1.0 - yIn[bu]) * yIn[bu] : 0.0;
+				double dForget = net.forgetGates ? (1.0 - yForget[bu])
+						* yForget[bu] : 0.0;
+				for (int v = 0; v < cellblockSize; v++) {
+					int bc = b * numCells + u * cellblockSize + v;
+					int off = bc * numInpHidCells;
+					double gi = g[bc] * dIn;
+					double gc = in * (0.25 * (2.0 - g[bc]) * (2.0 + g[bc]));
+					if (net.inGates)
+						for (int j = 0; j < numInpHidCells; j++)
+							si[off + j] += gi * yOld[o + j];
+					if (net.forgetGates)
+						for (int j = 0; j < numInpHidCells; j++)
+							sf[off + j] += sc[off + j] * dForget * yOld[o + j];
+					for (int j = 0; j < numInpHidCells; j++)
+						sc[off + j] += gc * yOld[o + j];
+				}
+			}
+		}
+	}
+}
@@ -105,5 +105,9 @@ public class LSTMClassifier<E extends Sequence> extends LSTM<E> {
 		return core;
 	}
 
-	
+	/** sessions return the class probabilities. */
+	@Override
+	protected double outputScale() {
+		return 1.0;
+	}
 }
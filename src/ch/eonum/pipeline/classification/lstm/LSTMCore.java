@@ -2,22 +2,25 @@ package ch.eonum.pipeline.classification.lstm;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 
 import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.DenseSequenceMatrix;
 import ch.eonum.pipeline.core.Sequence;
+import ch.eonum.pipeline.util.BinaryModel;
+import ch.eonum.pipeline.util.AsyncValidator;
 import ch.eonum.pipeline.util.Gnuplot;
 import ch.eonum.pipeline.util.Log;
 
@@ -65,9 +68,13 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	protected int numbSeq;
 	/** number of epochs seen by the net */
 	protected int epoch;
-	/** weight matrix */
+	/**
+	 * weight matrix. Only the live blocks are stored: The rows of the input
+	 * units are empty, all other rows have numInpHidCells columns (see
+	 * {@link #newWeightMatrix()}).
+	 */
 	protected double W_mod[][];
-	/** contribution to update of weight matrix */
+	/** contribution to update of weight matrix. same layout as W_mod. */
 	protected double DW[][];
 	/** input gates */
 	protected double Y_in[];
@@ -109,22 +116,27 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	 * matrix for storing the target per training element per sequence element
 	 * per output component
 	 */
-	protected double target[][][];
+	protected DenseSequenceMatrix target;
 	/**
 	 * matrix for storing the input per training element per sequence element
 	 * per input component
 	 */
-	private double input[][][];
+	private DenseSequenceMatrix input;
 	/**
 	 * matrix for storing the target per test element per sequence element per
 	 * output component
 	 */
-	protected double targetTest[][][];
+	protected DenseSequenceMatrix targetTest;
 	/**
 	 * matrix for storing the input per test element per sequence element per
 	 * input component
 	 */
-	private double inputTest[][][];
+	private DenseSequenceMatrix inputTest;
+	/** buffers for input and target rows stored in single precision. */
+	private double[] inputBuffer;
+	private double[] targetBuffer;
+	/** save the weights in single precision. */
+	protected boolean singlePrecision;
 	/** MSE per epoch */
 	protected double epochErr;
 	/** error for output units */
@@ -156,6 +168,8 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	protected int numForecasts;
 	/** do a cross validation run each X epochs. */
 	protected int validationFrequency;
+	/** validate on a separate thread while the training continues. */
+	protected boolean asyncValidation;
 	/** minimum validation error from cross validation. */
 	protected double minimumValidationError;
 	/** batch size. */
@@ -168,11 +182,8 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	protected double momentum;
 	/** use the softmax activation function for the output layer. */
 	protected boolean softmax;
-	/** parameters for sub threads (parentCore != this). */
-	protected boolean subThreadWeightUpdate;
-	protected double subThreadAlphaOld;
-	protected int subThreadStart;
-	protected int subThreadStop;
+	/** tensors for batched training. */
+	private LSTMBatch batch;
 
 	public LSTMCore(String threadName, String baseDir, LSTM<E> parent, int seed,
 			boolean outputGates, boolean forgetGates, boolean inputGates, boolean dropout) {
@@ -197,9 +208,11 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	protected void initNet() {
 		/** weight matrix */
 		if (W_mod == null)
-			W_mod = new double[numAll][numAll];
+			W_mod = newWeightMatrix();
+		else
+			W_mod = compact(W_mod);
 		/** contribution to update of weight matrix */
-		DW = new double[numAll][numAll];
+		DW = newWeightMatrix();
 		/** input gates */
 		if (inGates)
 			Y_in = new double[numBlocks];
@@ -223,18 +236,61 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 		Yc = new double[numBlocks][cellblockSize];
 		/** derivative with respect to weights to input gate for each cell */
 		if (inGates)
-			SI = new double[numBlocks][cellblockSize][numAll];
+			SI = new double[numBlocks][cellblockSize][numInpHidCells];
 		/** derivative with respect to weights to cell input for each cell */
-		SC = new double[numBlocks][cellblockSize][numAll];
+		SC = new double[numBlocks][cellblockSize][numInpHidCells];
 		/** derivative with respect to weights to forget gate for each cell */
 		if (forgetGates)
-			SF = new double[numBlocks][cellblockSize][numAll];
+			SF = new double[numBlocks][cellblockSize][numInpHidCells];
 		/** current target */
 		target_a = new double[numTargets];
 		/** error for output units */
 		error = new double[numTargets];
 	}
 
+	/**
+	 * Allocate a weight matrix with the live blocks only. Row i holds the
+	 * weights of the connections into unit i. Input units have no incoming
+	 * connections. Hidden units, gates and memory cells are connected to all
+	 * inputs, hidden units, gates and cells, output units to the hidden units
+	 * and cells. Output units have no outgoing connections, hence no row has
+	 * more than numInpHidCells columns.
+	 * 
+	 * @return
+	 */
+	protected double[][] newWeightMatrix() {
+		double[][] w = new double[numAll][];
+		for (int i = 0; i < numAll; i++)
+			w[i] = new double[i < numInputs ? 0 : numInpHidCells];
+		return w;
+	}
+
+	/**
+	 * Check if a weight matrix is in the layout of
+	 * {@link #newWeightMatrix()}.
+	 */
+	private boolean isCompact(double[][] w) {
+		if (w.length != numAll)
+			return false;
+		for (int i = 0; i < numAll; i++)
+			if (w[i].length != (i < numInputs ? 0 : numInpHidCells))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Convert a dense numAll x numAll weight matrix to the layout of
+	 * {@link #newWeightMatrix()}. Compact matrices are returned unchanged.
+	 */
+	private double[][] compact(double[][] dense) {
+		if (isCompact(dense))
+			return dense;
+		double[][] w = newWeightMatrix();
+		for (int i = numInputs; i < numAll; i++)
+			System.arraycopy(dense[i], 0, w[i], 0, numInpHidCells);
+		return w;
+	}
+
 	/**
 	 * random number generation. Gauss distributed.
 	 * @param k
@@ -400,6 +456,33 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 		}
 	}
 
+	/**
+	 * Error of one sequence of a batch. The outputs, targets and output
+	 * errors are copied to the state of this core.
+	 * 
+	 * @param example
+	 * @param y
+	 *            activations of the batch
+	 * @param offset
+	 *            first unit of the sequence in y
+	 * @param t
+	 *            targets of the batch
+	 * @param err
+	 *            output errors of the batch
+	 * @param targetOffset
+	 *            first target of the sequence in t and err
+	 * @return
+	 */
+	double batchError(int example, double[] y, int offset, double[] t,
+			double[] err, int targetOffset) {
+		for (int k = numInpHidCells, j = 0; k < numAll; k++, j++) {
+			Yk_mod_new[k] = y[offset + k];
+			target_a[j] = t[targetOffset + j];
+			error[j] = err[targetOffset + j];
+		}
+		return compError(example, false);
+	}
+
 	protected double compError(int currentSequence, boolean test) {
 		int k, j;
 		double err = 0;
@@ -434,11 +517,10 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 		if(dropout)
 			multiplyMemoryCellWeights(0.5);
 
-		for (int currentSequence = 0; currentSequence < inputTest.length; currentSequence++) {
+		for (int currentSequence = 0; currentSequence < inputTest.sequences(); currentSequence++) {
 			resetNet();
-			for (int currentElement = 0; currentElement < inputTest[currentSequence].length; currentElement++) {
-				setInput(inputTest[currentSequence][currentElement],
-						targetTest[currentSequence][currentElement]);
+			for (int currentElement = 0; currentElement < inputTest.sequenceLength(currentSequence); currentElement++) {
+				setInput(inputTest, targetTest, currentSequence, currentElement);
 
 				forwardPass(true);
 
@@ -485,33 +567,74 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 			/** input gate */
 			if (inGates) {
 				i++;
-				for (j = 0; j < W_mod.length; j++)
+				for (j = numInputs; j < numAll; j++)
 					W_mod[j][i] *= factor;
 			}
 
 			/** output gate */
 			if (outGates) {
 				i++;
-				for (j = 0; j < W_mod.length; j++)
+				for (j = numInputs; j < numAll; j++)
 					W_mod[j][i] *= factor;
 			}
 
 			/** forget gate */
 			if (forgetGates) {
 				i++;
-				for (j = 0; j < W_mod.length; j++)
+				for (j = numInputs; j < numAll; j++)
 					W_mod[j][i] *= factor;
 			}
 
 			/** uth memory cell block */
 			for (v = 0; v < blockSize[u]; v++) {
 				i++;
-				for (j = 0; j < W_mod.length; j++)
+				for (j = numInputs; j < numAll; j++)
 					W_mod[j][i] *= factor;
 			}
 		}
 	}
 
+	/**
+	 * feed the net with the element t of the sequence s.
+	 * @param input
+	 * @param target
+	 * @param s
+	 * @param t
+	 */
+	private void setInput(DenseSequenceMatrix input, DenseSequenceMatrix target,
+			int s, int t) {
+		int row = input.row(s, t);
+		inputBuffer = rowBuffer(inputBuffer, input.rowLength(row));
+		setInput(input.getRow(row, inputBuffer), targetRow(target, s, t));
+	}
+
+	/**
+	 * Target of the element t of the sequence s.
+	 * 
+	 * @param target
+	 * @param s
+	 * @param t
+	 * @return
+	 */
+	protected double[] targetRow(DenseSequenceMatrix target, int s, int t) {
+		int row = target.row(s, t);
+		targetBuffer = rowBuffer(targetBuffer, target.rowLength(row));
+		return target.getRow(row, targetBuffer);
+	}
+
+	/**
+	 * Buffer for a row with length values.
+	 * 
+	 * @param buffer
+	 *            current buffer
+	 * @param length
+	 * @return
+	 */
+	static double[] rowBuffer(double[] buffer, int length) {
+		return buffer != null && buffer.length >= length ? buffer
+				: new double[length];
+	}
+
 	/**
 	 * feed the net with data.
 	 * @param input
@@ -542,7 +665,8 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	 */
 	protected void setParameters() {
 		this.numInputs = parent.getFeatures().size();
-		this.numTargets = this.targetTest[0][0].length;
+		this.numTargets = this.targetTest.rowLength(0);
+		this.singlePrecision = parent.getDoubleParameter("floatPrecision") > 0.5;
 
 		this.numBlocks = (int) parent.getDoubleParameter("numLSTM");
 		this.alpha = parent.getDoubleParameter("learningRate");
@@ -576,6 +700,7 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 
 		this.initRange = parent.getDoubleParameter("initRange");
 		this.validationFrequency = 1;
+		this.asyncValidation = parent.getDoubleParameter("asyncValidation") > 0.5;
 		
 		this.weightUpdatePerSequence = batchSize <= 1;
 		this.maxepoch = parent.getIntParameter("maxEpochs"); //
@@ -606,11 +731,10 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 
 		/** weight initialization */
 		if (this.randomWeightInitialization) {
+			/** only the weights of existing connections are drawn. */
 			for (i = 0; i < numAll; i++) {
-				for (j = 0; j < numAll; j++) {
-					W_mod[i][j] = (seprand(2000) - 1000);
-					W_mod[i][j] /= 1000.0;
-					W_mod[i][j] *= initRange;
+				for (j = 0; j < W_mod[i].length; j++) {
+					W_mod[i][j] = (seprand(2000) - 1000) / 1000.0 * initRange;
 					DW[i][j] = 0;
 				}
 			}
@@ -834,24 +958,17 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 		 */
 		int stepsSinceMin = 0;
 		
-		List<LSTMCore<E>> processors = null;
-		if(this.trainInParallel){
-			processors = new ArrayList<LSTMCore<E>>();
-			for(int i = 0; i < Runtime.getRuntime().availableProcessors(); i++){
-				LSTMCore<E> lstm = new LSTMCore<E>(baseDir, baseDir, parent, i * 23, outGates, forgetGates, inGates, dropout);		
-				lstm.softmax = softmax;
-				lstm.input = input;
-				lstm.target = target;
-				lstm.targetTest = targetTest;
-				lstm.inputTest = inputTest;
-				lstm.setParameters();
-				lstm.initNet();
-				lstm.W_mod = W_mod;
-				lstm.parentCore = this;
-				lstm.DW = DW;
-				processors.add(lstm);
-			}
+		/** workers with private gradient buffers for data parallel training. */
+		List<LSTMCore<E>> workers = null;
+		ExecutorService service = null;
+		if (this.trainInParallel) {
+			int numThreads = Runtime.getRuntime().availableProcessors();
+			workers = new ArrayList<LSTMCore<E>>();
+			for (int i = 0; i < numThreads; i++)
+				workers.add(createWorker(i, rand.nextInt()));
+			service = Executors.newFixedThreadPool(numThreads);
 		}
+		AsyncValidator validator = asyncValidation ? createValidator() : null;
 
 		for (epoch = 0; epoch < maxepoch; epoch++) {
 			/** do a weight update or not. */
@@ -866,8 +983,24 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 			if (!weightUpdatePerSequence)
 				weightUpdate = true;
 			/** performing a test on a test set? */
-			if ((epoch % validationFrequency == 0)
-					&& (epoch > 0 || !randomWeightInitialization)) {
+			boolean validation = (epoch % validationFrequency == 0)
+					&& (epoch > 0 || !randomWeightInitialization);
+			if (validation && validator != null) {
+				/** result of the previous validation. */
+				double error = validator.await();
+				if (!Double.isNaN(error)) {
+					if (currentMin > error) {
+						currentMin = error;
+						stepsSinceMin = 0;
+					} else
+						stepsSinceMin++;
+					if (stepsSinceMin > parent
+							.getIntParameter("maxEpochsAfterMax"))
+						break;
+				}
+				validator.submit(epoch, new double[][][] { W_mod });
+				numForecasts = 0;
+			} else if (validation) {
 				resetNet();
 				testLSTM();
 				validationEpochs.put(epoch, Math.sqrt(epochErr / numForecasts));
@@ -876,7 +1009,7 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 				if (currentMin > epochErr) {
 					currentMin = epochErr;
 					stepsSinceMin = 0;
-					save(baseDir + "maxnet.txt");
+					save(baseDir + "maxnet.bin");
 				} else {
 					stepsSinceMin++;
 				}
@@ -887,95 +1020,397 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 			}
 			double alphaOld = alpha;
 			if (!this.trainInParallel)
-				processExamples(weightUpdate, alphaOld, 0, input.length);
-			else {
-				int[][] startEnd = new int[processors.size()][2];
-				int num = (int) ((double) input.length / startEnd.length);
-				int lastEnd = 0;
-				for (int i = 0; i < processors.size(); i++) {
-					startEnd[i][0] = lastEnd;
-					startEnd[i][1] = startEnd[i][0] + num;
-					lastEnd = startEnd[i][1];
-				}
-				startEnd[startEnd.length - 1][1] = input.length;
-				
-				
-				ExecutorService service = Executors.newFixedThreadPool(Runtime
-						.getRuntime().availableProcessors());
-				
-				for (int i = 0; i < processors.size(); i++){
-					processors.get(i).setSubThreadParameters(weightUpdate, alphaOld,
-							startEnd[i][0], startEnd[i][1]);
-					service.submit(processors.get(i));
-				}
-				
-				service.shutdown();
-				try {
-					service.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					System.exit(-1);
-				}
-			}
+				processExamples(weightUpdate, alphaOld, 0, numTrainingSequences());
+			else
+				processExamplesInParallel(workers, service, alphaOld);
 		}
-
+		if (service != null)
+			service.shutdown();
+
+		if (validator != null) {
+			validator.shutdown();
+			currentMin = validator.getMinimum();
+			validator.restoreBest(new double[][][] { W_mod });
+		} else
+			this.load(baseDir + "maxnet.bin");
 		this.minimumValidationError = currentMin;
-		
-		this.load(baseDir + "maxnet.txt");
-		/** release memory. */
+		releaseData();
+	}
+
+	/**
+	 * Asynchronous validation (see {@link AsyncValidator}). A separate core
+	 * with its own activations tests snapshots of the weights on the
+	 * validation set, plots the validation curve and saves the best net.
+	 * 
+	 * @return
+	 */
+	private AsyncValidator createValidator() {
+		final LSTMCore<E> evaluator = newWorker(threadName + "-validation", 0);
+		evaluator.softmax = softmax;
+		evaluator.targetTest = targetTest;
+		evaluator.setParameters();
+		evaluator.W_mod = W_mod;
+		evaluator.initNet();
+		shareTestData(evaluator);
+		return new AsyncValidator(new double[][][] { W_mod },
+				new AsyncValidator.Validation() {
+					@Override
+					public double validate(int epoch, double[][][] weights) {
+						evaluator.W_mod = weights[0];
+						evaluator.epoch = epoch;
+						evaluator.resetNet();
+						evaluator.testLSTM();
+						validationEpochs.put(epoch, Math.sqrt(evaluator.epochErr
+								/ evaluator.numForecasts));
+						Gnuplot.plotOneDimensionalCurve(validationEpochs,
+								"Epochs", baseDir + "validationEpochs");
+						return evaluator.epochErr;
+					}
+
+					@Override
+					public void improved(int epoch, double[][][] weights) {
+						evaluator.W_mod = weights[0];
+						evaluator.save(baseDir + "maxnet.bin");
+					}
+				});
+	}
+
+	/**
+	 * release the training and validation data.
+	 */
+	protected void releaseData() {
 		this.input = null;
 		this.target = null;
+		this.batch = null;
 		this.inputTest = null;
 		this.targetTest = null;
 	}
 
-	protected void setSubThreadParameters(boolean weightUpdate, double alphaOld,
-			int start, int stop) {
-		this.subThreadWeightUpdate = weightUpdate;
-		this.subThreadAlphaOld = alphaOld;
-		this.subThreadStart = start;
-		this.subThreadStop = stop;
+	/**
+	 * Create a worker for data parallel training. The worker shares the
+	 * weights and the training data with this core, but has its own gradient
+	 * buffer DW, activations and error counters.
+	 * 
+	 * @param i
+	 *            worker number
+	 * @param seed
+	 * @return
+	 */
+	private LSTMCore<E> createWorker(int i, int seed) {
+		LSTMCore<E> worker = newWorker(threadName + "-" + i, seed);
+		worker.softmax = softmax;
+		worker.targetTest = targetTest;
+		worker.setParameters();
+		worker.W_mod = W_mod;
+		worker.initNet();
+		shareTrainingData(worker);
+		return worker;
 	}
 
-	protected void processExamples(boolean weightUpdate, double alphaOld, int start, int end) {
-		for (int example = start; example < end; example++) {
-			alpha = alphaOld;
-			if(dropout){
-				dropouts = new boolean[numBlocks];
-				for(int i = 0; i < dropouts.length; i++)
-					dropouts[i] = this.rand.nextBoolean();
+	/**
+	 * Instantiate an uninitialized core of the same type as this core.
+	 * 
+	 * @param name
+	 * @param seed
+	 * @return
+	 */
+	protected LSTMCore<E> newWorker(String name, int seed) {
+		return new LSTMCore<E>(name, baseDir, parent, seed, outGates,
+				forgetGates, inGates, dropout);
+	}
+
+	/**
+	 * Pass the training data to a worker.
+	 * 
+	 * @param worker
+	 */
+	protected void shareTrainingData(LSTMCore<E> worker) {
+		worker.setTrainingData(input, target);
+	}
+
+	/**
+	 * Pass the validation data to a worker.
+	 * 
+	 * @param worker
+	 */
+	protected void shareTestData(LSTMCore<E> worker) {
+		worker.setTestData(inputTest, targetTest);
+	}
+
+	/**
+	 * Synchronous data parallel training for one epoch. The training sequences
+	 * are processed in mini batches of max(batchSize, number of workers)
+	 * sequences in the order given by {@link #trainingOrder(int)}. Each worker accumulates the gradients of a fixed, contiguous
+	 * shard of the batch in its private buffer. The buffers are then reduced
+	 * in a fixed order (pairwise tree) and applied in a single weight update.
+	 * Hence the results are reproducible for a given seed and number of
+	 * workers.
+	 */
+	protected void processExamplesInParallel(final List<LSTMCore<E>> workers,
+			ExecutorService service, final double alphaOld) {
+		int numSequences = numTrainingSequences();
+		int numWorkers = workers.size();
+		int batch = Math.max(batchSize, numWorkers);
+		final int[] order = trainingOrder(batch);
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int start = 0; start < numSequences; start += batch) {
+			int end = Math.min(numSequences, start + batch);
+			tasks.clear();
+			for (int w = 0; w < numWorkers; w++) {
+				final LSTMCore<E> worker = workers.get(w);
+				final int from = start + (int) ((long) w * (end - start) / numWorkers);
+				final int to = start + (int) ((long) (w + 1) * (end - start) / numWorkers);
+				tasks.add(Executors.callable(new Runnable() {
+					@Override
+					public void run() {
+						worker.accumulateGradients(alphaOld, order, from, to);
+					}
+				}));
 			}
-			resetNet();
-			this.adjustAlpha(example);
-			parentCore.numbSeq++;
-			if (weightUpdatePerSequence || example % batchSize  == 0)
-				weightUpdate = true;
-			for (int element = 0; element < input[example].length; element++) {
-				setInput(input[example][element],
-						target[example][element]);
-				forwardPass(false);
+			invokeAll(service, tasks);
+
+			/** reduce and apply the gradients, row blocks in parallel. */
+			tasks.clear();
+			for (int w = 0; w < numWorkers; w++) {
+				final int fromRow = (int) ((long) w * numAll / numWorkers);
+				final int toRow = (int) ((long) (w + 1) * numAll / numWorkers);
+				tasks.add(Executors.callable(new Runnable() {
+					@Override
+					public void run() {
+						reduceAndUpdate(workers, fromRow, toRow);
+					}
+				}));
+			}
+			invokeAll(service, tasks);
+		}
+		alpha = alphaOld;
+		for (LSTMCore<E> worker : workers) {
+			epochErr += worker.epochErr;
+			numbSeq += worker.numbSeq;
+			numForecasts += worker.numForecasts;
+			worker.epochErr = 0;
+			worker.numbSeq = 0;
+			worker.numForecasts = 0;
+		}
+	}
 
-				if (targetExists) /** only if target for this input */
-				{
-					/** compute error */
-					for (int k = numInpHidCells, j = 0; k < numAll; k++, j++) {
-						error[j] = target_a[j] - Yk_mod_new[k];
+	private static void invokeAll(ExecutorService service,
+			List<Callable<Object>> tasks) {
+		try {
+			for (Future<Object> f : service.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Sum up the gradient buffers of the workers for the rows [fromRow,
+	 * toRow) in a fixed pairwise order, add them to the momentum buffer DW of
+	 * this core and update the weights. The buffers of the workers are
+	 * cleared.
+	 */
+	private void reduceAndUpdate(List<LSTMCore<E>> workers, int fromRow,
+			int toRow) {
+		int n = workers.size();
+		for (int stride = 1; stride < n; stride *= 2)
+			for (int w = 0; w + stride < n; w += 2 * stride) {
+				double[][] a = workers.get(w).DW;
+				double[][] b = workers.get(w + stride).DW;
+				for (int i = fromRow; i < toRow; i++)
+					for (int j = 0; j < a[i].length; j++) {
+						a[i][j] += b[i][j];
+						b[i][j] = 0.0;
 					}
+			}
+		double[][] sum = workers.get(0).DW;
+		for (int i = fromRow; i < toRow; i++)
+			for (int j = 0; j < DW[i].length; j++) {
+				DW[i][j] += sum[i][j];
+				sum[i][j] = 0.0;
+				W_mod[i][j] += DW[i][j];
+				DW[i][j] *= momentum;
+			}
+	}
 
-					/** Training error */
-					parentCore.epochErr += compError(example, false);
-				}
+	/**
+	 * Number of training sequences.
+	 * 
+	 * @return
+	 */
+	protected int numTrainingSequences() {
+		return input.sequences();
+	}
 
-				/** backward pass */
-				if (targetExists) /* only if target for this input */
-					backwardPass();
-				else
-					derivatives();
+	/**
+	 * Length of a training sequence.
+	 * 
+	 * @param example
+	 * @return
+	 */
+	protected int trainingSequenceLength(int example) {
+		return input.sequenceLength(example);
+	}
 
-				/** set old activations */
-				for (int i = 0; i < numAll; i++) {
-					Yk_mod_old[i] = Yk_mod_new[i];
-				}
+	/**
+	 * Feed the net with an element of a training sequence.
+	 * 
+	 * @param example
+	 * @param element
+	 */
+	protected void setTrainingInput(int example, int element) {
+		setInput(input, target, example, element);
+	}
+
+	/**
+	 * Prepare the net for a training sequence.
+	 */
+	private void startSequence(int example, double alphaOld) {
+		alpha = alphaOld;
+		if(dropout){
+			dropouts = new boolean[numBlocks];
+			for(int i = 0; i < dropouts.length; i++)
+				dropouts[i] = this.rand.nextBoolean();
+		}
+		resetNet();
+		this.adjustAlpha(example);
+		parentCore.numbSeq++;
+	}
+
+	/**
+	 * Forward and backward pass for one element of a training sequence. The
+	 * weight update contributions are accumulated in DW.
+	 */
+	private void trainElement(int example, int element) {
+		setTrainingInput(example, element);
+		forwardPass(false);
+
+		if (targetExists) /** only if target for this input */
+		{
+			/** compute error */
+			for (int k = numInpHidCells, j = 0; k < numAll; k++, j++) {
+				error[j] = target_a[j] - Yk_mod_new[k];
+			}
+
+			/** Training error */
+			parentCore.epochErr += compError(example, false);
+		}
+
+		/** backward pass */
+		if (targetExists) /* only if target for this input */
+			backwardPass();
+		else
+			derivatives();
+
+		/** set old activations */
+		for (int i = 0; i < numAll; i++) {
+			Yk_mod_old[i] = Yk_mod_new[i];
+		}
+	}
+
+	/**
+	 * Accumulate the weight update contributions of the training sequences
+	 * order[start, end) in DW without updating the weights.
+	 */
+	protected void accumulateGradients(double alphaOld, int[] order,
+			int start, int end) {
+		if (batchedTraining()) {
+			if (batch == null)
+				batch = new LSTMBatch(this, input, target);
+			batch.accumulate(order, start, end, alphaOld);
+			alpha = alphaOld;
+			return;
+		}
+		for (int i = start; i < end; i++) {
+			int example = order[i];
+			startSequence(example, alphaOld);
+			for (int element = 0; element < trainingSequenceLength(example); element++)
+				trainElement(example, element);
+		}
+	}
+
+	/**
+	 * Process the training sequences together in mini batches of batchSize
+	 * sequences. Each batch is stepped through time in one forward and
+	 * backward pass (see {@link LSTMBatch}) followed by one weight update.
+	 * 
+	 * @return true if batchSize is greater than one and the core supports
+	 *         batched training
+	 */
+	protected boolean batchedTraining() {
+		return batchSize > 1;
+	}
+
+	/**
+	 * Order of the training sequences within an epoch. For batched training,
+	 * the sequences are bucketed by length into chunks of batch sequences,
+	 * such that the sequences of a batch have similar lengths and little
+	 * padding is needed. The order of the chunks is shuffled. Otherwise the
+	 * sequences are processed in their natural order.
+	 * 
+	 * @param batch
+	 *            number of sequences per chunk
+	 * @return
+	 */
+	protected int[] trainingOrder(int batch) {
+		int n = numTrainingSequences();
+		if (!batchedTraining()) {
+			int[] order = new int[n];
+			for (int i = 0; i < n; i++)
+				order[i] = i;
+			return order;
+		}
+		/** counting sort by length (stable). */
+		int maxLength = 0;
+		for (int i = 0; i < n; i++)
+			maxLength = Math.max(maxLength, trainingSequenceLength(i));
+		int[] start = new int[maxLength + 2];
+		for (int i = 0; i < n; i++)
+			start[trainingSequenceLength(i) + 1]++;
+		for (int l = 1; l < start.length; l++)
+			start[l] += start[l - 1];
+		int[] sorted = new int[n];
+		for (int i = 0; i < n; i++)
+			sorted[start[trainingSequenceLength(i)]++] = i;
+		/** shuffle the chunks. */
+		int numChunks = (n + batch - 1) / batch;
+		int[] chunks = new int[numChunks];
+		for (int c = 0; c < numChunks; c++)
+			chunks[c] = c;
+		for (int c = numChunks - 1; c > 0; c--) {
+			int r = rand.nextInt(c + 1);
+			int tmp = chunks[c];
+			chunks[c] = chunks[r];
+			chunks[r] = tmp;
+		}
+		int[] order = new int[n];
+		int i = 0;
+		for (int c : chunks)
+			for (int j = c * batch; j < Math.min(n, (c + 1) * batch); j++)
+				order[i++] = sorted[j];
+		return order;
+	}
+
+	protected void processExamples(boolean weightUpdate, double alphaOld, int start, int end) {
+		if (batchedTraining()) {
+			int[] order = trainingOrder(batchSize);
+			for (int from = start; from < end; from += batchSize) {
+				accumulateGradients(alphaOld, order, from,
+						Math.min(end, from + batchSize));
+				parentCore.weightUpdate();
+			}
+			return;
+		}
+		for (int example = start; example < end; example++) {
+			startSequence(example, alphaOld);
+			if (weightUpdatePerSequence || example % batchSize  == 0)
+				weightUpdate = true;
+			for (int element = 0; element < trainingSequenceLength(example); element++) {
+				trainElement(example, element);
 
 				/** update weights */
 				if (weightUpdate) {
@@ -1011,7 +1446,7 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 			multiplyMemoryCellWeights(0.5);
 		}
 
-		for (int currentSequence = 0; currentSequence < inputTest.length; currentSequence++) {
+		for (int currentSequence = 0; currentSequence < inputTest.sequences(); currentSequence++) {
 			resetNet();
 			Sequence seq = testData.get(currentSequence);
 			int gtSize = seq.getGroundTruthLength();
@@ -1019,9 +1454,8 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 			if (seq.hasGroundTruthSequence() &&  gtSize == seq.getSequenceLength() && gtSize > 0)
 				seq.initSequenceResults();	
 			
-			for (int currentElement = 0; currentElement < inputTest[currentSequence].length; currentElement++) {
-				setInput(inputTest[currentSequence][currentElement],
-						targetTest[currentSequence][currentElement]);
+			for (int currentElement = 0; currentElement < inputTest.sequenceLength(currentSequence); currentElement++) {
+				setInput(inputTest, targetTest, currentSequence, currentElement);
 				forwardPass(true);
 
 				if (targetExists) /** only if target for this input */
@@ -1059,23 +1493,30 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 
 	}
 
-	public void setTrainingData(double[][][] input, double[][][] target) {
+	public void setTrainingData(DenseSequenceMatrix input, DenseSequenceMatrix target) {
 		this.input = input;
 		this.target = target;
 	}
 
-	public void setTestData(double[][][] input, double[][][] target) {
+	public void setTestData(DenseSequenceMatrix input, DenseSequenceMatrix target) {
 		this.inputTest = input;
 		this.targetTest = target;
 	}
 
+	public void setTrainingData(double[][][] input, double[][][] target) {
+		setTrainingData(DenseSequenceMatrix.create(input, false),
+				DenseSequenceMatrix.create(target, false));
+	}
+
+	public void setTestData(double[][][] input, double[][][] target) {
+		setTestData(DenseSequenceMatrix.create(input, false),
+				DenseSequenceMatrix.create(target, false));
+	}
+
 	@Override
 	public void run() {
 		try {
-			if(parentCore == this)
-				this.train();
-			else
-				this.processExamples(subThreadWeightUpdate, subThreadAlphaOld, subThreadStart, subThreadStop);
+			this.train();
 		} catch (Exception e){
 			Log.puts("Exception in Thread " + this.threadName + " " + e.getMessage());
 			e.printStackTrace();
@@ -1084,15 +1525,20 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	}
 
 	/**
-	 * get the weight matrix.
+	 * get the weight matrix as dense numAll x numAll matrix (copy).
+	 * Structurally absent connections are 0.
 	 * @return
 	 */
 	public double[][] getWeightMatrix() {
-		return W_mod;
+		double[][] dense = new double[numAll][numAll];
+		for (int i = 0; i < numAll; i++)
+			System.arraycopy(W_mod[i], 0, dense[i], 0, W_mod[i].length);
+		return dense;
 	}
 
 	/**
-	 * set a precomputed / initialized weight matrix.
+	 * set a precomputed / initialized dense numAll x numAll weight matrix.
+	 * Only the weights of existing connections are used.
 	 * @param w_mod
 	 */
 	public void setWeightMatrix(double[][] w_mod) {
@@ -1113,52 +1559,257 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	}
 
 	/**
-	 * save the weight matrix to a file.
+	 * save the weight matrix to a file in the binary model format (see
+	 * {@link BinaryModel}). The header holds numAll and numInpHidCells. The
+	 * weights are stored in single precision if the parameter floatPrecision
+	 * is set.
 	 * @param fileName
 	 */
 	public void save(String fileName) {
 		try {
-			PrintStream p = new PrintStream(new FileOutputStream(fileName));
-			int i, j;
-			for (i = 0; i < numAll; i++) {
-				for (j = 0; j < numAll; j++)
-					p.printf("(%d,%d): %.6f ", i, j, W_mod[i][j]);
-				p.printf("\n");
-			}
-			p.printf("\n");
-			p.close();
-
+			new BinaryModel(new int[] { numAll, numInpHidCells }, W_mod).save(
+					fileName, singlePrecision);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * load the weight matrix from a file.
+	 * load the weight matrix from a file. Binary models are taken from the
+	 * model cache if possible, text files of older versions are parsed.
 	 * @param filename
 	 */
 	public void load(String filename) {
 		try {
-			FileInputStream fstream = new FileInputStream(filename);
-			BufferedReader br = new BufferedReader(new InputStreamReader(
-					fstream));
-			String line;
-			this.W_mod = new double[numAll][numAll];
-			for (int i = 0; i < numAll; i++) {
-				line = br.readLine();
-				StringTokenizer st = new StringTokenizer(line);
-				for (int j = 0; j < numAll; j++) {
-					st.nextToken();
-					W_mod[i][j] = Double.parseDouble(st.nextToken());
-				}
+			if (!BinaryModel.isBinaryModel(filename)) {
+				loadText(filename);
+				return;
 			}
-			br.close();
-
+			BinaryModel model = BinaryModel.load(filename);
+			if (model.getHeader(0) != numAll
+					|| model.getHeader(1) != numInpHidCells)
+				throw new IOException("The architecture of the net in "
+						+ filename + " does not match: " + model.getHeader(0)
+						+ " units instead of " + numAll);
+			this.W_mod = newWeightMatrix();
+			model.copyBlock(0, W_mod);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Prepare this core for streaming inference (see {@link LSTMSession})
+	 * with the net stored in a binary model file. The number of outputs is
+	 * taken from the model.
+	 * 
+	 * @param netFile
+	 *            file name relative to the base directory
+	 * @throws IOException
+	 */
+	void loadForInference(String netFile) throws IOException {
+		String fileName = baseDir + netFile;
+		if (!BinaryModel.isBinaryModel(fileName))
+			throw new IOException(fileName
+					+ " is not a binary model. Save the net again to use it for streaming inference.");
+		BinaryModel model = BinaryModel.load(fileName);
+		this.targetTest = DenseSequenceMatrix.create(new double[1][1][1], false);
+		setParameters();
+		this.targetTest = null;
+		this.numAll = model.getHeader(0);
+		this.numTargets = numAll - numInpHidCells;
+		initNet();
+		load(fileName);
+	}
+
+	/**
+	 * One time step of a streaming inference session. The state of the
+	 * session (activations and internal states) is passed in, the weights are
+	 * only read. Hence any number of sessions can use this core concurrently.
+	 * Only the non zero inputs have to be provided.
+	 * 
+	 * @param yOld
+	 *            activations of the previous time step (numAll)
+	 * @param yNew
+	 *            activations of this time step (numAll). The outputs are at
+	 *            [numInpHidCells, numAll).
+	 * @param s
+	 *            internal states of the memory cells (numBlocks *
+	 *            cellblockSize)
+	 * @param indices
+	 *            feature indices of the inputs
+	 * @param values
+	 *            input values
+	 * @param n
+	 *            number of inputs
+	 */
+	void step(double[] yOld, double[] yNew, double[] s, int[] indices,
+			double[] values, int n) {
+		/** memory blocks are scaled as in test() when trained with dropout. */
+		double scale = dropout ? 0.5 : 1.0;
+		int i, u, v, k;
+
+		/** ### hidden units ### */
+		for (i = numInputs; i < numHiddenAndInput - (biasOut ? 1 : 0); i++)
+			yNew[i] = 1 / (1 + Math.exp(-netInput(W_mod[i], indices, values,
+					n, yOld, scale)));
+		if (biasOut)
+			yNew[numHiddenAndInput - 1] = 1.0;
+
+		/** ### memory cells ### */
+		i = numHiddenAndInput - 1;
+		for (u = 0; u < numBlocks; u++) {
+			double in = 1.0, out = 1.0, forget = 1.0;
+			if (inGates) {
+				i++;
+				in = 1 / (1 + Math.exp(-netInput(W_mod[i], indices, values, n,
+						yOld, scale)));
+				yNew[i] = in;
+			}
+			if (outGates) {
+				i++;
+				out = 1 / (1 + Math.exp(-netInput(W_mod[i], indices, values,
+						n, yOld, scale)));
+				yNew[i] = out;
+			}
+			if (forgetGates) {
+				i++;
+				forget = 1 / (1 + Math.exp(-netInput(W_mod[i], indices,
+						values, n, yOld, scale)));
+				yNew[i] = forget;
+			}
+			for (v = 0; v < blockSize[u]; v++) {
+				i++;
+				int c = u * cellblockSize + v;
+				double g = 4.0 / (1 + Math.exp(-netInput(W_mod[i], indices,
+						values, n, yOld, scale))) - 2.0;
+				s[c] = forget * s[c] + in * g;
+				double h = 2.0 / (1 + Math.exp(-s[c])) - 1.0;
+				yNew[i] = outGates ? h * out : h;
+			}
+		}
+
+		/** ### output units ### */
+		for (k = numInpHidCells; k < numAll; k++) {
+			double[] row = W_mod[k];
+			double sum = 0;
+			for (i = numInputs; i < numHiddenAndInput; i++)
+				sum += row[i] * yNew[i];
+			/** memory cells, gates are not connected to the outputs. */
+			double cells = 0;
+			i = numHiddenAndInput - 1;
+			for (u = 0; u < numBlocks; u++) {
+				i += numGates();
+				for (v = 0; v < blockSize[u]; v++) {
+					i++;
+					cells += row[i] * yNew[i];
+				}
+			}
+			sum += scale * cells;
+			yNew[k] = softmax ? Math.exp(sum) : 1 / (1 + Math.exp(-sum));
+		}
+		if (softmax) {
+			double total = 0.0;
+			for (k = numInpHidCells; k < numAll; k++)
+				total += yNew[k];
+			for (k = numInpHidCells; k < numAll; k++)
+				yNew[k] /= total;
+		}
+	}
+
+	/**
+	 * Net input of a unit in a streaming inference step: sparse inputs, bias
+	 * and recurrent connections.
+	 */
+	private double netInput(double[] row, int[] indices, double[] values,
+			int n, double[] yOld, double scale) {
+		double sum = 0;
+		for (int e = 0; e < n; e++)
+			sum += row[indices[e]] * values[e];
+		if (biasHidden)
+			sum += row[numInputs - 1];
+		for (int j = numInputs; j < numHiddenAndInput; j++)
+			sum += row[j] * yOld[j];
+		double blocks = 0;
+		for (int j = numHiddenAndInput; j < numInpHidCells; j++)
+			blocks += row[j] * yOld[j];
+		return sum + scale * blocks;
+	}
+
+	/**
+	 * Number of gates per memory block.
+	 */
+	private int numGates() {
+		return (inGates ? 1 : 0) + (outGates ? 1 : 0) + (forgetGates ? 1 : 0);
+	}
+
+	/**
+	 * Initial activation of all units at the beginning of a sequence.
+	 * 
+	 * @return
+	 */
+	double initialActivation() {
+		return dropout ? 0.0 : 0.5;
+	}
+
+	/**
+	 * Number of output units.
+	 * 
+	 * @return
+	 */
+	int getNumberOfOutputs() {
+		return numTargets;
+	}
+
+	/**
+	 * Number of units.
+	 * 
+	 * @return
+	 */
+	int getNumberOfUnits() {
+		return numAll;
+	}
+
+	/**
+	 * Number of memory cells.
+	 * 
+	 * @return
+	 */
+	int getNumberOfCells() {
+		return numBlocks * cellblockSize;
+	}
+
+	/**
+	 * First output unit.
+	 * 
+	 * @return
+	 */
+	int getFirstOutputUnit() {
+		return numInpHidCells;
+	}
+
+	/**
+	 * load the weight matrix from a text file of older versions.
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void loadText(String filename) throws IOException {
+		FileInputStream fstream = new FileInputStream(filename);
+		BufferedReader br = new BufferedReader(new InputStreamReader(
+				fstream));
+		String line;
+		this.W_mod = newWeightMatrix();
+		for (int i = 0; i < numAll; i++) {
+			line = br.readLine();
+			StringTokenizer st = new StringTokenizer(line);
+			for (int j = 0; j < W_mod[i].length; j++) {
+				st.nextToken();
+				W_mod[i][j] = Double.parseDouble(st.nextToken());
+			}
+		}
+		br.close();
+	}
+
 	/**
 	 * softmax output layer for classification and probability estimation tasks.
 	 */
@@ -1167,8 +1818,8 @@ public class LSTMCore<E extends Sequence> implements Runnable {
 	}
 	
 	/**
-	 * train using all processors. Training in parallel on the core level is not
-	 * deterministic yet!!
+	 * train using all processors with synchronous data parallel mini batches.
+	 * See {@link #processExamplesInParallel(List, ExecutorService, double)}.
 	 */
 	public void trainInParallel(){
 		this.trainInParallel = true;
@@ -0,0 +1,145 @@
+package ch.eonum.pipeline.classification.lstm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import ch.eonum.pipeline.core.Features;
+
+/**
+ * Stateful streaming inference for one sequence (e.g. the events of one
+ * patient). The session holds the activations and the internal states of the
+ * memory cells of all nets of an {@link LSTM} and advances them by one time
+ * point with each call of {@link #step(double[])}. Hence a new event costs one
+ * time step instead of a replay of the whole history.
+ *
+ * The weights are shared read-only with the classifier, any number of sessions
+ * can be used concurrently. A single session is synchronized.
+ *
+ * @author tim
+ *
+ */
+public class LSTMSession {
+	private final String id;
+	private final Features features;
+	private final List<? extends LSTMCore<?>> nets;
+	/** factor for the averaged outputs (e.g. the maximum outcome). */
+	private final double outputScale;
+
+	/** state by net. */
+	private final double[][] yOld;
+	private final double[][] yNew;
+	private final double[][] s;
+
+	/** non zero inputs of the current time point. */
+	private int[] indices;
+	private double[] values;
+	/** number of time points seen. */
+	private int length;
+
+	LSTMSession(String id, Features features, List<? extends LSTMCore<?>> nets,
+			double outputScale) {
+		this.id = id;
+		this.features = features;
+		this.nets = nets;
+		this.outputScale = outputScale;
+		this.yOld = new double[nets.size()][];
+		this.yNew = new double[nets.size()][];
+		this.s = new double[nets.size()][];
+		for (int n = 0; n < nets.size(); n++) {
+			LSTMCore<?> net = nets.get(n);
+			yOld[n] = new double[net.getNumberOfUnits()];
+			yNew[n] = new double[net.getNumberOfUnits()];
+			s[n] = new double[net.getNumberOfCells()];
+		}
+		this.indices = new int[features.size()];
+		this.values = new double[features.size()];
+		reset();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Number of time points processed since the beginning of the sequence.
+	 *
+	 * @return
+	 */
+	public synchronized int getLength() {
+		return length;
+	}
+
+	/**
+	 * Start a new sequence.
+	 */
+	public synchronized void reset() {
+		for (int n = 0; n < nets.size(); n++) {
+			double y = nets.get(n).initialActivation();
+			Arrays.fill(yOld[n], y);
+			Arrays.fill(yNew[n], y);
+			Arrays.fill(s[n], 0.0);
+		}
+		length = 0;
+	}
+
+	/**
+	 * Advance the sequence by one time point.
+	 *
+	 * @param input
+	 *            values of the time point in the order of the features of the
+	 *            classifier
+	 * @return the output of the net averaged over all nets (result for
+	 *         regression, class probabilities for classification)
+	 */
+	public synchronized double[] step(double[] input) {
+		if (input.length != features.size())
+			throw new IllegalArgumentException("Error: feature size does not match");
+		int n = 0;
+		for (int f = 0; f < input.length; f++)
+			if (input[f] != 0.0) {
+				indices[n] = f;
+				values[n++] = input[f];
+			}
+		return step(n);
+	}
+
+	/**
+	 * Advance the sequence by one time point. Features unknown to the
+	 * classifier are ignored.
+	 *
+	 * @param timePoint
+	 *            feature values of the time point
+	 * @return the output of the net averaged over all nets (result for
+	 *         regression, class probabilities for classification)
+	 */
+	public synchronized double[] step(Map<String, Double> timePoint) {
+		int n = 0;
+		for (Map.Entry<String, Double> e : timePoint.entrySet()) {
+			int index = features.indexOf(e.getKey());
+			if (index != -1 && e.getValue() != 0.0) {
+				indices[n] = index;
+				values[n++] = e.getValue();
+			}
+		}
+		return step(n);
+	}
+
+	private double[] step(int numValues) {
+		double[] output = new double[nets.get(0).getNumberOfOutputs()];
+		for (int n = 0; n < nets.size(); n++) {
+			LSTMCore<?> net = nets.get(n);
+			net.step(yOld[n], yNew[n], s[n], indices, values, numValues);
+			int first = net.getFirstOutputUnit();
+			for (int k = 0; k < output.length; k++)
+				output[k] += yNew[n][first + k];
+			double[] tmp = yOld[n];
+			yOld[n] = yNew[n];
+			yNew[n] = tmp;
+		}
+		for (int k = 0; k < output.length; k++)
+			output[k] = output[k] / nets.size() * outputScale;
+		length++;
+		return output;
+	}
+}
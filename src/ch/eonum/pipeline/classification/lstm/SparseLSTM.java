@@ -10,9 +10,11 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import ch.eonum.pipeline.core.DataSet;
-import ch.eonum.pipeline.core.Entry;
+import ch.eonum.pipeline.core.DenseSequenceMatrix;
+import ch.eonum.pipeline.core.Folds;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.core.SparseSequence;
+import ch.eonum.pipeline.core.SparseSequenceMatrix;
 import ch.eonum.pipeline.util.FileUtil;
 
 /**
@@ -25,20 +27,15 @@ public class SparseLSTM<E extends SparseSequence> extends LSTM<E> {
 	
 	/** all LSTM nets being used for this classifier. */
 	protected List<SparseLSTMCore<E>> nets;
-	/**
-	 * matrix for storing the input per training element per sequence element per
-	 * input component
-	 */
-	protected Entry input[][][];
-	/**
-	 * matrix for storing the input per test element per sequence element per
-	 * input component
-	 */
-	protected Entry inputTest[][][];
+	/** training sequences. one row per sequence element. */
+	protected SparseSequenceMatrix input;
+	/** test sequences. one row per sequence element. */
+	protected SparseSequenceMatrix inputTest;
 	
 
 	@Override
 	public void train() {
+		this.resetSessions();
 		
 		int numNetsTotal = (int)this.getDoubleParameter("numNetsTotal");
 		int numNets = (int)this.getDoubleParameter("numNets");
@@ -51,26 +48,23 @@ public class SparseLSTM<E extends SparseSequence> extends LSTM<E> {
 		else if(this.getDoubleParameter("normTarget") > 0.0)
 			maxOutcome = getDoubleParameter("normTarget");
 		
-		Entry[][][][] trainInputs = null;
-		double[][][][] trainTargets = null;
+		/** k-fold cross validation: views of the whole training set. */
+		Folds folds = null;
+		SparseSequenceMatrix allInputs = null;
+		DenseSequenceMatrix allTargets = null;
 		if(numNetsTotal > 1){
-			trainInputs = new Entry[numNetsTotal][][][];
-			trainTargets = new double[numNetsTotal][][][];
-			int i = 0;
-			for (DataSet<E> each : this.trainingDataSet.splitIntoNSubsets(numNetsTotal)) {
-				trainInputs[i] = this.loadDataSetSparse(each);
-				trainTargets[i] = this.loadTargets(each);
-				i++;
-			}
+			folds = new Folds(this.trainingDataSet.size(), numNetsTotal);
+			allInputs = this.loadDataSetSparse(this.trainingDataSet);
+			allTargets = this.loadTargetMatrix(this.trainingDataSet);
 			if(this.alwaysUseValidationSet){
 				this.inputTest = this.loadDataSetSparse(this.testDataSet);
-				this.targetTest = this.loadTargets(this.testDataSet);
+				this.targetTest = this.loadTargetMatrix(this.testDataSet);
 			}
 		} else {
 			this.input = this.loadDataSetSparse(this.trainingDataSet);
-			this.target = this.loadTargets(this.trainingDataSet);
+			this.target = this.loadTargetMatrix(this.trainingDataSet);
 			this.inputTest = this.loadDataSetSparse(this.testDataSet);
-			this.targetTest = this.loadTargets(this.testDataSet);
+			this.targetTest = this.loadTargetMatrix(this.testDataSet);
 		}
 		
 		ExecutorService service = Executors.newFixedThreadPool(Runtime
@@ -81,22 +75,12 @@ public class SparseLSTM<E extends SparseSequence> extends LSTM<E> {
 		for (int netNumber = 0; netNumber < numNetsTotal; netNumber++) {
 			if (numNetsTotal > 1) {
 				if (!this.alwaysUseValidationSet){
-					inputTest = trainInputs[netNumber];
-					targetTest = trainTargets[netNumber];
+					inputTest = allInputs.selectSequences(folds.validation(netNumber));
+					targetTest = allTargets.selectSequences(folds.validation(netNumber));
 				}
-				int length = 0;
-				for (int i = 0; i < trainInputs.length; i++)
-					if(i != netNumber)
-						length += trainInputs[i].length;
-				input = new Entry[length][][];
-				target = new double[length][][];
-				int k = 0;
-				for (int i = 0; i < trainInputs.length; i++)
-					if (i != netNumber)
-						for(int j = 0; j < trainInputs[i].length; j++){
-							input[k] = trainInputs[i][j];
-							target[k++] = trainTargets[i][j];
-						}
+				int[] training = folds.training(netNumber);
+				input = allInputs.selectSequences(training);
+				target = allTargets.selectSequences(training);
 			}
 			
 			ArrayList<SparseLSTMCore<E>> randomNets = new ArrayList<SparseLSTMCore<E>>();
@@ -159,20 +143,16 @@ public class SparseLSTM<E extends SparseSequence> extends LSTM<E> {
 		return l ;
 	}
 
-	private Entry[][][] loadDataSetSparse(DataSet<E> set) {
-		Entry data[][][] = new Entry[set.size()][][];
+	private SparseSequenceMatrix loadDataSetSparse(DataSet<E> set) {
 		boolean biasHidden = this.getDoubleParameter("hiddenBias") > 0.5;
-		for(int i = 0; i < set.size(); i++){
-			data[i] = set.get(i).getSparseRepresentation(features, biasHidden);
-		}
-		return data;
+		return SparseSequenceMatrix.fromSequences(set, features, biasHidden);
 	}
 
 	@Override
 	public DataSet<E> test() {
 		
 		this.inputTest = this.loadDataSetSparse(this.testDataSet);
-		this.targetTest = this.loadTargets(this.testDataSet);
+		this.targetTest = this.loadTargetMatrix(this.testDataSet);
 		
 		for(Instance each : this.testDataSet)
 			each.putResult("result", 0.0);
@@ -181,6 +161,7 @@ public class SparseLSTM<E extends SparseSequence> extends LSTM<E> {
 		for(int netNumber = 0; netNumber < numNetsTotal; netNumber++){
 			SparseLSTMCore<E> net = createNet("Test" + netNumber, this.getBaseDir(), 0);
 			net.setTestData(inputTest, targetTest);
+			/** the weights are taken from the model cache after the first call. */
 			net.test("maxNNglobal" + netNumber, this.testDataSet);
 			net.destroy();
 		}
@@ -100,4 +100,10 @@ public class SparseLSTMClassifier<E extends SparseSequence> extends SparseLSTM<E
 		core.useSoftMaxOutputLayer();
 		return core;
 	}
+
+	/** sessions return the class probabilities. */
+	@Override
+	protected double outputScale() {
+		return 1.0;
+	}
 }
@@ -1,17 +1,12 @@
 package ch.eonum.pipeline.classification.lstm;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import ch.eonum.pipeline.core.DataSet;
-import ch.eonum.pipeline.core.Entry;
+import ch.eonum.pipeline.core.DenseSequenceMatrix;
 import ch.eonum.pipeline.core.Sequence;
+import ch.eonum.pipeline.core.SparseMatrix;
 import ch.eonum.pipeline.core.SparseSequence;
-import ch.eonum.pipeline.util.Gnuplot;
+import ch.eonum.pipeline.core.SparseSequenceMatrix;
 import ch.eonum.pipeline.util.Log;
 
 /**
@@ -24,20 +19,19 @@ import ch.eonum.pipeline.util.Log;
  */
 public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 	
+	/** training sequences. one row per sequence element. */
+	private SparseSequenceMatrix input;
+	/** test sequences. one row per sequence element. */
+	private SparseSequenceMatrix inputTest;
 	/**
-	 * matrix for storing the input per training element per sequence element
-	 * per input component
+	 * Current point in sequence: the non zero inputs are
+	 * inputValue[inputStart, inputEnd) with the indices inputIndex[inputStart,
+	 * inputEnd).
 	 */
-	private Entry[][][] input;
-	/**
-	 * matrix for storing the input per test element per sequence element per
-	 * input component
-	 */
-	private Entry[][][] inputTest;
-	/**
-	 * Current point in sequence.
-	 */
-	private Entry[] currentInput;
+	private int[] inputIndex;
+	private double[] inputValue;
+	private int inputStart;
+	private int inputEnd;
 
 	public SparseLSTMCore(String threadName, String baseDir, LSTM<E> parent,
 			int seed, boolean outputGates, boolean forgetGates,
@@ -54,8 +48,8 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 		/** hidden units */
 		for (i = numInputs; i < numHiddenAndInput; i++) {
 			sum = 0;
-			for (j = 0; j < currentInput.length; j++)
-				sum += W_mod[i][currentInput[j].index] * currentInput[j].value;
+			for (j = inputStart; j < inputEnd; j++)
+				sum += W_mod[i][inputIndex[j]] * inputValue[j];
 			for (j = numInputs; j < numInpHidCells; j++)
 				sum += W_mod[i][j] * Yk_mod_old[j];
 			Yk_mod_new[i] = 1 / (1 + Math.exp(-sum));
@@ -73,8 +67,8 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 				i++;
 				if(!dropout || dropouts[u]) {
 					sum = 0;
-					for (j = 0; j < currentInput.length; j++)
-						sum += W_mod[i][currentInput[j].index] * currentInput[j].value;
+					for (j = inputStart; j < inputEnd; j++)
+						sum += W_mod[i][inputIndex[j]] * inputValue[j];
 					for (j = numInputs; j < numInpHidCells; j++)
 						sum += W_mod[i][j] * Yk_mod_old[j];
 					Y_in[u] = 1 / (1 + Math.exp(-sum));
@@ -87,8 +81,8 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 				i++;
 				if(!dropout || dropouts[u]) {
 					sum = 0;
-					for (j = 0; j < currentInput.length; j++)
-						sum += W_mod[i][currentInput[j].index] * currentInput[j].value;
+					for (j = inputStart; j < inputEnd; j++)
+						sum += W_mod[i][inputIndex[j]] * inputValue[j];
 					for (j = numInputs; j < numInpHidCells; j++)
 						sum += W_mod[i][j] * Yk_mod_old[j];
 					Y_out[u] = 1 / (1 + Math.exp(-sum));
@@ -101,8 +95,8 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 				i++;
 				if(!dropout || dropouts[u]) {
 					sum = 0;
-					for (j = 0; j < currentInput.length; j++)
-						sum += W_mod[i][currentInput[j].index] * currentInput[j].value;
+					for (j = inputStart; j < inputEnd; j++)
+						sum += W_mod[i][inputIndex[j]] * inputValue[j];
 					for (j = numInputs; j < numInpHidCells; j++)
 						sum += W_mod[i][j] * Yk_mod_old[j];
 					Y_forget[u] = 1 / (1 + Math.exp(-sum));
@@ -116,8 +110,8 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 				i++;
 				if(!dropout || dropouts[u]) {
 					sum = 0;
-					for (j = 0; j < currentInput.length; j++)
-						sum += W_mod[i][currentInput[j].index] * currentInput[j].value;
+					for (j = inputStart; j < inputEnd; j++)
+						sum += W_mod[i][inputIndex[j]] * inputValue[j];
 					for (j = numInputs; j < numInpHidCells; j++)
 						sum += W_mod[i][j] * Yk_mod_old[j];
 					G[u][v] = 4.0 / (1 + Math.exp(-sum)) - 2.0;
@@ -197,11 +191,11 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 		if(dropout)
 			multiplyMemoryCellWeights(0.5);
 
-		for (int currentSequence = 0; currentSequence < inputTest.length; currentSequence++) {
+		for (int currentSequence = 0; currentSequence < inputTest.sequences(); currentSequence++) {
 			resetNet();
-			for (int currentElement = 0; currentElement < inputTest[currentSequence].length; currentElement++) {
-				setInput(inputTest[currentSequence][currentElement],
-						targetTest[currentSequence][currentElement]);
+			for (int currentElement = 0; currentElement < inputTest.sequenceLength(currentSequence); currentElement++) {
+				setInput(inputTest, inputTest.row(currentSequence, currentElement),
+						targetRow(targetTest, currentSequence, currentElement));
 
 				forwardPass(true);
 
@@ -237,11 +231,16 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 	/**
 	 * feed the net with data.
 	 * @param input
+	 * @param row
+	 *            row of the sequence element in input
 	 * @param target
 	 */
-	private void setInput(Entry[] input, double[] target) {
+	private void setInput(SparseMatrix input, int row, double[] target) {
 		targetExists = true;
-		this.currentInput = input;
+		this.inputIndex = input.colIdx;
+		this.inputValue = input.values;
+		this.inputStart = input.rowPtr[row];
+		this.inputEnd = input.rowPtr[row + 1];
 		for (int k = numInpHidCells, j = 0; k < numAll; k++, j++) {
 			target_a[j] = target[j];
 			if (Double.isNaN(target[j]))
@@ -260,24 +259,24 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 				for (v = 0; v < blockSize[u]; v++) {
 					/** weights to input gate */
 					if (inGates) {
-						for (j = 0; j < currentInput.length; j++)
-							SI[u][v][currentInput[j].index] = SI[u][v][currentInput[j].index]
+						for (j = inputStart; j < inputEnd; j++)
+							SI[u][v][inputIndex[j]] = SI[u][v][inputIndex[j]]
 									+ G[u][v]
 									* (1.0 - Y_in[u])
 									* Y_in[u]
-									* currentInput[j].value;
+									* inputValue[j];
 						for (j = numInputs; j < numInpHidCells; j++)
 							SI[u][v][j] = SI[u][v][j] + G[u][v]
 									* (1.0 - Y_in[u]) * Y_in[u] * Yk_mod_old[j];
 					}
 					/** weights to forget gate */
 					if (forgetGates) {
-						for (j = 0; j < currentInput.length; j++)
-							SF[u][v][currentInput[j].index] = SF[u][v][currentInput[j].index]
-									+ SC[u][v][currentInput[j].index]
+						for (j = inputStart; j < inputEnd; j++)
+							SF[u][v][inputIndex[j]] = SF[u][v][inputIndex[j]]
+									+ SC[u][v][inputIndex[j]]
 									* (1.0 - Y_forget[u])
 									* Y_forget[u]
-									* currentInput[j].value;
+									* inputValue[j];
 						for (j = numInputs; j < numInpHidCells; j++)
 							SF[u][v][j] = SF[u][v][j] + SC[u][v][j]
 									* (1.0 - Y_forget[u]) * Y_forget[u]
@@ -286,11 +285,11 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 					/** weights to cell input */
 					double input = inGates ? Y_in[u] : 1.0;
 
-					for (j = 0; j < currentInput.length; j++)
-						SC[u][v][currentInput[j].index] = SC[u][v][currentInput[j].index]
+					for (j = inputStart; j < inputEnd; j++)
+						SC[u][v][inputIndex[j]] = SC[u][v][inputIndex[j]]
 								+ input
 								* (0.25 * (2.0 - G[u][v]) * (2.0 + G[u][v]))
-								* currentInput[j].value;
+								* inputValue[j];
 					for (j = numInputs; j < numInpHidCells; j++)
 						SC[u][v][j] = SC[u][v][j] + input
 								* (0.25 * (2.0 - G[u][v]) * (2.0 + G[u][v]))
@@ -344,8 +343,8 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 				sum += W_mod[k][i] * e[k];
 			e[i] = sum * (1.0 - Yk_mod_new[i]) * Yk_mod_new[i];
 			/** weight update contribution */
-			for(j = 0; j < currentInput.length; j++)
-				DW[i][currentInput[j].index] += alpha * e[i] * currentInput[j].value;
+			for (j = inputStart; j < inputEnd; j++)
+				DW[i][inputIndex[j]] += alpha * e[i] * inputValue[j];
 			for (j = numInputs; j < numInpHidCells; j++) {
 				DW[i][j] += alpha * e[i] * Yk_mod_old[j];
 			}
@@ -411,8 +410,8 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 			if (outGates) {
 				i++;
 				if (!dropout || dropouts[u]){
-					for(j = 0; j < currentInput.length; j++)
-						DW[i][currentInput[j].index] += alpha * eo[u] * currentInput[j].value;
+					for (j = inputStart; j < inputEnd; j++)
+						DW[i][inputIndex[j]] += alpha * eo[u] * inputValue[j];
 					for (j = numInputs; j < numInpHidCells; j++) {
 						DW[i][j] += alpha * eo[u] * Yk_mod_old[j];
 					}
@@ -447,166 +446,51 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 					DW[i][j] += lambda * parentCore.W_mod[i][j];
 	}
 
-	public void train() {
-		this.setParameters();
-		this.initNet();
-		validationEpochs = new LinkedHashMap<Integer, Double>();
-		initialize();
-
-		/** current validation set error minimum during training. */
-		double currentMin = Double.POSITIVE_INFINITY;
-		/**
-		 * number of epochs since the current minimum of the validation error
-		 * has been reached.
-		 */
-		int stepsSinceMin = 0;
-		
-		List<SparseLSTMCore<E>> processors = null;
-		if(this.trainInParallel){
-			processors = new ArrayList<SparseLSTMCore<E>>();
-			for(int i = 0; i < Runtime.getRuntime().availableProcessors(); i++){
-				SparseLSTMCore<E> lstm = new SparseLSTMCore<E>(baseDir, baseDir, parent, i * 23, outGates, forgetGates, inGates, dropout);		
-				lstm.softmax = softmax;
-				lstm.input = input;
-				lstm.target = target;
-				lstm.targetTest = targetTest;
-				lstm.inputTest = inputTest;
-				lstm.setParameters();
-				lstm.initNet();
-				lstm.W_mod = W_mod;
-				lstm.parentCore = this;
-				lstm.DW = DW;
-				processors.add(lstm);
-			}
-		}
+	@Override
+	protected LSTMCore<E> newWorker(String name, int seed) {
+		return new SparseLSTMCore<E>(name, baseDir, parent, seed, outGates,
+				forgetGates, inGates, dropout);
+	}
 
-		for (epoch = 0; epoch < maxepoch; epoch++) {
-			/** do a weight update or not. */
-			boolean weightUpdate = false;
-			
-			/** MSE and misclassifications output for training set */
-			outputEpoch();
-			/** resetting the error per epoch */
-			epochErr = 0;
-
-			/** weight update after each epoch? */
-			if (!weightUpdatePerSequence)
-				weightUpdate = true;
-			/** performing a test on a test set? */
-			if ((epoch % validationFrequency == 0)
-					&& (epoch > 0 || !randomWeightInitialization)) {
-				resetNet();
-				testLSTM();
-				validationEpochs.put(epoch, Math.sqrt(epochErr / numForecasts));
-				Gnuplot.plotOneDimensionalCurve(validationEpochs, "Epochs",
-						this.baseDir + "validationEpochs");
-				if (currentMin > epochErr) {
-					currentMin = epochErr;
-					stepsSinceMin = 0;
-					save(baseDir + "maxnet.txt");
-				} else {
-					stepsSinceMin++;
-				}
-				if (stepsSinceMin > parent
-						.getIntParameter("maxEpochsAfterMax"))
-					break;
-				numForecasts = 0;
-			}
-			double alphaOld = alpha;
-			if (!this.trainInParallel)
-				processExamples(weightUpdate, alphaOld, 0, input.length);
-			else {
-				int[][] startEnd = new int[processors.size()][2];
-				int num = (int) ((double) input.length / startEnd.length);
-				int lastEnd = 0;
-				for (int i = 0; i < processors.size(); i++) {
-					startEnd[i][0] = lastEnd;
-					startEnd[i][1] = startEnd[i][0] + num;
-					lastEnd = startEnd[i][1];
-				}
-				startEnd[startEnd.length - 1][1] = input.length;
-				
-				
-				ExecutorService service = Executors.newFixedThreadPool(Runtime
-						.getRuntime().availableProcessors());
-				
-				for (int i = 0; i < processors.size(); i++){
-					processors.get(i).setSubThreadParameters(weightUpdate, alphaOld,
-							startEnd[i][0], startEnd[i][1]);
-					service.submit(processors.get(i));
-				}
-					//processors.get(i).processExamples(weightUpdate, alphaOld,
-							//startEnd[i][0], startEnd[i][1]);
-				
-				service.shutdown();
-				try {
-					service.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					System.exit(-1);
-				}
-			}
-		}
+	@Override
+	protected void shareTrainingData(LSTMCore<E> worker) {
+		((SparseLSTMCore<E>) worker).setTrainingData(input, target);
+	}
 
-		this.minimumValidationError = currentMin;
-		
-		this.load(baseDir + "maxnet.txt");
-		/** release memory. */
+	@Override
+	protected void shareTestData(LSTMCore<E> worker) {
+		((SparseLSTMCore<E>) worker).setTestData(inputTest, targetTest);
+	}
+
+	@Override
+	protected void releaseData() {
+		super.releaseData();
 		this.input = null;
-		this.target = null;
 		this.inputTest = null;
-		this.targetTest = null;
 	}
-	
-	@Override
-	protected void processExamples(boolean weightUpdate, double alphaOld, int start, int end) {
-		for (int example = start; example < end; example++) {
-			alpha = alphaOld;
-			if(dropout){
-				dropouts = new boolean[numBlocks];
-				for(int i = 0; i < dropouts.length; i++)
-					dropouts[i] = this.rand.nextBoolean();
-			}
-			resetNet();
-			this.adjustAlpha(example);
-			parentCore.numbSeq++;
-			if (weightUpdatePerSequence || example % batchSize  == 0)
-				weightUpdate = true;
-			for (int element = 0; element < input[example].length; element++) {
-				setInput(input[example][element],
-						target[example][element]);
-
-				forwardPass(false);
-
-				if (targetExists) /** only if target for this input */
-				{
-					/** compute error */
-					for (int k = numInpHidCells, j = 0; k < numAll; k++, j++) {
-						error[j] = target_a[j] - Yk_mod_new[k];
-					}
 
-					/** Training error */
-					parentCore.epochErr += compError(example, false);
-				}
+	/**
+	 * Sparse sequences are processed one by one, batchSize only delays the
+	 * weight update.
+	 */
+	@Override
+	protected boolean batchedTraining() {
+		return false;
+	}
 
-				/** backward pass */
-				if (targetExists) /* only if target for this input */
-					backwardPass();
-				else
-					derivatives();
+	@Override
+	protected int numTrainingSequences() {
+		return input.sequences();
+	}
 
-				/** set old activations */
-				for (int i = 0; i < numAll; i++) {
-					Yk_mod_old[i] = Yk_mod_new[i];
-				}
+	@Override
+	protected int trainingSequenceLength(int example) {
+		return input.sequenceLength(example);
+	}
 
-				/** update weights */
-				if (weightUpdate) {
-					weightUpdate = false;
-					parentCore.weightUpdate();
-				}
-			}
-		}
+	@Override
+	protected void setTrainingInput(int example, int element) {
+		setInput(input, input.row(example, element), targetRow(target, example, element));
 	}
 
 	public void test(String netFile, DataSet<E> testData) {
@@ -626,7 +510,7 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 			multiplyMemoryCellWeights(0.5);
 		}
 
-		for (int currentSequence = 0; currentSequence < inputTest.length; currentSequence++) {
+		for (int currentSequence = 0; currentSequence < inputTest.sequences(); currentSequence++) {
 			resetNet();
 			Sequence seq = testData.get(currentSequence);
 			int gtSize = seq.getGroundTruthLength();
@@ -634,9 +518,9 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 			if (seq.hasGroundTruthSequence() &&  gtSize == seq.getSequenceLength() && gtSize > 0)
 				seq.initSequenceResults();	
 			
-			for (int currentElement = 0; currentElement < inputTest[currentSequence].length; currentElement++) {
-				setInput(inputTest[currentSequence][currentElement],
-						targetTest[currentSequence][currentElement]);
+			for (int currentElement = 0; currentElement < inputTest.sequenceLength(currentSequence); currentElement++) {
+				setInput(inputTest, inputTest.row(currentSequence, currentElement),
+						targetRow(targetTest, currentSequence, currentElement));
 				forwardPass(true);
 
 				if (targetExists) /** only if target for this input */
@@ -674,12 +558,12 @@ public class SparseLSTMCore<E extends SparseSequence> extends LSTMCore<E> {
 
 	}
 
-	public void setTrainingData(Entry[][][] input, double[][][] target) {
+	public void setTrainingData(SparseSequenceMatrix input, DenseSequenceMatrix target) {
 		this.input = input;
 		this.target = target;
 	}
 
-	public void setTestData(Entry[][][] input, double[][][] target) {
+	public void setTestData(SparseSequenceMatrix input, DenseSequenceMatrix target) {
 		this.inputTest = input;
 		this.targetTest = target;
 	}
@@ -2,6 +2,7 @@ package ch.eonum.pipeline.classification.lstm;
 
 
 import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.DenseSequenceMatrix;
 import ch.eonum.pipeline.core.Sequence;
 import ch.eonum.pipeline.util.Log;
 
@@ -21,18 +22,18 @@ public class SubpopulationEvaluator<E extends Sequence> implements Runnable {
 	/** fitness of the best performing individual. */
 	private double max;
 	private GeneticLSTM<E> parent;
-	private double[][][] inp;
-	private double[][][] tar;
-	private double[][][] inp_t;
-	private double[][][] tar_t;
+	private DenseSequenceMatrix inp;
+	private DenseSequenceMatrix tar;
+	private DenseSequenceMatrix inp_t;
+	private DenseSequenceMatrix tar_t;
 	private DataSet<E> dataSet;
 	private boolean forgetGates;
 	private boolean outputGates;
 	private boolean inputGates;
 
 	public SubpopulationEvaluator(int population, int iteration,
-			double[][][] genes, GeneticLSTM<E> geneticLSTM, double[][][] inp,
-			double[][][] tar, double[][][] inp_t, double[][][] tar_t,
+			double[][][] genes, GeneticLSTM<E> geneticLSTM, DenseSequenceMatrix inp,
+			DenseSequenceMatrix tar, DenseSequenceMatrix inp_t, DenseSequenceMatrix tar_t,
 			boolean outputGates, boolean forgetGates, boolean inputGates) {
 		this.population = population;
 		this.genes = genes;
@@ -15,6 +15,12 @@ public class WeightedLSTMCore<E extends Sequence> extends LSTMCore<E> {
 		this.weightsTest = weightsTest;
 	}
 	
+	@Override
+	protected LSTMCore<E> newWorker(String name, int seed) {
+		return new WeightedLSTMCore<E>(name, baseDir, parent, seed, outGates,
+				forgetGates, inGates, weights, weightsTest);
+	}
+
 	@Override
 	protected void adjustAlpha(int example) {
 		alpha *= this.weights[example];
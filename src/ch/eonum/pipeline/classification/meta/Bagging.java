@@ -1,11 +1,16 @@
 package ch.eonum.pipeline.classification.meta;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import ch.eonum.pipeline.classification.Classifier;
@@ -35,6 +40,10 @@ public class Bagging<E extends Instance> extends Classifier<E> {
 	protected Random rand;
 	/** only test out of bag trees when testing. */
 	protected boolean oobTesting;
+	/** bootstrap sample of each base classifier. null if not trained. */
+	protected List<BootstrapSample> samples;
+	/** minimum number of test instances per thread when testing. */
+	private static final int MIN_ROWS_PER_THREAD = 1024;
 
 	public Bagging(List<Classifier<E>> baseClassifiers, Features features, int seed) {
 		this.features = features;
@@ -48,6 +57,7 @@ public class Bagging<E extends Instance> extends Classifier<E> {
 	@Override
 	public void train() {
 		double k = this.getDoubleParameter("k");
+		samples = new ArrayList<BootstrapSample>();
 		int i = 0;
 		for(Classifier<E> c : baseClassifiers){
 			// pick features
@@ -63,9 +73,10 @@ public class Bagging<E extends Instance> extends Classifier<E> {
 			FileUtil.mkdir(getBaseDir() + i + "/");
 			i++;
 			c.setFeatures(fs);
-			DataSet<E> train = bootstrap(trainingDataSet);
-			c.setTrainingSet(train);
-			c.setTestSet(outOfBag(train, trainingDataSet));
+			BootstrapSample sample = bootstrap(trainingDataSet.size());
+			samples.add(sample);
+			c.setTrainingSet(sample.bag(trainingDataSet));
+			c.setTestSet(sample.outOfBag(trainingDataSet));
 		}
 		
 		ExecutorService service = Executors.newFixedThreadPool(Math.min(Runtime
@@ -84,50 +95,138 @@ public class Bagging<E extends Instance> extends Classifier<E> {
 		
 	}
 	
-	protected <T extends Instance > DataSet<T> bootstrap(DataSet<T> data) {
-		DataSet<T> bootstrap = new DataSet<T>();
-		for(int i = 0; i < data.size(); i++)
-			bootstrap.addInstance(data.get(rand.nextInt(data.size())));
-		return bootstrap;
-	}
-	
 	/**
-	 * OOB, out of bag
-	 * @param bag
-	 * @param all
+	 * Draw a bootstrap sample of the same size as the data set.
+	 * 
+	 * @param numRows
+	 *            number of rows of the data set
 	 * @return
 	 */
-	protected <T extends Instance> DataSet<T> outOfBag(DataSet<T> bag, DataSet<T> all) {
-		DataSet<T> oob = new DataSet<T>();
-		for(T each : all)
-			if(!bag.contains(each))
-				oob.addInstance(each);
-		return oob;
+	protected BootstrapSample bootstrap(int numRows) {
+		return new BootstrapSample(numRows, numRows, rand);
 	}
 
-	@Override
-	public DataSet<E> test() {
-		for(E e : testDataSet){
-			e.putResult("result", 0.);
-			e.putResult("numTrees", 0.);
-			e.putResult("resultTemp", 0.);
+	/**
+	 * Get the rows of data which are part of the bootstrap sample of each
+	 * base classifier. O(n) per base classifier.
+	 * 
+	 * @param data
+	 * @return in bag rows by base classifier. null if there are no samples.
+	 */
+	protected BitSet[] inBag(DataSet<E> data) {
+		if (samples == null)
+			return null;
+		BitSet[] inBag = new BitSet[samples.size()];
+		if (data == trainingDataSet) {
+			for (int t = 0; t < inBag.length; t++)
+				inBag[t] = samples.get(t).getInBag();
+			return inBag;
 		}
-		for(Classifier<E> c : baseClassifiers){
-			c.setTestSet(testDataSet);
-			testDataSet = c.test();
-			for(Instance each : testDataSet)
-				if(!c.getTrainingDataSet().contains(each) || !this.oobTesting){
-					each.putResult("resultTemp", each.getResult("resultTemp") + each.getResult("result"));
-					each.putResult("numTrees", each.getResult("numTrees") + 1.0);
-				}
+		/** map the rows of data to the rows of the training set. */
+		Map<Instance, Integer> trainingRows = new IdentityHashMap<Instance, Integer>();
+		for (int r = 0; r < trainingDataSet.size(); r++)
+			trainingRows.put(trainingDataSet.get(r), r);
+		int[] rows = new int[data.size()];
+		for (int i = 0; i < rows.length; i++) {
+			Integer row = trainingRows.get(data.get(i));
+			rows[i] = row == null ? -1 : row;
 		}
-		for(Instance each : testDataSet)
-			if(each.get("numTrees") != 0)
-				each.putResult("result", each.getResult("resultTemp") / each.getResult("numTrees"));
-		
-		for(E e : testDataSet)
-			e.putResult("numTrees", 0.);
+		for (int t = 0; t < inBag.length; t++) {
+			BootstrapSample sample = samples.get(t);
+			inBag[t] = new BitSet(rows.length);
+			for (int i = 0; i < rows.length; i++)
+				if (rows[i] != -1 && sample.isInBag(rows[i]))
+					inBag[t].set(i);
+		}
+		return inBag;
+	}
+
+	/**
+	 * Average the results of all base classifiers. If oobTesting is set, only
+	 * base classifiers which have not been trained with an instance are taken
+	 * into account. If all base classifiers support it, the test set is
+	 * partitioned among all processors and the results are accumulated in
+	 * arrays (@see Classifier#results(List)).
+	 */
+	@Override
+	public DataSet<E> test() {
+		BitSet[] inBag = oobTesting ? inBag(testDataSet) : null;
+		double[] sums = new double[testDataSet.size()];
+		int[] numTrees = new int[testDataSet.size()];
+		if (supportsResults(baseClassifiers))
+			accumulateResults(inBag, sums, numTrees);
+		else
+			for(int t = 0; t < baseClassifiers.size(); t++){
+				Classifier<E> c = baseClassifiers.get(t);
+				c.setTestSet(testDataSet);
+				testDataSet = c.test();
+				for(int i = 0; i < testDataSet.size(); i++)
+					if(inBag == null || !inBag[t].get(i)){
+						sums[i] += testDataSet.get(i).getResult("result");
+						numTrees[i]++;
+					}
+			}
+		for(int i = 0; i < testDataSet.size(); i++)
+			testDataSet.get(i).putResult("result",
+					numTrees[i] == 0 ? 0.0 : sums[i] / numTrees[i]);
 		
 		return this.testDataSet;
 	}
+
+	private static boolean supportsResults(List<? extends Classifier<?>> classifiers) {
+		for (Classifier<?> c : classifiers)
+			if (!c.supportsResults())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Sum up the results of all base classifiers. Each thread scores a
+	 * contiguous range of the test set with all base classifiers.
+	 * 
+	 * @param inBag
+	 *            rows skipped by each base classifier. null: no rows are
+	 *            skipped.
+	 * @param sums
+	 *            sum of the results by row
+	 * @param numTrees
+	 *            number of summed results by row
+	 */
+	private void accumulateResults(final BitSet[] inBag, final double[] sums,
+			final int[] numTrees) {
+		final int n = testDataSet.size();
+		int numThreads = Math.max(1, Math.min(Runtime.getRuntime()
+				.availableProcessors(), n / MIN_ROWS_PER_THREAD));
+		ExecutorService service = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int p = 0; p < numThreads; p++) {
+			final int from = (int) ((long) p * n / numThreads);
+			final int to = (int) ((long) (p + 1) * n / numThreads);
+			futures.add(service.submit(new Runnable() {
+				@Override
+				public void run() {
+					List<E> rows = testDataSet.subList(from, to);
+					for (int t = 0; t < baseClassifiers.size(); t++) {
+						double[] results = baseClassifiers.get(t).results(rows);
+						for (int i = from; i < to; i++)
+							if (inBag == null || !inBag[t].get(i)) {
+								sums[i] += results[i - from];
+								numTrees[i]++;
+							}
+					}
+				}
+			}));
+		}
+		service.shutdown();
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
 }
@@ -0,0 +1,146 @@
+package ch.eonum.pipeline.classification.meta;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.Instance;
+
+/**
+ * Bootstrap sample of the rows of a data set, represented by the multiplicity
+ * of each row and the set of rows drawn at least once (in bag). All other
+ * rows are out of bag (OOB). Learners which support row multiplicities can
+ * consume the sample directly without a materialized data set.
+ *
+ * @author tim
+ *
+ */
+public class BootstrapSample {
+	/** multiplicity by row. */
+	private final int[] counts;
+	/** rows drawn at least once. */
+	private final BitSet inBag;
+	/** number of draws. */
+	private final int size;
+
+	/**
+	 * Draw a bootstrap sample with replacement.
+	 *
+	 * @param numRows
+	 *            number of rows of the data set
+	 * @param size
+	 *            number of draws
+	 * @param rand
+	 */
+	public BootstrapSample(int numRows, int size, Random rand) {
+		this.counts = new int[numRows];
+		this.inBag = new BitSet(numRows);
+		this.size = size;
+		for (int i = 0; i < size; i++) {
+			int row = rand.nextInt(numRows);
+			counts[row]++;
+			inBag.set(row);
+		}
+	}
+
+	/**
+	 * Get the multiplicity of each row. The array must not be modified.
+	 *
+	 * @return
+	 */
+	public int[] getCounts() {
+		return counts;
+	}
+
+	/**
+	 * Get the multiplicity of a row.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public int getCount(int row) {
+		return counts[row];
+	}
+
+	/**
+	 * Check if a row has been drawn at least once.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public boolean isInBag(int row) {
+		return inBag.get(row);
+	}
+
+	/**
+	 * Get the rows which have been drawn at least once. The set must not be
+	 * modified.
+	 *
+	 * @return
+	 */
+	public BitSet getInBag() {
+		return inBag;
+	}
+
+	/**
+	 * Get the rows which have not been drawn.
+	 *
+	 * @return
+	 */
+	public BitSet getOutOfBag() {
+		BitSet oob = new BitSet(counts.length);
+		oob.set(0, counts.length);
+		oob.andNot(inBag);
+		return oob;
+	}
+
+	/**
+	 * Number of draws.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Number of rows of the sampled data set.
+	 *
+	 * @return
+	 */
+	public int numRows() {
+		return counts.length;
+	}
+
+	/**
+	 * Materialize the sample for learners which do not support row
+	 * multiplicities. Each instance is added as many times as it has been
+	 * drawn. The instances are not copied.
+	 *
+	 * @param data
+	 *            the sampled data set
+	 * @return
+	 */
+	public <T extends Instance> DataSet<T> bag(DataSet<T> data) {
+		DataSet<T> bag = new DataSet<T>();
+		for (int r = inBag.nextSetBit(0); r >= 0; r = inBag.nextSetBit(r + 1))
+			for (int i = 0; i < counts[r]; i++)
+				bag.addInstance(data.get(r));
+		return bag;
+	}
+
+	/**
+	 * Get all instances which have not been drawn. O(n).
+	 *
+	 * @param data
+	 *            the sampled data set
+	 * @return
+	 */
+	public <T extends Instance> DataSet<T> outOfBag(DataSet<T> data) {
+		DataSet<T> oob = new DataSet<T>();
+		for (int r = inBag.nextClearBit(0); r < counts.length; r = inBag
+				.nextClearBit(r + 1))
+			oob.addInstance(data.get(r));
+		return oob;
+	}
+}
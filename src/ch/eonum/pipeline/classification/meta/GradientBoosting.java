@@ -2,6 +2,8 @@ package ch.eonum.pipeline.classification.meta;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -46,16 +48,20 @@ public class GradientBoosting<E extends Instance> extends Classifier<E> {
 
 	@Override
 	public void train() {
-		Map<Instance, Double> originalOutcomes = saveOutcomes(this.trainingDataSet);
+		int n = trainingDataSet.size();
+		/** original outcomes and current predictions F_m-1, indexed by row. */
+		double[] y = new double[n];
+		double[] F = new double[n];
+		for (int r = 0; r < n; r++)
+			y[r] = trainingDataSet.get(r).outcome;
 		Map<Integer, Double> curve = new LinkedHashMap<Integer, Double>();
 		
 		/** F_0 average outcome. */
 		double avg = 0.0;
-		for(Instance each : trainingDataSet)
-			avg += each.outcome;
-		avg /= trainingDataSet.size();
-		for(Instance each : trainingDataSet)
-			each.putResult("result", avg);
+		for (int r = 0; r < n; r++)
+			avg += y[r];
+		avg /= n;
+		Arrays.fill(F, avg);
 
 		int M = baseClassifiers.size() + 1;
 		double shrinkage = this.getDoubleParameter("shrinkage");
@@ -66,8 +72,8 @@ public class GradientBoosting<E extends Instance> extends Classifier<E> {
 		gammas[0] = avg;
 		deltas[0] = 0.0;
 		ranges[0] = 1.0;
-		// F_m minus 1
-		Map<Instance, Double> F_m1 = saveResults(this.trainingDataSet);
+		/** predictions of the current base classifier. */
+		double[] Fm = new double[n];
 		
 		PrintStream p;
 		try {
@@ -76,21 +82,22 @@ public class GradientBoosting<E extends Instance> extends Classifier<E> {
 		
 		for(int m = 1; m < M; m++){
 			Classifier<E> c = this.baseClassifiers.get(m-1);
-			DataSet<E> trainSet = bootstrap(trainingDataSet);
-			DataSet<E> testSet = outOfBag(trainSet, trainingDataSet);
+			BootstrapSample sample = new BootstrapSample(n, n, rand);
+			DataSet<E> trainSet = sample.bag(trainingDataSet);
+			DataSet<E> testSet = sample.outOfBag(trainingDataSet);
+			BitSet oob = sample.getOutOfBag();
 			/** calculate residuals and set outcome/target to residual. */
 			double deltaMin = Double.POSITIVE_INFINITY;
 			double deltaMax = Double.NEGATIVE_INFINITY;
-			for(Instance each : trainingDataSet){
-				each.outcome = originalOutcomes.get(each) - F_m1.get(each);
-				deltaMin = Math.min(each.outcome, deltaMin);
-				deltaMax = Math.max(each.outcome, deltaMax);
+			for (int r = 0; r < n; r++) {
+				double residual = y[r] - F[r];
+				deltaMin = Math.min(residual, deltaMin);
+				deltaMax = Math.max(residual, deltaMax);
 			}
 			ranges[m] = deltaMax -deltaMin;
-			for(Instance each : trainingDataSet){
-				each.outcome -= deltaMin;
-				each.outcome /= ranges[m];
-			}
+			for (int r = 0; r < n; r++)
+				trainingDataSet.get(r).outcome = (y[r] - F[r] - deltaMin)
+						/ ranges[m];
 			
 			deltas[m] = deltaMin;
 			FileUtil.mkdir(baseDir + m + "/");
@@ -100,17 +107,23 @@ public class GradientBoosting<E extends Instance> extends Classifier<E> {
 			c.setFeatures(getFeatures());
 			c.train();
 			c.setTestSet(trainingDataSet);
-			trainingDataSet = c.test();	
-			trainingDataSet.renameResults("result", "Fm");
-			
-			loadOutComes(this.trainingDataSet, originalOutcomes);
+			trainingDataSet = c.test();
+			for (int r = 0; r < n; r++) {
+				Instance each = trainingDataSet.get(r);
+				Fm[r] = each.getResult("result") * ranges[m] + deltaMin;
+				each.outcome = y[r];
+			}
 			
+			/**
+			 * line search on the out of bag rows. the base classifiers are
+			 * arbitrary, hence the step is chosen with the evaluator.
+			 */
 			double maxGamma = 0.0;
 			double maxEval = Double.NEGATIVE_INFINITY;
 			for(int i = 0; i < 150; i ++){
 				double gamma = i * 0.01;
-				for(Instance each : testSet)
-					each.putResult("result", (each.getResult("Fm") * ranges[m] + deltaMin) * gamma + F_m1.get(each));
+				for (int r = oob.nextSetBit(0); r >= 0; r = oob.nextSetBit(r + 1))
+					trainingDataSet.get(r).putResult("result", Fm[r] * gamma + F[r]);
 				double eval = this.evaluator.evaluate(testSet);
 				if(eval > maxEval){
 					maxEval = eval;
@@ -120,64 +133,23 @@ public class GradientBoosting<E extends Instance> extends Classifier<E> {
 			Log.puts("Iteration " + m + " Maximum Gamma: " + maxGamma + " Eval: " + maxEval);
 			
 			gammas[m] = maxGamma * shrinkage;
-			for(Instance each : trainingDataSet)
-				each.putResult("result", (each.getResult("Fm") * ranges[m] + deltaMin) * gammas[m] + F_m1.get(each));
-			F_m1 = saveResults(trainingDataSet);
+			for (int r = 0; r < n; r++) {
+				F[r] += Fm[r] * gammas[m];
+				trainingDataSet.get(r).putResult("result", F[r]);
+			}
 			
 			double eval = evaluator.evaluate(testSet);
 			
 			p.println("Iteration " + m + " Maximum Gamma: " + maxGamma + " Eval: " + maxEval + " max eval shrinked: " + eval);
 			p.println("Delta for iteration " + m + ": " + deltaMin + " Range: " + ranges[m]);
 			curve.put(m, eval);
-			Gnuplot.plotOneDimensionalCurve(curve, "GBM", this.getBaseDir() + "gbm");
 		}
-		loadOutComes(this.trainingDataSet, originalOutcomes);
+		Gnuplot.plotOneDimensionalCurve(curve, "GBM", this.getBaseDir() + "gbm");
 		p.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-	
-	private DataSet<E> bootstrap(DataSet<E> data) {
-		DataSet<E> bootstrap = new DataSet<E>();
-		for(int i = 0; i < data.size(); i++)
-			bootstrap.addInstance(data.get(rand.nextInt(data.size())));
-		return bootstrap;
-	}
-	
-	/**
-	 * OOB, out of bag
-	 * @param bag
-	 * @param all
-	 * @return
-	 */
-	private DataSet<E> outOfBag(DataSet<E> bag, DataSet<E> all) {
-		DataSet<E> oob = new DataSet<E>();
-		for(E each : all)
-			if(!bag.contains(each))
-				oob.addInstance(each);
-		return oob;
-	}
-
-	private Map<Instance, Double> saveResults(DataSet<E> data) {
-		Map<Instance, Double> map = new HashMap<Instance, Double>();
-		for (Instance each : data)
-			map.put(each, each.getResult("result"));
-		return map;
-	}
-
-	private void loadOutComes(DataSet<E> data,
-			Map<Instance, Double> originalOutcomes) {
-		for (Instance each : data)
-			each.outcome = originalOutcomes.get(each);
-	}
-
-	private Map<Instance, Double> saveOutcomes(DataSet<E> data) {
-		Map<Instance, Double> map = new HashMap<Instance, Double>();
-		for (Instance each : data)
-			map.put(each, each.outcome);
-		return map;
-	}
 
 	@Override
 	public DataSet<E> test() {
@@ -0,0 +1,141 @@
+package ch.eonum.pipeline.classification.nn;
+
+/**
+ * Blocked matrix multiplication kernels for the mini batch engine of the
+ * {@link NeuralNetCore}. All matrices are row major double[][] as the weight
+ * matrices of the net. The loops are tiled such that a block of rows of the
+ * right hand side stays in the cache while it is applied to a block of rows of
+ * the left hand side, and the innermost loop always runs over a contiguous
+ * row.
+ *
+ * @author tim
+ *
+ */
+class Gemm {
+	/** tile size for the inner (summed) dimension. */
+	private static final int BLOCK_INNER = 64;
+	/** tile size for the rows of the left hand side. */
+	private static final int BLOCK_ROWS = 32;
+
+	/**
+	 * c = a * b for the rows [0, rows) of a. The inner dimension is the number
+	 * of rows of b, the number of columns the length of the rows of b. Further
+	 * columns of c (e.g. a bias unit) are not touched.
+	 *
+	 * @param a
+	 * @param rows
+	 * @param b
+	 * @param c
+	 */
+	static void multiply(double[][] a, int rows, double[][] b, double[][] c) {
+		int inner = b.length;
+		int n = b[0].length;
+		for (int i = 0; i < rows; i++) {
+			double[] ci = c[i];
+			for (int j = 0; j < n; j++)
+				ci[j] = 0.0;
+		}
+		for (int p0 = 0; p0 < inner; p0 += BLOCK_INNER) {
+			int p1 = Math.min(inner, p0 + BLOCK_INNER);
+			for (int i0 = 0; i0 < rows; i0 += BLOCK_ROWS) {
+				int i1 = Math.min(rows, i0 + BLOCK_ROWS);
+				for (int i = i0; i < i1; i++) {
+					double[] ai = a[i];
+					double[] ci = c[i];
+					for (int p = p0; p < p1; p++) {
+						double aip = ai[p];
+						if (aip == 0.0)
+							continue;
+						double[] bp = b[p];
+						for (int j = 0; j < n; j++)
+							ci[j] += aip * bp[j];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * c += factor * a^T * b, summed over the rows [0, rows) of a and b. This
+	 * is the weight gradient of a layer with the inputs a and the error
+	 * gradients b.
+	 *
+	 * @param a
+	 * @param b
+	 * @param rows
+	 * @param factor
+	 * @param c
+	 */
+	static void multiplyTransposedA(double[][] a, double[][] b, int rows,
+			double factor, double[][] c) {
+		int inner = c.length;
+		for (int p0 = 0; p0 < inner; p0 += BLOCK_INNER) {
+			int p1 = Math.min(inner, p0 + BLOCK_INNER);
+			for (int i0 = 0; i0 < rows; i0 += BLOCK_ROWS) {
+				int i1 = Math.min(rows, i0 + BLOCK_ROWS);
+				for (int p = p0; p < p1; p++) {
+					double[] cp = c[p];
+					int n = cp.length;
+					for (int i = i0; i < i1; i++) {
+						double aip = a[i][p];
+						if (aip == 0.0)
+							continue;
+						aip *= factor;
+						double[] bi = b[i];
+						for (int j = 0; j < n; j++)
+							cp[j] += aip * bi[j];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * c = a * b^T for the rows [0, rows) of a and the columns [0, columns) of
+	 * c. This propagates the error gradients a back through the weight matrix
+	 * b.
+	 *
+	 * @param a
+	 * @param rows
+	 * @param b
+	 * @param columns
+	 * @param c
+	 */
+	static void multiplyTransposedB(double[][] a, int rows, double[][] b,
+			int columns, double[][] c) {
+		for (int j0 = 0; j0 < columns; j0 += BLOCK_INNER) {
+			int j1 = Math.min(columns, j0 + BLOCK_INNER);
+			for (int i = 0; i < rows; i++) {
+				double[] ai = a[i];
+				double[] ci = c[i];
+				int n = ai.length;
+				for (int j = j0; j < j1; j++) {
+					double[] bj = b[j];
+					double sum = 0.0;
+					for (int k = 0; k < n; k++)
+						sum += ai[k] * bj[k];
+					ci[j] = sum;
+				}
+			}
+		}
+	}
+
+	/**
+	 * c += factor * a o b (element wise product).
+	 *
+	 * @param a
+	 * @param b
+	 * @param factor
+	 * @param c
+	 */
+	static void addProduct(double[][] a, double[][] b, double factor,
+			double[][] c) {
+		for (int i = 0; i < c.length; i++) {
+			double[] ai = a[i];
+			double[] bi = b[i];
+			double[] ci = c[i];
+			for (int j = 0; j < ci.length; j++)
+				ci[j] += factor * ai[j] * bi[j];
+		}
+	}
+}
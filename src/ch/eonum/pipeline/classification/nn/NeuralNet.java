@@ -12,14 +12,16 @@ import java.util.concurrent.TimeUnit;
 
 import ch.eonum.pipeline.classification.Classifier;
 import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.DenseMatrix;
 import ch.eonum.pipeline.core.Features;
+import ch.eonum.pipeline.core.Folds;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.util.FileUtil;
 import ch.eonum.pipeline.util.Log;
 
 /**
- * Fast Forward neural network with one hidden layer for regression and
- * classification tasks (softmax output layer).
+ * Fast Forward neural network with one or more hidden layers for regression
+ * and classification tasks (softmax output layer).
  * 
  * Includes k-fold cross validation.
  * 
@@ -32,6 +34,8 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 	static {
 		PARAMETERS.put("hidden",
 						"number of hidden layer neurons. (default 10)");
+		PARAMETERS.put("hiddenLayers",
+						"number of hidden layers with 'hidden' neurons each. (default 1.0)");
 		PARAMETERS.put("maxEpochsAfterMax",
 						"Number of epochs to continue training after the last maximum on validation set accuraccy is reached."
 								+ "The training of a neural net is then stopped when we cannot improve accuraccy on the validation set. (default: 10)");
@@ -46,9 +50,14 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 						"normalize all targets by dividing by normTarget."
 								+ " If set to -1.0, maxOutcome is used for norming (default: -1.0)");
 		PARAMETERS.put("momentum", "learning momentum. Default: 0.0 (no momentum)");
-		PARAMETERS.put("batchSize", "batch size for mini batch or batch learning: 1.0 (online backpropagation)");
+		PARAMETERS.put("batchSize", "batch size for mini batch or batch learning. mini batches are "
+				+ "computed with blocked matrix multiplications (default: 1.0, online backpropagation)");
 		PARAMETERS.put("lambda", "lambda for weight decay. Default: 0.0 (no weight decay)");
 		PARAMETERS.put("maxOutcome", "maximum outcome for regression tasks. used for normalization.");
+		PARAMETERS.put("asyncValidation", "validate snapshots of the weights on a separate thread while the training continues."
+				+ " The best weights are kept in memory. 1 --> asynchronous 0 --> synchronous (default 0.0)");
+		PARAMETERS.put("floatPrecision", "store the training and validation data and the nets in single precision (float32)."
+				+ " All computations are done in double precision. 1 --> float32 0 --> float64 (default 0.0)");
 	}
 
 	/** the core nets. */
@@ -57,12 +66,15 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 	protected double maxOutcome;
 	/** do dropout. */
 	protected boolean dropout;
+	/** data parallel training of each net on all processors. */
+	protected boolean trainInParallel;
 	
 	public NeuralNet(Features features) {
 		super();
 		this.setFeatures(features);
 		this.setSupportedParameters(NeuralNet.PARAMETERS);
 		this.putParameter("hidden", 10.0);
+		this.putParameter("hiddenLayers", 1.0);
 		this.putParameter("maxEpochsAfterMax", 10.0);
 		this.putParameter("maxEpochs", 1000);
 		this.putParameter("learningRate", 0.007);
@@ -72,6 +84,8 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 		this.putParameter("momentum", 0.0);
 		this.putParameter("lambda", 0.0);
 		this.putParameter("batchSize", 1.0);
+		this.putParameter("floatPrecision", 0.0);
+		this.putParameter("asyncValidation", 0.0);
 		this.classify = false;
 	}
 
@@ -91,29 +105,26 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 		int numNetsTotal = (int)this.getDoubleParameter("numNetsTotal");
 		int numNets = (int)this.getDoubleParameter("numNets");
 		
-		double[][][] trainInputs = null;
-		double[][][] trainTargets = null;
+		/** k-fold cross validation: views of the whole training set. */
+		Folds folds = null;
+		DenseMatrix allInputs = null;
+		DenseMatrix allTargets = null;
 		
-		double[][] input = null;
-		double[][] target = null;
-		double[][] inputTest = null;
-		double[][] targetTest = null;
+		DenseMatrix input = null;
+		DenseMatrix target = null;
+		DenseMatrix inputTest = null;
+		DenseMatrix targetTest = null;
 		
 		/** create training and validation data. */
 		if(numNetsTotal > 1){ /** k-fold cross validation. */
-			trainInputs = new double[numNetsTotal][][];
-			trainTargets = new double[numNetsTotal][][];
-			int i = 0;
-			for (DataSet<E> each : this.trainingDataSet.splitIntoNSubsets(numNetsTotal)) {
-				trainInputs[i] = each.asDoubleArrayMatrix(features);
-				trainTargets[i] = getTargets(each);
-				i++;
-			}
+			folds = new Folds(this.trainingDataSet.size(), numNetsTotal);
+			allInputs = getInputs(this.trainingDataSet);
+			allTargets = getTargetMatrix(this.trainingDataSet);
 		} else { /** no cross validation. only one net. */
-			input = this.trainingDataSet.asDoubleArrayMatrix(features);
-			target = getTargets(this.trainingDataSet);
-			inputTest = this.testDataSet.asDoubleArrayMatrix(features);
-			targetTest = getTargets(this.testDataSet);
+			input = getInputs(this.trainingDataSet);
+			target = getTargetMatrix(this.trainingDataSet);
+			inputTest = getInputs(this.testDataSet);
+			targetTest = getTargetMatrix(this.testDataSet);
 		}
 		
 		ExecutorService service = Executors.newFixedThreadPool(Runtime
@@ -124,22 +135,12 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 		for(int netNumber = 0; netNumber < numNetsTotal; netNumber++){
 			/** select training and validation data if we do k-fold cross validation. */			
 			if (numNetsTotal > 1) {
-				inputTest = trainInputs[netNumber];
-				targetTest = trainTargets[netNumber];
+				inputTest = allInputs.selectRows(folds.validation(netNumber));
+				targetTest = allTargets.selectRows(folds.validation(netNumber));
 				
-				int length = 0;
-				for (int i = 0; i < trainInputs.length; i++)
-					if(i != netNumber)
-						length += trainInputs[i].length;
-				input = new double[length][];
-				target = new double[length][];
-				int k = 0;
-				for (int i = 0; i < trainInputs.length; i++)
-					if (i != netNumber)
-						for(int j = 0; j < trainInputs[i].length; j++){
-							input[k] = trainInputs[i][j];
-							target[k++] = trainTargets[i][j];
-						}
+				int[] training = folds.training(netNumber);
+				input = allInputs.selectRows(training);
+				target = allTargets.selectRows(training);
 			}
 			
 			/** create all differently initialized nets . */	
@@ -148,6 +149,8 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 				String name = netNumber + "-" + i;
 				FileUtil.mkdir(this.getBaseDir() + name + "/");
 				NeuralNetCore<E> net = createNet(name, i);
+				if(this.trainInParallel)
+					net.trainInParallel();
 				net.setTrainingData(input, target);
 				net.setTestData(inputTest, targetTest);
 				randomNets.add(net);
@@ -189,6 +192,23 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 				+ "/", this, seed * 11, dropout, classify);
 	}
 	
+	/**
+	 * store the data in single precision.
+	 * 
+	 * @return
+	 */
+	protected boolean singlePrecision() {
+		return this.getDoubleParameter("floatPrecision") > 0.5;
+	}
+
+	private DenseMatrix getInputs(DataSet<E> dataset) {
+		return DenseMatrix.fromInstances(dataset, features, singlePrecision());
+	}
+
+	private DenseMatrix getTargetMatrix(DataSet<E> dataset) {
+		return DenseMatrix.create(getTargets(dataset), singlePrecision());
+	}
+
 	private double[][] getTargets(DataSet<E> dataset) {
 		double[][] targets = new double[dataset.size()][this.getNumberOfOutputs()];
 		if(classify){
@@ -204,8 +224,8 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 
 	@Override
 	public DataSet<E> test(){
-		double[][] inputsTest = testDataSet.asDoubleArrayMatrix(features);
-		double[][] targetsTest = getTargets(testDataSet);
+		DenseMatrix inputsTest = getInputs(testDataSet);
+		DenseMatrix targetsTest = getTargetMatrix(testDataSet);
 		
 		for(Instance each : this.testDataSet)
 			for(int k = 0; k < this.getNumberOfOutputs(); k++)
@@ -278,5 +298,15 @@ public class NeuralNet<E extends Instance> extends Classifier<E> {
 	public void doDropout() {
 		this.dropout = true;
 	}
+	
+	/**
+	 * train each net with synchronous data parallel mini batches on all
+	 * processors (gradients of the shards of a mini batch are summed up before
+	 * the weight update). Useful for a single large net (numNets = 1, no cross
+	 * validation).
+	 */
+	public void trainInParallel() {
+		this.trainInParallel = true;
+	}
 
 }
@@ -0,0 +1,220 @@
+package ch.eonum.pipeline.classification.nn;
+
+import ch.eonum.pipeline.core.DenseMatrix;
+
+/**
+ * Mini-batched forward and backward pass of a {@link NeuralNetCore}. The
+ * activations and error gradients of all examples of a batch are stored as
+ * matrices [example][unit], such that each layer is one matrix multiplication
+ * (see {@link Gemm}) instead of one loop over the weights per example.
+ *
+ * The weight update contributions are accumulated in a given set of gradient
+ * matrices (the deltas of the core or the private buffers of a worker). The
+ * math is the same as in the online backpropagation of the core with the
+ * weights kept fixed during the batch.
+ *
+ * @author tim
+ *
+ */
+class NeuralNetBatch {
+	private final NeuralNetCore<?> net;
+	/** number of hidden layers. */
+	private final int hiddenLayers;
+	private final int nInput;
+	private final int nHidden;
+	private final int nOutput;
+
+	/** capacity in examples. */
+	private int capacity;
+	/**
+	 * activations by layer [layer][example][unit]. layer 0 is the input layer,
+	 * the last one the output layer. the last unit of all other layers is the
+	 * bias unit (-1).
+	 */
+	private double[][][] a;
+	/** error gradients by layer [layer][example][unit], null for the input layer. */
+	private double[][][] g;
+	/** dropout masks of the hidden layers [hidden layer][example][unit]. */
+	private double[][][] m;
+	/** masked input sums for the weight decay of the hidden layers. */
+	private double[][][] decay;
+	/** buffer for target rows stored in single precision. */
+	private final double[] targetBuffer;
+	/** private gradient buffers (same shape as the weights). */
+	final double[][][] gradients;
+
+	/**
+	 * @param net
+	 * @param privateGradients
+	 *            allocate gradient buffers for this batch (data parallel
+	 *            worker)
+	 */
+	NeuralNetBatch(NeuralNetCore<?> net, boolean privateGradients) {
+		this.net = net;
+		this.hiddenLayers = net.hiddenLayers;
+		this.nInput = net.nInput;
+		this.nHidden = net.nHidden;
+		this.nOutput = net.nOutput;
+		this.targetBuffer = new double[nOutput];
+		double[][][] w = net.weightMatrices();
+		if (privateGradients) {
+			gradients = new double[w.length][][];
+			for (int l = 0; l < w.length; l++)
+				gradients[l] = new double[w[l].length][w[l][0].length];
+		} else
+			gradients = null;
+	}
+
+	private void allocate(int n) {
+		if (n <= capacity)
+			return;
+		capacity = n;
+		a = new double[hiddenLayers + 2][][];
+		g = new double[hiddenLayers + 2][][];
+		a[0] = new double[n][nInput + 1];
+		for (int l = 1; l <= hiddenLayers; l++) {
+			a[l] = new double[n][nHidden + 1];
+			g[l] = new double[n][nHidden];
+		}
+		a[hiddenLayers + 1] = new double[n][nOutput];
+		g[hiddenLayers + 1] = new double[n][nOutput];
+		m = new double[hiddenLayers][n][];
+	}
+
+	/**
+	 * Run the examples [from, to) through the net and add their weight update
+	 * contributions to the gradient matrices.
+	 *
+	 * @param input
+	 * @param target
+	 * @param from
+	 * @param to
+	 * @param masks
+	 *            dropout masks of the hidden layers (1.0 active, 0.0 dropped)
+	 *            starting with the example maskOffset. null if there is no
+	 *            dropout.
+	 * @param maskOffset
+	 * @param deltas
+	 *            gradient matrices in the order of
+	 *            {@link NeuralNetCore#weightMatrices()}
+	 * @return sum of squared errors
+	 */
+	double accumulate(DenseMatrix input, DenseMatrix target, int from, int to,
+			double[][][] masks, int maskOffset, double[][][] deltas) {
+		int n = to - from;
+		if (n <= 0)
+			return 0.0;
+		allocate(n);
+		double[][][] w = net.weightMatrices();
+		if (masks != null)
+			for (int l = 0; l < hiddenLayers; l++)
+				for (int i = 0; i < n; i++)
+					m[l][i] = masks[l][from - maskOffset + i];
+
+		/** forward pass. */
+		double[][] in = a[0];
+		for (int i = 0; i < n; i++) {
+			/** rows in single precision are widened directly into the batch. */
+			double[] row = input.getRow(from + i, in[i]);
+			if (row != in[i])
+				System.arraycopy(row, 0, in[i], 0, nInput);
+			in[i][nInput] = -1;
+		}
+		for (int l = 1; l <= hiddenLayers; l++) {
+			double[][] h = a[l];
+			Gemm.multiply(a[l - 1], n, w[l - 1], h);
+			for (int i = 0; i < n; i++) {
+				double[] hi = h[i];
+				double[] mi = masks == null ? null : m[l - 1][i];
+				for (int j = 0; j < nHidden; j++)
+					if (mi == null || mi[j] != 0.0)
+						hi[j] = net.activationFunction(hi[j]);
+					else
+						hi[j] = 0.0;
+				hi[nHidden] = -1;
+			}
+		}
+		double[][] out = a[hiddenLayers + 1];
+		Gemm.multiply(a[hiddenLayers], n, w[hiddenLayers], out);
+		double mse = 0.0;
+		double[][] gOut = g[hiddenLayers + 1];
+		for (int i = 0; i < n; i++) {
+			double[] oi = out[i];
+			if (net.softmax) {
+				double total = 0.0;
+				for (int k = 0; k < nOutput; k++) {
+					oi[k] = Math.exp(oi[k]);
+					total += oi[k];
+				}
+				for (int k = 0; k < nOutput; k++)
+					oi[k] /= total;
+			} else
+				for (int k = 0; k < nOutput; k++)
+					oi[k] = net.activationFunction(oi[k]);
+			double[] ti = target.getRow(from + i, targetBuffer);
+			for (int k = 0; k < nOutput; k++) {
+				gOut[i][k] = net.getOutputErrorGradient(ti[k], oi[k]);
+				mse += Math.pow((oi[k] - ti[k]), 2);
+			}
+		}
+
+		/** backward pass. */
+		for (int l = hiddenLayers; l >= 0; l--) {
+			Gemm.multiplyTransposedA(a[l], g[l + 1], n, net.learningRate,
+					deltas[l]);
+			if (net.lambda != 0.0)
+				addWeightDecay(l, n, w[l], deltas[l], masks != null);
+			if (l == 0)
+				break;
+			double[][] h = a[l];
+			double[][] gl = g[l];
+			Gemm.multiplyTransposedB(g[l + 1], n, w[l], nHidden, gl);
+			for (int i = 0; i < n; i++) {
+				double[] hi = h[i];
+				double[] gi = gl[i];
+				double[] mi = masks == null ? null : m[l - 1][i];
+				for (int j = 0; j < nHidden; j++)
+					if (mi == null || mi[j] != 0.0)
+						gi[j] *= hi[j] * (1 - hi[j]);
+					else
+						gi[j] = 0.0;
+			}
+		}
+		return mse;
+	}
+
+	/**
+	 * Weight decay term of weight matrix l: learningRate * lambda * w[p][j]
+	 * times the sum of the inputs p over all examples in which the unit j is
+	 * active.
+	 */
+	private void addWeightDecay(int l, int n, double[][] w, double[][] delta,
+			boolean masked) {
+		double factor = net.learningRate * net.lambda;
+		double[][] in = a[l];
+		if (masked && l < hiddenLayers) {
+			if (decay == null)
+				decay = new double[hiddenLayers][][];
+			if (decay[l] == null)
+				decay[l] = new double[w.length][w[0].length];
+			double[][] sum = decay[l];
+			for (double[] row : sum)
+				for (int j = 0; j < row.length; j++)
+					row[j] = 0.0;
+			Gemm.multiplyTransposedA(in, m[l], n, 1.0, sum);
+			Gemm.addProduct(sum, w, factor, delta);
+		} else {
+			for (int p = 0; p < w.length; p++) {
+				double sum = 0.0;
+				for (int i = 0; i < n; i++)
+					sum += in[i][p];
+				if (sum == 0.0)
+					continue;
+				double[] wp = w[p];
+				double[] dp = delta[p];
+				for (int j = 0; j < wp.length; j++)
+					dp[j] += factor * sum * wp[j];
+			}
+		}
+	}
+}
@@ -1,23 +1,36 @@
 package ch.eonum.pipeline.classification.nn;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.DenseMatrix;
 import ch.eonum.pipeline.core.Instance;
+import ch.eonum.pipeline.util.AsyncValidator;
+import ch.eonum.pipeline.util.BinaryModel;
 import ch.eonum.pipeline.util.Gnuplot;
 import ch.eonum.pipeline.util.Log;
 
 /**
- * Core functionality (all the math) of the feed forward 3 layer
- * Neural Network.
+ * Core functionality (all the math) of the feed forward Neural Network with
+ * one or more hidden layers.
+ * 
+ * Online learning (batch size 1, one hidden layer) runs example by example.
+ * Mini batches and nets with several hidden layers are trained with the
+ * blocked matrix kernels of {@link NeuralNetBatch}, optionally data parallel
+ * on all processors.
  * 
  * @author tim
  * 
@@ -41,22 +54,26 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 	 * matrix for storing the target per training element
 	 * per output component
 	 */
-	private double tar[][];
+	private DenseMatrix tar;
 	/**
 	 * matrix for storing the input per training element per
 	 * input component
 	 */
-	private double inp[][];
+	private DenseMatrix inp;
 	/**
 	 * matrix for storing the target per test element per
 	 * output component
 	 */
-	private double tar_t[][];
+	private DenseMatrix tar_t;
 	/**
 	 * matrix for storing the input per test element per
 	 * input component
 	 */
-	private double inp_t[][];
+	private DenseMatrix inp_t;
+	/** buffers for rows stored in single precision. */
+	private double[] inputBuffer, targetBuffer;
+	/** save the nets in single precision. */
+	protected boolean singlePrecision;
 	/** mean square error per epoch */
 	protected double epoch_err;
 	/** current validation set error minimum during training. */
@@ -74,17 +91,24 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 	/** number of units. */
 	protected int nInput, nHidden;
 	protected int nOutput;
+	/** number of hidden layers. each has nHidden units. */
+	protected int hiddenLayers;
 	/** units. */
 	private double[] inputNeurons;
+	/** units of all hidden layers. the last one is hiddenNeurons. */
+	private double[][] hiddenLayerNeurons;
 	protected double[] hiddenNeurons;
 	protected double[] outputNeurons;
-	/** weight matrix between input and hidden unit. */
+	/** weight matrix between input and (first) hidden unit. */
 	protected double[][] wInputHidden;
-	/** weight matrix between hidden and output unit. */
+	/** weight matrices between consecutive hidden layers. */
+	protected double[][][] wHiddenHidden;
+	/** weight matrix between (last) hidden and output unit. */
 	protected double[][] wHiddenOutput;
 
 	/** weight gradients. */
 	protected double[][] deltaInputHidden;
+	protected double[][][] deltaHiddenHidden;
 	protected double[][] deltaHiddenOutput;
 
 	/** error gradients. */
@@ -96,8 +120,6 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 	protected double validationSetAccuracy;
 	protected double trainingSetMSE;
 
-	/** batch learning flag. */
-	protected boolean useBatch;
 	/** batch size if using mini-batch learning. */
 	protected int batchSize;
 	/**
@@ -118,6 +140,12 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 	 * classification tasks.
 	 */
 	protected boolean softmax;
+	/** data parallel training of the mini batches on all processors. */
+	protected boolean trainInParallel;
+	/** validate on a separate thread while the training continues. */
+	protected boolean asyncValidation;
+	/** dropout masks of the current mini batch [hidden layer][example][unit]. */
+	private double[][][] batchDropouts;
 
 	public NeuralNetCore(String threadName, String baseDir, NeuralNet<E> parent,
 			int seed, boolean dropout, boolean classify) {
@@ -141,32 +169,100 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 		this.maxEpochsAfterMin = parent.getDoubleParameter("maxEpochsAfterMax");
 		this.nOutput = parent.getNumberOfOutputs();
 		this.lambda =parent.getDoubleParameter("lambda");
+		this.hiddenLayers = (int) parent.getDoubleParameter("hiddenLayers");
+		this.singlePrecision = parent.getDoubleParameter("floatPrecision") > 0.5;
+		this.asyncValidation = parent.getDoubleParameter("asyncValidation") > 0.5;
+	}
+
+	/**
+	 * All weight matrices from the input to the output layer.
+	 * 
+	 * @return
+	 */
+	double[][][] weightMatrices() {
+		double[][][] w = new double[hiddenLayers + 1][][];
+		w[0] = wInputHidden;
+		for (int l = 1; l < hiddenLayers; l++)
+			w[l] = wHiddenHidden[l - 1];
+		w[hiddenLayers] = wHiddenOutput;
+		return w;
+	}
+
+	/**
+	 * Use the given weight matrices (in the order of {@link #weightMatrices()}).
+	 * The matrices are not copied.
+	 * 
+	 * @param w
+	 */
+	void setWeightMatrices(double[][][] w) {
+		wInputHidden = w[0];
+		wHiddenHidden = new double[hiddenLayers - 1][][];
+		for (int l = 1; l < hiddenLayers; l++)
+			wHiddenHidden[l - 1] = w[l];
+		wHiddenOutput = w[hiddenLayers];
+	}
+
+	/**
+	 * All weight gradients in the order of {@link #weightMatrices()}.
+	 * 
+	 * @return
+	 */
+	double[][][] deltaMatrices() {
+		double[][][] d = new double[hiddenLayers + 1][][];
+		d[0] = deltaInputHidden;
+		for (int l = 1; l < hiddenLayers; l++)
+			d[l] = deltaHiddenHidden[l - 1];
+		d[hiddenLayers] = deltaHiddenOutput;
+		return d;
 	}
 
+	/**
+	 * save the weights in the binary model format (see {@link BinaryModel}).
+	 * The header holds the number of input, hidden and output units and the
+	 * number of hidden layers. The weights are stored in single precision if
+	 * the parameter floatPrecision is set.
+	 * 
+	 * @param fileName
+	 */
 	public void save(String fileName) {
 		try {
-			PrintStream p = new PrintStream(new FileOutputStream(fileName));
-			p.println(wInputHidden.length + " " + wInputHidden[0].length);
-			for(int i = 0; i < this.wInputHidden.length; i++)
-				for(int j = 0; j < this.wInputHidden[i].length; j++)
-					p.print(wInputHidden[i][j] + " ");
-			p.println();
-			p.println(wHiddenOutput.length + " " + wHiddenOutput[0].length);
-			for(int i = 0; i < this.wHiddenOutput.length; i++)
-				for(int j = 0; j < this.wHiddenOutput[i].length; j++)
-					p.print(wHiddenOutput[i][j] + " ");
-			p.println();
-			p.close();
-
+			new BinaryModel(new int[] { nInput, nHidden, nOutput, hiddenLayers },
+					weightMatrices()).save(fileName, singlePrecision);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * load the weights. Binary models are taken from the model cache if
+	 * possible, text files of older versions are parsed.
+	 * 
+	 * @param filename
+	 * @throws IOException
+	 */
 	public void load(String filename) throws IOException {
 		this.setParameters();
-		this.init();
 		
+		if (!BinaryModel.isBinaryModel(filename)) {
+			this.hiddenLayers = 1;
+			this.init();
+			loadText(filename);
+			return;
+		}
+		BinaryModel model = BinaryModel.load(filename);
+		this.nInput = model.getHeader(0);
+		this.nHidden = model.getHeader(1);
+		this.nOutput = model.getHeader(2);
+		/** models of older versions have one hidden layer. */
+		this.hiddenLayers = model.getHeaderLength() > 3 ? model.getHeader(3) : 1;
+		this.init();
+		wInputHidden = model.copyBlock(0);
+		for (int l = 1; l < hiddenLayers; l++)
+			wHiddenHidden[l - 1] = model.copyBlock(l);
+		wHiddenOutput = model.copyBlock(hiddenLayers);
+	}
+
+	private void loadText(String filename) throws IOException {
 		Scanner scanner = new Scanner(new File(filename));
 		String line = scanner.nextLine();
 		String[] lengths = line.split(" ");
@@ -196,11 +292,14 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 	protected void init() {
 		inputNeurons = new double[nInput + 1];
 		inputNeurons[nInput] = -1;
-		hiddenNeurons = new double[nHidden + 1];
-		hiddenNeurons[nHidden] = -1;
+		hiddenLayerNeurons = new double[hiddenLayers][nHidden + 1];
+		for (int l = 0; l < hiddenLayers; l++)
+			hiddenLayerNeurons[l][nHidden] = -1;
+		hiddenNeurons = hiddenLayerNeurons[hiddenLayers - 1];
 		outputNeurons = new double[nOutput];
 
 		deltaInputHidden = new double[nInput + 1][nHidden];
+		deltaHiddenHidden = new double[hiddenLayers - 1][nHidden + 1][nHidden];
 		deltaHiddenOutput = new double[nHidden + 1][nOutput];
 
 		hiddenErrorGradients = new double[nHidden + 1];
@@ -208,12 +307,11 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 
 		if(this.randomWeightInitialization)
 			initializeWeights();
-
-		useBatch = batchSize > 1;
 	}
 
 	private void initializeWeights() {
 		wInputHidden = new double[nInput + 1][nHidden];
+		wHiddenHidden = new double[hiddenLayers - 1][nHidden + 1][nHidden];
 		wHiddenOutput = new double[nHidden + 1][nOutput];
 		
 		for (int i = 0; i <= nInput; i++) {
@@ -223,6 +321,11 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 			}
 		}
 
+		for (int l = 0; l < hiddenLayers - 1; l++)
+			for (int i = 0; i <= nHidden; i++)
+				for (int j = 0; j < nHidden; j++)
+					wHiddenHidden[l][i][j] = rand.nextDouble() - 0.5;
+
 		for (int i = 0; i <= nHidden; i++) {
 			for (int j = 0; j < nOutput; j++) {
 				wHiddenOutput[i][j] = rand.nextDouble() - 0.5;
@@ -235,13 +338,30 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 		for (int i = 0; i < nInput; i++)
 			inputNeurons[i] = inputs[i];
 
-		/** hidden layer. */
+		/** (first) hidden layer. */
+		double[] first = hiddenLayerNeurons[0];
 		for (int j = 0; j < nHidden; j++) {
-			hiddenNeurons[j] = 0;
+			first[j] = 0;
 			if(!dropout || dropouts[j]){
 				for (int i = 0; i <= nInput; i++)
-					hiddenNeurons[j] += inputNeurons[i] * wInputHidden[i][j];
-				hiddenNeurons[j] = activationFunction(hiddenNeurons[j]);
+					first[j] += inputNeurons[i] * wInputHidden[i][j];
+				first[j] = activationFunction(first[j]);
+			}
+		}
+
+		/**
+		 * further hidden layers. only used for validation and testing, hence
+		 * no dropout.
+		 */
+		for (int l = 1; l < hiddenLayers; l++) {
+			double[] previous = hiddenLayerNeurons[l - 1];
+			double[] current = hiddenLayerNeurons[l];
+			double[][] w = wHiddenHidden[l - 1];
+			for (int j = 0; j < nHidden; j++) {
+				current[j] = 0;
+				for (int i = 0; i <= nHidden; i++)
+					current[j] += previous[i] * w[i][j];
+				current[j] = activationFunction(current[j]);
 			}
 		}
 
@@ -292,9 +412,11 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 			}
 		}
 
-		/** if using online learning update the weights immediately. */
-		if (!useBatch)
-			updateWeights();
+		/**
+		 * online learning, update the weights immediately. mini batches are
+		 * trained by the mini batch engine.
+		 */
+		updateWeights();
 	}
 
 	protected void updateWeights() {
@@ -305,6 +427,15 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 			}
 		}
 
+		for (int l = 0; l < hiddenLayers - 1; l++) {
+			for (int i = 0; i <= nHidden; i++) {
+				for (int j = 0; j < nHidden; j++) {
+					wHiddenHidden[l][i][j] += deltaHiddenHidden[l][i][j];
+					deltaHiddenHidden[l][i][j] *= momentum;
+				}
+			}
+		}
+
 		for (int j = 0; j <= nHidden; j++) {
 			for (int k = 0; k < nOutput; k++) {
 				wHiddenOutput[j][k] += deltaHiddenOutput[j][k];
@@ -340,26 +471,145 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 	
 	private void runTrainingEpoch() {
 		double mse = 0;
-		for (example = 0; example < (int) inp.length; example++) {	
+		for (example = 0; example < inp.rows(); example++) {	
 			if(dropout){
 				dropouts = new boolean[nHidden];
 				for(int i = 0; i < dropouts.length; i++)
 					dropouts[i] = this.rand.nextBoolean();
 			}
+			double[] target = tar.getRow(example, targetBuffer);
 			/** feed inputs through network and backpropagate errors. */
-			feedForward(inp[example]);
-			backpropagate(tar[example]);
+			feedForward(inp.getRow(example, inputBuffer));
+			backpropagate(target);
 
 			/** check all outputs from neural network against desired values. */
 			for (int k = 0; k < nOutput; k++)
-				mse += Math.pow((outputNeurons[k] - tar[example][k]), 2);
-			
-			if (useBatch
-					&& ((example + batchSize + 1) % batchSize == 0 || example == inp.length - 1))
-				updateWeights();
+				mse += Math.pow((outputNeurons[k] - target[k]), 2);
 		}		
 
-		trainingSetMSE = mse / (nOutput * inp.length);
+		trainingSetMSE = mse / (nOutput * inp.rows());
+	}
+
+	/**
+	 * Use the mini batch engine ({@link NeuralNetBatch}) instead of online
+	 * backpropagation.
+	 * 
+	 * @return
+	 */
+	protected boolean miniBatchEngine() {
+		return batchSize > 1 || hiddenLayers > 1 || trainInParallel;
+	}
+
+	/**
+	 * Training epoch of the mini batch engine. The examples are processed in
+	 * batches of batchSize examples (at least one per worker in data parallel
+	 * mode). If there are several workers, each worker accumulates the
+	 * gradients of a fixed, contiguous shard of the batch in its private
+	 * buffers. The buffers are reduced in a fixed order (pairwise tree) and
+	 * applied in a single weight update. Hence the results are reproducible
+	 * for a given seed and number of workers.
+	 * 
+	 * @param workers
+	 * @param service
+	 *            null if there is only one worker which accumulates the
+	 *            gradients directly in the deltas of this core.
+	 */
+	private void runMiniBatchEpoch(final List<NeuralNetBatch> workers,
+			ExecutorService service) {
+		double mse = 0;
+		int numWorkers = workers.size();
+		int batch = Math.max(batchSize, numWorkers);
+		final double[][][] deltas = deltaMatrices();
+		List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+		for (int start = 0; start < inp.rows(); start += batch) {
+			final int end = Math.min(inp.rows(), start + batch);
+			if (dropout)
+				drawBatchDropouts(end - start);
+			if (service == null)
+				mse += workers.get(0).accumulate(inp, tar, start, end,
+						batchDropouts, start, deltas);
+			else {
+				tasks.clear();
+				for (int w = 0; w < numWorkers; w++) {
+					final NeuralNetBatch worker = workers.get(w);
+					final int offset = start;
+					final int from = start + (int) ((long) w * (end - start) / numWorkers);
+					final int to = start + (int) ((long) (w + 1) * (end - start) / numWorkers);
+					tasks.add(new Callable<Double>() {
+						@Override
+						public Double call() {
+							return worker.accumulate(inp, tar, from, to,
+									batchDropouts, offset, worker.gradients);
+						}
+					});
+				}
+				mse += invokeAll(service, tasks);
+				reduce(workers, deltas);
+			}
+			example = end - 1;
+			updateWeights();
+		}
+
+		trainingSetMSE = mse / (nOutput * inp.rows());
+	}
+
+	/**
+	 * draw the dropout masks of the hidden layers for the next n examples.
+	 * 
+	 * @param n
+	 */
+	private void drawBatchDropouts(int n) {
+		if (batchDropouts == null || batchDropouts[0].length < n)
+			batchDropouts = new double[hiddenLayers][n][nHidden];
+		for (int i = 0; i < n; i++)
+			for (int l = 0; l < hiddenLayers; l++)
+				for (int j = 0; j < nHidden; j++)
+					batchDropouts[l][i][j] = rand.nextBoolean() ? 1.0 : 0.0;
+	}
+
+	private static double invokeAll(ExecutorService service,
+			List<Callable<Double>> tasks) {
+		double sum = 0.0;
+		try {
+			for (Future<Double> f : service.invokeAll(tasks))
+				sum += f.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		return sum;
+	}
+
+	/**
+	 * Sum up the gradient buffers of the workers in a fixed pairwise order and
+	 * add them to the deltas of this core. The buffers of the workers are
+	 * cleared.
+	 */
+	private static void reduce(List<NeuralNetBatch> workers,
+			double[][][] deltas) {
+		int n = workers.size();
+		for (int l = 0; l < deltas.length; l++) {
+			for (int stride = 1; stride < n; stride *= 2)
+				for (int w = 0; w + stride < n; w += 2 * stride) {
+					double[][] a = workers.get(w).gradients[l];
+					double[][] b = workers.get(w + stride).gradients[l];
+					for (int i = 0; i < a.length; i++)
+						for (int j = 0; j < a[i].length; j++) {
+							a[i][j] += b[i][j];
+							b[i][j] = 0.0;
+						}
+				}
+			double[][] sum = workers.get(0).gradients[l];
+			double[][] delta = deltas[l];
+			for (int i = 0; i < delta.length; i++)
+				for (int j = 0; j < delta[i].length; j++) {
+					delta[i][j] += sum[i][j];
+					sum[i][j] = 0.0;
+				}
+		}
 	}
 	
 	/**
@@ -370,7 +620,7 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 	 * @param targets
 	 * @return
 	 */
-	protected double getSetAccuracy(double[][] inputs, double[][] targets) {
+	protected double getSetAccuracy(DenseMatrix inputs, DenseMatrix targets) {
 		double mse = 0;
 		if(dropout){
 			dropouts = new boolean[nHidden];
@@ -378,21 +628,26 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 				dropouts[i] = true;
 			this.multiplyHiddenWeigths(0.5);
 		}
-		for (int tp = 0; tp < (int) inputs.length; tp++) {
-			feedForward(inputs[tp]);
+		for (int tp = 0; tp < inputs.rows(); tp++) {
+			feedForward(inputs.getRow(tp, inputBuffer));
+			double[] target = targets.getRow(tp, targetBuffer);
 
 			for (int k = 0; k < nOutput; k++)
 				if(softmax)
-					mse -= targets[tp][k] * Math.log(outputNeurons[k]);
+					mse -= target[k] * Math.log(outputNeurons[k]);
 				else
-					mse += Math.pow((outputNeurons[k] - targets[tp][k]), 2);
+					mse += Math.pow((outputNeurons[k] - target[k]), 2);
 		}
 		if(dropout)
 			multiplyHiddenWeigths(2.0);
-		return mse / (nOutput * inputs.length);
+		return mse / (nOutput * inputs.rows());
 	}
 
 	protected void multiplyHiddenWeigths(double factor) {
+		for (int l = 0; l < hiddenLayers - 1; l++)
+			for (int j = 0; j < nHidden; j++)
+				for (int k = 0; k < nHidden; k++)
+					wHiddenHidden[l][j][k] *= factor;
 		for (int j = 0; j < nHidden; j++)
 			for (int k = 0; k < wHiddenOutput[j].length; k++)
 				wHiddenOutput[j][k] *= factor;
@@ -405,37 +660,109 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 		
 		double minMSE = Double.POSITIVE_INFINITY;
 		
+		/** mini batch workers, one per processor for data parallel training. */
+		List<NeuralNetBatch> workers = null;
+		ExecutorService service = null;
+		if (miniBatchEngine()) {
+			workers = new ArrayList<NeuralNetBatch>();
+			if (trainInParallel) {
+				int numThreads = Runtime.getRuntime().availableProcessors();
+				for (int i = 0; i < numThreads; i++)
+					workers.add(new NeuralNetBatch(this, true));
+				service = Executors.newFixedThreadPool(numThreads);
+			} else
+				workers.add(new NeuralNetBatch(this, false));
+		}
+		AsyncValidator validator = asyncValidation ? createValidator() : null;
+		
 		stepsSinceMin = 0;
 		epoch = 0;			
 		while (epoch < maxEpochs && stepsSinceMin < maxEpochsAfterMin) {
-			runTrainingEpoch();
-			epoch_err = getSetAccuracy(inp_t, tar_t);
-			validationEpochs.put(epoch, Math.sqrt(epoch_err));
-			Gnuplot.plotOneDimensionalCurve(validationEpochs, "validationEpochs", this.baseDir + "validationEpochs");
+			if (workers == null)
+				runTrainingEpoch();
+			else
+				runMiniBatchEpoch(workers, service);
 			
 			Log.puts("Thread " + threadName + " Epoch :" + epoch);
 			Log.puts(" TrainSet " + (softmax ? "cross entropy: " : "MSE: ") + Math.sqrt(trainingSetMSE));
-			Log.puts(" TestSet " + (softmax ? "cross entropy: " : "MSE: ") + Math.sqrt(epoch_err));
 			
-			if(epoch_err < minMSE){
-				minMSE = epoch_err;
-				stepsSinceMin = 0;
-				this.save(baseDir + "maxnet.txt");
-			} else
-				stepsSinceMin++;
+			if (validator != null) {
+				/** result of the previous validation. */
+				epoch_err = validator.await();
+				if (!Double.isNaN(epoch_err)) {
+					if (epoch_err < minMSE) {
+						minMSE = epoch_err;
+						stepsSinceMin = 0;
+					} else
+						stepsSinceMin++;
+				}
+				if (stepsSinceMin < maxEpochsAfterMin)
+					validator.submit(epoch, weightMatrices());
+			} else {
+				epoch_err = getSetAccuracy(inp_t, tar_t);
+				validationEpochs.put(epoch, Math.sqrt(epoch_err));
+				Gnuplot.plotOneDimensionalCurve(validationEpochs, "validationEpochs", this.baseDir + "validationEpochs");
+				Log.puts(" TestSet " + (softmax ? "cross entropy: " : "MSE: ") + Math.sqrt(epoch_err));
+				
+				if(epoch_err < minMSE){
+					minMSE = epoch_err;
+					stepsSinceMin = 0;
+					this.save(baseDir + "maxnet.bin");
+				} else
+					stepsSinceMin++;
+			}
 			
 			epoch++;
 		}
-
-		
-		this.load(baseDir + "maxnet.txt");
+		if (service != null)
+			service.shutdown();
+
+		if (validator != null) {
+			validator.shutdown();
+			validator.restoreBest(weightMatrices());
+		} else
+			this.load(baseDir + "maxnet.bin");
 		/** release memory. */
+		this.batchDropouts = null;
 		this.inp = null;
 		this.tar = null;
 		this.inp_t = null;
 		this.tar_t = null;
 	}
 
+	/**
+	 * Asynchronous validation (see {@link AsyncValidator}). A separate core of
+	 * the same type with its own units evaluates snapshots of the weights on
+	 * the validation set, plots the validation curve and saves the best net.
+	 * 
+	 * @return
+	 */
+	private AsyncValidator createValidator() {
+		final NeuralNetCore<E> evaluator = parent.createNet(threadName + "-validation", 0);
+		evaluator.setParameters();
+		evaluator.randomWeightInitialization = false;
+		evaluator.init();
+		evaluator.setTestData(inp_t, tar_t);
+		return new AsyncValidator(weightMatrices(), new AsyncValidator.Validation() {
+			@Override
+			public double validate(int epoch, double[][][] weights) {
+				evaluator.setWeightMatrices(weights);
+				double error = evaluator.getSetAccuracy(evaluator.inp_t, evaluator.tar_t);
+				validationEpochs.put(epoch, Math.sqrt(error));
+				Gnuplot.plotOneDimensionalCurve(validationEpochs, "validationEpochs", baseDir + "validationEpochs");
+				Log.puts("Thread " + threadName + " Epoch :" + epoch + " TestSet "
+						+ (softmax ? "cross entropy: " : "MSE: ") + Math.sqrt(error));
+				return error;
+			}
+
+			@Override
+			public void improved(int epoch, double[][][] weights) {
+				evaluator.setWeightMatrices(weights);
+				evaluator.save(baseDir + "maxnet.bin");
+			}
+		});
+	}
+
 	public double getValidationError() {
 		return this.currentMin;
 	}
@@ -448,9 +775,9 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 			this.multiplyHiddenWeigths(0.5);
 		}
 		
-		for (int tp = 0; tp < inp_t.length; tp++) {
+		for (int tp = 0; tp < inp_t.rows(); tp++) {
 			/** feed inputs through network. */
-			feedForward(inp_t[tp]);
+			feedForward(inp_t.getRow(tp, inputBuffer));
 			/** store output. */
 			for(int k = 0; k < nOutput; k++)
 				testData.get(tp).putResult("resultNode" + k, testData.get(tp).getResult("resultNode" + k) + outputNeurons[k]);
@@ -460,13 +787,53 @@ public class NeuralNetCore<E extends Instance> implements Runnable {
 	}
 
 	public void setTrainingData(double[][] input, double[][] target) {
+		setTrainingData(new DenseMatrix(input), new DenseMatrix(target));
+	}
+
+	public void setTestData(double[][] input, double[][] target) {
+		setTestData(new DenseMatrix(input), new DenseMatrix(target));
+	}
+
+	/**
+	 * set the training data. The rows can be stored in single precision.
+	 * 
+	 * @param input
+	 * @param target
+	 */
+	public void setTrainingData(DenseMatrix input, DenseMatrix target) {
 		this.inp = input;
 		this.tar = target;
+		allocateBuffers(input, target);
 	}
 
-	public void setTestData(double[][] input, double[][] target) {
+	/**
+	 * set the validation / test data. The rows can be stored in single
+	 * precision.
+	 * 
+	 * @param input
+	 * @param target
+	 */
+	public void setTestData(DenseMatrix input, DenseMatrix target) {
 		this.inp_t = input;
 		this.tar_t = target;
+		allocateBuffers(input, target);
+	}
+
+	private void allocateBuffers(DenseMatrix input, DenseMatrix target) {
+		int inputLength = input.maxRowLength();
+		if (inputBuffer == null || inputBuffer.length < inputLength)
+			inputBuffer = new double[inputLength];
+		int targetLength = target.maxRowLength();
+		if (targetBuffer == null || targetBuffer.length < targetLength)
+			targetBuffer = new double[targetLength];
+	}
+
+	/**
+	 * train with synchronous data parallel mini batches on all processors.
+	 * See {@link #runMiniBatchEpoch(List, ExecutorService)}.
+	 */
+	public void trainInParallel() {
+		this.trainInParallel = true;
 	}
 
 	@Override
@@ -10,8 +10,10 @@ import java.util.concurrent.TimeUnit;
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Entry;
 import ch.eonum.pipeline.core.Features;
+import ch.eonum.pipeline.core.Folds;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.core.SparseInstance;
+import ch.eonum.pipeline.core.SparseMatrix;
 import ch.eonum.pipeline.util.FileUtil;
 import ch.eonum.pipeline.util.Log;
 
@@ -33,18 +35,14 @@ public class SparseNeuralNet<E extends SparseInstance> extends NeuralNet<E> {
 	}
 	
 	/**
-	 * Get a data set as an Entry[][] matrix. Each row represents an instance.
-	 * Each column represents a non zero feature.
+	 * Get a data set as a sparse matrix in the CSR format. Each row represents
+	 * an instance, each column a feature.
 	 * 
 	 * @param features
 	 * @return
 	 */
-	public Entry[][] asEntryArrayMatrix(DataSet<E> ds, Features features) {
-		Entry[][] matrix = new Entry[ds.size()][];
-		for (int i = 0; i < ds.size(); i++)
-			matrix[i] = ds.get(i).asEntryArray(features);
-		
-		return matrix;
+	public SparseMatrix asSparseMatrix(DataSet<E> ds, Features features) {
+		return SparseMatrix.fromInstances(ds, features);
 	}
 	
 	@Override
@@ -63,28 +61,25 @@ public class SparseNeuralNet<E extends SparseInstance> extends NeuralNet<E> {
 		int numNetsTotal = (int)this.getDoubleParameter("numNetsTotal");
 		int numNets = (int)this.getDoubleParameter("numNets");
 		
-		Entry[][][] trainInputs = null;
-		Entry[][] trainTargets = null;
+		/** k-fold cross validation: views of the whole training set. */
+		Folds folds = null;
+		SparseMatrix allInputs = null;
 		
-		Entry[][] input = null;
+		SparseMatrix input = null;
 		Entry[] target = null;
-		Entry[][] inputTest = null;
+		SparseMatrix inputTest = null;
 		Entry[] targetTest = null;
 		
 		if(numNetsTotal > 1){
-			trainInputs = new Entry[numNetsTotal][][];
-			trainTargets = new Entry[numNetsTotal][];
-			int i = 0;
-			List<DataSet<E>> sets = this.trainingDataSet.splitIntoNSubsets(numNetsTotal);
-			for (DataSet<E> each : sets) {
-				trainInputs[i] = asEntryArrayMatrix(each, features);
-				trainTargets[i] = getTargets(each);
-				i++;
-			}
+			folds = new Folds(this.trainingDataSet.size(), numNetsTotal);
+			allInputs = asSparseMatrix(this.trainingDataSet, features);
+			/** the targets are indexed by the rows of allInputs in all folds. */
+			target = getTargets(this.trainingDataSet);
+			targetTest = target;
 		} else {
-			input = asEntryArrayMatrix(this.trainingDataSet, features);
+			input = asSparseMatrix(this.trainingDataSet, features);
 			target = getTargets(this.trainingDataSet);
-			inputTest = asEntryArrayMatrix(this.testDataSet, features);
+			inputTest = asSparseMatrix(this.testDataSet, features);
 			targetTest = getTargets(this.testDataSet);
 		}
 		
@@ -95,22 +90,8 @@ public class SparseNeuralNet<E extends SparseInstance> extends NeuralNet<E> {
 		
 		for(int netNumber = 0; netNumber < numNetsTotal; netNumber++){			
 			if (numNetsTotal > 1) {
-				inputTest = trainInputs[netNumber];
-				targetTest = trainTargets[netNumber];
-				
-				int length = 0;
-				for (int i = 0; i < trainInputs.length; i++)
-					if(i != netNumber)
-						length += trainInputs[i].length;
-				input = new Entry[length][];
-				target = new Entry[length];
-				int k = 0;
-				for (int i = 0; i < trainInputs.length; i++)
-					if (i != netNumber)
-						for(int j = 0; j < trainInputs[i].length; j++){
-							input[k] = trainInputs[i][j];
-							target[k++] = trainTargets[i][j];
-						}
+				inputTest = allInputs.selectRows(folds.validation(netNumber));
+				input = allInputs.selectRows(folds.training(netNumber));
 			}
 			
 			ArrayList<SparseNeuralNetCore<E>> randomNets = new ArrayList<SparseNeuralNetCore<E>>();
@@ -177,7 +158,7 @@ public class SparseNeuralNet<E extends SparseInstance> extends NeuralNet<E> {
 
 	@Override
 	public DataSet<E> test(){
-		Entry[][] inputsTest = asEntryArrayMatrix(testDataSet, features);
+		SparseMatrix inputsTest = asSparseMatrix(testDataSet, features);
 		Entry[] targetsTest = getTargets(testDataSet);
 		
 		for(Instance each : this.testDataSet)
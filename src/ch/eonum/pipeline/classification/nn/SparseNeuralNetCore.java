@@ -6,6 +6,7 @@ import java.util.LinkedHashMap;
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Entry;
 import ch.eonum.pipeline.core.Instance;
+import ch.eonum.pipeline.core.SparseMatrix;
 import ch.eonum.pipeline.util.Gnuplot;
 import ch.eonum.pipeline.util.Log;
 
@@ -19,31 +20,53 @@ import ch.eonum.pipeline.util.Log;
  */
 public class SparseNeuralNetCore<E extends Instance> extends NeuralNetCore<E> {
 
-	private Entry[][] inp;
+	private SparseMatrix inp;
 	private Entry[] tar;
-	private Entry[][] inp_t;
+	private SparseMatrix inp_t;
 	private Entry[] tar_t;
 	
-	private Entry[] inputNeurons;
+	/**
+	 * current input: the non zero inputs are inputValue[inputStart, inputEnd)
+	 * with the indices inputIndex[inputStart, inputEnd). The bias unit
+	 * (index nInput, value -1) is not stored.
+	 */
+	private int[] inputIndex;
+	private double[] inputValue;
+	private int inputStart;
+	private int inputEnd;
 
 	public SparseNeuralNetCore(String threadName, String baseDir,
 			NeuralNet<E> parent, int seed, boolean dropout, boolean classify) {
 		super(threadName, baseDir, parent, seed, dropout, classify);
 	}
 
-	private void feedForward(Entry inputs[]) {
-		inputNeurons = new Entry[inputs.length + 1];
-		inputNeurons[inputs.length] = new Entry(nInput, -1);
-		
-		for (int i = 0; i < inputs.length; i++)
-			inputNeurons[i] = inputs[i];
+	@Override
+	protected void setParameters() {
+		super.setParameters();
+		if (hiddenLayers > 1) {
+			Log.warn("Sparse neural nets support only one hidden layer. Using one hidden layer.");
+			hiddenLayers = 1;
+		}
+		if (asyncValidation) {
+			Log.warn("Sparse neural nets do not support asynchronous validation. Validating synchronously.");
+			asyncValidation = false;
+		}
+	}
+
+	private void feedForward(SparseMatrix inputs, int row) {
+		inputIndex = inputs.colIdx;
+		inputValue = inputs.values;
+		row = inputs.row(row);
+		inputStart = inputs.rowPtr[row];
+		inputEnd = inputs.rowPtr[row + 1];
 
 		/** hidden layer. */
 		for (int j = 0; j < nHidden; j++) {
 			hiddenNeurons[j] = 0;
 			if(!dropout || dropouts[j]){
-				for (int i = 0; i < inputNeurons.length; i++)
-					hiddenNeurons[j] += inputNeurons[i].value * wInputHidden[inputNeurons[i].index][j];
+				for (int i = inputStart; i < inputEnd; i++)
+					hiddenNeurons[j] += inputValue[i] * wInputHidden[inputIndex[i]][j];
+				hiddenNeurons[j] -= wInputHidden[nInput][j];
 				hiddenNeurons[j] = activationFunction(hiddenNeurons[j]);
 			}
 		}
@@ -91,40 +114,44 @@ public class SparseNeuralNetCore<E extends Instance> extends NeuralNetCore<E> {
 		for (int j = 0; j < nHidden; j++) {
 			if(!dropout || dropouts[j]){
 				hiddenErrorGradients[j] = getHiddenErrorGradient(j);
-				for (int i = 0; i < inputNeurons.length; i++) {
-					deltaInputHidden[inputNeurons[i].index][j] += learningRate * inputNeurons[i].value
-								* (hiddenErrorGradients[j] + lambda * wInputHidden[inputNeurons[i].index][j]);
+				for (int i = inputStart; i < inputEnd; i++) {
+					deltaInputHidden[inputIndex[i]][j] += learningRate * inputValue[i]
+								* (hiddenErrorGradients[j] + lambda * wInputHidden[inputIndex[i]][j]);
 				}
+				/** bias */
+				deltaInputHidden[nInput][j] -= learningRate
+						* (hiddenErrorGradients[j] + lambda * wInputHidden[nInput][j]);
 			}
 		}
 
 		/** if using online learning update the weights immediately. */
-		if (!useBatch)
+		if (batchSize <= 1)
 			updateWeights();
 	}
 	
 	private void runTrainingEpoch() {
 		double mse = 0;
-		for (example = 0; example < (int) inp.length; example++) {	
+		for (example = 0; example < inp.rows(); example++) {	
 			if(dropout){
 				dropouts = new boolean[nHidden];
 				for(int i = 0; i < dropouts.length; i++)
 					dropouts[i] = this.rand.nextBoolean();
 			}
 
-			feedForward(inp[example]);
-			backpropagate(tar[example]);
+			Entry target = tar[inp.row(example)];
+			feedForward(inp, example);
+			backpropagate(target);
 
 
 			for (int k = 0; k < nOutput; k++)
-				mse += Math.pow((outputNeurons[k] - (tar[example].index == k ? tar[example].value : 0.0)), 2);
+				mse += Math.pow((outputNeurons[k] - (target.index == k ? target.value : 0.0)), 2);
 			
-			if (useBatch
-					&& ((example + batchSize + 1) % batchSize == 0 || example == inp.length - 1))
+			if (batchSize > 1
+					&& ((example + batchSize + 1) % batchSize == 0 || example == inp.rows() - 1))
 				updateWeights();
 		}		
 
-		trainingSetMSE = mse / (nOutput * inp.length);
+		trainingSetMSE = mse / (nOutput * inp.rows());
 	}
 	
 	/**
@@ -133,7 +160,7 @@ public class SparseNeuralNetCore<E extends Instance> extends NeuralNetCore<E> {
 	 * @param targets
 	 * @return
 	 */
-	private double getSetAccuracy(Entry[][] inputs, Entry[] targets) {
+	private double getSetAccuracy(SparseMatrix inputs, Entry[] targets) {
 		double mse = 0;
 		if(dropout){
 			dropouts = new boolean[nHidden];
@@ -141,18 +168,19 @@ public class SparseNeuralNetCore<E extends Instance> extends NeuralNetCore<E> {
 				dropouts[i] = true;
 			this.multiplyHiddenWeigths(0.5);
 		}
-		for (int tp = 0; tp < (int) inputs.length; tp++) {
-			feedForward(inputs[tp]);
+		for (int tp = 0; tp < inputs.rows(); tp++) {
+			feedForward(inputs, tp);
+			Entry target = targets[inputs.row(tp)];
 			if (softmax)
-				mse -= targets[tp].value
-						* Math.log(outputNeurons[targets[tp].index]);
+				mse -= target.value
+						* Math.log(outputNeurons[target.index]);
 			else
 				for (int k = 0; k < nOutput; k++)
-					mse += Math.pow((outputNeurons[k] - (targets[tp].index == k ? targets[tp].value : 0.0)), 2);
+					mse += Math.pow((outputNeurons[k] - (target.index == k ? target.value : 0.0)), 2);
 		}
 		if(dropout)
 			multiplyHiddenWeigths(2.0);
-		return mse / (nOutput * inputs.length);
+		return mse / (nOutput * inputs.rows());
 	}
 	
 	public void train() throws IOException {
@@ -177,7 +205,7 @@ public class SparseNeuralNetCore<E extends Instance> extends NeuralNetCore<E> {
 			if(epoch_err < minMSE){
 				minMSE = epoch_err;
 				stepsSinceMin = 0;
-				this.save(baseDir + "maxnet.txt");
+				this.save(baseDir + "maxnet.bin");
 			} else
 				stepsSinceMin++;
 			
@@ -185,7 +213,7 @@ public class SparseNeuralNetCore<E extends Instance> extends NeuralNetCore<E> {
 		}
 
 		
-		this.load(baseDir + "maxnet.txt");
+		this.load(baseDir + "maxnet.bin");
 
 		this.inp = null;
 		this.tar = null;
@@ -201,8 +229,8 @@ public class SparseNeuralNetCore<E extends Instance> extends NeuralNetCore<E> {
 			this.multiplyHiddenWeigths(0.5);
 		}
 		
-		for (int tp = 0; tp < inp_t.length; tp++) {
-			feedForward(inp_t[tp]);
+		for (int tp = 0; tp < inp_t.rows(); tp++) {
+			feedForward(inp_t, tp);
 			for(int k = 0; k < nOutput; k++)
 				testData.get(tp).putResult("resultNode" + k, testData.get(tp).getResult("resultNode" + k) + outputNeurons[k]);
 		}
@@ -210,12 +238,27 @@ public class SparseNeuralNetCore<E extends Instance> extends NeuralNetCore<E> {
 			this.multiplyHiddenWeigths(2.0);
 	}
 
-	public void setTrainingData(Entry[][] input, Entry[] target) {
+	/**
+	 * set the training data. target[r] is the target of the row r of the
+	 * matrix viewed by input (see {@link SparseMatrix#row(int)}), hence the
+	 * targets of all cross validation folds can be shared.
+	 * 
+	 * @param input
+	 * @param target
+	 */
+	public void setTrainingData(SparseMatrix input, Entry[] target) {
 		this.inp = input;
 		this.tar = target;
 	}
 
-	public void setTestData(Entry[][] input, Entry[] target) {
+	/**
+	 * set the validation / test data. The targets are indexed as in
+	 * {@link #setTrainingData(SparseMatrix, Entry[])}.
+	 * 
+	 * @param input
+	 * @param target
+	 */
+	public void setTestData(SparseMatrix input, Entry[] target) {
 		this.inp_t = input;
 		this.tar_t = target;
 	}
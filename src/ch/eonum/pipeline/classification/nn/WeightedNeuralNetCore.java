@@ -1,5 +1,6 @@
 package ch.eonum.pipeline.classification.nn;
 
+import ch.eonum.pipeline.core.DenseMatrix;
 import ch.eonum.pipeline.core.Instance;
 
 /**
@@ -27,6 +28,10 @@ public class WeightedNeuralNetCore<E extends Instance> extends NeuralNetCore<E>
 		for (int i = 0; i < deltaInputHidden.length; i++)
 			for (int j = 0; j < deltaInputHidden[i].length; j++)
 				deltaInputHidden[i][j] *= weights[example];
+		for (double[][] delta : deltaHiddenHidden)
+			for (int i = 0; i < delta.length; i++)
+				for (int j = 0; j < delta[i].length; j++)
+					delta[i][j] *= weights[example];
 		for (int i = 0; i < deltaHiddenOutput.length; i++)
 			for (int j = 0; j < deltaHiddenOutput[i].length; j++)
 				deltaHiddenOutput[i][j] *= weights[example];
@@ -35,14 +40,17 @@ public class WeightedNeuralNetCore<E extends Instance> extends NeuralNetCore<E>
 	}
 	
 	@Override
-	protected double getSetAccuracy(double[][] inputs, double[][] targets) {
+	protected double getSetAccuracy(DenseMatrix inputs, DenseMatrix targets) {
 		double mse = 0;
 		double weightSum = 0.;
-		for (int tp = 0; tp < (int) inputs.length; tp++) {
-			feedForward(inputs[tp]);
+		double[] inputBuffer = new double[inputs.maxRowLength()];
+		double[] targetBuffer = new double[nOutput];
+		for (int tp = 0; tp < inputs.rows(); tp++) {
+			feedForward(inputs.getRow(tp, inputBuffer));
+			double[] target = targets.getRow(tp, targetBuffer);
 			weightSum += weightsTest[tp];
 			for (int k = 0; k < nOutput; k++)
-				mse += Math.pow((outputNeurons[k] - targets[tp][k]), 2) * weightsTest[tp];
+				mse += Math.pow((outputNeurons[k] - target[k]), 2) * weightsTest[tp];
 		}
 		return mse / (nOutput * weightSum);
 	}
@@ -0,0 +1,213 @@
+package ch.eonum.pipeline.classification.tree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.eonum.pipeline.core.DataSet;
+import ch.eonum.pipeline.core.Features;
+import ch.eonum.pipeline.core.Instance;
+
+/**
+ * Pre-quantized training data for histogram based split finding. Each feature
+ * is quantized once into at most 256 bins and stored as a byte column. The
+ * bin boundaries are the split candidates of the feature: A value v is in bin
+ * b if exactly b thresholds are smaller or equal to v. Hence v >= threshold[b]
+ * if and only if bin(v) > b.
+ *
+ * If there are not more split candidates than bins, histogram based split
+ * finding yields exactly the same splits as the exact method.
+ *
+ * @author tim
+ *
+ */
+public class BinnedDataSet<E extends Instance> {
+	/** maximum number of bins per feature. */
+	public static final int MAX_BINS = 256;
+
+	/** training instances. the rows of the binned data. */
+	private final DataSet<E> data;
+	/** bins by feature and row. unsigned. */
+	private final byte[][] bins;
+	/** split thresholds by feature. */
+	private final double[][] thresholds;
+	/**
+	 * offset of the first bin of each feature in a histogram over all
+	 * features. the last entry is the total number of bins.
+	 */
+	private final int[] offsets;
+
+	/**
+	 * Quantize the provided data.
+	 *
+	 * @param data
+	 * @param features
+	 * @param tree
+	 *            decision tree providing the split candidates for each feature
+	 * @param maxBins
+	 *            maximum number of bins per feature. at most 256.
+	 */
+	public BinnedDataSet(DataSet<E> data, Features features,
+			DecisionTree<E> tree, int maxBins) {
+		this(data, features, splitsOf(tree, features), maxBins);
+	}
+
+	/**
+	 * Quantize the provided data.
+	 *
+	 * @param data
+	 * @param features
+	 * @param splitsPerFeature
+	 *            split candidates for each feature (@see
+	 *            DecisionTree#calculateSplitsPerFeature)
+	 * @param maxBins
+	 *            maximum number of bins per feature. at most 256.
+	 */
+	public BinnedDataSet(DataSet<E> data, Features features,
+			Map<String, List<Double>> splitsPerFeature, int maxBins) {
+		maxBins = Math.max(2, Math.min(MAX_BINS, maxBins));
+		this.data = data;
+		this.bins = new byte[features.size()][];
+		this.thresholds = new double[features.size()][];
+		this.offsets = new int[features.size() + 1];
+		for (int f = 0; f < features.size(); f++) {
+			String feature = features.getFeatureByIndex(f);
+			thresholds[f] = selectThresholds(
+					splitsPerFeature.get(feature), maxBins);
+			offsets[f + 1] = offsets[f] + thresholds[f].length + 1;
+			bins[f] = new byte[data.size()];
+			double[] column = data.column(feature);
+			for (int r = 0; r < column.length; r++)
+				bins[f][r] = (byte) bin(thresholds[f], column[r]);
+		}
+	}
+
+	private static Map<String, List<Double>> splitsOf(DecisionTree<?> tree,
+			Features features) {
+		Map<String, List<Double>> splits = new HashMap<String, List<Double>>();
+		for (int f = 0; f < features.size(); f++) {
+			String feature = features.getFeatureByIndex(f);
+			splits.put(feature, tree.getSplitsForFeature(feature));
+		}
+		return splits;
+	}
+
+	/**
+	 * Reduce the split candidates to at most maxBins - 1 evenly spaced
+	 * thresholds.
+	 */
+	private static double[] selectThresholds(List<Double> splits, int maxBins) {
+		if (splits == null)
+			return new double[0];
+		int n = Math.min(splits.size(), maxBins - 1);
+		double[] t = new double[n];
+		for (int i = 0; i < n; i++)
+			t[i] = n == splits.size() ? splits.get(i) : splits
+					.get((int) ((long) (i + 1) * splits.size() / (n + 1)));
+		return t;
+	}
+
+	/**
+	 * number of thresholds smaller or equal to value. NaN (missing values)
+	 * is in the lowest bin, hence it is on the < side of every split, as
+	 * in the predictions (NaN >= threshold is false).
+	 */
+	private static int bin(double[] thresholds, double value) {
+		if (Double.isNaN(value))
+			return 0;
+		int pos = Arrays.binarySearch(thresholds, value);
+		return pos >= 0 ? pos + 1 : -pos - 1;
+	}
+
+	/**
+	 * Get the bin of feature f in row r.
+	 *
+	 * @param f
+	 *            feature index
+	 * @param r
+	 *            row
+	 * @return
+	 */
+	public int getBin(int f, int r) {
+		return bins[f][r] & 0xFF;
+	}
+
+	/**
+	 * Get the bin column of feature f.
+	 *
+	 * @param f
+	 * @return
+	 */
+	byte[] getBins(int f) {
+		return bins[f];
+	}
+
+	/**
+	 * Get the split value between bin b and bin b + 1 of feature f.
+	 *
+	 * @param f
+	 * @param b
+	 * @return
+	 */
+	public double getThreshold(int f, int b) {
+		return thresholds[f][b];
+	}
+
+	/**
+	 * Number of bins of feature f.
+	 *
+	 * @param f
+	 * @return
+	 */
+	public int numBins(int f) {
+		return thresholds[f].length + 1;
+	}
+
+	/**
+	 * Offset of the first bin of feature f in a histogram over all features.
+	 *
+	 * @param f
+	 * @return
+	 */
+	public int offset(int f) {
+		return offsets[f];
+	}
+
+	/**
+	 * Total number of bins over all features.
+	 *
+	 * @return
+	 */
+	public int totalBins() {
+		return offsets[offsets.length - 1];
+	}
+
+	/**
+	 * Number of features.
+	 *
+	 * @return
+	 */
+	public int numFeatures() {
+		return bins.length;
+	}
+
+	/**
+	 * Number of rows.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * Get the instance in row r.
+	 *
+	 * @param r
+	 * @return
+	 */
+	public E get(int r) {
+		return data.get(r);
+	}
+}
@@ -9,12 +9,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import ch.eonum.pipeline.classification.Classifier;
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.util.Log;
+import ch.eonum.pipeline.util.QuantileSketch;
 import ch.eonum.pipeline.util.json.JSON;
 
 /**
@@ -28,7 +32,10 @@ public class DecisionTree<E extends Instance> extends Classifier<E> implements R
 	
 	static {
 		PARAMETERS.put("k", "percentage of features which are taken into account at each split node [0,1] (default 1.0)");
+		PARAMETERS.put("maxBins", "maximum number of bins per feature for histogram based split finding (at most 256). 0: exact split finding (default 0.0)");
 		PARAMETERS.put("maxDepth", "maximum depth of the tree (default 100.0)");
+		PARAMETERS.put("maxSplits", "maximum number of split candidates per feature. approximated by quantiles if > 0. 0: all distinct values (default 0.0)");
+		PARAMETERS.put("minParallelSize", "minimum number of training instances in a node for parallel training of its subtrees and split search. 0: sequential training (default 5000.0)");
 		PARAMETERS.put("minSize", "minimum number of training instances within one terminal node (default 5.0)");
 		PARAMETERS.put("tolerance", "tolerance range for distinct values (default 0.01)");
 	}
@@ -39,13 +46,25 @@ public class DecisionTree<E extends Instance> extends Classifier<E> implements R
 	private Map<String, List<Double>> splitsPerFeature;
 	/** tree number when used in an ensemble (random forest). */
 	private int treeNumber;
+	/** multiplicity of each training instance. null: each instance once. */
+	private int[] counts;
+	/** compiled tree. null if not yet compiled. */
+	private volatile FlatTree flatTree;
+	/**
+	 * quantized training set shared with other trees. null: the training set
+	 * is quantized by this tree.
+	 */
+	private BinnedDataSet<E> binned;
 
 
 	public DecisionTree(Features features, int seed) {
 		this.setFeatures(features);
 		this.setSupportedParameters(DecisionTree.PARAMETERS);
 		this.putParameter("k", 1.0);
+		this.putParameter("maxBins", 0.0);
 		this.putParameter("maxDepth", 100.0);
+		this.putParameter("maxSplits", 0.0);
+		this.putParameter("minParallelSize", 5000.0);
 		this.putParameter("minSize", 100.0);
 		this.putParameter("tolerance", 0.01);
 		this.rand = new Random(seed);
@@ -63,7 +82,8 @@ public class DecisionTree<E extends Instance> extends Classifier<E> implements R
 	public void train() {
 		if(this.splitsPerFeature == null)
 			splitsPerFeature = calculateSplitsPerFeature(features,
-					trainingDataSet, this.getDoubleParameter("tolerance"));
+					trainingDataSet, this.getDoubleParameter("tolerance"),
+					(int) this.getDoubleParameter("maxSplits"));
 		
 		if(this.classes == null){
 			this.classes = new Features();
@@ -72,8 +92,38 @@ public class DecisionTree<E extends Instance> extends Classifier<E> implements R
 				this.classes.addFeature(className);
 			this.classes.recalculateIndex();
 		}
-		this.root = createSplitNode();
-		root.train();
+		this.flatTree = null;
+		int maxBins = (int) this.getDoubleParameter("maxBins");
+		if (maxBins > 0) {
+			this.root = createSplitNode(null);
+			BinnedDataSet<E> binned = this.binned != null ? this.binned
+					: new BinnedDataSet<E>(trainingDataSet, features, this,
+							maxBins);
+			/** not retained by the trained tree. */
+			this.binned = null;
+			int w = root.statsWidth();
+			double[] rowStats = new double[binned.size() * w];
+			int numRows = 0;
+			for (int r = 0; r < binned.size(); r++) {
+				int count = counts == null ? 1 : counts[r];
+				if (count == 0)
+					continue;
+				root.addStats(rowStats, r * w, binned.get(r));
+				for (int i = r * w; i < (r + 1) * w; i++)
+					rowStats[i] *= count;
+				numRows++;
+			}
+			int[] rows = new int[numRows];
+			numRows = 0;
+			for (int r = 0; r < binned.size(); r++)
+				if (counts == null || counts[r] > 0)
+					rows[numRows++] = r;
+			root.trainBinned(binned, rowStats, rows, null);
+		} else {
+			this.root = createSplitNode(counts == null ? trainingDataSet
+					: repeat(trainingDataSet, counts));
+			root.train();
+		}
 		
 		Log.puts(((treeNumber != -1) ? "== Tree " + treeNumber + " ==\n": "") + root);
 	}
@@ -97,36 +147,206 @@ public class DecisionTree<E extends Instance> extends Classifier<E> implements R
 		return dbo;
 	}
 	
-	protected SplitNode<E> createSplitNode() {
-		return new SplitNode<E>(this, 1, this.trainingDataSet);
+	/**
+	 * Set the training set together with the multiplicity of each instance,
+	 * e.g. the counts of a bootstrap sample. Histogram based training
+	 * consumes the counts directly, exact training repeats the instances
+	 * without copying them.
+	 * 
+	 * @param dataset
+	 * @param counts
+	 *            multiplicity of each instance. null: each instance once.
+	 */
+	public void setTrainingSet(DataSet<E> dataset, int[] counts) {
+		super.setTrainingSet(dataset);
+		if (counts != null && counts.length != dataset.size())
+			throw new IllegalArgumentException("Expected " + dataset.size()
+					+ " counts but got " + counts.length);
+		this.counts = counts;
+	}
+
+	@Override
+	public void setTrainingSet(DataSet<E> dataset) {
+		this.setTrainingSet(dataset, null);
+	}
+
+	/**
+	 * Set the quantized training set for histogram based training, e.g. to
+	 * quantize the training set only once for all trees of an ensemble. The
+	 * rows have to be the rows of the training set and the features the
+	 * features of this tree. The binned data is released after training.
+	 * 
+	 * @param binned
+	 */
+	public void setBinnedDataSet(BinnedDataSet<E> binned) {
+		this.binned = binned;
+	}
+
+	/**
+	 * Add each instance as many times as given by its count.
+	 */
+	private static <T extends Instance> DataSet<T> repeat(DataSet<T> data,
+			int[] counts) {
+		DataSet<T> repeated = new DataSet<T>();
+		for (int r = 0; r < data.size(); r++)
+			for (int i = 0; i < counts[r]; i++)
+				repeated.addInstance(data.get(r));
+		return repeated;
+	}
+
+	protected SplitNode<E> createSplitNode(DataSet<E> trainSet) {
+		return new SplitNode<E>(this, 1, trainSet);
 	}
 
 	public static Map<String, List<Double>> calculateSplitsPerFeature(
 			Features features, DataSet<? extends Instance> data,
 			double tolerance) {
-		Map<String, List<Double>> splitsPerFeature  = new HashMap<String, List<Double>>();
-		for(int f = 0; f < features.size(); f++){
-			String feature = features.getFeatureByIndex(f);
-			List<Double> distincts = data.distinct(feature, tolerance);
-			List<Double> splits = new ArrayList<Double>();
-			Collections.sort(distincts);
-			for(int d = 0; d < distincts.size() - 1; d++)
-				splits.add(distincts.get(d)
-						+ (distincts.get(d + 1) - distincts.get(d)) / 2.0);
-			Log.puts(feature + " splits: " + splits);
-			splitsPerFeature.put(feature, splits);
+		return calculateSplitsPerFeature(features, data, tolerance, 0);
+	}
+
+	/**
+	 * Calculate the split candidates for each feature in parallel. The split
+	 * candidates are the midpoints between adjacent distinct values.
+	 * 
+	 * @param features
+	 * @param data
+	 * @param tolerance
+	 *            tolerance range for distinct values
+	 * @param maxSplits
+	 *            maximum number of split candidates per feature. If > 0, the
+	 *            distinct values are approximated by quantiles using a
+	 *            streaming quantile sketch. 0: all distinct values.
+	 * @return
+	 */
+	public static Map<String, List<Double>> calculateSplitsPerFeature(
+			final Features features, final DataSet<? extends Instance> data,
+			final double tolerance, final int maxSplits) {
+		final List<List<Double>> splits = new ArrayList<List<Double>>(
+				Collections.nCopies(features.size(), (List<Double>) null));
+		ExecutorService service = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(Runtime.getRuntime().availableProcessors(),
+						features.size())));
+		for (int f = 0; f < features.size(); f++) {
+			final int index = f;
+			service.submit(new Runnable() {
+				@Override
+				public void run() {
+					String feature = features.getFeatureByIndex(index);
+					List<Double> s = calculateSplits(feature, data, tolerance,
+							maxSplits);
+					Log.puts(feature + " splits: " + s);
+					splits.set(index, s);
+				}
+			});
+		}
+		service.shutdown();
+		try {
+			service.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
 		}
+
+		Map<String, List<Double>> splitsPerFeature = new HashMap<String, List<Double>>();
+		for (int f = 0; f < features.size(); f++)
+			splitsPerFeature.put(features.getFeatureByIndex(f), splits.get(f));
 		return splitsPerFeature;
 	}
 
+	/**
+	 * Calculate the split candidates of one feature.
+	 * 
+	 * @see #calculateSplitsPerFeature(Features, DataSet, double, int)
+	 */
+	public static List<Double> calculateSplits(String feature,
+			DataSet<? extends Instance> data, double tolerance, int maxSplits) {
+		List<Double> distincts;
+		if (maxSplits > 0) {
+			QuantileSketch sketch = new QuantileSketch(
+					Math.min(0.25, 1.0 / (4.0 * maxSplits)));
+			for (Instance each : data)
+				sketch.insert(each.get(feature));
+			double[] quantiles = new double[sketch.count() == 0 ? 0
+					: maxSplits + 1];
+			for (int q = 0; q < quantiles.length; q++)
+				quantiles[q] = sketch.query(q / (double) maxSplits);
+			distincts = DataSet.distinctValues(quantiles, tolerance);
+		} else
+			distincts = data.distinct(feature, tolerance);
+		List<Double> splits = new ArrayList<Double>();
+		for (int d = 0; d < distincts.size() - 1; d++)
+			splits.add(distincts.get(d)
+					+ (distincts.get(d + 1) - distincts.get(d)) / 2.0);
+		return splits;
+	}
+
 	@Override
 	public DataSet<E> test() {
-		for(Instance each : testDataSet){
-			root.test(each);
-		}
+		FlatTree tree = getFlatTree();
+		for(Instance each : testDataSet)
+			putPrediction(each, tree.predict(each));
 		return this.testDataSet;
 	}
 
+	@Override
+	public boolean supportsResults() {
+		return true;
+	}
+
+	/**
+	 * Scored with the compiled tree.
+	 */
+	@Override
+	public double[] results(List<? extends E> instances) {
+		FlatTree tree = getFlatTree();
+		double[] results = new double[instances.size()];
+		for (int i = 0; i < results.length; i++)
+			results[i] = tree.predict(instances.get(i));
+		return results;
+	}
+
+	/**
+	 * Store the prediction of the compiled tree in an instance.
+	 * 
+	 * @param each
+	 * @param value
+	 *            value of the terminal node (@see {@link FlatTree})
+	 */
+	protected void putPrediction(Instance each, double value) {
+		each.putResult("result", value);
+	}
+
+	/**
+	 * Predict dense rows. The columns of the rows have to be in the order of
+	 * the features of this tree.
+	 * 
+	 * @param rows
+	 * @return predicted values (@see {@link FlatTree})
+	 */
+	public double[] predict(double[][] rows) {
+		return getFlatTree().predict(rows);
+	}
+
+	/**
+	 * Get the compiled representation of this tree. The tree is compiled
+	 * with the features of this tree.
+	 * 
+	 * @return
+	 */
+	public FlatTree getFlatTree() {
+		FlatTree tree = flatTree;
+		if (tree == null)
+			flatTree = tree = FlatTree.compile(root, features);
+		return tree;
+	}
+
+	/**
+	 * Discard the compiled tree after the nodes have been modified.
+	 */
+	protected void invalidateFlatTree() {
+		this.flatTree = null;
+	}
+
 	public synchronized Random getRandom() {
 		return new Random(rand.nextInt(1000));
 	}
@@ -151,10 +371,11 @@ public class DecisionTree<E extends Instance> extends Classifier<E> implements R
 		super.load(fileName);
 		Map<String, Object> tree = JSON.readJSON(fileName);
 		this.root = this.readNodeFromJSON((Map<String, Object>) tree.get("tree"));
+		this.flatTree = null;
 	}
 
 	SplitNode<E> readNodeFromJSON(Map<String, Object> json) {
-		SplitNode<E> node = this.createSplitNode();
+		SplitNode<E> node = this.createSplitNode(null);
 		node.loadFromJSON(this, json);		
 		return node;
 	}
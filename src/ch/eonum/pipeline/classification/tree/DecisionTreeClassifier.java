@@ -5,6 +5,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
+import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
 
@@ -35,8 +36,30 @@ public class DecisionTreeClassifier<E extends Instance> extends DecisionTree<E>
 	}
 	
 	@Override
-	protected SplitNode<E> createSplitNode() {
-		return new SplitNodeClassifier<E>(this, 1, this.trainingDataSet, classes);
+	protected SplitNode<E> createSplitNode(DataSet<E> trainSet) {
+		return new SplitNodeClassifier<E>(this, 1, trainSet, classes);
+	}
+
+	/**
+	 * The value of a terminal node is the index of the class.
+	 */
+	@Override
+	protected void putPrediction(Instance each, double value) {
+		each.label = classes.getFeatureByIndex((int) value);
+	}
+
+	/**
+	 * The predictions are stored as labels.
+	 */
+	@Override
+	public boolean supportsResults() {
+		return false;
+	}
+
+	@Override
+	public double[] results(List<? extends E> instances) {
+		throw new UnsupportedOperationException(
+				"The predictions of a classification tree are labels");
 	}
 
 	/**
@@ -44,5 +67,6 @@ public class DecisionTreeClassifier<E extends Instance> extends DecisionTree<E>
 	 */
 	public void prune() {
 		this.getRoot().prune(new HashSet<Object>());
+		this.invalidateFlatTree();
 	}
 }
@@ -0,0 +1,189 @@
+package ch.eonum.pipeline.classification.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Batch inference engine for an ensemble of compiled trees. Rows are scored
+ * in blocks: All trees are evaluated on one block of rows before moving on to
+ * the next block, hence the nodes of a tree stay in the cache while a block
+ * is scored. Blocks are distributed over all available processors.
+ *
+ * @author tim
+ *
+ */
+public class FlatForest {
+	/** number of rows per block. */
+	private static final int BLOCK_SIZE = 64;
+	/** minimum number of blocks for multithreaded scoring. */
+	private static final int MIN_PARALLEL_BLOCKS = 4;
+
+	private final FlatTree[] trees;
+	private final double[] weights;
+
+	/**
+	 * @param trees
+	 * @param weights
+	 *            weight of each tree. null: all weights are 1.0
+	 */
+	public FlatForest(List<FlatTree> trees, double[] weights) {
+		this.trees = trees.toArray(new FlatTree[trees.size()]);
+		if (weights == null) {
+			weights = new double[this.trees.length];
+			Arrays.fill(weights, 1.0);
+		}
+		if (weights.length != this.trees.length)
+			throw new IllegalArgumentException("Expected " + this.trees.length
+					+ " weights but got " + weights.length);
+		this.weights = weights;
+	}
+
+	/**
+	 * Number of trees.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return trees.length;
+	}
+
+	/**
+	 * Get a tree.
+	 *
+	 * @param t
+	 * @return
+	 */
+	public FlatTree getTree(int t) {
+		return trees[t];
+	}
+
+	/**
+	 * Weighted sum of the predictions of all trees.
+	 *
+	 * @param rows
+	 * @return
+	 */
+	public double[] sum(final double[][] rows) {
+		final double[] sums = new double[rows.length];
+		forEachBlock(rows.length, new Block() {
+			@Override
+			public void score(int from, int to) {
+				for (int t = 0; t < trees.length; t++) {
+					FlatTree tree = trees[t];
+					double w = weights[t];
+					for (int r = from; r < to; r++)
+						sums[r] += w * tree.predict(rows[r]);
+				}
+			}
+		});
+		return sums;
+	}
+
+	/**
+	 * Weighted average of the predictions of all trees.
+	 *
+	 * @param rows
+	 * @param skip
+	 *            rows to be skipped by each tree (e.g. the rows a tree has
+	 *            been trained with). null: all trees predict all rows.
+	 * @return averages. NaN for rows skipped by all trees.
+	 */
+	public double[] average(final double[][] rows, final BitSet[] skip) {
+		final double[] sums = new double[rows.length];
+		final double[] norms = new double[rows.length];
+		forEachBlock(rows.length, new Block() {
+			@Override
+			public void score(int from, int to) {
+				for (int t = 0; t < trees.length; t++) {
+					FlatTree tree = trees[t];
+					double w = weights[t];
+					for (int r = from; r < to; r++)
+						if (skip == null || !skip[t].get(r)) {
+							sums[r] += w * tree.predict(rows[r]);
+							norms[r] += w;
+						}
+				}
+				for (int r = from; r < to; r++)
+					sums[r] = norms[r] == 0.0 ? Double.NaN : sums[r] / norms[r];
+			}
+		});
+		return sums;
+	}
+
+	/**
+	 * Weighted fraction of trees voting for each class. The trees have to be
+	 * classification trees.
+	 *
+	 * @param rows
+	 * @param numClasses
+	 * @param skip
+	 *            rows to be skipped by each tree. null: all trees predict all
+	 *            rows.
+	 * @return class distribution by row. null for rows skipped by all trees.
+	 */
+	public double[][] vote(final double[][] rows, final int numClasses,
+			final BitSet[] skip) {
+		final double[][] votes = new double[rows.length][];
+		forEachBlock(rows.length, new Block() {
+			@Override
+			public void score(int from, int to) {
+				double[] norms = new double[to - from];
+				for (int r = from; r < to; r++)
+					votes[r] = new double[numClasses];
+				for (int t = 0; t < trees.length; t++) {
+					FlatTree tree = trees[t];
+					double w = weights[t];
+					for (int r = from; r < to; r++)
+						if (skip == null || !skip[t].get(r)) {
+							votes[r][(int) tree.predict(rows[r])] += w;
+							norms[r - from] += w;
+						}
+				}
+				for (int r = from; r < to; r++) {
+					if (norms[r - from] == 0.0)
+						votes[r] = null;
+					else
+						for (int c = 0; c < numClasses; c++)
+							votes[r][c] /= norms[r - from];
+				}
+			}
+		});
+		return votes;
+	}
+
+	/** scoring of the rows [from, to). */
+	private interface Block {
+		void score(int from, int to);
+	}
+
+	/**
+	 * Score all blocks. Contiguous ranges of blocks are scored in parallel in
+	 * the fork/join pool shared with the tree training.
+	 */
+	private void forEachBlock(final int numRows, final Block block) {
+		final int numBlocks = (numRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int numThreads = Math.min(Runtime.getRuntime().availableProcessors(),
+				numBlocks / MIN_PARALLEL_BLOCKS);
+		if (numThreads <= 1) {
+			for (int from = 0; from < numRows; from += BLOCK_SIZE)
+				block.score(from, Math.min(numRows, from + BLOCK_SIZE));
+			return;
+		}
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int t = 0; t < numThreads; t++) {
+			final int firstBlock = (int) ((long) t * numBlocks / numThreads);
+			final int lastBlock = (int) ((long) (t + 1) * numBlocks / numThreads);
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					for (int b = firstBlock; b < lastBlock; b++)
+						block.score(b * BLOCK_SIZE,
+								Math.min(numRows, (b + 1) * BLOCK_SIZE));
+				}
+			});
+		}
+		TreeNode.invokeAll(tasks);
+	}
+}
@@ -0,0 +1,194 @@
+package ch.eonum.pipeline.classification.tree;
+
+import ch.eonum.pipeline.core.Features;
+import ch.eonum.pipeline.core.Instance;
+
+/**
+ * Compiled inference representation of a decision tree. The nodes are stored
+ * in pre-order in parallel arrays with integer feature indices. A terminal
+ * node has feature index -1. Instances are passed as dense rows in the order
+ * of the features the tree has been compiled with.
+ *
+ * The value of a terminal node is the average outcome for regression trees
+ * and the index of the class for classification trees.
+ *
+ * @author tim
+ *
+ */
+public class FlatTree {
+	/** split feature index by node. -1 for terminal nodes. */
+	final int[] feature;
+	/** split value by node. */
+	final double[] threshold;
+	/** left child (>= threshold) by node. */
+	final int[] left;
+	/** right child (< threshold) by node. */
+	final int[] right;
+	/** value by node. */
+	final double[] value;
+	/** feature names, used for predictions on instances. */
+	private final String[] featureNames;
+
+	private FlatTree(int size, Features features) {
+		this.feature = new int[size];
+		this.threshold = new double[size];
+		this.left = new int[size];
+		this.right = new int[size];
+		this.value = new double[size];
+		this.featureNames = new String[features.size()];
+		for (int f = 0; f < features.size(); f++)
+			featureNames[f] = features.getFeatureByIndex(f);
+	}
+
+	/**
+	 * Compile a tree.
+	 *
+	 * @param root
+	 *            root node of the tree
+	 * @param features
+	 *            features defining the column order of the rows
+	 * @return
+	 */
+	public static FlatTree compile(TreeNode<?> root, Features features) {
+		FlatTree tree = new FlatTree(count(root), features);
+		tree.fill(root, 0, features);
+		return tree;
+	}
+
+	private static int count(TreeNode<?> node) {
+		if (node.isTerminal())
+			return 1;
+		return 1 + count(node.getLeft()) + count(node.getRight());
+	}
+
+	/**
+	 * Store the subtree of node starting at index n.
+	 *
+	 * @return the next free index
+	 */
+	private int fill(TreeNode<?> node, int n, Features features) {
+		value[n] = node.leafValue();
+		if (node.isTerminal()) {
+			feature[n] = -1;
+			return n + 1;
+		}
+		feature[n] = features.indexOf(node.getSplitVariable());
+		if (feature[n] == -1)
+			throw new IllegalArgumentException("Split feature "
+					+ node.getSplitVariable() + " is not part of the features");
+		threshold[n] = node.getSplitValue();
+		left[n] = n + 1;
+		right[n] = fill(node.getLeft(), n + 1, features);
+		return fill(node.getRight(), right[n], features);
+	}
+
+	/**
+	 * Number of nodes.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return feature.length;
+	}
+
+	/**
+	 * Predict a dense row.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public double predict(double[] row) {
+		return value[leaf(row)];
+	}
+
+	/**
+	 * Get the terminal node of a dense row.
+	 *
+	 * @param row
+	 * @return
+	 */
+	int leaf(double[] row) {
+		int n = 0;
+		while (feature[n] != -1)
+			n = row[feature[n]] >= threshold[n] ? left[n] : right[n];
+		return n;
+	}
+
+	/**
+	 * Get the terminal node of a row of quantized data. The features of the
+	 * binned data have to be the features of this tree, and the thresholds
+	 * of this tree have to be bin boundaries.
+	 *
+	 * @param binned
+	 * @param r
+	 * @return
+	 */
+	int leaf(BinnedDataSet<?> binned, int r) {
+		int n = 0;
+		while (feature[n] != -1) {
+			int bin = binned.getBin(feature[n], r);
+			/** value >= threshold if the lower bin boundary is >= threshold. */
+			n = bin > 0 && binned.getThreshold(feature[n], bin - 1) >= threshold[n] ? left[n]
+					: right[n];
+		}
+		return n;
+	}
+
+	/**
+	 * Set the value of a node.
+	 *
+	 * @param n
+	 * @param v
+	 */
+	void setValue(int n, double v) {
+		value[n] = v;
+	}
+
+	/**
+	 * Predict a dense row with the value of one feature replaced.
+	 *
+	 * @param row
+	 * @param replacedFeature
+	 *            index of the replaced feature
+	 * @param replacement
+	 *            value used instead of row[replacedFeature]
+	 * @return
+	 */
+	double predict(double[] row, int replacedFeature, double replacement) {
+		int n = 0;
+		while (feature[n] != -1) {
+			double v = feature[n] == replacedFeature ? replacement
+					: row[feature[n]];
+			n = v >= threshold[n] ? left[n] : right[n];
+		}
+		return value[n];
+	}
+
+	/**
+	 * Predict an instance. Only the split features on the path are looked
+	 * up.
+	 *
+	 * @param instance
+	 * @return
+	 */
+	public double predict(Instance instance) {
+		int n = 0;
+		while (feature[n] != -1)
+			n = instance.get(featureNames[feature[n]]) >= threshold[n] ? left[n]
+					: right[n];
+		return value[n];
+	}
+
+	/**
+	 * Predict dense rows.
+	 *
+	 * @param rows
+	 * @return
+	 */
+	public double[] predict(double[][] rows) {
+		double[] predictions = new double[rows.length];
+		for (int r = 0; r < rows.length; r++)
+			predictions[r] = predict(rows[r]);
+		return predictions;
+	}
+}
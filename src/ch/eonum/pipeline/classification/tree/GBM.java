@@ -3,6 +3,7 @@ package ch.eonum.pipeline.classification.tree;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -10,18 +11,25 @@ import java.util.Map;
 import java.util.Random;
 
 import ch.eonum.pipeline.classification.Classifier;
+import ch.eonum.pipeline.classification.meta.BootstrapSample;
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.evaluation.Evaluator;
-import ch.eonum.pipeline.util.FileUtil;
 import ch.eonum.pipeline.util.Gnuplot;
 import ch.eonum.pipeline.util.Log;
 
 /**
- * Gradient boosting machine for decision trees (regression). Similar to @see
+ * Gradient boosting machine for decision trees. Similar to @see
  * GradientBoosting but specialized on decision trees and hence more efficient.
  * 
+ * Targets, predictions, gradients and hessians are kept in arrays indexed by
+ * row. The training set is quantized once, and each tree is grown with
+ * histogram based split finding on the gradient statistics (@see
+ * NewtonSplitNode). The leaf values are Newton steps or, for the absolute and
+ * Huber loss, their analytic optimum (@see Loss). Training stops early if the
+ * loss on a held-out set does not improve for a number of iterations.
+ * 
  * @author tim
  * 
  */
@@ -30,20 +38,35 @@ public class GBM<E extends Instance> extends Classifier<E> {
 	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
 
 	static {
-		PARAMETERS.put("shrinkage", "shrink factor (default 1.0)");
+		PARAMETERS.put("shrinkage", "shrink factor / learning rate (default 1.0)");
 		PARAMETERS.put("m", "number of trees (default 10.0)");
 		PARAMETERS.put("k", "percentage of features which are taken into account at each split node [0,1] (default 0.333)");
 		PARAMETERS.put("f", "fraction of the bootstrap size, relative to the training set size (default 1.0)");
+		PARAMETERS.put("loss", "loss function: squared, absolute, huber, logistic or poisson (default squared)");
+		PARAMETERS.put("alpha", "quantile of the absolute residuals used as transition point of the huber loss (default 0.9)");
+		PARAMETERS.put("earlyStopping", "stop training if the loss on the validation set did not improve for this number of iterations. 0: no early stopping (default 0.0)");
+		PARAMETERS.put("validationFraction", "fraction of the training set held out for early stopping if no validation set is provided (default 0.1)");
+		PARAMETERS.put("maxBins", "maximum number of bins per feature [2,256]. GBM always uses histogram based split finding (default 256.0)");
 		PARAMETERS.put("maxDepth", "maximum depth of the tree (default 10.0)");
+		PARAMETERS.put("maxSplits", "maximum number of split candidates per feature. approximated by quantiles if > 0. 0: all distinct values (default 0.0)");
 		PARAMETERS.put("minSize", "minimum number of training instances within one terminal node (default 5.0)");
 		PARAMETERS.put("tolerance", "tolerance range for distinct values (default 0.01)");
 	}
 
-	/** decision trees. */
-	protected List<DecisionTree<E>> trees;
 	private Evaluator<E> evaluator;
-	private double[] gammas;
 	private Random rand;
+	/** held-out set for early stopping. null: hold out a part of the training set. */
+	private DataSet<E> validationDataSet;
+	/** loss function of the trained model. */
+	private Loss loss;
+	/** initial prediction (link scale). */
+	private double f0;
+	/** learning rate of the trained model. */
+	private double learningRate;
+	/** trees with their leaf values. */
+	private List<FlatTree> trees;
+	/** compiled trees weighted by the learning rate. null if not yet compiled. */
+	private volatile FlatForest flatForest;
 
 	public GBM(Features features, Evaluator<E> evaluator, int seed) {
 		this.evaluator = evaluator;
@@ -51,7 +74,13 @@ public class GBM<E extends Instance> extends Classifier<E> {
 		this.putParameter("shrinkage", 1.0);
 		this.putParameter("m", 10.0);
 		this.putParameter("k", 0.333);
+		this.putParameter("loss", "squared");
+		this.putParameter("alpha", 0.9);
+		this.putParameter("earlyStopping", 0.0);
+		this.putParameter("validationFraction", 0.1);
+		this.putParameter("maxBins", 256.0);
 		this.putParameter("maxDepth", 10.0);
+		this.putParameter("maxSplits", 0.0);
 		this.putParameter("minSize", 15.0);
 		this.putParameter("tolerance", 0.01);
 		this.putParameter("f", 1.0);
@@ -59,163 +88,267 @@ public class GBM<E extends Instance> extends Classifier<E> {
 		this.features = features;
 	}
 
+	/**
+	 * Set the held-out set for early stopping. The evaluator is applied on
+	 * this set after training.
+	 * 
+	 * @param validationDataSet
+	 */
+	public void setValidationSet(DataSet<E> validationDataSet) {
+		this.validationDataSet = validationDataSet;
+	}
+
 	@Override
 	public void train() {
-		Map<Instance, Double> originalOutcomes = saveOutcomes(this.trainingDataSet);
-		Map<Integer, Double> curve = new LinkedHashMap<Integer, Double>();
-		
-		
+		flatForest = null;
+		loss = Loss.create(this.getStringParameter("loss"),
+				this.getDoubleParameter("alpha"));
+		learningRate = this.getDoubleParameter("shrinkage");
+		int M = (int) this.getDoubleParameter("m");
+		int earlyStopping = (int) this.getDoubleParameter("earlyStopping");
+		int n = trainingDataSet.size();
+		int maxBins = (int) this.getDoubleParameter("maxBins");
+		if (maxBins < 2 || maxBins > BinnedDataSet.MAX_BINS)
+			throw new IllegalArgumentException("maxBins has to be in [2, "
+					+ BinnedDataSet.MAX_BINS + "] but is " + maxBins
+					+ ". GBM has no exact split finding");
+
 		Map<String, List<Double>> splitsPerFeature = DecisionTree.calculateSplitsPerFeature(features,
-				trainingDataSet, this.getDoubleParameter("tolerance"));
-		
-		int M = (int)this.getDoubleParameter("m");
-		double shrinkage = this.getDoubleParameter("shrinkage");
-		trees = new ArrayList<DecisionTree<E>>();
-		for(int i = 0; i < M-1; i++){
-			DecisionTree<E> dt = new DecisionTree<E>(features, rand.nextInt(), splitsPerFeature, i);
-			dt.putParameter("k", this.getDoubleParameter("k"));
-			dt.putParameter("maxDepth", this.getDoubleParameter("maxDepth"));
-			dt.putParameter("minSize", this.getDoubleParameter("minSize"));
-			trees.add(dt);
+				trainingDataSet, this.getDoubleParameter("tolerance"),
+				(int) this.getDoubleParameter("maxSplits"));
+		BinnedDataSet<E> binned = new BinnedDataSet<E>(trainingDataSet,
+				features, splitsPerFeature, maxBins);
+
+		/** targets and held-out rows. */
+		double[] y = new double[n];
+		for (int r = 0; r < n; r++)
+			y[r] = trainingDataSet.get(r).outcome;
+		boolean[] heldOut = new boolean[n];
+		int numHeldOut = 0;
+		if (earlyStopping > 0 && validationDataSet == null) {
+			double fraction = this.getDoubleParameter("validationFraction");
+			for (int r = 0; r < n; r++)
+				if (rand.nextDouble() < fraction) {
+					heldOut[r] = true;
+					numHeldOut++;
+				}
 		}
-		
-		// F_0 average outcome
-		double avg = 0.0;
-		for (Instance each : trainingDataSet)
-			avg += each.outcome;
-		avg /= trainingDataSet.size();
-		for (Instance each : trainingDataSet)
-			each.putResult("result", avg);
-				
-		this.gammas = new double[M];
-		gammas[0] = avg;
-		// F_m minus 1
-		Map<Instance, Double> F_m1 = saveResults(this.trainingDataSet);
-		
+		int[] trainRows = new int[n - numHeldOut];
+		int[] validRows = new int[numHeldOut];
+		for (int r = 0, t = 0, v = 0; r < n; r++)
+			if (heldOut[r])
+				validRows[v++] = r;
+			else
+				trainRows[t++] = r;
+		double[][] validation = null;
+		double[] yv = null;
+		double[] fv = null;
+		if (validationDataSet != null) {
+			validation = validationDataSet.asDoubleArrayMatrix(features);
+			yv = new double[validation.length];
+			for (int i = 0; i < yv.length; i++)
+				yv[i] = validationDataSet.get(i).outcome;
+		}
+
+		f0 = loss.initialPrediction(y, trainRows);
+		double[] f = new double[n];
+		Arrays.fill(f, f0);
+		if (validation != null) {
+			fv = new double[validation.length];
+			Arrays.fill(fv, f0);
+		}
+		double[] g = new double[n];
+		double[] h = new double[n];
+		int[] leafOf = new int[n];
+		trees = new ArrayList<FlatTree>();
+		double bestLoss = Double.POSITIVE_INFINITY;
+		int bestNumTrees = 0;
+		Map<Integer, Double> curve = new LinkedHashMap<Integer, Double>();
+
 		PrintStream p;
 		try {
 			p = new PrintStream(this.getBaseDir() + "gradientBoosting.txt");
-			p.println("Gamma[0] = " + avg);
-
-			for (int m = 1; m < M; m++) {
-				DecisionTree<E> tree = trees.get(m-1);
-				
-				DataSet<E> trainSet = bootstrap(trainingDataSet);
-				DataSet<E> testSet = outOfBag(trainSet, trainingDataSet);
-				// calculate residuals and set outcome/target to residual
-				for (Instance each : trainingDataSet)
-					each.outcome = originalOutcomes.get(each) - F_m1.get(each);
-				
-				FileUtil.mkdir(baseDir + m + "/");
-				tree.setBaseDir(baseDir + m + "/");
-				tree.setTrainingSet(trainSet);
-				tree.train();
-				tree.setTestSet(trainingDataSet);
-				trainingDataSet = tree.test();
-				trainingDataSet.renameResults("result", "Fm");
-				
-				loadOutComes(this.trainingDataSet, originalOutcomes);
-
-				double maxGamma = 0.0;
-				double maxEval = Double.NEGATIVE_INFINITY;
-				for (int i = 0; i < 150; i++) {
-					double gamma = i * 0.01;
-					for (Instance each : testSet)
-						each.putResult("result",
-								each.getResult("Fm") * gamma + F_m1.get(each));
-					double eval = this.evaluator.evaluate(testSet);
-//					Log.puts("Gamma: " + gamma + " Eval: " + eval);
-					if (eval > maxEval) {
-						maxEval = eval;
-						maxGamma = gamma;
-					}
+		} catch (IOException e) {
+			e.printStackTrace();
+			p = null;
+		}
+		if (p != null)
+			p.println("F_0 = " + f0);
+
+		for (int m = 1; m < M; m++) {
+			loss.gradients(y, f, trainRows, g, h);
+
+			/** bootstrap sample of the training rows. */
+			int[] counts = Arrays.copyOf(new BootstrapSample(n,
+					(int) (this.getDoubleParameter("f") * n), rand).getCounts(), n);
+			int numRows = 0;
+			for (int r = 0; r < n; r++) {
+				if (heldOut[r])
+					counts[r] = 0;
+				if (counts[r] > 0)
+					numRows++;
+			}
+			int[] rows = new int[numRows];
+			double[] rowStats = new double[n * 3];
+			for (int r = 0, i = 0; r < n; r++)
+				if (counts[r] > 0) {
+					rows[i++] = r;
+					rowStats[3 * r] = counts[r];
+					rowStats[3 * r + 1] = counts[r] * h[r];
+					rowStats[3 * r + 2] = -counts[r] * g[r];
+				}
+
+			NewtonSplitNode<E> root = new NewtonSplitNode<E>(createTree(
+					splitsPerFeature, m), 1);
+			root.trainBinned(binned, rowStats, rows, null);
+			FlatTree tree = FlatTree.compile(root, features);
+
+			/** leaf values from the training rows of each leaf. */
+			for (int r = 0; r < n; r++)
+				leafOf[r] = tree.leaf(binned, r);
+			int[] start = new int[tree.size() + 1];
+			for (int r : rows)
+				start[leafOf[r] + 1]++;
+			for (int l = 0; l < tree.size(); l++)
+				start[l + 1] += start[l];
+			int[] sorted = new int[rows.length];
+			int[] pos = Arrays.copyOf(start, tree.size());
+			for (int r : rows)
+				sorted[pos[leafOf[r]]++] = r;
+			for (int l = 0; l < tree.size(); l++)
+				if (tree.feature[l] == -1 && start[l + 1] > start[l])
+					tree.setValue(l, loss.leafValue(sorted, start[l],
+							start[l + 1], counts, y, f, g, h));
+
+			for (int r = 0; r < n; r++)
+				f[r] += learningRate * tree.value[leafOf[r]];
+			trees.add(tree);
+
+			double trainLoss = meanLoss(y, f, trainRows);
+			double validLoss = Double.NaN;
+			if (validation != null) {
+				for (int i = 0; i < validation.length; i++)
+					fv[i] += learningRate * tree.predict(validation[i]);
+				validLoss = 0.0;
+				for (int i = 0; i < validation.length; i++)
+					validLoss += loss.loss(yv[i], fv[i]);
+				validLoss /= validation.length;
+			} else if (validRows.length > 0)
+				validLoss = meanLoss(y, f, validRows);
+
+			Log.puts("Iteration " + m + " training loss: " + trainLoss
+					+ " validation loss: " + validLoss);
+			if (p != null)
+				p.println("Iteration " + m + " training loss: " + trainLoss
+						+ " validation loss: " + validLoss);
+			curve.put(m, Double.isNaN(validLoss) ? trainLoss : validLoss);
+
+			if (earlyStopping > 0 && !Double.isNaN(validLoss)) {
+				if (validLoss < bestLoss) {
+					bestLoss = validLoss;
+					bestNumTrees = trees.size();
+				} else if (trees.size() - bestNumTrees >= earlyStopping) {
+					Log.puts("Early stopping after iteration " + m
+							+ ". Best number of trees: " + bestNumTrees);
+					break;
 				}
-				Log.puts("Iteration " + m + " Maximum Gamma: " + maxGamma
-						+ " Eval: " + maxEval);
-
-				gammas[m] = maxGamma * shrinkage;
-				for (Instance each : trainingDataSet)
-					each.putResult("result", (each.getResult("Fm"))
-							* gammas[m] + F_m1.get(each));
-				
-				F_m1 = saveResults(trainingDataSet);
-
-				double eval = evaluator.evaluate(testSet);
-
-				p.println("Iteration " + m + " Maximum Gamma: " + maxGamma
-						+ " Eval: " + maxEval + " max eval shrinked: " + eval);
-				curve.put(m, eval);
-				Gnuplot.plotOneDimensionalCurve(curve, "GBM", this.getBaseDir() + "gbm");
 			}
-			
+		}
+		if (earlyStopping > 0 && bestNumTrees > 0)
+			trees = new ArrayList<FlatTree>(trees.subList(0, bestNumTrees));
+
+		if (p != null)
 			p.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		Gnuplot.plotOneDimensionalCurve(curve, "GBM", this.getBaseDir() + "gbm");
+
+		if (validationDataSet != null && evaluator != null) {
+			double[] predictions = predict(validation);
+			for (int i = 0; i < predictions.length; i++)
+				validationDataSet.get(i).putResult("result", predictions[i]);
+			Log.puts("Evaluation of the validation set: "
+					+ evaluator.evaluate(validationDataSet));
 		}
-		loadOutComes(this.trainingDataSet, originalOutcomes);
 	}
-	
-	private <T extends Instance> DataSet<T> bootstrap(DataSet<T> data) {
-		DataSet<T> bootstrap = new DataSet<T>();
-		int size = (int) (this.getDoubleParameter("f") * data.size());
-		for(int i = 0; i < size; i++)
-			bootstrap.addInstance(data.get(rand.nextInt(data.size())));
-		return bootstrap;
+
+	/**
+	 * Create the decision tree providing the parameters and split candidates
+	 * for the nodes of one iteration.
+	 */
+	private DecisionTree<E> createTree(
+			Map<String, List<Double>> splitsPerFeature, int m) {
+		DecisionTree<E> dt = new DecisionTree<E>(features, rand.nextInt(),
+				splitsPerFeature, m);
+		dt.putParameter("k", this.getDoubleParameter("k"));
+		dt.putParameter("maxDepth", this.getDoubleParameter("maxDepth"));
+		dt.putParameter("minSize", this.getDoubleParameter("minSize"));
+		return dt;
 	}
-	
+
+	private double meanLoss(double[] y, double[] f, int[] rows) {
+		double sum = 0.0;
+		for (int r : rows)
+			sum += loss.loss(y[r], f[r]);
+		return rows.length == 0 ? Double.NaN : sum / rows.length;
+	}
+
 	/**
-	 * OOB, out of bag
-	 * @param bag
-	 * @param all
+	 * Number of trees of the trained model (after early stopping).
+	 * 
 	 * @return
 	 */
-	private <T extends Instance> DataSet<T> outOfBag(DataSet<T> bag, DataSet<T> all) {
-		DataSet<T> oob = new DataSet<T>();
-		for(T each : all)
-			if(!bag.contains(each))
-				oob.addInstance(each);
-		return oob;
+	public int getNumberOfTrees() {
+		return trees.size();
 	}
 
-	private Map<Instance, Double> saveResults(DataSet<E> data) {
-		Map<Instance, Double> map = new HashMap<Instance, Double>();
-		for (Instance each : data)
-			map.put(each, (double)each.getResult("result"));
-		return map;
+	@Override
+	public DataSet<E> test() {
+		double[] predictions = results(testDataSet);
+		for (int i = 0; i < predictions.length; i++)
+			testDataSet.get(i).putResult("result", predictions[i]);
+		return this.testDataSet;
 	}
 
-	private void loadOutComes(DataSet<E> data,
-			Map<Instance, Double> originalOutcomes) {
-		for (Instance each : data)
-			each.outcome = (double)originalOutcomes.get(each);
+	@Override
+	public boolean supportsResults() {
+		return true;
 	}
 
-	private Map<Instance, Double> saveOutcomes(DataSet<E> data) {
-		Map<Instance, Double> map = new HashMap<Instance, Double>();
-		for (Instance each : data)
-			map.put(each, each.outcome);
-		return map;
+	@Override
+	public double[] results(List<? extends E> instances) {
+		double[][] rows = new double[instances.size()][];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = instances.get(i).asArray(features);
+		return predict(rows);
 	}
 
-	@Override
-	public DataSet<E> test() {
-		int M = (int) this.getDoubleParameter("m");
-		for (Instance each : testDataSet)
-			each.putResult("gbmSum", gammas[0]);
-		
-		for (int m = 1; m < M; m++) {
-			DecisionTree<E> tree = trees.get(m-1);
-			tree.setTestSet(testDataSet);
-			tree.setBaseDir(baseDir + m + "/");
-			this.testDataSet = tree.test();
-			for(Instance each : testDataSet)
-				each.putResult("gbmSum", each.getResult("gbmSum") + gammas[m] * (each.getResult("result")));
-		}
-		for (Instance each : testDataSet){
-			each.putResult("result", Math.max(0.0, each.getResult("gbmSum")));
-			each.removeResult("gbmSum");
+	/**
+	 * Predict dense rows. The columns of the rows have to be in the order of
+	 * the features of this GBM. The predictions are on the scale of the
+	 * target (e.g. probabilities for the logistic loss).
+	 * 
+	 * @param rows
+	 * @return
+	 */
+	public double[] predict(double[][] rows) {
+		double[] sums = getFlatForest().sum(rows);
+		for (int i = 0; i < sums.length; i++)
+			sums[i] = Math.max(0.0, loss.transform(f0 + sums[i]));
+		return sums;
+	}
+
+	/**
+	 * Get the compiled representation of all trees, weighted by the learning
+	 * rate.
+	 * 
+	 * @return
+	 */
+	public FlatForest getFlatForest() {
+		FlatForest forest = flatForest;
+		if (forest == null) {
+			double[] weights = new double[trees.size()];
+			Arrays.fill(weights, learningRate);
+			flatForest = forest = new FlatForest(trees, weights);
 		}
-		return this.testDataSet;
+		return forest;
 	}
 }
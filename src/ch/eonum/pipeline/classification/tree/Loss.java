@@ -0,0 +1,355 @@
+package ch.eonum.pipeline.classification.tree;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import ch.eonum.pipeline.util.Log;
+
+/**
+ * Loss function for gradient boosting. All methods operate on arrays indexed
+ * by row: y are the targets, f the current predictions on the link scale.
+ *
+ * The trees are fitted to the gradients and hessians (Newton boosting). The
+ * value of a leaf is the Newton step -sum(g)/sum(h) unless the loss provides
+ * a better analytic solution (median for the absolute loss, Friedman's
+ * M-estimate for the Huber loss).
+ *
+ * @author tim
+ *
+ */
+public abstract class Loss {
+
+	/**
+	 * Create a loss by name.
+	 *
+	 * @param name
+	 *            squared, absolute, huber, logistic or poisson
+	 * @param alpha
+	 *            quantile of the absolute residuals used as transition point
+	 *            of the Huber loss
+	 * @return
+	 */
+	public static Loss create(String name, double alpha) {
+		if ("squared".equals(name))
+			return new Squared();
+		if ("absolute".equals(name))
+			return new Absolute();
+		if ("huber".equals(name))
+			return new Huber(alpha);
+		if ("logistic".equals(name))
+			return new Logistic();
+		if ("poisson".equals(name))
+			return new Poisson();
+		Log.error("Unsupported loss " + name);
+		return null;
+	}
+
+	/**
+	 * Constant initial prediction minimizing the loss over the provided rows.
+	 *
+	 * @param y
+	 * @param rows
+	 * @return
+	 */
+	public abstract double initialPrediction(double[] y, int[] rows);
+
+	/**
+	 * Calculate gradient and hessian of the loss with respect to f for the
+	 * provided rows. Statistics of the loss (e.g. the Huber transition point)
+	 * are only taken from these rows.
+	 *
+	 * @param y
+	 * @param f
+	 * @param rows
+	 *            training rows
+	 * @param g
+	 *            gradients (output)
+	 * @param h
+	 *            hessians (output)
+	 */
+	public abstract void gradients(double[] y, double[] f, int[] rows,
+			double[] g, double[] h);
+
+	/**
+	 * Loss of a single prediction.
+	 *
+	 * @param y
+	 * @param f
+	 * @return
+	 */
+	public abstract double loss(double y, double f);
+
+	/**
+	 * Map a prediction on the link scale to the scale of the target.
+	 *
+	 * @param f
+	 * @return
+	 */
+	public double transform(double f) {
+		return f;
+	}
+
+	/**
+	 * Value of a leaf containing rows[from, to). Newton step.
+	 *
+	 * @param rows
+	 * @param from
+	 * @param to
+	 * @param counts
+	 *            multiplicity of each row
+	 * @param y
+	 * @param f
+	 * @param g
+	 * @param h
+	 * @return
+	 */
+	public double leafValue(int[] rows, int from, int to, int[] counts,
+			double[] y, double[] f, double[] g, double[] h) {
+		double sumG = 0.0;
+		double sumH = 0.0;
+		for (int i = from; i < to; i++) {
+			int r = rows[i];
+			sumG += counts[r] * g[r];
+			sumH += counts[r] * h[r];
+		}
+		return sumH <= 0.0 ? 0.0 : -sumG / sumH;
+	}
+
+	/**
+	 * Weighted median of the residuals y - f of rows[from, to).
+	 */
+	protected static double medianResidual(int[] rows, int from, int to,
+			int[] counts, double[] y, double[] f) {
+		int n = to - from;
+		if (n == 0)
+			return 0.0;
+		long[] keys = new long[n];
+		double[] residuals = new double[n];
+		for (int i = 0; i < n; i++)
+			residuals[i] = y[rows[from + i]] - f[rows[from + i]];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		final double[] res = residuals;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(res[a], res[b]);
+			}
+		});
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			total += counts[rows[from + order[i]]];
+			keys[i] = total;
+		}
+		for (int i = 0; i < n; i++)
+			if (2 * keys[i] >= total)
+				return residuals[order[i]];
+		return residuals[order[n - 1]];
+	}
+
+	/** squared error. */
+	public static class Squared extends Loss {
+		@Override
+		public double initialPrediction(double[] y, int[] rows) {
+			double sum = 0.0;
+			for (int r : rows)
+				sum += y[r];
+			return rows.length == 0 ? 0.0 : sum / rows.length;
+		}
+
+		@Override
+		public void gradients(double[] y, double[] f, int[] rows, double[] g,
+				double[] h) {
+			for (int r : rows) {
+				g[r] = f[r] - y[r];
+				h[r] = 1.0;
+			}
+		}
+
+		@Override
+		public double loss(double y, double f) {
+			return (y - f) * (y - f);
+		}
+	}
+
+	/**
+	 * absolute error. The trees are fitted to the sign of the residuals, the
+	 * leaves predict the median residual.
+	 */
+	public static class Absolute extends Loss {
+		@Override
+		public double initialPrediction(double[] y, int[] rows) {
+			int[] counts = new int[y.length];
+			for (int r : rows)
+				counts[r] = 1;
+			return medianResidual(rows, 0, rows.length, counts, y,
+					new double[y.length]);
+		}
+
+		@Override
+		public void gradients(double[] y, double[] f, int[] rows, double[] g,
+				double[] h) {
+			for (int r : rows) {
+				g[r] = -Math.signum(y[r] - f[r]);
+				h[r] = 1.0;
+			}
+		}
+
+		@Override
+		public double loss(double y, double f) {
+			return Math.abs(y - f);
+		}
+
+		@Override
+		public double leafValue(int[] rows, int from, int to, int[] counts,
+				double[] y, double[] f, double[] g, double[] h) {
+			return medianResidual(rows, from, to, counts, y, f);
+		}
+	}
+
+	/**
+	 * Huber loss. The transition point delta is the alpha quantile of the
+	 * absolute residuals of the training rows in the current iteration. The
+	 * loss is measured with the delta of the first iteration, hence the
+	 * losses of all iterations are comparable (early stopping).
+	 */
+	public static class Huber extends Loss {
+		private final double alpha;
+		private double delta;
+		/** delta of the first iteration, used by {@link #loss(double, double)}. */
+		private double lossDelta = Double.NaN;
+
+		public Huber(double alpha) {
+			this.alpha = alpha;
+		}
+
+		@Override
+		public double initialPrediction(double[] y, int[] rows) {
+			lossDelta = Double.NaN;
+			int[] counts = new int[y.length];
+			for (int r : rows)
+				counts[r] = 1;
+			return medianResidual(rows, 0, rows.length, counts, y,
+					new double[y.length]);
+		}
+
+		@Override
+		public void gradients(double[] y, double[] f, int[] rows, double[] g,
+				double[] h) {
+			double[] abs = new double[rows.length];
+			for (int i = 0; i < rows.length; i++)
+				abs[i] = Math.abs(y[rows[i]] - f[rows[i]]);
+			Arrays.sort(abs);
+			delta = abs.length == 0 ? 0.0 : abs[Math.min(abs.length - 1,
+					(int) (alpha * abs.length))];
+			if (Double.isNaN(lossDelta))
+				lossDelta = delta;
+			for (int r : rows) {
+				double residual = y[r] - f[r];
+				g[r] = Math.abs(residual) <= delta ? -residual : -delta
+						* Math.signum(residual);
+				h[r] = 1.0;
+			}
+		}
+
+		@Override
+		public double loss(double y, double f) {
+			double a = Math.abs(y - f);
+			return a <= lossDelta ? 0.5 * a * a : lossDelta
+					* (a - 0.5 * lossDelta);
+		}
+
+		/**
+		 * Median residual plus the mean of the clipped deviations from the
+		 * median (Friedman 2001).
+		 */
+		@Override
+		public double leafValue(int[] rows, int from, int to, int[] counts,
+				double[] y, double[] f, double[] g, double[] h) {
+			double median = medianResidual(rows, from, to, counts, y, f);
+			double sum = 0.0;
+			long n = 0;
+			for (int i = from; i < to; i++) {
+				int r = rows[i];
+				double d = y[r] - f[r] - median;
+				sum += counts[r] * Math.signum(d) * Math.min(delta, Math.abs(d));
+				n += counts[r];
+			}
+			return n == 0 ? median : median + sum / n;
+		}
+	}
+
+	/** binomial deviance for targets in {0, 1}. f are log odds. */
+	public static class Logistic extends Loss {
+		@Override
+		public double initialPrediction(double[] y, int[] rows) {
+			double sum = 0.0;
+			for (int r : rows)
+				sum += y[r];
+			double p = Math.min(1 - 1e-12, Math.max(1e-12, sum / rows.length));
+			return Math.log(p / (1 - p));
+		}
+
+		@Override
+		public void gradients(double[] y, double[] f, int[] rows, double[] g,
+				double[] h) {
+			for (int r : rows) {
+				double p = transform(f[r]);
+				g[r] = p - y[r];
+				h[r] = Math.max(p * (1 - p), 1e-12);
+			}
+		}
+
+		@Override
+		public double loss(double y, double f) {
+			/** log(1 + exp(f)) - y * f, numerically stable. */
+			return Math.max(f, 0) + Math.log1p(Math.exp(-Math.abs(f))) - y * f;
+		}
+
+		@Override
+		public double transform(double f) {
+			return 1.0 / (1.0 + Math.exp(-f));
+		}
+	}
+
+	/** poisson deviance for non-negative targets. f is the log mean. */
+	public static class Poisson extends Loss {
+		@Override
+		public double initialPrediction(double[] y, int[] rows) {
+			double sum = 0.0;
+			for (int r : rows) {
+				checkTarget(y[r]);
+				sum += y[r];
+			}
+			return Math.log(Math.max(1e-12, sum / rows.length));
+		}
+
+		@Override
+		public void gradients(double[] y, double[] f, int[] rows, double[] g,
+				double[] h) {
+			for (int r : rows) {
+				checkTarget(y[r]);
+				double mu = Math.exp(f[r]);
+				g[r] = mu - y[r];
+				h[r] = Math.max(mu, 1e-12);
+			}
+		}
+
+		@Override
+		public double loss(double y, double f) {
+			return Math.exp(f) - y * f;
+		}
+
+		@Override
+		public double transform(double f) {
+			return Math.exp(f);
+		}
+
+		private static void checkTarget(double y) {
+			if (!(y >= 0.0))
+				throw new IllegalArgumentException(
+						"The poisson loss requires non-negative targets: " + y);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package ch.eonum.pipeline.classification.tree;
+
+import ch.eonum.pipeline.core.Instance;
+
+/**
+ * Node of a gradient boosting tree. The tree is trained with histogram based
+ * split finding on the statistics (count, sum of hessians, sum of negative
+ * gradients) of each row. The gain of a split is G^2/H on both sides and the
+ * value of a node is the Newton step G/H. The statistics are provided by
+ * {@link GBM}, hence there is no training on instances.
+ * 
+ * @see GBM
+ * @author tim
+ * 
+ */
+public class NewtonSplitNode<E extends Instance> extends TreeNode<E> {
+
+	public NewtonSplitNode(DecisionTree<E> parent, int depth) {
+		super(parent, depth);
+	}
+
+	@Override
+	protected TreeNode<E> createBinnedChild() {
+		return new NewtonSplitNode<E>(parent, depth + 1);
+	}
+
+	/**
+	 * count, sum of hessians, sum of negative gradients.
+	 */
+	@Override
+	protected int statsWidth() {
+		return 3;
+	}
+
+	@Override
+	protected double splitScore(double[] ge, double[] lt) {
+		if (ge[1] <= 0.0 || lt[1] <= 0.0)
+			return Double.NEGATIVE_INFINITY;
+		return ge[2] * ge[2] / ge[1] + lt[2] * lt[2] / lt[1];
+	}
+
+	@Override
+	protected void calculateValue(double[] totals) {
+		this.value = totals[2] / totals[1];
+	}
+}
@@ -1,18 +1,22 @@
 package ch.eonum.pipeline.classification.tree;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import ch.eonum.pipeline.classification.Classifier;
 import ch.eonum.pipeline.classification.meta.Bagging;
+import ch.eonum.pipeline.classification.meta.BootstrapSample;
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
+import ch.eonum.pipeline.util.Log;
 
 /**
  * Random Forest. @link http://en.wikipedia.org/wiki/Random_forest An ensemble
@@ -27,20 +31,35 @@ public class RandomForest<E extends Instance> extends Bagging<E> {
 	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
 	
 	static {
+		PARAMETERS.put("importance", "compute the out-of-bag permutation importance of each feature during training (0 or 1) (default 0.0)");
 		PARAMETERS.put("k", "percentage of features which are taken into account at each split node [0,1] (default 0.333)");
+		PARAMETERS.put("maxBins", "maximum number of bins per feature for histogram based split finding (at most 256). 0: exact split finding (default 0.0)");
 		PARAMETERS.put("maxDepth", "maximum depth of the tree (default 10.0)");
+		PARAMETERS.put("maxSplits", "maximum number of split candidates per feature. approximated by quantiles if > 0. 0: all distinct values (default 0.0)");
 		PARAMETERS.put("minSize", "minimum number of training instances within one terminal node (default 5.0)");
 		PARAMETERS.put("tolerance", "tolerance range for distinct values (default 0.01)");
 		PARAMETERS.put("numTrees", "number of trees in the forest (default 200.0)");
 	}
 	
+	/** number of rows converted to dense rows and scored at once. */
+	private static final int TEST_CHUNK_SIZE = 1 << 16;
+
 	protected Map<String, List<Double>> splitsPerFeature;
+	/** compiled forest. null if not yet compiled. */
+	private volatile FlatForest flatForest;
+	/** out-of-bag error estimated during training. */
+	protected double outOfBagError;
+	/** out-of-bag permutation importance by feature. null if not computed. */
+	protected Map<String, Double> featureImportance;
 
 	public RandomForest(Features features, int seed) {
 		super(new ArrayList<Classifier<E>>(), features, seed);
 		this.setSupportedParameters(RandomForest.PARAMETERS);
+		this.putParameter("importance", 0.0);
 		this.putParameter("k", 0.333);
+		this.putParameter("maxBins", 0.0);
 		this.putParameter("maxDepth", 10.0);
+		this.putParameter("maxSplits", 0.0);
 		this.putParameter("minSize", 15.0);
 		this.putParameter("tolerance", 0.01);
 		this.putParameter("numTrees", 100.0);
@@ -51,16 +70,27 @@ public class RandomForest<E extends Instance> extends Bagging<E> {
 	 */
 	@Override
 	public void train() {
+		flatForest = null;
+		featureImportance = null;
+		baseClassifiers.clear();
+		samples = new ArrayList<BootstrapSample>();
 		splitsPerFeature = DecisionTree.calculateSplitsPerFeature(features,
-				trainingDataSet, this.getDoubleParameter("tolerance"));
+				trainingDataSet, this.getDoubleParameter("tolerance"),
+				(int) this.getDoubleParameter("maxSplits"));
+		/** the training set is quantized once for all trees. */
+		int maxBins = (int) this.getDoubleParameter("maxBins");
+		BinnedDataSet<E> binned = maxBins > 0 ? new BinnedDataSet<E>(
+				trainingDataSet, features, splitsPerFeature, maxBins) : null;
 		for(int i = 0; i < this.getDoubleParameter("numTrees"); i++){
 			DecisionTree<E> dt = createDecisionTree(i);
 			dt.putParameter("k", this.getDoubleParameter("k"));
+			dt.putParameter("maxBins", this.getDoubleParameter("maxBins"));
 			dt.putParameter("maxDepth", this.getDoubleParameter("maxDepth"));
 			dt.putParameter("minSize", this.getDoubleParameter("minSize"));
-			DataSet<E> train = bootstrap(trainingDataSet);
-			dt.setTrainingSet(train);
-			dt.setTestSet(outOfBag(train, trainingDataSet));
+			BootstrapSample sample = bootstrap(trainingDataSet.size());
+			samples.add(sample);
+			dt.setTrainingSet(trainingDataSet, sample.getCounts());
+			dt.setBinnedDataSet(binned);
 			baseClassifiers.add(dt);
 		}
 		
@@ -78,10 +108,280 @@ public class RandomForest<E extends Instance> extends Bagging<E> {
 			System.exit(-1);
 		}
 
+		estimateOutOfBag();
+	}
+
+	/**
+	 * Estimate the generalization error and optionally the feature
+	 * importance from the out-of-bag rows of each tree. The training set is
+	 * converted to dense rows in chunks.
+	 */
+	private void estimateOutOfBag() {
+		BitSet[] inBag = inBag(trainingDataSet);
+		PermutationImportance importance = this
+				.getDoubleParameter("importance") > 0 ? new PermutationImportance()
+				: null;
+		double sum = 0.0;
+		int num = 0;
+		for (int start = 0; start < trainingDataSet.size(); start += TEST_CHUNK_SIZE) {
+			int end = Math.min(trainingDataSet.size(), start + TEST_CHUNK_SIZE);
+			double[][] rows = rows(trainingDataSet, start, end);
+			double[] targets = new double[rows.length];
+			for (int r = 0; r < rows.length; r++)
+				targets[r] = target(trainingDataSet.get(start + r));
+			BitSet[] chunkInBag = chunk(inBag, start, end);
+			double[] predictions = predictOutOfBag(rows, chunkInBag);
+			for (int r = 0; r < rows.length; r++)
+				if (!Double.isNaN(predictions[r])) {
+					sum += loss(targets[r], predictions[r]);
+					num++;
+				}
+			if (importance != null)
+				importance.add(rows, targets, chunkInBag);
+		}
+		outOfBagError = num == 0 ? Double.NaN : sum / num;
+		Log.puts("Out-of-bag error: " + outOfBagError + " (" + num
+				+ " instances)");
+
+		if (importance != null)
+			featureImportance = importance.get();
+	}
+
+	/**
+	 * Convert the instances [start, end) of a data set to dense rows.
+	 */
+	private double[][] rows(DataSet<E> data, int start, int end) {
+		double[][] rows = new double[end - start][];
+		for (int i = start; i < end; i++)
+			rows[i - start] = data.get(i).asArray(features);
+		return rows;
+	}
+
+	/**
+	 * Bits [start, end) of each bit set.
+	 */
+	private static BitSet[] chunk(BitSet[] bits, int start, int end) {
+		BitSet[] chunk = new BitSet[bits.length];
+		for (int t = 0; t < bits.length; t++)
+			chunk[t] = bits[t].get(start, end);
+		return chunk;
+	}
+
+	/**
+	 * Permutation importance: For each tree and feature, the values of the
+	 * feature are permuted among the out-of-bag rows of the tree within each
+	 * chunk of rows. The importance of a feature is the increase of the
+	 * out-of-bag error averaged over all trees. Features are processed in
+	 * parallel.
+	 */
+	private class PermutationImportance {
+		private final FlatForest forest = getFlatForest();
+		private final int numTrees = forest.size();
+		/** number of out-of-bag rows by tree. */
+		private final int[] numOutOfBag = new int[numTrees];
+		/** sum of the out-of-bag losses by tree. */
+		private final double[] baseErrors = new double[numTrees];
+		/** sum of the out-of-bag losses with permuted values by feature and tree. */
+		private final double[][] permutedErrors = new double[features.size()][numTrees];
+		/** random number generator by feature. */
+		private final Random[] randoms = new Random[features.size()];
+
+		PermutationImportance() {
+			long seed = rand.nextLong();
+			for (int f = 0; f < randoms.length; f++)
+				randoms[f] = new Random(seed + f);
+		}
+
+		/**
+		 * Add a chunk of rows.
+		 *
+		 * @param rows
+		 * @param targets
+		 * @param inBag
+		 *            in-bag rows of the chunk by tree
+		 */
+		void add(final double[][] rows, final double[] targets, BitSet[] inBag) {
+			final int[][] oobRows = new int[numTrees][];
+			for (int t = 0; t < numTrees; t++) {
+				BitSet oob = (BitSet) inBag[t].clone();
+				oob.flip(0, rows.length);
+				oobRows[t] = new int[oob.cardinality()];
+				int i = 0;
+				for (int r = oob.nextSetBit(0); r >= 0; r = oob.nextSetBit(r + 1)) {
+					oobRows[t][i++] = r;
+					baseErrors[t] += loss(targets[r], forest.getTree(t).predict(rows[r]));
+				}
+				numOutOfBag[t] += oobRows[t].length;
+			}
+
+			List<Runnable> tasks = new ArrayList<Runnable>();
+			for (int f = 0; f < features.size(); f++) {
+				final int feature = f;
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						Random random = randoms[feature];
+						for (int t = 0; t < numTrees; t++) {
+							int[] oob = oobRows[t];
+							if (oob.length == 0)
+								continue;
+							double[] values = new double[oob.length];
+							for (int i = 0; i < oob.length; i++)
+								values[i] = rows[oob[i]][feature];
+							for (int i = values.length - 1; i > 0; i--) {
+								int j = random.nextInt(i + 1);
+								double tmp = values[i];
+								values[i] = values[j];
+								values[j] = tmp;
+							}
+							FlatTree tree = forest.getTree(t);
+							double error = 0.0;
+							for (int i = 0; i < oob.length; i++)
+								error += loss(targets[oob[i]], tree.predict(
+										rows[oob[i]], feature, values[i]));
+							permutedErrors[feature][t] += error;
+						}
+					}
+				});
+			}
+			TreeNode.invokeAll(tasks);
+		}
+
+		/**
+		 * Importance by feature.
+		 *
+		 * @return
+		 */
+		Map<String, Double> get() {
+			Map<String, Double> map = new HashMap<String, Double>();
+			for (int f = 0; f < features.size(); f++) {
+				double sum = 0.0;
+				for (int t = 0; t < numTrees; t++)
+					if (numOutOfBag[t] > 0)
+						sum += (permutedErrors[f][t] - baseErrors[t])
+								/ numOutOfBag[t];
+				map.put(features.getFeatureByIndex(f), sum / numTrees);
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * Predict the training rows using only the trees for which a row is out
+	 * of bag.
+	 * 
+	 * @param rows
+	 * @param inBag
+	 * @return predictions. NaN if a row is in bag for all trees.
+	 */
+	protected double[] predictOutOfBag(double[][] rows, BitSet[] inBag) {
+		return getFlatForest().average(rows, inBag);
+	}
+
+	/**
+	 * Target of an instance in the representation of the tree predictions.
+	 * 
+	 * @param each
+	 * @return
+	 */
+	protected double target(Instance each) {
+		return each.outcome;
+	}
+
+	/**
+	 * Loss of a prediction. Squared error.
+	 * 
+	 * @param target
+	 * @param prediction
+	 * @return
+	 */
+	protected double loss(double target, double prediction) {
+		return (target - prediction) * (target - prediction);
+	}
+
+	/**
+	 * Get the out-of-bag error estimated during training. Mean squared error
+	 * for regression, misclassification rate for classification.
+	 * 
+	 * @return
+	 */
+	public double getOutOfBagError() {
+		return outOfBagError;
+	}
+
+	/**
+	 * Get the out-of-bag permutation importance of each feature, which is
+	 * computed during training if the parameter importance is set.
+	 * 
+	 * @return importance by feature. null if not computed.
+	 */
+	public Map<String, Double> getFeatureImportance() {
+		return featureImportance;
 	}
 
 
 	protected DecisionTree<E> createDecisionTree(int i) {
 		return new DecisionTree<E>(features, rand.nextInt(), splitsPerFeature, i);
 	}
+
+	/**
+	 * Get the compiled representation of all trees. The trees are compiled
+	 * with the features of this forest.
+	 * 
+	 * @return
+	 */
+	public FlatForest getFlatForest() {
+		FlatForest forest = flatForest;
+		if (forest == null) {
+			List<FlatTree> trees = new ArrayList<FlatTree>();
+			for (Classifier<E> each : baseClassifiers)
+				trees.add(FlatTree.compile(((DecisionTree<E>) each).getRoot(),
+						features));
+			flatForest = forest = new FlatForest(trees, null);
+		}
+		return forest;
+	}
+
+	/**
+	 * Predict dense rows by averaging all trees. The columns of the rows have
+	 * to be in the order of the features of this forest.
+	 * 
+	 * @param rows
+	 * @return
+	 */
+	public double[] predict(double[][] rows) {
+		return getFlatForest().average(rows, null);
+	}
+
+	/**
+	 * Score the test set with the compiled forest. The test set is converted
+	 * to dense rows in chunks.
+	 */
+	@Override
+	public DataSet<E> test() {
+		BitSet[] inBag = oobTesting ? inBag(testDataSet) : null;
+		for (int start = 0; start < testDataSet.size(); start += TEST_CHUNK_SIZE) {
+			int end = Math.min(testDataSet.size(), start + TEST_CHUNK_SIZE);
+			double[][] rows = rows(testDataSet, start, end);
+			BitSet[] skip = inBag == null ? null : chunk(inBag, start, end);
+			putPredictions(start, rows, skip);
+		}
+		return this.testDataSet;
+	}
+
+	/**
+	 * Score a chunk of the test set and store the predictions.
+	 * 
+	 * @param start
+	 *            index of the first row within the test set
+	 * @param rows
+	 * @param skip
+	 *            rows to be skipped by each tree. null: no rows are skipped.
+	 */
+	protected void putPredictions(int start, double[][] rows, BitSet[] skip) {
+		double[] results = getFlatForest().average(rows, skip);
+		for (int i = 0; i < rows.length; i++)
+			testDataSet.get(start + i).putResult("result",
+					Double.isNaN(results[i]) ? 0.0 : results[i]);
+	}
 }
@@ -1,7 +1,8 @@
 package ch.eonum.pipeline.classification.tree;
 
 
-import ch.eonum.pipeline.classification.Classifier;
+import java.util.BitSet;
+
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
@@ -32,6 +33,51 @@ public class RandomForestClassifier<E extends Instance> extends RandomForest<E>
 		return new DecisionTreeClassifier<E>(features, rand.nextInt(), splitsPerFeature, i, classes);
 	}
 	
+	/**
+	 * Predict dense rows by majority vote. The columns of the rows have to be
+	 * in the order of the features of this forest.
+	 * 
+	 * @param rows
+	 * @return index of the most likely class for each row
+	 */
+	@Override
+	public double[] predict(double[][] rows) {
+		double[][] votes = getFlatForest().vote(rows, classes.size(), null);
+		double[] predictions = new double[rows.length];
+		for (int r = 0; r < rows.length; r++)
+			predictions[r] = classes.indexOf(mostLikelyClass(votes[r]));
+		return predictions;
+	}
+
+	/**
+	 * Majority vote of the trees for which a row is out of bag.
+	 */
+	@Override
+	protected double[] predictOutOfBag(double[][] rows, BitSet[] inBag) {
+		double[][] votes = getFlatForest().vote(rows, classes.size(), inBag);
+		double[] predictions = new double[rows.length];
+		for (int r = 0; r < rows.length; r++)
+			predictions[r] = votes[r] == null ? Double.NaN : classes
+					.indexOf(mostLikelyClass(votes[r]));
+		return predictions;
+	}
+
+	/**
+	 * Index of the class.
+	 */
+	@Override
+	protected double target(Instance each) {
+		return classes.indexOf(each.groundTruth);
+	}
+
+	/**
+	 * Misclassification.
+	 */
+	@Override
+	protected double loss(double target, double prediction) {
+		return target == prediction ? 0.0 : 1.0;
+	}
+
 	@Override
 	public DataSet<E> test() {
 		for(String className : classes.asSet()){
@@ -39,40 +85,38 @@ public class RandomForestClassifier<E extends Instance> extends RandomForest<E>
 			for(E e : testDataSet)
 				e.removeResult(label);
 		}
-		for(E e : testDataSet)
-			e.removeResult("numTrees");
-		
-		for(Classifier<E> c : baseClassifiers){
-			c.setTestSet(testDataSet);
-			testDataSet = c.test();
-			for(Instance each : testDataSet)
-				if(!c.getTrainingDataSet().contains(each) || !this.oobTesting){
-					String label = "likelihoodOfClass" + each.label;
-					each.putResult(label, each.getResult(label) + 1.0);
-					each.putResult("numTrees", each.getResult("numTrees") + 1.0);
-				}
+		return super.test();
+	}
+
+	@Override
+	protected void putPredictions(int start, double[][] rows, BitSet[] skip) {
+		double[][] votes = getFlatForest().vote(rows, classes.size(), skip);
+		for (int i = 0; i < rows.length; i++) {
+			if (votes[i] == null)
+				continue;
+			Instance each = testDataSet.get(start + i);
+			for (String className : classes.asSet())
+				each.putResult("likelihoodOfClass" + className,
+						votes[i][classes.indexOf(className)]);
+			each.label = mostLikelyClass(votes[i]);
+			each.putResult("result", votes[i][classes.indexOf(each.label)]);
 		}
-		for(Instance each : testDataSet){
-			if(each.getResult("numTrees") != 0){
-				double max = Double.NEGATIVE_INFINITY;
-				String maxLabel = null;
-				for(String className : classes.asSet()){
-					String label = "likelihoodOfClass" + className;
-					each.putResult(label, each.getResult(label) / each.getResult("numTrees"));
-					if(each.get(label) > max){
-						max = each.getResult(label);
-						maxLabel = className;
-					}
-				}
-				each.label = maxLabel;
-				each.putResult("result", max);
+	}
+
+	/**
+	 * Get the class with the most votes.
+	 */
+	private String mostLikelyClass(double[] votes) {
+		double max = Double.NEGATIVE_INFINITY;
+		String maxLabel = null;
+		for (String className : classes.asSet()) {
+			double likelihood = votes[classes.indexOf(className)];
+			if (likelihood > max) {
+				max = likelihood;
+				maxLabel = className;
 			}
 		}
-		
-		for(E e : testDataSet)
-			e.removeResult("numTrees");
-		
-		return this.testDataSet;
+		return maxLabel;
 	}
 
 }
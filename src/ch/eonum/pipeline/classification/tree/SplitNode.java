@@ -1,10 +1,9 @@
 package ch.eonum.pipeline.classification.tree;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 import ch.eonum.pipeline.core.DataSet;
@@ -12,37 +11,44 @@ import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
 
 /**
- * Node in a decision tree for regression.
+ * Node in a decision tree for regression. Trained either exactly on its
+ * training set or histogram based (@see {@link TreeNode}).
  * 
  * @author tim
  *
  */
-public class SplitNode<E extends Instance> {
+public class SplitNode<E extends Instance> extends TreeNode<E> {
 
 	protected DataSet<E> trainSet;
-	/** depth of this node within the tree. */
-	protected int depth;
-	/** decision tree where this node belongs to. */
-	protected DecisionTree<E> parent;
-	/** split feature. null if this is a terminal node. */
-	protected String splitFeature;
-	/** split value. */
-	protected double splitValue;
-	/** value (average outcome) of this node. */
-	private double value;
-	/** left Node. null if this is a terminal node. */
-	protected SplitNode<E> left;
-	/** right Node. null if this is a terminal node. */
-	protected SplitNode<E> right;
 
 	public SplitNode(DecisionTree<E> parent, int depth, DataSet<E> trainSet) {
-		this.parent = parent;
-		this.depth = depth;
+		super(parent, depth);
 		this.trainSet = trainSet;
+		this.numTrain = trainSet == null ? -1 : trainSet.size();
 	}
-	
-	public boolean isTerminal(){
-		return right == null && left == null;
+
+	/**
+	 * Create a child node of this node.
+	 * 
+	 * @param trainSet
+	 *            training set of the child. null for histogram based training.
+	 * @return
+	 */
+	protected SplitNode<E> createChild(DataSet<E> trainSet) {
+		return new SplitNode<E>(parent, depth + 1, trainSet);
+	}
+
+	@Override
+	protected TreeNode<E> createBinnedChild() {
+		return createChild(null);
+	}
+
+	/**
+	 * Create a child node with a random number generator derived from this
+	 * node.
+	 */
+	private SplitNode<E> newChild(DataSet<E> trainSet) {
+		return deriveRandom(createChild(trainSet));
 	}
 
 	public void train() {
@@ -53,62 +59,83 @@ public class SplitNode<E extends Instance> {
 				|| trainSet.size() <= minSize) {
 			return;
 		}
-		/** select features. */
-		Features fs = parent.getFeatures();
-		double k = parent.getDoubleParameter("k");
-		if(k < 1.0){
-			Random rand = parent.getRandom();
-			fs = new Features();
-			for(int f = 0; f < parent.getFeatures().size(); f++)
-				if(rand.nextDouble() < k)
-					fs.addFeature(parent.getFeatures().getFeatureByIndex(f));
-			fs.recalculateIndex();
-		}
-		pickSplitFeature(minSize, fs);
+		pickSplitFeature(minSize, selectFeatures());
+	}
+
+	/**
+	 * count and sum of outcomes.
+	 */
+	@Override
+	protected int statsWidth() {
+		return 2;
+	}
+
+	/**
+	 * Add the statistics of an instance to stats at offset for histogram
+	 * based training. Regression: count and sum of outcomes.
+	 * 
+	 * @param stats
+	 * @param offset
+	 * @param instance
+	 */
+	protected void addStats(double[] stats, int offset, Instance instance) {
+		stats[offset] += 1.0;
+		stats[offset + 1] += instance.outcome;
 	}
 
 	/**
-	 * select a split feature from the provided feature set and a value by
+	 * Regression: maximizing sum^2 / count over both sides is equivalent to
 	 * minimizing the squared error.
+	 */
+	@Override
+	protected double splitScore(double[] ge, double[] lt) {
+		return ge[1] * ge[1] / ge[0] + lt[1] * lt[1] / lt[0];
+	}
+
+	/**
+	 * mean outcome.
+	 */
+	@Override
+	protected void calculateValue(double[] totals) {
+		this.value = totals[1] / totals[0];
+	}
+
+	/**
+	 * Select a split feature from the provided feature set and a value by
+	 * maximizing the score of {@link #bestSplit(String, int)}. For large
+	 * nodes the features are evaluated in parallel. Ties are resolved in
+	 * favor of the first feature, as in a sequential search.
 	 * 
 	 * @param minSize
 	 * @param features
 	 */
-	protected void pickSplitFeature(int minSize, Features features) {
-		double minSquareError = Double.POSITIVE_INFINITY;
-		for(int f = 0; f < features.size(); f++){
-			String feature = features.getFeatureByIndex(f);
-			List<Double> splits = parent.getSplitsForFeature(feature);
-			for(Double sv : splits){
-				double ltAvg = 0.0;
-				int ltNum = 0;
-				double geAvg = 0.0;
-				int geNum = 0;
-				for(Instance each : trainSet)
-					if(each.get(feature) >= sv){
-						geAvg += each.outcome;
-						geNum ++;
-					} else {
-						ltAvg += each.outcome;
-						ltNum ++;
-					}
-				geAvg /= geNum;
-				ltAvg /= ltNum;
-				double squareError = 0.0;
-				for(Instance each : trainSet)
-					if(each.get(feature) >= sv){
-						squareError += Math.pow(each.outcome - geAvg, 2);
-					} else {
-						squareError += Math.pow(each.outcome - ltAvg, 2);
+	protected void pickSplitFeature(final int minSize, final Features features) {
+		final double[][] best = new double[features.size()][];
+		if (isParallel(trainSet.size())) {
+			List<Runnable> tasks = new ArrayList<Runnable>();
+			for (int f = 0; f < features.size(); f++) {
+				final int index = f;
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						best[index] = bestSplit(
+								features.getFeatureByIndex(index), minSize);
 					}
-				if(squareError < minSquareError && ltNum > minSize && geNum > minSize){
-					minSquareError = squareError;
-					splitFeature = feature;
-					splitValue = sv;
-				}
+				});
 			}
-		}
-		if(minSquareError == Double.POSITIVE_INFINITY)
+			invokeAll(tasks);
+		} else
+			for (int f = 0; f < features.size(); f++)
+				best[f] = bestSplit(features.getFeatureByIndex(f), minSize);
+
+		double maxScore = Double.NEGATIVE_INFINITY;
+		for (int f = 0; f < features.size(); f++)
+			if (best[f] != null && best[f][0] > maxScore) {
+				maxScore = best[f][0];
+				splitFeature = features.getFeatureByIndex(f);
+				splitValue = best[f][1];
+			}
+		if (maxScore == Double.NEGATIVE_INFINITY)
 			return;
 		DataSet<E> leftTrain = new DataSet<E>();
 		DataSet<E> rightTrain = new DataSet<E>();
@@ -118,10 +145,66 @@ public class SplitNode<E extends Instance> {
 			} else {
 				rightTrain.add(each);
 			}
-		left = new SplitNode<E>(parent, depth + 1, leftTrain);
-		right = new SplitNode<E>(parent, depth + 1, rightTrain);
-		left.train(); // #TODO parallelize
-		right.train();
+		final SplitNode<E> leftChild = newChild(leftTrain);
+		final SplitNode<E> rightChild = newChild(rightTrain);
+		left = leftChild;
+		right = rightChild;
+		trainChildren(trainSet.size(), new Runnable() {
+			@Override
+			public void run() {
+				leftChild.train();
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				rightChild.train();
+			}
+		});
+	}
+
+	/**
+	 * Find the best split value of a feature by minimizing the squared
+	 * error.
+	 * 
+	 * @param feature
+	 * @param minSize
+	 * @return score (the higher the better) and split value. null if there is
+	 *         no valid split.
+	 */
+	protected double[] bestSplit(String feature, int minSize) {
+		double minSquareError = Double.POSITIVE_INFINITY;
+		double bestValue = Double.NaN;
+		List<Double> splits = parent.getSplitsForFeature(feature);
+		for(Double sv : splits){
+			double ltAvg = 0.0;
+			int ltNum = 0;
+			double geAvg = 0.0;
+			int geNum = 0;
+			for(Instance each : trainSet)
+				if(each.get(feature) >= sv){
+					geAvg += each.outcome;
+					geNum ++;
+				} else {
+					ltAvg += each.outcome;
+					ltNum ++;
+				}
+			geAvg /= geNum;
+			ltAvg /= ltNum;
+			double squareError = 0.0;
+			for(Instance each : trainSet)
+				if(each.get(feature) >= sv){
+					squareError += Math.pow(each.outcome - geAvg, 2);
+				} else {
+					squareError += Math.pow(each.outcome - ltAvg, 2);
+				}
+			if(squareError < minSquareError && ltNum > minSize && geNum > minSize){
+				minSquareError = squareError;
+				bestValue = sv;
+			}
+		}
+		if(minSquareError == Double.POSITIVE_INFINITY)
+			return null;
+		return new double[] { -minSquareError, bestValue };
 	}
 
 	/**
@@ -134,53 +217,6 @@ public class SplitNode<E extends Instance> {
 		value /= (double)trainSet.size();
 	}
 
-	public void test(Instance each) {
-		if (isTerminal())
-			each.putResult("result", value);
-		else {
-			if (each.get(splitFeature) >= splitValue) {
-				left.test(each);
-			} else {
-				right.test(each);
-			}
-		}
-	}
-	
-	public String toString(){
-		String tree = "{ 'value' : " + value + ", 'num' : " + (trainSet == null ? "NaN" : trainSet.size());
-		if(splitFeature != null)
-			tree += ", 'splitOn' : '" + splitFeature + "', 'splitValue' : " + splitValue;
-		if(right != null)
-			tree += ", \n'right' : " + indent(right.toString());
-		if(left != null)
-			tree += ", 'left' : " + indent(left.toString());
-		tree += "}";
-		return tree;
-	}
-
-	protected String indent(String string) {
-		String[] lines = string.split("\n");
-		String ret = "";
-		for(String line : lines)
-			ret += "  " + line + "\n";
-		return ret;
-	}
-
-	public Map<String, Object> asMap() {
-		Map<String, Object> node = new HashMap<String, Object>();
-		node.put("value", value);
-		node.put("num", trainSet.size());
-		if(splitFeature != null){
-			node.put("splitOn", splitFeature);
-			node.put("splitValue", splitValue);
-		}
-		if(right != null)
-			node.put("right", right.asMap());
-		if(left != null)
-			node.put("left", left.asMap());
-		return node;
-	}
-	
 	@SuppressWarnings("unchecked")
 	public void loadFromJSON(DecisionTree<E> parent, Map<String, Object> json){
 		this.parent = parent;
@@ -196,16 +232,17 @@ public class SplitNode<E extends Instance> {
 			this.right = parent.readNodeFromJSON((Map<String, Object>) json.get("right"));
 	}
 
+	/**
+	 * Children of split nodes are split nodes (@see {@link #createChild}).
+	 */
+	@Override
 	public SplitNode<E> getRight() {
-		return this.right;
+		return (SplitNode<E>) this.right;
 	}
 	
+	@Override
 	public SplitNode<E> getLeft() {
-		return this.left;
-	}
-
-	public String getSplitVariable() {
-		return this.splitFeature;
+		return (SplitNode<E>) this.left;
 	}
 
 	public void prune(Set<Object> distinctLabels) {
@@ -213,9 +250,9 @@ public class SplitNode<E extends Instance> {
 			
 			Set<Object> below = new HashSet<Object>();
 			if(this.left != null)
-				this.left.prune(below);
+				getLeft().prune(below);
 			if(this.right != null)
-				this.right.prune(below);
+				getRight().prune(below);
 			
 			if(below.size() == 1){
 				this.right = null;
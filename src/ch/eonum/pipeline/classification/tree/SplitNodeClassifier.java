@@ -31,66 +31,110 @@ public class SplitNodeClassifier<E extends Instance> extends SplitNode<E> {
 		this.u = 1.;
 	}
 
-	@Override
 	/**
-	 * Select a split variable and value by maximizing the twoing measure.
+	 * Find the best split value of a feature by maximizing the twoing
+	 * measure.
 	 */
-	protected void pickSplitFeature(int minSize, Features fs) {
+	@Override
+	protected double[] bestSplit(String feature, int minSize) {
 		double maxTwoing = Double.NEGATIVE_INFINITY;
-		for (int f = 0; f < fs.size(); f++) {
-			String feature = fs.getFeatureByIndex(f);
-			List<Double> splits = parent.getSplitsForFeature(feature);
-			for (Double sv : splits) {
-				Map<String, Integer> geClassDistribution = createNullDistribution();
-				Map<String, Integer> ltClassDistribution = createNullDistribution();
-				int ltNum = 0;
-				int geNum = 0;
-				for (Instance each : trainSet)
-					if (each.get(feature) >= sv) {
-						geClassDistribution.put(each.groundTruth,
-								geClassDistribution.get(each.groundTruth) + 1);
-						geNum++;
-					} else {
-						ltClassDistribution.put(each.groundTruth,
-								ltClassDistribution.get(each.groundTruth) + 1);
-						ltNum++;
-					}
-
-				/** twoing splitting rule. */
-				double q = ((double) geNum) / (geNum + ltNum);
-				double twoing = Math.pow(q * (1 - q), u);
-				double sum = 0.0;
-				for (String className : classes.asSet()) {
-					double pl = geNum == 0 ? 0.0 : geClassDistribution
-							.get(className) / (double) geNum;
-					double pr = ltNum == 0 ? 0.0 : ltClassDistribution
-							.get(className) / (double) ltNum;
-					sum += Math.abs(pl - pr);
+		double bestValue = Double.NaN;
+		List<Double> splits = parent.getSplitsForFeature(feature);
+		for (Double sv : splits) {
+			Map<String, Integer> geClassDistribution = createNullDistribution();
+			Map<String, Integer> ltClassDistribution = createNullDistribution();
+			int ltNum = 0;
+			int geNum = 0;
+			for (Instance each : trainSet)
+				if (each.get(feature) >= sv) {
+					geClassDistribution.put(each.groundTruth,
+							geClassDistribution.get(each.groundTruth) + 1);
+					geNum++;
+				} else {
+					ltClassDistribution.put(each.groundTruth,
+							ltClassDistribution.get(each.groundTruth) + 1);
+					ltNum++;
 				}
-				twoing *= sum;
 
-				if (twoing > maxTwoing && ltNum > minSize && geNum > minSize) {
-					maxTwoing = twoing;
-					splitFeature = feature;
-					splitValue = sv;
-				}
+			/** twoing splitting rule. */
+			double q = ((double) geNum) / (geNum + ltNum);
+			double twoing = Math.pow(q * (1 - q), u);
+			double sum = 0.0;
+			for (String className : classes.asSet()) {
+				double pl = geNum == 0 ? 0.0 : geClassDistribution
+						.get(className) / (double) geNum;
+				double pr = ltNum == 0 ? 0.0 : ltClassDistribution
+						.get(className) / (double) ltNum;
+				sum += Math.abs(pl - pr);
+			}
+			twoing *= sum;
+
+			if (twoing > maxTwoing && ltNum > minSize && geNum > minSize) {
+				maxTwoing = twoing;
+				bestValue = sv;
 			}
 		}
 		if (maxTwoing == Double.NEGATIVE_INFINITY)
-			return;
-		DataSet<E> leftTrain = new DataSet<E>();
-		DataSet<E> rightTrain = new DataSet<E>();
-		for (E each : trainSet)
-			if (each.get(splitFeature) >= splitValue) {
-				leftTrain.add(each);
-			} else {
-				rightTrain.add(each);
+			return null;
+		return new double[] { maxTwoing, bestValue };
+	}
+
+	@Override
+	protected SplitNode<E> createChild(DataSet<E> trainSet) {
+		return new SplitNodeClassifier<E>(parent, depth + 1, trainSet, classes);
+	}
+
+	/**
+	 * Class counts.
+	 */
+	@Override
+	protected int statsWidth() {
+		return classes.size();
+	}
+
+	@Override
+	protected void addStats(double[] stats, int offset, Instance instance) {
+		int c = classes.indexOf(instance.groundTruth);
+		if (c != -1)
+			stats[offset + c] += 1.0;
+	}
+
+	@Override
+	protected double count(double[] stats) {
+		double sum = 0.0;
+		for (double each : stats)
+			sum += each;
+		return sum;
+	}
+
+	/**
+	 * twoing splitting rule.
+	 */
+	@Override
+	protected double splitScore(double[] ge, double[] lt) {
+		double geNum = count(ge);
+		double ltNum = count(lt);
+		double q = geNum / (geNum + ltNum);
+		double twoing = Math.pow(q * (1 - q), u);
+		double sum = 0.0;
+		for (int c = 0; c < ge.length; c++) {
+			double pl = geNum == 0 ? 0.0 : ge[c] / geNum;
+			double pr = ltNum == 0 ? 0.0 : lt[c] / ltNum;
+			sum += Math.abs(pl - pr);
+		}
+		return twoing * sum;
+	}
+
+	@Override
+	protected void calculateValue(double[] totals) {
+		double maxValue = Double.NEGATIVE_INFINITY;
+		for (String className : classes.asSet()) {
+			double count = totals[classes.getIndexFromFeature(className)];
+			if (count > maxValue) {
+				maxValue = count;
+				label = className;
 			}
-		left = new SplitNodeClassifier<E>(parent, depth + 1, leftTrain, classes);
-		right = new SplitNodeClassifier<E>(parent, depth + 1, rightTrain,
-				classes);
-		left.train(); // #TODO parallelize
-		right.train();
+		}
 	}
 
 	private Map<String, Integer> createNullDistribution() {
@@ -130,7 +174,7 @@ public class SplitNodeClassifier<E extends Instance> extends SplitNode<E> {
 
 	@Override
 	public String toString() {
-		String tree = "{ 'label' : " + label + ", 'num' : " + (trainSet == null ? "NaN" : trainSet.size());
+		String tree = "{ 'label' : " + label + ", 'num' : " + (numTrain == -1 ? "NaN" : numTrain);
 		if (splitFeature != null)
 			tree += ", 'splitOn' : '" + splitFeature + "', 'splitValue' : "
 					+ splitValue;
@@ -142,6 +186,14 @@ public class SplitNodeClassifier<E extends Instance> extends SplitNode<E> {
 		return tree;
 	}
 
+	/**
+	 * Index of the class label.
+	 */
+	@Override
+	double leafValue() {
+		return classes.indexOf(label);
+	}
+
 	public String getLabel() {
 		return this.label;
 	}
@@ -152,9 +204,9 @@ public class SplitNodeClassifier<E extends Instance> extends SplitNode<E> {
 
 		Set<Object> below = new HashSet<Object>();
 		if (this.left != null)
-			this.left.prune(below);
+			getLeft().prune(below);
 		if (this.right != null)
-			this.right.prune(below);
+			getRight().prune(below);
 
 		if (below.size() == 1) {
 			this.right = null;
@@ -0,0 +1,465 @@
+package ch.eonum.pipeline.classification.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import ch.eonum.pipeline.core.Features;
+import ch.eonum.pipeline.core.Instance;
+
+/**
+ * Node in a binary decision tree. Holds the structure of the tree and the
+ * histogram based training on precomputed statistics of each row. Subclasses
+ * define the statistics, the split score and the value of a node.
+ * 
+ * @see SplitNode
+ * @see NewtonSplitNode
+ * @author tim
+ *
+ */
+public abstract class TreeNode<E extends Instance> {
+
+	/** depth of this node within the tree. */
+	protected int depth;
+	/** decision tree where this node belongs to. */
+	protected DecisionTree<E> parent;
+	/** split feature. null if this is a terminal node. */
+	protected String splitFeature;
+	/** split value. */
+	protected double splitValue;
+	/** value (average outcome) of this node. */
+	protected double value;
+	/** left Node. null if this is a terminal node. */
+	protected TreeNode<E> left;
+	/** right Node. null if this is a terminal node. */
+	protected TreeNode<E> right;
+	/** number of training instances. -1 if unknown. */
+	protected int numTrain;
+	/**
+	 * random number generator of this node. children derive their generator
+	 * from their parent, hence training is deterministic for a given seed,
+	 * independent of the order in which nodes are trained.
+	 */
+	private Random rand;
+
+	/** fork/join pool for parallel tree growth. */
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	public TreeNode(DecisionTree<E> parent, int depth) {
+		this.parent = parent;
+		this.depth = depth;
+		this.numTrain = -1;
+	}
+
+	/**
+	 * Create a child node of this node for histogram based training.
+	 * 
+	 * @return
+	 */
+	protected abstract TreeNode<E> createBinnedChild();
+
+	/**
+	 * Let a child derive its random number generator from this node.
+	 * 
+	 * @param child
+	 * @return child
+	 */
+	protected <N extends TreeNode<E>> N deriveRandom(N child) {
+		TreeNode<E> node = child;
+		node.rand = new Random(getRandom().nextLong());
+		return child;
+	}
+
+	private TreeNode<E> newBinnedChild() {
+		return deriveRandom(createBinnedChild());
+	}
+
+	/**
+	 * Get the random number generator of this node. The root node takes its
+	 * generator from the tree.
+	 * 
+	 * @return
+	 */
+	protected Random getRandom() {
+		if (rand == null)
+			rand = parent.getRandom();
+		return rand;
+	}
+
+	/**
+	 * Check if a node with the provided number of training instances is
+	 * trained in parallel.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	protected boolean isParallel(int size) {
+		double minParallelSize = parent.getDoubleParameter("minParallelSize");
+		return minParallelSize > 0 && size >= minParallelSize;
+	}
+
+	/**
+	 * Run all tasks in the fork/join pool and wait for their completion.
+	 * 
+	 * @param tasks
+	 */
+	protected static void invokeAll(List<Runnable> tasks) {
+		final List<NodeTask> actions = new ArrayList<NodeTask>();
+		for (Runnable each : tasks)
+			actions.add(new NodeTask(each));
+		if (ForkJoinTask.inForkJoinPool())
+			ForkJoinTask.invokeAll(actions);
+		else
+			POOL.invoke(new NodeTask(new Runnable() {
+				@Override
+				public void run() {
+					ForkJoinTask.invokeAll(actions);
+				}
+			}));
+	}
+
+	/**
+	 * Train both children. Subtrees with enough training instances are
+	 * trained in parallel.
+	 */
+	protected void trainChildren(int size, Runnable trainLeft, Runnable trainRight) {
+		if (isParallel(size)) {
+			invokeAll(Arrays.asList(trainLeft, trainRight));
+		} else {
+			trainLeft.run();
+			trainRight.run();
+		}
+	}
+
+	public boolean isTerminal(){
+		return right == null && left == null;
+	}
+
+	/**
+	 * Select the features which are taken into account at this node.
+	 * 
+	 * @return
+	 */
+	protected Features selectFeatures() {
+		Features fs = parent.getFeatures();
+		double k = parent.getDoubleParameter("k");
+		if(k < 1.0){
+			Random rand = getRandom();
+			fs = new Features();
+			for(int f = 0; f < parent.getFeatures().size(); f++)
+				if(rand.nextDouble() < k)
+					fs.addFeature(parent.getFeatures().getFeatureByIndex(f));
+			fs.recalculateIndex();
+		}
+		return fs;
+	}
+
+	/**
+	 * Histogram based training. Instead of scanning the training set for
+	 * each split candidate, the statistics of all instances are accumulated
+	 * per feature and bin in one single pass. The histogram of the larger
+	 * child is derived by subtracting the histogram of the smaller child from
+	 * the histogram of this node.
+	 * 
+	 * @param binned
+	 *            quantized training data
+	 * @param rowStats
+	 *            statistics of each row, {@link #statsWidth()} values per row,
+	 *            multiplied by the multiplicity of the row
+	 * @param rows
+	 *            rows of the training instances of this node
+	 * @param hist
+	 *            histogram of this node. null if it has to be calculated.
+	 */
+	public void trainBinned(BinnedDataSet<E> binned, double[] rowStats,
+			int[] rows, double[] hist) {
+		int w = statsWidth();
+		double[] totals = new double[w];
+		for (int r : rows)
+			for (int i = 0; i < w; i++)
+				totals[i] += rowStats[r * w + i];
+		this.numTrain = (int) count(totals);
+		this.calculateValue(totals);
+		/** check for termination. */
+		int minSize = (int)parent.getDoubleParameter("minSize");
+		if (depth >= parent.getDoubleParameter("maxDepth")
+				|| numTrain <= minSize) {
+			return;
+		}
+		Features fs = selectFeatures();
+		if (hist == null)
+			hist = buildHistogram(binned, rowStats, rows);
+
+		double maxScore = Double.NEGATIVE_INFINITY;
+		int splitIndex = -1;
+		int splitBin = -1;
+		double[] lt = new double[w];
+		double[] ge = new double[w];
+		for (int f = 0; f < fs.size(); f++) {
+			int fi = parent.getFeatures().indexOf(fs.getFeatureByIndex(f));
+			Arrays.fill(lt, 0.0);
+			for (int b = 0; b < binned.numBins(fi) - 1; b++) {
+				int offset = (binned.offset(fi) + b) * w;
+				for (int i = 0; i < w; i++) {
+					lt[i] += hist[offset + i];
+					ge[i] = totals[i] - lt[i];
+				}
+				if (count(lt) <= minSize || count(ge) <= minSize)
+					continue;
+				double score = splitScore(ge, lt);
+				if (score > maxScore) {
+					maxScore = score;
+					splitIndex = fi;
+					splitBin = b;
+				}
+			}
+		}
+		if (splitIndex == -1)
+			return;
+		splitFeature = parent.getFeatures().getFeatureByIndex(splitIndex);
+		splitValue = binned.getThreshold(splitIndex, splitBin);
+
+		/** partition the rows. left: >= splitValue. right: < splitValue. */
+		byte[] bins = binned.getBins(splitIndex);
+		int numLeft = 0;
+		for (int r : rows)
+			if ((bins[r] & 0xFF) > splitBin)
+				numLeft++;
+		int[] leftRows = new int[numLeft];
+		int[] rightRows = new int[rows.length - numLeft];
+		int l = 0;
+		int ri = 0;
+		for (int r : rows)
+			if ((bins[r] & 0xFF) > splitBin)
+				leftRows[l++] = r;
+			else
+				rightRows[ri++] = r;
+
+		/** histogram subtraction. the parent histogram is reused. */
+		double[] leftHist;
+		double[] rightHist;
+		if (leftRows.length < rightRows.length) {
+			leftHist = buildHistogram(binned, rowStats, leftRows);
+			rightHist = subtract(hist, leftHist);
+		} else {
+			rightHist = buildHistogram(binned, rowStats, rightRows);
+			leftHist = subtract(hist, rightHist);
+		}
+		hist = null;
+		left = newBinnedChild();
+		right = newBinnedChild();
+		trainChildren(rows.length, new BinnedTraining<E>(left, binned,
+				rowStats, leftRows, leftHist), new BinnedTraining<E>(right,
+				binned, rowStats, rightRows, rightHist));
+	}
+
+	/** histogram based training of a child. */
+	private static class BinnedTraining<E extends Instance> implements Runnable {
+		private final TreeNode<E> node;
+		private final BinnedDataSet<E> binned;
+		private final double[] rowStats;
+		private final int[] rows;
+		private final double[] hist;
+
+		BinnedTraining(TreeNode<E> node, BinnedDataSet<E> binned,
+				double[] rowStats, int[] rows, double[] hist) {
+			this.node = node;
+			this.binned = binned;
+			this.rowStats = rowStats;
+			this.rows = rows;
+			this.hist = hist;
+		}
+
+		@Override
+		public void run() {
+			node.trainBinned(binned, rowStats, rows, hist);
+		}
+	}
+
+	/**
+	 * Accumulate the statistics of all rows per feature and bin. Features are
+	 * processed in parallel for large nodes.
+	 */
+	private double[] buildHistogram(final BinnedDataSet<E> binned,
+			final double[] rowStats, final int[] rows) {
+		final double[] hist = new double[binned.totalBins() * statsWidth()];
+		if (!isParallel(rows.length)) {
+			buildHistogram(binned, rowStats, rows, hist, 0, binned.numFeatures());
+			return hist;
+		}
+		int numTasks = Math.min(binned.numFeatures(),
+				POOL.getParallelism() * 4);
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int t = 0; t < numTasks; t++) {
+			final int from = (int) ((long) t * binned.numFeatures() / numTasks);
+			final int to = (int) ((long) (t + 1) * binned.numFeatures() / numTasks);
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					buildHistogram(binned, rowStats, rows, hist, from, to);
+				}
+			});
+		}
+		invokeAll(tasks);
+		return hist;
+	}
+
+	/**
+	 * Accumulate the histogram for the features [from, to).
+	 */
+	private void buildHistogram(BinnedDataSet<E> binned, double[] rowStats,
+			int[] rows, double[] hist, int from, int to) {
+		int w = statsWidth();
+		for (int f = from; f < to; f++) {
+			byte[] bins = binned.getBins(f);
+			int base = binned.offset(f);
+			for (int r : rows) {
+				int offset = (base + (bins[r] & 0xFF)) * w;
+				int rowOffset = r * w;
+				for (int i = 0; i < w; i++)
+					hist[offset + i] += rowStats[rowOffset + i];
+			}
+		}
+	}
+
+	/** subtract child from parent in place and return parent. */
+	private static double[] subtract(double[] parent, double[] child) {
+		for (int i = 0; i < parent.length; i++)
+			parent[i] -= child[i];
+		return parent;
+	}
+
+	/**
+	 * Number of statistics accumulated per instance in histogram based
+	 * training.
+	 * 
+	 * @return
+	 */
+	protected abstract int statsWidth();
+
+	/**
+	 * Number of instances in the provided statistics.
+	 * 
+	 * @param stats
+	 * @return
+	 */
+	protected double count(double[] stats) {
+		return stats[0];
+	}
+
+	/**
+	 * Score of a split given the statistics of both sides. The higher the
+	 * better.
+	 * 
+	 * @param ge
+	 *            statistics of instances >= split value
+	 * @param lt
+	 *            statistics of instances < split value
+	 * @return
+	 */
+	protected abstract double splitScore(double[] ge, double[] lt);
+
+	/**
+	 * Calculate the value of this node from the statistics of all training
+	 * instances.
+	 * 
+	 * @param totals
+	 */
+	protected abstract void calculateValue(double[] totals);
+
+	/**
+	 * Fork/join action running a training task.
+	 */
+	private static class NodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Runnable task;
+
+		NodeTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		protected void compute() {
+			task.run();
+		}
+	}
+
+	public void test(Instance each) {
+		if (isTerminal())
+			each.putResult("result", value);
+		else {
+			if (each.get(splitFeature) >= splitValue) {
+				left.test(each);
+			} else {
+				right.test(each);
+			}
+		}
+	}
+	
+	public String toString(){
+		String tree = "{ 'value' : " + value + ", 'num' : " + (numTrain == -1 ? "NaN" : numTrain);
+		if(splitFeature != null)
+			tree += ", 'splitOn' : '" + splitFeature + "', 'splitValue' : " + splitValue;
+		if(right != null)
+			tree += ", \n'right' : " + indent(right.toString());
+		if(left != null)
+			tree += ", 'left' : " + indent(left.toString());
+		tree += "}";
+		return tree;
+	}
+
+	protected String indent(String string) {
+		String[] lines = string.split("\n");
+		String ret = "";
+		for(String line : lines)
+			ret += "  " + line + "\n";
+		return ret;
+	}
+
+	public Map<String, Object> asMap() {
+		Map<String, Object> node = new HashMap<String, Object>();
+		node.put("value", value);
+		node.put("num", numTrain);
+		if(splitFeature != null){
+			node.put("splitOn", splitFeature);
+			node.put("splitValue", splitValue);
+		}
+		if(right != null)
+			node.put("right", right.asMap());
+		if(left != null)
+			node.put("left", left.asMap());
+		return node;
+	}
+	
+	public TreeNode<E> getRight() {
+		return this.right;
+	}
+	
+	public TreeNode<E> getLeft() {
+		return this.left;
+	}
+
+	public String getSplitVariable() {
+		return this.splitFeature;
+	}
+
+	public double getSplitValue() {
+		return this.splitValue;
+	}
+
+	/**
+	 * Value of this node in the compiled representation of the tree.
+	 * 
+	 * @see FlatTree
+	 * @return
+	 */
+	double leafValue() {
+		return value;
+	}
+}
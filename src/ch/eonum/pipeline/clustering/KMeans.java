@@ -0,0 +1,436 @@
+package ch.eonum.pipeline.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ch.eonum.pipeline.distance.Kernels;
+
+/**
+ * K-means engine on primitive arrays with the euclidian distance.
+ *
+ * <ul>
+ * <li>The centers are initialized with k-means++ using a seeded random
+ * generator, hence the clustering is reproducible.</li>
+ * <li>{@link #fit(double[][])} runs Lloyd iterations with the triangle
+ * inequality pruning by Hamerly: an upper bound of the distance to the
+ * assigned center and a lower bound of the distance to all other centers are
+ * kept per point. Only points whose bounds overlap are compared with the
+ * centers. The points are distributed over all processors, each thread sums
+ * the points of its clusters, the partial sums are added in thread order.</li>
+ * <li>{@link #partialFit(double[][])} is the mini batch k-means by Sculley
+ * (per center learning rates). Batches can be streamed, hence the data does
+ * not have to fit into memory. {@link #fitMiniBatch(double[][], int, int)}
+ * samples the batches from an array.</li>
+ * </ul>
+ *
+ * @author tim
+ *
+ */
+public class KMeans {
+	/** minimal number of points per thread. */
+	private static final int MIN_POINTS_PER_THREAD = 1000;
+
+	private final int k;
+	private final Random rand;
+	private int maxIterations = 100;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** k x dim centers. */
+	private double[][] centers;
+	/** number of points of each center. */
+	private int[] sizes;
+	/** cluster of each point of the last fit. */
+	private int[] assignments;
+	/** number of points seen by each center in mini batch updates. */
+	private long[] counts;
+	/** number of distance evaluations since the initialization. */
+	private long distanceEvaluations;
+
+	/**
+	 * @param k
+	 *            number of clusters
+	 * @param seed
+	 *            seed for the initialization and the mini batches
+	 */
+	public KMeans(int k, long seed) {
+		if (k < 1)
+			throw new IllegalArgumentException("k has to be at least 1: " + k);
+		this.k = k;
+		this.rand = new Random(seed);
+	}
+
+	/**
+	 * Maximal number of iterations of {@link #fit(double[][])}. The fit stops
+	 * earlier if no point changes its cluster.
+	 *
+	 * @param maxIterations
+	 */
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Number of threads for the assignment. Default: number of processors.
+	 * The result depends on the number of threads only by rounding.
+	 *
+	 * @param numThreads
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * k-means++ initialization: the first center is a random point, each
+	 * further center is a point drawn with probability proportional to the
+	 * squared distance to its nearest center so far.
+	 *
+	 * @param data
+	 */
+	public void initPlusPlus(double[][] data) {
+		if (data.length == 0)
+			throw new IllegalArgumentException("Cannot cluster an empty data set");
+		int n = data.length;
+		centers = new double[k][];
+		centers[0] = data[rand.nextInt(n)].clone();
+		double[] d2 = new double[n];
+		double total = 0.0;
+		for (int i = 0; i < n; i++) {
+			d2[i] = Kernels.squared(data[i], centers[0]);
+			total += d2[i];
+		}
+		for (int c = 1; c < k; c++) {
+			int next = rand.nextInt(n);
+			if (total > 0.0) {
+				double r = rand.nextDouble() * total;
+				for (int i = 0; i < n; i++) {
+					r -= d2[i];
+					if (r < 0.0 || i == n - 1) {
+						next = i;
+						break;
+					}
+				}
+			}
+			centers[c] = data[next].clone();
+			total = 0.0;
+			for (int i = 0; i < n; i++) {
+				d2[i] = Math.min(d2[i], Kernels.squared(data[i], centers[c]));
+				total += d2[i];
+			}
+		}
+		distanceEvaluations = (long) n * k;
+		counts = new long[k];
+	}
+
+	/**
+	 * Cluster the data. The centers are initialized with k-means++ if they
+	 * have not been initialized yet.
+	 *
+	 * @param data
+	 *            points, all of the same dimension
+	 * @return number of iterations
+	 */
+	public int fit(final double[][] data) {
+		if (centers == null)
+			initPlusPlus(data);
+		final int n = data.length;
+		final int dim = centers[0].length;
+		assignments = new int[n];
+		/** upper bound of the distance to the assigned center. */
+		final double[] upper = new double[n];
+		/** lower bound of the distance to the second nearest center. */
+		final double[] lower = new double[n];
+		/** half the distance of each center to its nearest other center. */
+		final double[] s = new double[k];
+		final double[] delta = new double[k];
+
+		int threads = Math.max(1, Math.min(numThreads, n / MIN_POINTS_PER_THREAD));
+		ExecutorService service = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		final double[][][] partialSums = new double[threads][k][dim];
+		final int[][] partialSizes = new int[threads][k];
+		final int[] changed = new int[threads];
+		final long[] evaluations = new long[threads];
+
+		int iteration = 0;
+		while (true) {
+			final boolean first = iteration == 0;
+			if (!first)
+				centerDistances(s);
+			final int maxDelta = argMax(delta, -1);
+			final int secondDelta = argMax(delta, maxDelta);
+			List<Runnable> tasks = new ArrayList<Runnable>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				final int from = (int) ((long) t * n / threads);
+				final int to = (int) ((long) (t + 1) * n / threads);
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						double[][] sum = partialSums[thread];
+						int[] size = partialSizes[thread];
+						for (int c = 0; c < k; c++) {
+							Arrays.fill(sum[c], 0.0);
+							size[c] = 0;
+						}
+						int moved = 0;
+						long evals = 0;
+						for (int i = from; i < to; i++) {
+							double[] x = data[i];
+							int a = assignments[i];
+							if (first) {
+								assignNearest(x, i, assignments, upper, lower);
+								evals += k;
+							} else {
+								upper[i] += delta[a];
+								lower[i] -= delta[a == maxDelta ? secondDelta
+										: maxDelta];
+								double m = Math.max(s[a], lower[i]);
+								if (upper[i] > m) {
+									upper[i] = Math.sqrt(Kernels.squared(x, centers[a]));
+									evals++;
+									if (upper[i] > m) {
+										assignNearest(x, i, assignments, upper, lower);
+										evals += k;
+										if (assignments[i] != a)
+											moved++;
+									}
+								}
+							}
+							a = assignments[i];
+							size[a]++;
+							add(sum[a], x);
+						}
+						changed[thread] = moved;
+						evaluations[thread] = evals;
+					}
+				});
+			}
+			run(tasks, service);
+			int moved = 0;
+			for (int t = 0; t < threads; t++) {
+				moved += changed[t];
+				distanceEvaluations += evaluations[t];
+			}
+			iteration++;
+			/** new centers. empty clusters keep their center. */
+			this.sizes = new int[k];
+			for (int c = 0; c < k; c++) {
+				double[] center = new double[dim];
+				for (int t = 0; t < threads; t++) {
+					this.sizes[c] += partialSizes[t][c];
+					add(center, partialSums[t][c]);
+				}
+				if (this.sizes[c] == 0) {
+					delta[c] = 0.0;
+					continue;
+				}
+				for (int f = 0; f < dim; f++)
+					center[f] /= this.sizes[c];
+				delta[c] = Math.sqrt(Kernels.squared(center, centers[c]));
+				centers[c] = center;
+			}
+			if ((!first && moved == 0) || iteration >= maxIterations)
+				break;
+		}
+		if (service != null)
+			service.shutdown();
+		return iteration;
+	}
+
+	/**
+	 * Update the centers with a mini batch. Each point moves its nearest
+	 * center towards it with the learning rate 1 / (number of points seen by
+	 * this center). The centers are initialized with k-means++ on the first
+	 * batch.
+	 *
+	 * @param batch
+	 */
+	public void partialFit(double[][] batch) {
+		if (centers == null)
+			initPlusPlus(batch);
+		int[] nearest = new int[batch.length];
+		for (int i = 0; i < batch.length; i++)
+			nearest[i] = nearest(batch[i]);
+		distanceEvaluations += (long) batch.length * k;
+		for (int i = 0; i < batch.length; i++) {
+			int c = nearest[i];
+			counts[c]++;
+			double eta = 1.0 / counts[c];
+			double[] center = centers[c];
+			double[] x = batch[i];
+			for (int f = 0; f < center.length; f++)
+				center[f] += eta * (x[f] - center[f]);
+		}
+	}
+
+	/**
+	 * Mini batch k-means on batches drawn with replacement from the data.
+	 * The data is assigned to the resulting centers.
+	 *
+	 * @param data
+	 * @param batchSize
+	 * @param iterations
+	 *            number of batches
+	 */
+	public void fitMiniBatch(double[][] data, int batchSize, int iterations) {
+		double[][] batch = new double[Math.min(batchSize, data.length)][];
+		for (int it = 0; it < iterations; it++) {
+			for (int i = 0; i < batch.length; i++)
+				batch[i] = data[rand.nextInt(data.length)];
+			partialFit(batch);
+		}
+		assign(data);
+	}
+
+	/**
+	 * Assign each point to its nearest center.
+	 *
+	 * @param data
+	 * @return cluster of each point
+	 */
+	public int[] assign(double[][] data) {
+		assignments = new int[data.length];
+		sizes = new int[k];
+		for (int i = 0; i < data.length; i++) {
+			assignments[i] = nearest(data[i]);
+			sizes[assignments[i]]++;
+		}
+		distanceEvaluations += (long) data.length * k;
+		return assignments;
+	}
+
+	/**
+	 * Nearest center of a point.
+	 *
+	 * @param x
+	 * @return
+	 */
+	public int nearest(double[] x) {
+		int best = 0;
+		double min = Double.POSITIVE_INFINITY;
+		for (int c = 0; c < k; c++) {
+			double d = Kernels.squared(x, centers[c]);
+			if (d < min) {
+				min = d;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private void assignNearest(double[] x, int i, int[] assignments,
+			double[] upper, double[] lower) {
+		int best = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double second = Double.POSITIVE_INFINITY;
+		for (int c = 0; c < k; c++) {
+			double d = Kernels.squared(x, centers[c]);
+			if (d < min) {
+				second = min;
+				min = d;
+				best = c;
+			} else if (d < second)
+				second = d;
+		}
+		assignments[i] = best;
+		upper[i] = Math.sqrt(min);
+		lower[i] = Math.sqrt(second);
+	}
+
+	private void centerDistances(double[] s) {
+		Arrays.fill(s, Double.POSITIVE_INFINITY);
+		for (int c = 0; c < k; c++)
+			for (int o = c + 1; o < k; o++) {
+				double d = 0.5 * Math.sqrt(Kernels.squared(centers[c], centers[o]));
+				s[c] = Math.min(s[c], d);
+				s[o] = Math.min(s[o], d);
+			}
+		distanceEvaluations += (long) k * (k - 1) / 2;
+	}
+
+	/** index of the maximum of values, skipping index skip. */
+	private static int argMax(double[] values, int skip) {
+		int max = skip == 0 && values.length > 1 ? 1 : 0;
+		for (int i = 0; i < values.length; i++)
+			if (i != skip && values[i] > values[max])
+				max = i;
+		return max;
+	}
+
+	private static void add(double[] sum, double[] x) {
+		int n = sum.length & ~3;
+		int f = 0;
+		for (; f < n; f += 4) {
+			sum[f] += x[f];
+			sum[f + 1] += x[f + 1];
+			sum[f + 2] += x[f + 2];
+			sum[f + 3] += x[f + 3];
+		}
+		for (; f < sum.length; f++)
+			sum[f] += x[f];
+	}
+
+	private static void run(List<Runnable> tasks, ExecutorService service) {
+		if (service == null) {
+			for (Runnable task : tasks)
+				task.run();
+			return;
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (Runnable task : tasks)
+			futures.add(service.submit(task));
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * k x dim cluster centers.
+	 *
+	 * @return
+	 */
+	public double[][] getCenters() {
+		return centers;
+	}
+
+	/**
+	 * Cluster of each point of the last {@link #fit(double[][])} or
+	 * {@link #assign(double[][])}.
+	 *
+	 * @return
+	 */
+	public int[] getAssignments() {
+		return assignments;
+	}
+
+	/**
+	 * Number of points in each cluster of the last assignment.
+	 *
+	 * @return
+	 */
+	public int[] getSizes() {
+		return sizes;
+	}
+
+	/**
+	 * Number of point to center distances computed so far. Compare with
+	 * points x k x iterations to see the effect of the pruning.
+	 *
+	 * @return
+	 */
+	public long getDistanceEvaluations() {
+		return distanceEvaluations;
+	}
+}
@@ -1,17 +1,25 @@
 package ch.eonum.pipeline.clustering;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 
 import ch.eonum.pipeline.util.Log;
 import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
+import ch.eonum.pipeline.core.SparseInstance;
+import ch.eonum.pipeline.distance.MinkowskiDistance;
 
 
 /**
  * KMeans clustering. @link http://en.wikipedia.org/wiki/K-means_clustering
+ * With the euclidian distance (minkowski 2.0), the clusters are calculated by
+ * the {@link KMeans} engine on the arrays of the instances (using the features
+ * of this classifier). With any other distance, the clusters are calculated
+ * by Lloyd iterations with that distance directly on the instances.
  * 
  * @author tim
  *
@@ -22,8 +30,12 @@ public class KmeansClustering<E extends Instance> extends Clustering<E> {
 	static {
 		PARAMETERS.put("k", "number of clusters " +
 				":  (default 5.0)");
-		PARAMETERS.put("maxIter", "number of iterations " +
-				":  (default 15.0)");
+		PARAMETERS.put("maxIter", "maximum number of iterations, number of passes over the data with mini batches " +
+				":  (default 10.0)");
+		PARAMETERS.put("seed", "seed for the k-means++ initialization and the mini batches " +
+				":  (default 1.0)");
+		PARAMETERS.put("batchSize", "size of the mini batches, 0 for iterations over the whole data set. euclidian distance only " +
+				":  (default 0.0)");
 	}
 	
 	/** variance of each cluster. */
@@ -34,6 +46,8 @@ public class KmeansClustering<E extends Instance> extends Clustering<E> {
 		this.setSupportedParameters(KmeansClustering.PARAMETERS);
 		this.putParameter("k", 5.0);
 		this.putParameter("maxIter", 10.0);
+		this.putParameter("seed", 1.0);
+		this.putParameter("batchSize", 0.0);
 	}
 
 	/**
@@ -55,88 +69,203 @@ public class KmeansClustering<E extends Instance> extends Clustering<E> {
 		this.normalizedClusterCenters = new HashMap<String, Instance>();
 		this.clusterSizes = new HashMap<String, Integer>();
 		this.clusterLengths = new HashMap<String, Double>();
+		this.clusterVariances = new HashMap<String, Instance>();
+		if (this.features == null)
+			this.setFeatures(Features.createFromDataSets(data));
 		
-		/**
-		 * Alternatively initialization could be done using a prototype
-		 * selection algorithm. E.g. Spanning Prototype Selection.
-		 */
-		this.initRandom(data);
-		
-		for(int iteration = 0; iteration < (int)this.getDoubleParameter("maxIter"); iteration++){
-			for(String cluster : this.clusterCenters.keySet()){
-				this.clusterSizes.put(cluster, 1);
+		int k = (int)this.getDoubleParameter("k");
+		Log.puts("Number of clusters: " + k);
+		if (isEuclidian())
+			clusterEuclidian(data, k);
+		else {
+			Log.puts("KMeans with " + distance.getClass().getSimpleName()
+					+ ": clustering on the instances");
+			clusterGeneric(data, k);
+		}
+		for(Instance each : clusterCenters.values()){
+			double length = this.distance.length(each);
+			this.clusterLengths.put(each.id, length);
+			Instance normedCenter = each.copy();
+			normedCenter.divideBy(length);
+			this.normalizedClusterCenters.put(each.id, normedCenter);
+		}
+	}
+
+	/**
+	 * The {@link KMeans} engine minimizes the euclidian distance.
+	 */
+	private boolean isEuclidian() {
+		return distance instanceof MinkowskiDistance
+				&& distance.getDoubleParameter("minkowski") == 2.0;
+	}
+
+	/**
+	 * Cluster with the {@link KMeans} engine. Without mini batches all
+	 * instances are converted to arrays once, which takes the memory of a
+	 * dense n x features matrix. Use mini batches for large or high
+	 * dimensional data sets.
+	 */
+	private void clusterEuclidian(DataSet<E> data, int k) {
+		int maxIter = (int)this.getDoubleParameter("maxIter");
+		int batchSize = (int)this.getDoubleParameter("batchSize");
+		KMeans kmeans = new KMeans(k, (long)this.getDoubleParameter("seed"));
+		kmeans.setMaxIterations(maxIter);
+		double[][] points = null;
+		if (batchSize > 0) {
+			/**
+			 * mini batches. only the instances of the current batch are
+			 * converted to arrays.
+			 */
+			Random rand = new Random((long)this.getDoubleParameter("seed"));
+			double[][] batch = new double[Math.min(batchSize, data.size())][];
+			int batches = maxIter * ((data.size() + batchSize - 1) / batchSize);
+			for (int b = 0; b < batches; b++) {
+				for (int i = 0; i < batch.length; i++)
+					batch[i] = data.get(rand.nextInt(data.size())).asArray(features);
+				kmeans.partialFit(batch);
 			}
-			Map<String, Instance> clusterCentersTemp = new HashMap<String, Instance>();
+			Log.puts("KMeans mini batches: " + batches);
+		} else {
+			points = new double[data.size()][];
+			for (int i = 0; i < points.length; i++)
+				points[i] = data.get(i).asArray(features);
+			Log.puts("KMeans iterations: " + kmeans.fit(points));
+		}
+		
+		/** assign the data to the final centers and calculate the variances. */
+		double[][] centers = kmeans.getCenters();
+		int[] sizes = new int[k];
+		double[][] variances = new double[k][features.size()];
+		for (int i = 0; i < data.size(); i++) {
+			double[] x = points != null ? points[i] : data.get(i).asArray(features);
+			int c = kmeans.nearest(x);
+			sizes[c]++;
+			for (int f = 0; f < x.length; f++)
+				variances[c][f] += (x[f] - centers[c][f]) * (x[f] - centers[c][f]);
+		}
+		Log.puts("KMeans distance evaluations: " + kmeans.getDistanceEvaluations());
+		
+		for (int c = 0; c < k; c++) {
+			String clusterName = String.valueOf(c);
+			Log.puts("" + sizes[c]);
+			for (int f = 0; f < variances[c].length && sizes[c] > 0; f++)
+				variances[c][f] /= sizes[c];
+			this.clusterCenters.put(clusterName, createInstance(clusterName, centers[c]));
+			this.clusterSizes.put(clusterName, sizes[c]);
+			this.clusterVariances.put(clusterName, createInstance(clusterName, variances[c]));
+		}
+	}
+
+	/**
+	 * Lloyd iterations with the configured distance on the instances. The
+	 * centers are the means of their clusters and are initialized with random
+	 * instances.
+	 */
+	private void clusterGeneric(DataSet<E> data, int k) {
+		int maxIter = (int)this.getDoubleParameter("maxIter");
+		Random rand = new Random((long)this.getDoubleParameter("seed"));
+		Instance[] centers = new Instance[k];
+		for (int c = 0; c < k; c++)
+			centers[c] = data.get(rand.nextInt(data.size())).copy();
+		int[] assignments = new int[data.size()];
+		Arrays.fill(assignments, -1);
+		for (int iteration = 0; iteration < maxIter; iteration++) {
 			Log.puts("KMeans Iteration " + iteration);
-			for(Instance each : data){
-				String cluster = this.getMaxCluster(each);
-				if(clusterCentersTemp.containsKey(cluster)){
-					clusterCentersTemp.get(cluster).add(each);
-					this.clusterSizes.put(cluster, clusterSizes.get(cluster) + 1); 
-				}
-				else {
-					clusterCentersTemp.put(cluster, each.copy());
-					this.clusterSizes.put(cluster, 1); 
-				}	
-				
-			}
-			for(String e : clusterCentersTemp.keySet())
-				this.clusterCenters.put(e, clusterCentersTemp.get(e));
-			for(String each : clusterCenters.keySet()){
-				clusterCenters.get(each).divideBy(clusterSizes.get(each));
-				Log.puts("" + clusterSizes.get(each));
-			}
-			for(Instance each : clusterCenters.values()){
-				double length = this.distance.length(each);
-				this.clusterLengths.put(each.id, length);
-				Instance normedCenter = each.copy();
-				normedCenter.divideBy(length);
-				this.normalizedClusterCenters.put(each.id, normedCenter);
+			if (!assign(data, centers, assignments))
+				break;
+			Instance[] sums = new Instance[k];
+			int[] sizes = new int[k];
+			for (int i = 0; i < data.size(); i++) {
+				int c = assignments[i];
+				if (sums[c] == null)
+					sums[c] = data.get(i).copy();
+				else
+					sums[c].add(data.get(i));
+				sizes[c]++;
 			}
+			for (int c = 0; c < k; c++)
+				if (sizes[c] > 0) {
+					sums[c].divideBy(sizes[c]);
+					centers[c] = sums[c];
+				}
 		}
-		
-		Log.puts("Calculating variances");
-		this.clusterVariances = new HashMap<String, Instance>();
-		for(Instance each : data){
-			String cluster = this.getMaxCluster(each);
-			Instance diff = each.minusStateless(this.clusterCenters.get(cluster));
+		assign(data, centers, assignments);
+
+		int[] sizes = new int[k];
+		Instance[] variances = new Instance[k];
+		for (int i = 0; i < data.size(); i++) {
+			int c = assignments[i];
+			Instance diff = data.get(i).minusStateless(centers[c]);
 			diff = diff.timesStateless(diff);
-			if(clusterVariances.containsKey(cluster))
-				clusterVariances.get(cluster).add(diff);
+			if (variances[c] == null)
+				variances[c] = diff;
 			else
-				clusterVariances.put(cluster, diff);
+				variances[c].add(diff);
+			sizes[c]++;
 		}
-		for(String each : clusterVariances.keySet()){
-			clusterVariances.get(each).divideBy(clusterSizes.get(each));
+		for (int c = 0; c < k; c++) {
+			String clusterName = String.valueOf(c);
+			Log.puts("" + sizes[c]);
+			if (variances[c] != null)
+				variances[c].divideBy(sizes[c]);
+			this.clusterCenters.put(clusterName, createInstance(clusterName, centers[c]));
+			this.clusterSizes.put(clusterName, sizes[c]);
+			this.clusterVariances.put(clusterName, variances[c] == null ? createInstance(
+					clusterName, new double[0]) : createInstance(clusterName, variances[c]));
 		}
 	}
 
 	/**
-	 * return the nearest cluster for an instance
-	 * @param inst
-	 * @return
+	 * Assign each instance to its nearest center.
+	 * 
+	 * @return true if an assignment has changed
 	 */
-	private String getMaxCluster(Instance inst) {
-		String maxInst = null;
-		double nearest = Double.POSITIVE_INFINITY;
-		for(String clusterCenter : this.clusterCenters.keySet()){
-			double distance = this.distance.distance(this.clusterCenters.get(clusterCenter), inst);
-			if(distance < nearest){
-				nearest = distance;
-				maxInst = clusterCenter;
+	private boolean assign(DataSet<E> data, Instance[] centers, int[] assignments) {
+		boolean changed = false;
+		for (int i = 0; i < data.size(); i++) {
+			int best = 0;
+			double nearest = Double.POSITIVE_INFINITY;
+			for (int c = 0; c < centers.length; c++) {
+				double d = this.distance.distance(centers[c], data.get(i));
+				if (d < nearest) {
+					nearest = d;
+					best = c;
+				}
+			}
+			if (assignments[i] != best) {
+				assignments[i] = best;
+				changed = true;
 			}
 		}
-		return maxInst;
+		return changed;
 	}
 
-	private void initRandom(DataSet<E> data) {
-		int k = (int)this.getDoubleParameter("k");
-		Log.puts("Number of clusters: " + k);
-		for(int i = 0; i < k; i++){
-			String clusterName = String.valueOf(i);
-			Instance inst = data.get((int)(Math.random()*(data.size()-1)));
-			this.clusterCenters.put(clusterName, inst);
-		}
+	/**
+	 * Sparse instance with the non zero values of an instance.
+	 * @param id
+	 * @param values
+	 * @return
+	 */
+	private Instance createInstance(String id, Instance values) {
+		Map<String, Double> vector = new HashMap<String, Double>();
+		for (String feature : values.features())
+			if (values.get(feature) != 0.0)
+				vector.put(feature, values.get(feature));
+		return new SparseInstance(id, id, vector);
+	}
+
+	/**
+	 * Sparse instance with the non zero values of an array.
+	 * @param id
+	 * @param values
+	 * @return
+	 */
+	private Instance createInstance(String id, double[] values) {
+		Map<String, Double> vector = new HashMap<String, Double>();
+		for (int f = 0; f < values.length; f++)
+			if (values[f] != 0.0)
+				vector.put(features.getFeatureByIndex(f), values[f]);
+		return new SparseInstance(id, id, vector);
 	}
 
 	@Override
@@ -0,0 +1,517 @@
+package ch.eonum.pipeline.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Columnar data set. Feature values are not stored in a map per instance but
+ * in primitive arrays indexed by the integer ids of a {@link Features} object.
+ * Sparse data is stored in compressed sparse row format (CSR), dense data
+ * row-major in one single array. The instances of this data set are
+ * lightweight views ({@link ColumnarInstance}) onto these arrays.
+ *
+ * Use this data set for large, read-mostly data. Reading and overwriting
+ * existing values is cheap. Adding a new feature to a sparse row or removing
+ * one has to shift the storage and is O(number of non-zero values).
+ *
+ * Concurrent reads are safe, concurrent writes are not.
+ *
+ * @author tim
+ *
+ */
+public class ColumnarDataSet extends DataSet<ColumnarInstance> {
+
+	private static final long serialVersionUID = 2834092378427739014L;
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** mapping of feature labels to column ids. */
+	private Features features;
+	/** values are stored densely (row-major) if true, CSR otherwise. */
+	private final boolean dense;
+	/** number of rows within the storage. */
+	private int numRows;
+	/** number of columns of the dense storage. */
+	private int numColumns;
+	/** dense storage. numRows x numColumns, row-major. */
+	private double[] denseValues;
+	/** CSR: start of each row within colIdx/values. length > numRows. */
+	private int[] rowPtr;
+	/** CSR: column ids of all non-zero values. sorted within each row. */
+	private int[] colIdx;
+	/** CSR: all non-zero values. */
+	private double[] values;
+	/** cached mapping of the storage columns to another feature set. */
+	private transient volatile FeatureMapping lastMapping;
+
+	/**
+	 * Constructor. Create an empty columnar data set.
+	 *
+	 * @param features
+	 *            feature set. A dense data set stores exactly these features.
+	 *            A sparse data set works on a copy, which grows if new
+	 *            features are put.
+	 * @param dense
+	 *            dense (row-major) or sparse (CSR) storage.
+	 */
+	public ColumnarDataSet(Features features, boolean dense) {
+		this.dense = dense;
+		this.features = dense ? features : features.copy();
+		this.numColumns = this.features.size();
+		this.numRows = 0;
+		if (dense) {
+			this.denseValues = new double[INITIAL_CAPACITY * numColumns];
+		} else {
+			this.rowPtr = new int[INITIAL_CAPACITY + 1];
+			this.colIdx = new int[INITIAL_CAPACITY];
+			this.values = new double[INITIAL_CAPACITY];
+		}
+	}
+
+	/**
+	 * Create a columnar copy of an existing data set. Only the values of the
+	 * provided features are copied.
+	 *
+	 * @param data
+	 * @param features
+	 *            if null, all features of the data set are used.
+	 * @param dense
+	 * @return
+	 */
+	public static ColumnarDataSet createFromDataSet(
+			DataSet<? extends Instance> data, Features features, boolean dense) {
+		if (features == null)
+			features = Features.createFromDataSets(data);
+		ColumnarDataSet cds = new ColumnarDataSet(features, dense);
+		for (Instance each : data)
+			cds.append(each);
+		return cds;
+	}
+
+	/**
+	 * Append a copy of an instance. Id, ground truth, outcome, weight, class
+	 * name and label are copied as well as the values of all features known
+	 * to this data set.
+	 *
+	 * @param instance
+	 * @return the newly created view
+	 */
+	public ColumnarInstance append(Instance instance) {
+		Set<String> fs = instance.features();
+		int[] ids = new int[fs.size()];
+		double[] vals = new double[fs.size()];
+		int n = 0;
+		for (String feature : fs) {
+			int id = idOf(feature);
+			if (id < 0)
+				continue;
+			ids[n] = id;
+			vals[n++] = instance.get(feature);
+		}
+		ColumnarInstance inst = appendRow(instance.id, instance.groundTruth,
+				ids, vals, n);
+		this.add(inst);
+		inst.outcome = instance.outcome;
+		inst.weight = instance.weight;
+		inst.className = instance.className;
+		inst.label = instance.label;
+		return inst;
+	}
+
+	/**
+	 * Append a new instance. Use this to fill the data set from a reader
+	 * without creating an intermediate {@link SparseInstance}.
+	 *
+	 * @param id
+	 * @param groundTruth
+	 * @param vector
+	 *            feature values. features unknown to a dense data set are
+	 *            ignored.
+	 * @return the newly created view
+	 */
+	public ColumnarInstance append(String id, String groundTruth,
+			Map<String, Double> vector) {
+		int[] ids = new int[vector.size()];
+		double[] vals = new double[vector.size()];
+		int n = 0;
+		for (Map.Entry<String, Double> e : vector.entrySet()) {
+			int fid = dense ? idOf(e.getKey()) : features.intern(e.getKey());
+			if (fid < 0)
+				continue;
+			ids[n] = fid;
+			vals[n++] = e.getValue();
+		}
+		ColumnarInstance inst = appendRow(id, groundTruth, ids, vals, n);
+		this.add(inst);
+		return inst;
+	}
+
+	/**
+	 * Append a row to the storage and create a view for it. ids have to be
+	 * unique. The view is not added to this data set.
+	 */
+	private ColumnarInstance appendRow(String id, String groundTruth,
+			int[] ids, double[] vals, int n) {
+		int row = numRows;
+		if (dense) {
+			ensureDenseCapacity(row + 1);
+			int offset = row * numColumns;
+			Arrays.fill(denseValues, offset, offset + numColumns, 0.0);
+			for (int i = 0; i < n; i++)
+				denseValues[offset + ids[i]] = vals[i];
+		} else {
+			/** sort the entries by column id. */
+			int[] sorted = Arrays.copyOf(ids, n);
+			Arrays.sort(sorted);
+			double[] sortedVals = new double[n];
+			for (int i = 0; i < n; i++)
+				sortedVals[Arrays.binarySearch(sorted, ids[i])] = vals[i];
+			ensureRowCapacity(row + 2);
+			int start = rowPtr[row];
+			ensureSparseCapacity(start + n);
+			int nnz = start;
+			for (int i = 0; i < n; i++) {
+				if (sortedVals[i] == 0.0)
+					continue;
+				colIdx[nnz] = sorted[i];
+				values[nnz++] = sortedVals[i];
+			}
+			rowPtr[row + 1] = nnz;
+		}
+		numRows++;
+		return new ColumnarInstance(id, groundTruth, this, row);
+	}
+
+	private void ensureDenseCapacity(int rows) {
+		if (denseValues.length < rows * numColumns)
+			denseValues = Arrays.copyOf(denseValues,
+					Math.max(rows, numRows * 2) * numColumns);
+	}
+
+	private void ensureRowCapacity(int length) {
+		if (rowPtr.length < length)
+			rowPtr = Arrays.copyOf(rowPtr, Math.max(length, rowPtr.length * 2));
+	}
+
+	private void ensureSparseCapacity(int nnz) {
+		if (colIdx.length < nnz) {
+			int capacity = Math.max(nnz, colIdx.length * 2);
+			colIdx = Arrays.copyOf(colIdx, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+
+	/**
+	 * Get the feature set providing the mapping of feature labels to column
+	 * ids.
+	 *
+	 * @return
+	 */
+	public Features getFeatures() {
+		return this.features;
+	}
+
+	/**
+	 * Is the data stored densely (row-major) or sparsely (CSR).
+	 *
+	 * @return
+	 */
+	public boolean isDense() {
+		return this.dense;
+	}
+
+	/**
+	 * Get the column id of a feature. -1 if the feature is unknown.
+	 *
+	 * @param feature
+	 * @return
+	 */
+	public int idOf(String feature) {
+		int id = features.indexOf(feature);
+		return (dense && id >= numColumns) ? -1 : id;
+	}
+
+	/**
+	 * Position of a feature within the CSR arrays. Negative (-insertion point
+	 * - 1) if there is no such value in this row.
+	 */
+	private int position(int row, int feature) {
+		return Arrays.binarySearch(colIdx, rowPtr[row], rowPtr[row + 1],
+				feature);
+	}
+
+	/** get the value of feature at row. */
+	double value(int row, int feature) {
+		if (feature < 0)
+			return 0.0;
+		if (dense)
+			return denseValues[row * numColumns + feature];
+		int pos = position(row, feature);
+		return pos < 0 ? 0.0 : values[pos];
+	}
+
+	/** is there a (non-zero for sparse storage) value for feature at row. */
+	boolean hasValue(int row, int feature) {
+		if (feature < 0)
+			return false;
+		if (dense)
+			return true;
+		return position(row, feature) >= 0;
+	}
+
+	/** set the value of feature at row. */
+	void setValue(int row, int feature, double value) {
+		if (dense) {
+			denseValues[row * numColumns + feature] = value;
+			return;
+		}
+		int pos = position(row, feature);
+		if (pos >= 0) {
+			values[pos] = value;
+			return;
+		}
+		if (value == 0.0)
+			return;
+		pos = -pos - 1;
+		int nnz = rowPtr[numRows];
+		ensureSparseCapacity(nnz + 1);
+		System.arraycopy(colIdx, pos, colIdx, pos + 1, nnz - pos);
+		System.arraycopy(values, pos, values, pos + 1, nnz - pos);
+		colIdx[pos] = feature;
+		values[pos] = value;
+		for (int r = row + 1; r <= numRows; r++)
+			rowPtr[r]++;
+	}
+
+	/** set the value of a feature at row. sparse storages add new features. */
+	void setValue(int row, String feature, double value) {
+		int id = dense ? idOf(feature) : features.intern(feature);
+		if (id < 0)
+			throw new IllegalArgumentException("Unknown feature " + feature);
+		setValue(row, id, value);
+	}
+
+	/** remove the value of feature at row and return it. */
+	double removeValue(int row, int feature) {
+		if (feature < 0)
+			return 0.0;
+		if (dense) {
+			double value = denseValues[row * numColumns + feature];
+			denseValues[row * numColumns + feature] = 0.0;
+			return value;
+		}
+		int pos = position(row, feature);
+		if (pos < 0)
+			return 0.0;
+		double value = values[pos];
+		int nnz = rowPtr[numRows];
+		System.arraycopy(colIdx, pos + 1, colIdx, pos, nnz - pos - 1);
+		System.arraycopy(values, pos + 1, values, pos, nnz - pos - 1);
+		for (int r = row + 1; r <= numRows; r++)
+			rowPtr[r]--;
+		return value;
+	}
+
+	/** remove all values at row not contained in the provided features. */
+	void reduceRow(int row, Features fs) {
+		List<Integer> remove = new ArrayList<Integer>();
+		if (dense) {
+			for (int f = 0; f < numColumns; f++)
+				if (!fs.hasFeature(features.getFeatureByIndex(f)))
+					remove.add(f);
+		} else {
+			for (int k = rowPtr[row]; k < rowPtr[row + 1]; k++)
+				if (!fs.hasFeature(features.getFeatureByIndex(colIdx[k])))
+					remove.add(colIdx[k]);
+		}
+		for (int f : remove)
+			removeValue(row, f);
+	}
+
+	/** remove all values near zero from a sparse row. */
+	void cleanUpRow(int row) {
+		if (dense)
+			return;
+		List<Integer> remove = new ArrayList<Integer>();
+		for (int k = rowPtr[row]; k < rowPtr[row + 1]; k++)
+			if (values[k] > -0.000000001 && values[k] < 0.000000001)
+				remove.add(colIdx[k]);
+		for (int f : remove)
+			removeValue(row, f);
+	}
+
+	/** get all features at row. */
+	Set<String> rowFeatures(int row) {
+		if (dense)
+			return features.asSet();
+		Set<String> set = new HashSet<String>();
+		for (int k = rowPtr[row]; k < rowPtr[row + 1]; k++)
+			set.add(features.getFeatureByIndex(colIdx[k]));
+		return set;
+	}
+
+	/** get all values at row as map. */
+	Map<String, Double> rowAsMap(int row) {
+		Map<String, Double> map = new LinkedHashMap<String, Double>();
+		if (dense) {
+			for (int f = 0; f < numColumns; f++)
+				map.put(features.getFeatureByIndex(f), denseValues[row
+						* numColumns + f]);
+		} else {
+			for (int k = rowPtr[row]; k < rowPtr[row + 1]; k++)
+				map.put(features.getFeatureByIndex(colIdx[k]), values[k]);
+		}
+		return map;
+	}
+
+	/** copy row into a new row and return its view. */
+	ColumnarInstance copyRow(ColumnarInstance source) {
+		int row = source.getRow();
+		int n = dense ? numColumns : rowPtr[row + 1] - rowPtr[row];
+		int[] ids = new int[n];
+		double[] vals = new double[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = dense ? i : colIdx[rowPtr[row] + i];
+			vals[i] = dense ? denseValues[row * numColumns + i]
+					: values[rowPtr[row] + i];
+		}
+		return appendRow(source.id, source.groundTruth, ids, vals, n);
+	}
+
+	/**
+	 * Write row into target using the mapping of the provided features.
+	 * target has to be filled with zeros.
+	 */
+	void fillRow(int row, double[] target, Features fs) {
+		int[] mapping = mappingTo(fs);
+		if (dense) {
+			int offset = row * numColumns;
+			for (int f = 0; f < numColumns; f++)
+				if (mapping[f] >= 0)
+					target[mapping[f]] = denseValues[offset + f];
+		} else {
+			for (int k = rowPtr[row]; k < rowPtr[row + 1]; k++) {
+				int t = colIdx[k] < mapping.length ? mapping[colIdx[k]] : -1;
+				if (t >= 0)
+					target[t] = values[k];
+			}
+		}
+	}
+
+	/**
+	 * Get the mapping from the column ids of this data set to the indices of
+	 * the provided feature set. -1 for features which are not in fs.
+	 */
+	private int[] mappingTo(Features fs) {
+		FeatureMapping m = lastMapping;
+		if (m != null && m.target == fs && m.targetSize == fs.size()
+				&& m.sourceSize == features.size())
+			return m.mapping;
+		int[] mapping = new int[features.size()];
+		for (int f = 0; f < mapping.length; f++)
+			mapping[f] = fs.indexOf(features.getFeatureByIndex(f));
+		lastMapping = new FeatureMapping(fs, mapping, features.size());
+		return mapping;
+	}
+
+	/**
+	 * Get this data set as a double[][] matrix. The values are copied directly
+	 * from the columnar storage without any map lookups.
+	 */
+	@Override
+	public double[][] asDoubleArrayMatrix(Features fs) {
+		double[][] matrix = new double[this.size()][];
+		for (int i = 0; i < this.size(); i++) {
+			matrix[i] = new double[fs.size()];
+			fillRow(get(i).getRow(), matrix[i], fs);
+		}
+		return matrix;
+	}
+
+	/**
+	 * Get all values of a certain feature as array. The order is the order of
+	 * the instances in this data set.
+	 */
+	@Override
+	public double[] column(String feature) {
+		return column(idOf(feature));
+	}
+
+	/**
+	 * Get all values of a certain column as array. The order is the order of
+	 * the instances in this data set.
+	 *
+	 * @param feature
+	 *            column id
+	 * @return
+	 */
+	public double[] column(int feature) {
+		double[] column = new double[this.size()];
+		for (int i = 0; i < this.size(); i++)
+			column[i] = value(get(i).getRow(), feature);
+		return column;
+	}
+
+	@Override
+	public double min(String feature) {
+		int id = idOf(feature);
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < this.size(); i++)
+			min = Math.min(min, value(get(i).getRow(), id));
+		return min;
+	}
+
+	@Override
+	public double max(String feature) {
+		int id = idOf(feature);
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < this.size(); i++)
+			max = Math.max(max, value(get(i).getRow(), id));
+		return max;
+	}
+
+	@Override
+	public double mean(String feature) {
+		int id = idOf(feature);
+		double sum = 0.0;
+		for (int i = 0; i < this.size(); i++)
+			sum += value(get(i).getRow(), id);
+		return sum / this.size();
+	}
+
+	@Override
+	public Set<String> features() {
+		if (dense)
+			return new HashSet<String>(features.asSet());
+		boolean[] present = new boolean[features.size()];
+		for (ColumnarInstance each : this)
+			for (int k = rowPtr[each.getRow()]; k < rowPtr[each.getRow() + 1]; k++)
+				present[colIdx[k]] = true;
+		Set<String> set = new HashSet<String>();
+		for (int f = 0; f < present.length; f++)
+			if (present[f])
+				set.add(features.getFeatureByIndex(f));
+		return set;
+	}
+
+	/**
+	 * Immutable mapping of the storage columns onto another feature set.
+	 */
+	private static final class FeatureMapping {
+		final Features target;
+		final int targetSize;
+		final int sourceSize;
+		final int[] mapping;
+
+		FeatureMapping(Features target, int[] mapping, int sourceSize) {
+			this.target = target;
+			this.targetSize = target.size();
+			this.mapping = mapping;
+			this.sourceSize = sourceSize;
+		}
+	}
+}
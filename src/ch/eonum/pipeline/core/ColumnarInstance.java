@@ -0,0 +1,143 @@
+package ch.eonum.pipeline.core;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * View of one row in a {@link ColumnarDataSet}. The instance itself does not
+ * hold any feature values. All values are read from and written to the
+ * primitive storage of the data set.
+ *
+ * @author tim
+ *
+ */
+public class ColumnarInstance extends Instance {
+
+	/** data set holding the values of this instance. */
+	private final ColumnarDataSet store;
+	/** row of this instance within the storage. */
+	private final int row;
+
+	ColumnarInstance(String id, String gt, ColumnarDataSet store, int row) {
+		super(id, gt);
+		this.store = store;
+		this.row = row;
+	}
+
+	/**
+	 * Get the row of this instance within the storage of the data set.
+	 *
+	 * @return
+	 */
+	public int getRow() {
+		return this.row;
+	}
+
+	/**
+	 * Get the data set holding the values of this instance.
+	 *
+	 * @return
+	 */
+	public ColumnarDataSet getStore() {
+		return this.store;
+	}
+
+	/**
+	 * Get the value of a feature by its column id.
+	 *
+	 * @see ColumnarDataSet#idOf(String)
+	 * @param feature
+	 * @return
+	 */
+	public double get(int feature) {
+		return store.value(row, feature);
+	}
+
+	/**
+	 * Set the value of a feature by its column id.
+	 *
+	 * @param feature
+	 * @param value
+	 */
+	public void put(int feature, double value) {
+		store.setValue(row, feature, value);
+	}
+
+	@Override
+	public double get(String feature) {
+		return store.value(row, store.idOf(feature));
+	}
+
+	@Override
+	public void put(String feature, double value) {
+		store.setValue(row, feature, value);
+	}
+
+	@Override
+	public boolean hasFeature(String feature) {
+		return store.hasValue(row, store.idOf(feature));
+	}
+
+	@Override
+	public void reduceFeatures(Features features) {
+		store.reduceRow(row, features);
+	}
+
+	@Override
+	public void put(Map<String, Double> v) {
+		for (String feature : features().toArray(new String[0]))
+			remove(feature);
+		for (String feature : v.keySet())
+			put(feature, v.get(feature));
+	}
+
+	@Override
+	public Map<String, Object> asTree() {
+		Map<String, Object> map = super.asTree();
+		map.put("vector", store.rowAsMap(row));
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		String r = "[Id: " + id + " GroundTruth: " + groundTruth;
+		r += " label: " + (label == null ? "" : label);
+		return r + " Features: " + store.rowAsMap(row) + "]";
+	}
+
+	@Override
+	public void cleanUp() {
+		store.cleanUpRow(row);
+	}
+
+	/**
+	 * Deep copy. The copy is appended as a new row to the same storage, but
+	 * it is not added to any data set.
+	 */
+	@Override
+	public ColumnarInstance copy() {
+		ColumnarInstance inst = store.copyRow(this);
+		inst.outcome = outcome;
+		inst.weight = weight;
+		inst.className = className;
+		return inst;
+	}
+
+	@Override
+	public double remove(String feature) {
+		return store.removeValue(row, store.idOf(feature));
+	}
+
+	@Override
+	public Set<String> features() {
+		return store.rowFeatures(row);
+	}
+
+	@Override
+	public double[] asArray(Features features) {
+		double[] values = new double[features.size()];
+		store.fillRow(row, values, features);
+		return values;
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -345,8 +346,8 @@ public class DataSet<E extends Instance> extends Vector<E> implements List<E> {
 	}
 
 	/**
-	 * Get all distinct values of a certain feature. NaN and infinite values
-	 * will be ignored.
+	 * Get all distinct values of a certain feature in ascending order. NaN
+	 * and infinite values will be ignored.
 	 * 
 	 * @param feature
 	 * @param tolerance
@@ -354,21 +355,53 @@ public class DataSet<E extends Instance> extends Vector<E> implements List<E> {
 	 * @return
 	 */
 	public List<Double> distinct(String feature, double tolerance) {
+		return distinctValues(column(feature), tolerance);
+	}
+
+	/**
+	 * Get all distinct values in an array of values in ascending order. NaN
+	 * and infinite values will be ignored. The values are sorted once and
+	 * each value which is not within tolerance of the previous distinct value
+	 * is a new distinct value. Hence all distinct values are at least
+	 * tolerance apart and each value is within tolerance of a distinct value.
+	 * O(n log n).
+	 * 
+	 * @param values
+	 *            will be sorted in place.
+	 * @param tolerance
+	 *            range within a value is not counted as a distinct value.
+	 * @return
+	 */
+	public static List<Double> distinctValues(double[] values,
+			double tolerance) {
+		Arrays.sort(values);
 		List<Double> di = new ArrayList<Double>();
-		for (Instance each : this) {
-			double value = each.get(feature);
+		double last = Double.NaN;
+		for (double value : values) {
 			if (Double.isNaN(value) || Double.isInfinite(value))
 				continue;
-			boolean notInList = true;
-			for (Double d : di)
-				if (Math.abs(value - d) < tolerance)
-					notInList = false;
-			if (notInList)
+			if (di.isEmpty() || value - last >= tolerance) {
 				di.add(value);
+				last = value;
+			}
 		}
 		return di;
 	}
 
+	/**
+	 * Get all values of a certain feature as array. The order is the order of
+	 * the instances in this data set.
+	 * 
+	 * @param feature
+	 * @return
+	 */
+	public double[] column(String feature) {
+		double[] values = new double[this.size()];
+		for (int i = 0; i < size(); i++)
+			values[i] = get(i).get(feature);
+		return values;
+	}
+
 	/**
 	 * Save the whole data in a CSV file using only the provided features.
 	 * Additionally there will be a column with the outcome and one with the
@@ -18,6 +18,8 @@ public class DenseInstance extends Instance {
 	private Features features;
 	/** dense data. */
 	private double[] vector;
+	/** cached sum of the squared values. NaN if not yet calculated. */
+	private double sumOfSquares = Double.NaN;
 
 	/**
 	 * constructor.
@@ -45,11 +47,12 @@ public class DenseInstance extends Instance {
 	public void reduceFeatures(Features features) {
 		double[] newVector = new double[features.size()];
 		for(int i = 0; i < features.size(); i++){
-			String feature = features.getFeatureByIndex(i);
-			newVector[i] = this.features.hasFeature(feature) ? vector[this.features.getIndexFromFeature(feature)] : 0.0;
+			int index = this.features.indexOf(features.getFeatureByIndex(i));
+			newVector[i] = index != -1 ? vector[index] : 0.0;
 		}
 		vector = newVector;
 		this.features = features;
+		this.sumOfSquares = Double.NaN;
 	}
 
 	/**
@@ -61,6 +64,7 @@ public class DenseInstance extends Instance {
 			String feature = features.getFeatureByIndex(i);
 			vector[i] = v.containsKey(feature) ? v.get(feature) : 0.0;
 		}	
+		this.sumOfSquares = Double.NaN;
 	}
 
 	/**
@@ -129,6 +133,7 @@ public class DenseInstance extends Instance {
 	@Override
 	public void put(String feature, double value) {
 		vector[features.getIndexFromFeature(feature)] = value;
+		this.sumOfSquares = Double.NaN;
 	}
 
 	/**
@@ -139,6 +144,32 @@ public class DenseInstance extends Instance {
 		return vector[features.getIndexFromFeature(feature)];
 	}
 
+	/**
+	 * Features of the dense vector.
+	 * @return
+	 */
+	public Features getFeatures() {
+		return features;
+	}
+
+	/**
+	 * Sum of the squared values. Cached until the values are changed with one
+	 * of the methods of this instance. Changes through the array returned by
+	 * {@link #asArray(Features)} are not detected.
+	 * 
+	 * @return
+	 */
+	public double sumOfSquares() {
+		double sum = sumOfSquares;
+		if (Double.isNaN(sum)) {
+			sum = 0.0;
+			for (double v : vector)
+				sum += v * v;
+			sumOfSquares = sum;
+		}
+		return sum;
+	}
+
 	@Override
 	public double[] asArray(Features features) {
 		assert(features == this.features);
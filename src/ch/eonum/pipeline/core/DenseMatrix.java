@@ -0,0 +1,269 @@
+package ch.eonum.pipeline.core;
+
+import java.util.Arrays;
+
+/**
+ * Dense matrix stored row by row in double (float64) or single (float32)
+ * precision. Single precision halves the memory and the memory bandwidth of
+ * large training sets. Each row is stored in exactly one precision. Rows
+ * which are shared with the instances of a data set (e.g. the time points of
+ * a {@link DenseSequence}) are never copied and stay in double precision.
+ *
+ * The values are read with {@link #getRow(int, double[])}, which returns rows
+ * in double precision directly and widens rows in single precision into a
+ * buffer of the caller. Hence the computations are always done in double
+ * precision.
+ *
+ * A matrix can be a view of selected rows of another matrix (see
+ * {@link #selectRows(int[])}), e.g. the training set of a cross validation
+ * fold. Views share the values and the row arrays with the viewed matrix.
+ *
+ * @author tim
+ *
+ */
+public class DenseMatrix {
+	/** rows in double precision. null for rows in single precision. */
+	private final double[][] rows;
+	/** rows in single precision. null for rows in double precision. */
+	private final float[][] floatRows;
+	/** rows of a view in rows / floatRows. null if this is not a view. */
+	private final int[] index;
+
+	/**
+	 * Matrix in double precision. The rows are not copied.
+	 *
+	 * @param rows
+	 */
+	public DenseMatrix(double[][] rows) {
+		this(rows, new float[rows.length][]);
+	}
+
+	protected DenseMatrix(double[][] rows, float[][] floatRows) {
+		this(rows, floatRows, null);
+	}
+
+	/**
+	 * Matrix sharing the rows of another matrix.
+	 *
+	 * @param other
+	 */
+	protected DenseMatrix(DenseMatrix other) {
+		this(other.rows, other.floatRows, other.index);
+	}
+
+	private DenseMatrix(double[][] rows, float[][] floatRows, int[] index) {
+		this.rows = rows;
+		this.floatRows = floatRows;
+		this.index = index;
+	}
+
+	/**
+	 * Matrix with the given rows converted to the given precision. Rows are
+	 * only copied for single precision.
+	 *
+	 * @param rows
+	 * @param singlePrecision
+	 * @return
+	 */
+	public static DenseMatrix create(double[][] rows, boolean singlePrecision) {
+		if (!singlePrecision)
+			return new DenseMatrix(rows);
+		Builder builder = new Builder(singlePrecision);
+		for (double[] row : rows)
+			builder.add(row, false);
+		return builder.build();
+	}
+
+	/**
+	 * Create a matrix with one row per instance and one column per feature.
+	 * In single precision, each row is converted as soon as it has been
+	 * created, hence there is never a complete copy in double precision.
+	 *
+	 * @param ds
+	 * @param features
+	 * @param singlePrecision
+	 * @return
+	 */
+	public static DenseMatrix fromInstances(DataSet<? extends Instance> ds,
+			Features features, boolean singlePrecision) {
+		if (!singlePrecision)
+			return new DenseMatrix(ds.asDoubleArrayMatrix(features));
+		Builder builder = new Builder(singlePrecision);
+		for (Instance each : ds)
+			builder.add(each.asArray(features), false);
+		return builder.build();
+	}
+
+	/**
+	 * Number of rows.
+	 *
+	 * @return
+	 */
+	public int rows() {
+		return index == null ? rows.length : index.length;
+	}
+
+	/** row of the viewed matrix. */
+	private int base(int r) {
+		return index == null ? r : index[r];
+	}
+
+	/**
+	 * View of the given rows of this matrix in the given order. Neither the
+	 * values nor the rows are copied.
+	 *
+	 * @param selection
+	 *            row indices of this matrix
+	 * @return
+	 */
+	public DenseMatrix selectRows(int[] selection) {
+		int[] viewIndex = new int[selection.length];
+		for (int i = 0; i < selection.length; i++)
+			viewIndex[i] = base(selection[i]);
+		return new DenseMatrix(rows, floatRows, viewIndex);
+	}
+
+	/**
+	 * Number of values in row r.
+	 *
+	 * @param r
+	 * @return
+	 */
+	public int rowLength(int r) {
+		r = base(r);
+		return rows[r] != null ? rows[r].length : floatRows[r].length;
+	}
+
+	/**
+	 * Get row r. A row in double precision is returned directly and must not
+	 * be modified. A row in single precision is widened into buffer, which
+	 * must have at least {@link #rowLength(int)} values.
+	 *
+	 * @param r
+	 * @param buffer
+	 * @return
+	 */
+	public double[] getRow(int r, double[] buffer) {
+		r = base(r);
+		double[] row = rows[r];
+		if (row != null)
+			return row;
+		float[] floatRow = floatRows[r];
+		for (int i = 0; i < floatRow.length; i++)
+			buffer[i] = floatRow[i];
+		return buffer;
+	}
+
+	/**
+	 * Get the value at row r and column c.
+	 *
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public double get(int r, int c) {
+		r = base(r);
+		return rows[r] != null ? rows[r][c] : floatRows[r][c];
+	}
+
+	/**
+	 * Maximum row length.
+	 *
+	 * @return
+	 */
+	public int maxRowLength() {
+		int max = 0;
+		for (int r = 0; r < rows(); r++)
+			max = Math.max(max, rowLength(r));
+		return max;
+	}
+
+	/**
+	 * Approximate memory of the values in bytes (without the row headers).
+	 * Rows shared with other matrices are counted in each matrix.
+	 *
+	 * @return
+	 */
+	public long valueBytes() {
+		long bytes = 0;
+		for (int r = 0; r < rows(); r++)
+			bytes += rowBytes(r);
+		return bytes;
+	}
+
+	/**
+	 * Memory of the values of row r in bytes.
+	 *
+	 * @param r
+	 * @return
+	 */
+	protected long rowBytes(int r) {
+		r = base(r);
+		return rows[r] != null ? 8L * rows[r].length : 4L * floatRows[r].length;
+	}
+
+	/**
+	 * Row by row construction of a {@link DenseMatrix} or a
+	 * {@link DenseSequenceMatrix}.
+	 */
+	public static class Builder {
+		private final boolean singlePrecision;
+		private double[][] rows = new double[16][];
+		private float[][] floatRows = new float[16][];
+		private int[] sequencePtr = new int[17];
+		private int numRows;
+		private int sequences;
+
+		/**
+		 * @param singlePrecision
+		 *            store the rows in single precision
+		 */
+		public Builder(boolean singlePrecision) {
+			this.singlePrecision = singlePrecision;
+		}
+
+		/**
+		 * Add a row.
+		 *
+		 * @param row
+		 * @param shared
+		 *            the row is shared with a data set and must not be copied
+		 *            (it is stored in double precision)
+		 */
+		public void add(double[] row, boolean shared) {
+			if (numRows == rows.length) {
+				rows = Arrays.copyOf(rows, 2 * numRows);
+				floatRows = Arrays.copyOf(floatRows, 2 * numRows);
+			}
+			if (singlePrecision && !shared) {
+				float[] floatRow = new float[row.length];
+				for (int i = 0; i < row.length; i++)
+					floatRow[i] = (float) row[i];
+				floatRows[numRows++] = floatRow;
+			} else
+				rows[numRows++] = row;
+		}
+
+		/**
+		 * Finish the current sequence. It consists of all rows since the end
+		 * of the previous sequence.
+		 */
+		public void endSequence() {
+			if (sequences + 2 > sequencePtr.length)
+				sequencePtr = Arrays.copyOf(sequencePtr,
+						2 * sequencePtr.length);
+			sequencePtr[++sequences] = numRows;
+		}
+
+		public DenseMatrix build() {
+			return new DenseMatrix(Arrays.copyOf(rows, numRows),
+					Arrays.copyOf(floatRows, numRows));
+		}
+
+		public DenseSequenceMatrix buildSequences() {
+			return new DenseSequenceMatrix(Arrays.copyOf(
+					sequencePtr, sequences + 1), Arrays.copyOf(rows,
+					numRows), Arrays.copyOf(floatRows, numRows));
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package ch.eonum.pipeline.core;
+
+import java.util.List;
+
+/**
+ * A set of dense sequences. Each row is a time point, the time points of
+ * sequence s are the rows [sequencePtr[s], sequencePtr[s + 1]). As in
+ * {@link DenseMatrix} the rows can be stored in double or single precision.
+ *
+ * @author tim
+ *
+ */
+public class DenseSequenceMatrix extends DenseMatrix {
+	/** first row of each sequence. length: number of sequences + 1 */
+	public final int[] sequencePtr;
+	/**
+	 * sequences of a view in sequencePtr. null if this is not a view. The rows
+	 * of a view are always the rows of the viewed matrix.
+	 */
+	private final int[] sequenceIndex;
+
+	protected DenseSequenceMatrix(int[] sequencePtr, double[][] rows,
+			float[][] floatRows) {
+		super(rows, floatRows);
+		this.sequencePtr = sequencePtr;
+		this.sequenceIndex = null;
+	}
+
+	private DenseSequenceMatrix(DenseSequenceMatrix other, int[] sequenceIndex) {
+		super(other);
+		this.sequencePtr = other.sequencePtr;
+		this.sequenceIndex = sequenceIndex;
+	}
+
+	/**
+	 * Number of sequences.
+	 *
+	 * @return
+	 */
+	public int sequences() {
+		return sequenceIndex == null ? sequencePtr.length - 1
+				: sequenceIndex.length;
+	}
+
+	/** sequence of the viewed matrix. */
+	private int base(int s) {
+		return sequenceIndex == null ? s : sequenceIndex[s];
+	}
+
+	/**
+	 * Number of time points of sequence s.
+	 *
+	 * @param s
+	 * @return
+	 */
+	public int sequenceLength(int s) {
+		s = base(s);
+		return sequencePtr[s + 1] - sequencePtr[s];
+	}
+
+	/**
+	 * Row of time point t in sequence s.
+	 *
+	 * @param s
+	 * @param t
+	 * @return
+	 */
+	public int row(int s, int t) {
+		return sequencePtr[base(s)] + t;
+	}
+
+	/**
+	 * View of the given sequences of this matrix in the given order, e.g. the
+	 * training set of a cross validation fold (see {@link Folds}). Neither the
+	 * values nor the rows are copied.
+	 *
+	 * @param selection
+	 *            sequence indices of this matrix
+	 * @return
+	 */
+	public DenseSequenceMatrix selectSequences(int[] selection) {
+		int[] viewIndex = new int[selection.length];
+		for (int i = 0; i < selection.length; i++)
+			viewIndex[i] = base(selection[i]);
+		return new DenseSequenceMatrix(this, viewIndex);
+	}
+
+	/**
+	 * Approximate memory of the values of the selected sequences in bytes.
+	 */
+	@Override
+	public long valueBytes() {
+		if (sequenceIndex == null)
+			return super.valueBytes();
+		long bytes = 0;
+		for (int s = 0; s < sequences(); s++)
+			for (int t = 0; t < sequenceLength(s); t++)
+				bytes += rowBytes(row(s, t));
+		return bytes;
+	}
+
+	/**
+	 * Create a matrix from sequences given as [sequence][time point][value].
+	 * Rows are only copied for single precision.
+	 *
+	 * @param data
+	 * @param singlePrecision
+	 * @return
+	 */
+	public static DenseSequenceMatrix create(double[][][] data,
+			boolean singlePrecision) {
+		Builder builder = new Builder(singlePrecision);
+		for (double[][] sequence : data) {
+			for (double[] row : sequence)
+				builder.add(row, false);
+			builder.endSequence();
+		}
+		return builder.buildSequences();
+	}
+
+	/**
+	 * Create a matrix from the dense representation of a set of sequences.
+	 * The time points of {@link DenseSequence}s are shared with the data set
+	 * and are therefore not copied (and stay in double precision). All other
+	 * sequences are converted one by one.
+	 *
+	 * @param ds
+	 * @param features
+	 * @param singlePrecision
+	 * @return
+	 */
+	public static DenseSequenceMatrix fromSequences(
+			DataSet<? extends Sequence> ds, Features features,
+			boolean singlePrecision) {
+		Builder builder = new Builder(singlePrecision);
+		for (Sequence each : ds) {
+			boolean shared = each instanceof DenseSequence;
+			for (double[] row : each.getDenseRepresentation(features))
+				builder.add(row, shared);
+			builder.endSequence();
+		}
+		return builder.buildSequences();
+	}
+}
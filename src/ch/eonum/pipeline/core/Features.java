@@ -8,6 +8,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -16,6 +17,7 @@ import java.util.Map;
 import java.util.Set;
 
 import ch.eonum.pipeline.util.Log;
+import ch.eonum.pipeline.util.PerfectHash;
 
 /**
  * A set holding with dimensions/features.
@@ -25,6 +27,10 @@ import ch.eonum.pipeline.util.Log;
  * The set can be read or written to a file. Feature labels are ordered and can
  * be accessed by an index
  * 
+ * A feature set can be frozen ({@link #freeze()}). A frozen feature set is
+ * immutable and uses a perfect hash for index lookups. Large vocabularies are
+ * best collected using a {@link Builder}.
+ * 
  * @author tim
  * 
  */
@@ -32,6 +38,12 @@ public class Features {
 	private List<String> featuresByIndex;
 	private Map<String, Integer> indicesByFeature;
 	private Map<String, String> descriptions;
+	/** features have been removed but the index has not been recalculated. */
+	private boolean pendingRemovals;
+	/** immutable feature set. */
+	private boolean frozen;
+	/** perfect hash for index lookups. only available for frozen sets. */
+	private PerfectHash perfectHash;
 
 	/**
 	 * Constructor. Create empty feature set.
@@ -54,15 +66,32 @@ public class Features {
 	}
 
 	/**
-	 * get the index from a certain feature.
+	 * get the index from a certain feature. The feature has to exist. Use
+	 * {@link #indexOf(String)} if you are not sure.
 	 * 
 	 * @param feature
 	 * @return
 	 */
 	public int getIndexFromFeature(String feature) {
+		if (perfectHash != null)
+			return perfectHash.get(feature);
 		return this.indicesByFeature.get(feature);
 	}
 
+	/**
+	 * get the index from a certain feature. Returns -1 if there is no such
+	 * feature.
+	 * 
+	 * @param feature
+	 * @return
+	 */
+	public int indexOf(String feature) {
+		if (perfectHash != null)
+			return perfectHash.get(feature);
+		Integer index = this.indicesByFeature.get(feature);
+		return index == null ? -1 : index;
+	}
+
 	/**
 	 * get the feature label from a certain index.
 	 * 
@@ -209,7 +238,9 @@ public class Features {
 	 * @param feature
 	 */
 	public void removeFeature(String feature) {
-		this.indicesByFeature.remove(feature);
+		checkMutable();
+		if (this.indicesByFeature.remove(feature) != null)
+			this.pendingRemovals = true;
 	}
 
 	/**
@@ -219,17 +250,42 @@ public class Features {
 	 * @param feature
 	 */
 	public void addFeature(String feature) {
-		if (!this.featuresByIndex.contains(feature)) {
+		checkMutable();
+		if (this.indicesByFeature.containsKey(feature))
+			return;
+		/** restore a removed feature at its old index. */
+		int index = pendingRemovals ? this.featuresByIndex.indexOf(feature) : -1;
+		if (index == -1) {
 			this.featuresByIndex.add(feature);
-			this.indicesByFeature.put(feature, this.featuresByIndex.size() - 1);
+			index = this.featuresByIndex.size() - 1;
 		}
+		this.indicesByFeature.put(feature, index);
+	}
+
+	/**
+	 * Get the index of a feature. The feature is added if it does not exist
+	 * yet. Use this to map feature labels to integer ids, e.g. in a
+	 * {@link ColumnarDataSet}.
+	 * 
+	 * @param feature
+	 * @return index of the feature
+	 */
+	public int intern(String feature) {
+		int index = indexOf(feature);
+		if (index != -1)
+			return index;
+		addFeature(feature);
+		return this.indicesByFeature.get(feature);
 	}
 
 	/**
 	 * Recalculate the index. this is typically done after removing some
-	 * features.
+	 * features. Has no effect on a frozen feature set.
 	 */
 	public void recalculateIndex() {
+		if (frozen)
+			return;
+		this.pendingRemovals = false;
 		this.featuresByIndex = new ArrayList<String>(
 				this.indicesByFeature.keySet());
 		this.indicesByFeature = new HashMap<String, Integer>();
@@ -259,7 +315,7 @@ public class Features {
 	 * @return
 	 */
 	public boolean hasFeature(String feature) {
-		return this.featuresByIndex.contains(feature);
+		return indexOf(feature) != -1;
 	}
 
 	/**
@@ -288,17 +344,49 @@ public class Features {
 	 */
 	@SafeVarargs
 	public static Features createFromDataSets(DataSet<? extends Instance> ... dataSets) {
-		Features features = new Features();
+		Builder builder = new Builder();
 		for (DataSet<? extends Instance> ds : dataSets)
-			for (Instance each : ds)
-				for (String feature : each.features())
-					features.addFeature(feature);
-		features.recalculateIndex();
-		return features;
+			builder.addAll(ds);
+		return builder.build();
 	}
 
 	/**
-	 * Create a deep copy of this feature list.
+	 * Freeze this feature set. A frozen feature set is immutable. All
+	 * methods adding or removing features throw an
+	 * {@link UnsupportedOperationException}. Index lookups use a perfect
+	 * hash if one can be found for this vocabulary.
+	 * 
+	 * @return this feature set
+	 */
+	public Features freeze() {
+		if (frozen)
+			return this;
+		this.recalculateIndex();
+		this.frozen = true;
+		this.featuresByIndex = Collections.unmodifiableList(featuresByIndex);
+		this.indicesByFeature = Collections.unmodifiableMap(indicesByFeature);
+		this.perfectHash = PerfectHash.create(featuresByIndex);
+		return this;
+	}
+
+	/**
+	 * Is this feature set frozen / immutable.
+	 * 
+	 * @see #freeze()
+	 * @return
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkMutable() {
+		if (frozen)
+			throw new UnsupportedOperationException(
+					"A frozen feature set cannot be changed");
+	}
+
+	/**
+	 * Create a deep copy of this feature list. The copy is never frozen.
 	 * @return
 	 */
 	public Features copy() {
@@ -428,4 +516,85 @@ public class Features {
 		return list;
 	}
 
+	/**
+	 * Streaming builder for feature sets. Collects the vocabulary of
+	 * instances or data sets in a single pass. Each feature is added in O(1).
+	 * 
+	 * @author tim
+	 * 
+	 */
+	public static class Builder {
+		private Features features;
+
+		public Builder() {
+			this.features = new Features();
+		}
+
+		/**
+		 * Add a feature. Existing features are ignored.
+		 * 
+		 * @param feature
+		 * @return this builder
+		 */
+		public Builder add(String feature) {
+			features.intern(feature);
+			return this;
+		}
+
+		/**
+		 * Add all features of an instance.
+		 * 
+		 * @param instance
+		 * @return this builder
+		 */
+		public Builder add(Instance instance) {
+			for (String feature : instance.features())
+				features.intern(feature);
+			return this;
+		}
+
+		/**
+		 * Add all features of all instances, e.g. of a data set.
+		 * 
+		 * @param instances
+		 * @return this builder
+		 */
+		public Builder addAll(Iterable<? extends Instance> instances) {
+			for (Instance each : instances)
+				add(each);
+			return this;
+		}
+
+		/**
+		 * Get the number of features collected so far.
+		 * 
+		 * @return
+		 */
+		public int size() {
+			return features.size();
+		}
+
+		/**
+		 * Create the feature set. Features are ordered by their first
+		 * occurrence. The builder is reset.
+		 * 
+		 * @return
+		 */
+		public Features build() {
+			Features result = features;
+			this.features = new Features();
+			return result;
+		}
+
+		/**
+		 * Create a frozen feature set. The builder is reset.
+		 * 
+		 * @see Features#freeze()
+		 * @return
+		 */
+		public Features buildFrozen() {
+			return build().freeze();
+		}
+	}
+
 }
@@ -0,0 +1,80 @@
+package ch.eonum.pipeline.core;
+
+/**
+ * Index sets of k-fold cross validation. The folds are the same as the subsets
+ * of {@link DataSet#splitIntoNSubsets(int)}: instance i of the data set
+ * belongs to fold (i + 1) % k. Instead of copying the data of each fold, the
+ * indices are used to create views of one shared matrix of the whole data set
+ * (see {@link DenseMatrix#selectRows(int[])},
+ * {@link DenseSequenceMatrix#selectSequences(int[])},
+ * {@link SparseMatrix#selectRows(int[])} and
+ * {@link SparseSequenceMatrix#selectSequences(int[])}).
+ * 
+ * @author tim
+ * 
+ */
+public class Folds {
+	/** indices of the instances of each fold in increasing order. */
+	private final int[][] folds;
+
+	/**
+	 * @param size
+	 *            size of the data set
+	 * @param k
+	 *            number of folds
+	 */
+	public Folds(int size, int k) {
+		int[] sizes = new int[k];
+		for (int i = 0; i < size; i++)
+			sizes[(i + 1) % k]++;
+		folds = new int[k][];
+		for (int f = 0; f < k; f++)
+			folds[f] = new int[sizes[f]];
+		int[] next = new int[k];
+		for (int i = 0; i < size; i++) {
+			int f = (i + 1) % k;
+			folds[f][next[f]++] = i;
+		}
+	}
+
+	/**
+	 * Number of folds.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return folds.length;
+	}
+
+	/**
+	 * Indices of the validation set of fold f, which is the fold itself.
+	 * 
+	 * @param f
+	 * @return
+	 */
+	public int[] validation(int f) {
+		return folds[f];
+	}
+
+	/**
+	 * Indices of the training set of fold f: all other folds in the order of
+	 * the folds.
+	 * 
+	 * @param f
+	 * @return
+	 */
+	public int[] training(int f) {
+		int n = 0;
+		for (int i = 0; i < folds.length; i++)
+			if (i != f)
+				n += folds[i].length;
+		int[] indices = new int[n];
+		int k = 0;
+		for (int i = 0; i < folds.length; i++)
+			if (i != f) {
+				System.arraycopy(folds[i], 0, indices, k, folds[i].length);
+				k += folds[i].length;
+			}
+		return indices;
+	}
+}
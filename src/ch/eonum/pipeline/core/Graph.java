@@ -1,7 +1,7 @@
 package ch.eonum.pipeline.core;
 
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -40,9 +40,9 @@ public class Graph extends SparseInstance {
 		public Map<String, Double> attributes;
 	}
 
-	/** nodes. **/
+	/** nodes in insertion order. **/
 	private Set<Node> nodes;
-	/** edges. **/
+	/** edges in insertion order. **/
 	private Set<Edge> edges;
 
 	/**
@@ -52,8 +52,43 @@ public class Graph extends SparseInstance {
 	 */
 	public Graph(String id, String gt) {
 		super(id, gt, new HashMap<String, Double>());
-		this.nodes = new HashSet<Node>();
-		this.edges = new HashSet<Edge>();
+		this.nodes = new LinkedHashSet<Node>();
+		this.edges = new LinkedHashSet<Edge>();
+	}
+
+	/**
+	 * Add a new node.
+	 * 
+	 * @param attributes
+	 *            attributes of the node, can be null
+	 * @return the node
+	 */
+	public Node addNode(Map<String, Double> attributes) {
+		Node node = new Node();
+		node.attributes = attributes;
+		nodes.add(node);
+		return node;
+	}
+
+	/**
+	 * Add a new edge between two nodes of this graph.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param directed
+	 * @param attributes
+	 *            attributes of the edge, can be null
+	 * @return the edge
+	 */
+	public Edge addEdge(Node start, Node end, boolean directed,
+			Map<String, Double> attributes) {
+		Edge edge = new Edge();
+		edge.start = start;
+		edge.end = end;
+		edge.directed = directed;
+		edge.attributes = attributes;
+		edges.add(edge);
+		return edge;
 	}
 	
 	public Set<Node> nodes(){
@@ -286,6 +286,18 @@ public abstract class Instance {
 	 * @return
 	 */
 	public abstract double[] asArray(Features features);
+
+	/**
+	 * Sorted index/value representation of the non zero features of this
+	 * instance. Used by the distance kernels.
+	 * 
+	 * @param dictionary
+	 *            mapping of the feature labels to indices
+	 * @return
+	 */
+	public SparseVector asSparseVector(SparseVector.Dictionary dictionary) {
+		return SparseVector.of(this, dictionary);
+	}
 		
 	/**
 	 * Store a prediction result.
@@ -179,15 +179,17 @@ public class Parameters {
 	}
 	
 	/**
-	 * Load parameters from a map as produced by {@link #asMap()}. 
+	 * Load parameters from a map as produced by {@link #asMap()}. Parameters
+	 * which are not in the map (e.g. parameters which have been introduced
+	 * after the map has been written) keep their current (default) values.
 	 * @param data
 	 */
 	@SuppressWarnings("unchecked")
 	protected void load(Map<String, Object> data) {
-		this.booleanParameters = (Map<String, Boolean>) data.get("booleanParams");
-		this.stringParameters = (Map<String, String>) data.get("stringParams");
-		this.doubleParameters = (Map<String, Double>) data.get("doubleParams");
-		this.intParameters = (Map<String, Integer>) data.get("intParams");
+		this.booleanParameters.putAll((Map<String, Boolean>) data.get("booleanParams"));
+		this.stringParameters.putAll((Map<String, String>) data.get("stringParams"));
+		this.doubleParameters.putAll((Map<String, Double>) data.get("doubleParams"));
+		this.intParameters.putAll((Map<String, Integer>) data.get("intParams"));
 	}
 
 	/**
@@ -42,6 +42,14 @@ public abstract class Sequence extends SparseInstance {
 	 * @param value
 	 */
 	public abstract void put(int t, String feature, double value);
+
+	/**
+	 * Not cached, time points can be changed with {@link #put(int, String, double)}.
+	 */
+	@Override
+	public SparseVector asSparseVector(SparseVector.Dictionary dictionary) {
+		return SparseVector.of(this, dictionary);
+	}
 	
 	/**
 	 * Get the input value for feature f at time point t.
@@ -1,5 +1,6 @@
 package ch.eonum.pipeline.core;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -23,6 +24,12 @@ public class SparseInstance extends Instance implements JSONable, Cloneable {
 
 	/** sparse vector holding all features unlike zero of this instance. */
 	protected Map<String, Double> vector;
+	/**
+	 * cached sorted representation of vector. null if vector has been changed
+	 * since.
+	 */
+	private SparseVector sparseVector;
+
 	/**
 	 * Constructor
 	 * 
@@ -70,6 +77,7 @@ public class SparseInstance extends Instance implements JSONable, Cloneable {
 	 */
 	@Override
 	public void put(String feature, double value) {
+		sparseVector = null;
 		vector.put(feature, value);
 	}
 
@@ -80,6 +88,7 @@ public class SparseInstance extends Instance implements JSONable, Cloneable {
 
 	@Override
 	public double remove(String feature) {
+		sparseVector = null;
 		return vector.containsKey(feature) ? this.vector.remove(feature) : 0.0;
 	}
 	
@@ -102,6 +111,7 @@ public class SparseInstance extends Instance implements JSONable, Cloneable {
 		for (String feature : dimensions)
 			if (get(feature) > -0.000000001 && get(feature) < 0.000000001)
 				vector.remove(feature);
+		sparseVector = null;
 	}
 
 	@Override
@@ -156,11 +166,13 @@ public class SparseInstance extends Instance implements JSONable, Cloneable {
 			this.label = (String) tree.get("label");
 		this.groundTruth = (String) tree.get("groundTruth");
 		this.vector = (Map<String, Double>) tree.get("vector");
+		this.sparseVector = null;
 	}
 
 	@Override
 	public void put(Map<String, Double> v) {
 		this.vector.clear();
+		this.sparseVector = null;
 		for (String each : v.keySet())
 			this.put(each, v.get(each));
 	}
@@ -188,21 +200,50 @@ public class SparseInstance extends Instance implements JSONable, Cloneable {
 		return values;
 	}
 	
+	/**
+	 * The vector of the last dictionary is cached until the features are
+	 * changed with one of the methods of this instance. Distances used on
+	 * the same instances should share their dictionary (@see
+	 * ch.eonum.pipeline.distance.Distance#setDictionary), otherwise the
+	 * vector is rebuilt whenever the dictionary changes.
+	 */
+	@Override
+	public SparseVector asSparseVector(SparseVector.Dictionary dictionary) {
+		SparseVector v = sparseVector;
+		if (v == null || v.dictionary != dictionary)
+			sparseVector = v = SparseVector.of(this, dictionary);
+		return v;
+	}
+
 	/**
 	 * Get an {@link Entry} array with the provided features from this instance.
 	 * @param features
 	 * @return
 	 */
 	public Entry[] asEntryArray(Features features) {
-		Set<String> set = new HashSet<String>();
-		for (String feature : this.features())
-			if(features.hasFeature(feature))
-				set.add(feature);
-		Entry[] values = new Entry[set.size()];
+		Entry[] values = new Entry[vector.size()];
 		int f = 0;
-		for (String feature : set)
-			values[f++] = new Entry(features.getIndexFromFeature(feature), get(feature));
-		return values;
+		for (Map.Entry<String, Double> e : vector.entrySet()) {
+			int index = features.indexOf(e.getKey());
+			if (index != -1)
+				values[f++] = new Entry(index, e.getValue());
+		}
+		return f == values.length ? values : Arrays.copyOf(values, f);
+	}
+
+	/**
+	 * Add the values of the provided features of this instance to the current
+	 * row of a sparse matrix.
+	 * 
+	 * @param builder
+	 * @param features
+	 */
+	public void appendTo(SparseMatrix.Builder builder, Features features) {
+		for (Map.Entry<String, Double> e : vector.entrySet()) {
+			int index = features.indexOf(e.getKey());
+			if (index != -1)
+				builder.add(index, e.getValue());
+		}
 	}
 
 }
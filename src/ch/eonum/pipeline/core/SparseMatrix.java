@@ -0,0 +1,161 @@
+package ch.eonum.pipeline.core;
+
+import java.util.Arrays;
+
+/**
+ * Sparse matrix in the compressed sparse row (CSR) format. The non zero values
+ * of row r are values[rowPtr[r], rowPtr[r + 1]) with the column indices
+ * colIdx[rowPtr[r], rowPtr[r + 1]). The whole matrix consists of three
+ * primitive arrays, compared to one {@link Entry} object per non zero value.
+ *
+ * A matrix can be a view of selected rows of another matrix (see
+ * {@link #selectRows(int[])}). Views share the three arrays, hence rowPtr has
+ * to be accessed with the row of the viewed matrix {@link #row(int)}.
+ *
+ * @author tim
+ *
+ */
+public class SparseMatrix {
+	/** start of each row in colIdx and values. length: rows + 1 */
+	public final int[] rowPtr;
+	/** column index of each non zero value. */
+	public final int[] colIdx;
+	/** non zero values. */
+	public final double[] values;
+	/** rows of a view in rowPtr. null if this is not a view. */
+	private final int[] index;
+
+	public SparseMatrix(int[] rowPtr, int[] colIdx, double[] values) {
+		this(rowPtr, colIdx, values, null);
+	}
+
+	private SparseMatrix(int[] rowPtr, int[] colIdx, double[] values,
+			int[] index) {
+		this.rowPtr = rowPtr;
+		this.colIdx = colIdx;
+		this.values = values;
+		this.index = index;
+	}
+
+	/**
+	 * Number of rows.
+	 *
+	 * @return
+	 */
+	public int rows() {
+		return index == null ? rowPtr.length - 1 : index.length;
+	}
+
+	/**
+	 * Row of the viewed matrix (index into rowPtr) of row r of this matrix.
+	 *
+	 * @param r
+	 * @return
+	 */
+	public int row(int r) {
+		return index == null ? r : index[r];
+	}
+
+	/**
+	 * View of the given rows of this matrix in the given order. Nothing is
+	 * copied.
+	 *
+	 * @param selection
+	 *            row indices of this matrix
+	 * @return
+	 */
+	public SparseMatrix selectRows(int[] selection) {
+		int[] viewIndex = new int[selection.length];
+		for (int i = 0; i < selection.length; i++)
+			viewIndex[i] = row(selection[i]);
+		return new SparseMatrix(rowPtr, colIdx, values, viewIndex);
+	}
+
+	/**
+	 * Number of non zero values.
+	 *
+	 * @return
+	 */
+	public int nonZeros() {
+		return rowPtr[rowPtr.length - 1];
+	}
+
+	/**
+	 * Create a matrix with one row per instance and one column per feature.
+	 * Features of the instances which are not in features are ignored.
+	 *
+	 * @param ds
+	 * @param features
+	 * @return
+	 */
+	public static SparseMatrix fromInstances(
+			DataSet<? extends SparseInstance> ds, Features features) {
+		Builder builder = new Builder();
+		for (SparseInstance each : ds) {
+			each.appendTo(builder, features);
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Row by row construction of a {@link SparseMatrix} or a
+	 * {@link SparseSequenceMatrix}.
+	 */
+	public static class Builder {
+		private int[] rowPtr = new int[17];
+		private int[] colIdx = new int[16];
+		private double[] values = new double[16];
+		private int[] sequencePtr = new int[17];
+		private int rows;
+		private int nonZeros;
+		private int sequences;
+
+		/**
+		 * Add a non zero value to the current row.
+		 *
+		 * @param column
+		 * @param value
+		 */
+		public void add(int column, double value) {
+			if (nonZeros == colIdx.length) {
+				colIdx = Arrays.copyOf(colIdx, 2 * nonZeros);
+				values = Arrays.copyOf(values, 2 * nonZeros);
+			}
+			colIdx[nonZeros] = column;
+			values[nonZeros++] = value;
+		}
+
+		/**
+		 * Finish the current row.
+		 */
+		public void endRow() {
+			if (rows + 2 > rowPtr.length)
+				rowPtr = Arrays.copyOf(rowPtr, 2 * rowPtr.length);
+			rowPtr[++rows] = nonZeros;
+		}
+
+		/**
+		 * Finish the current sequence. It consists of all rows since the end
+		 * of the previous sequence.
+		 */
+		public void endSequence() {
+			if (sequences + 2 > sequencePtr.length)
+				sequencePtr = Arrays.copyOf(sequencePtr, 2 * sequencePtr.length);
+			sequencePtr[++sequences] = rows;
+		}
+
+		public SparseMatrix build() {
+			return new SparseMatrix(Arrays.copyOf(rowPtr, rows + 1),
+					Arrays.copyOf(colIdx, nonZeros), Arrays.copyOf(values,
+							nonZeros));
+		}
+
+		public SparseSequenceMatrix buildSequences() {
+			return new SparseSequenceMatrix(Arrays.copyOf(sequencePtr,
+					sequences + 1), Arrays.copyOf(rowPtr, rows + 1),
+					Arrays.copyOf(colIdx, nonZeros), Arrays.copyOf(values,
+							nonZeros));
+		}
+	}
+}
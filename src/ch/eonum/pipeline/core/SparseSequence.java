@@ -396,9 +396,11 @@ public class SparseSequence extends Sequence {
 		double[][] data = new double[length][features.size()];
 		for(int t = 0; t < this.getSequenceLength(); t++){
 			Map<String, Double> pointT = this.sequence.get(t);
-			for(String feature : pointT.keySet())
-				if(features.hasFeature(feature))
-					data[t][features.getIndexFromFeature(feature)] = pointT.get(feature);
+			for(Map.Entry<String, Double> e : pointT.entrySet()){
+				int index = features.indexOf(e.getKey());
+				if(index != -1)
+					data[t][index] = e.getValue();
+			}
 		}
 		return data;
 	}
@@ -457,6 +459,28 @@ public class SparseSequence extends Sequence {
 		this.sequence.remove(t);
 	}
 	
+	/**
+	 * Add the time points of this sequence as rows to a sparse matrix. Same
+	 * layout as {@link #getSparseRepresentation(Features, boolean)}.
+	 * 
+	 * @param builder
+	 * @param features
+	 * @param bias
+	 */
+	public void appendTo(SparseMatrix.Builder builder, Features features,
+			boolean bias) {
+		for (Map<String, Double> e : this.sequence) {
+			for (Map.Entry<String, Double> entry : e.entrySet()) {
+				int index = features.indexOf(entry.getKey());
+				if (index != -1)
+					builder.add(index, entry.getValue());
+			}
+			if (bias)
+				builder.add(features.size(), 1.0);
+			builder.endRow();
+		}
+	}
+
 	/**
 	 * Get a sparse representation of the input features using Entries.
 	 * @param features
@@ -467,14 +491,19 @@ public class SparseSequence extends Sequence {
 		Entry[][] entries = new Entry[this.sequence.size()][];
 		int i = 0;
 		for(Map<String, Double> e : this.sequence){
-			Set<String> set = new HashSet<String>();
-			for (String feature : e.keySet())
-				if(features.hasFeature(feature))
-					set.add(feature);
-			Entry[] values = new Entry[set.size() + (bias ? 1 : 0)];
-			int f = 0;
-			for (String feature : set)
-				values[f++] = new Entry(features.getIndexFromFeature(feature), e.get(feature));
+			int n = 0;
+			int[] indices = new int[e.size()];
+			double[] data = new double[e.size()];
+			for (Map.Entry<String, Double> entry : e.entrySet()) {
+				int index = features.indexOf(entry.getKey());
+				if (index != -1) {
+					indices[n] = index;
+					data[n++] = entry.getValue();
+				}
+			}
+			Entry[] values = new Entry[n + (bias ? 1 : 0)];
+			for (int f = 0; f < n; f++)
+				values[f] = new Entry(indices[f], data[f]);
 			if(bias)
 				values[values.length - 1] = new Entry(features.size(), 1.0);
 			entries[i++] = values;
@@ -0,0 +1,108 @@
+package ch.eonum.pipeline.core;
+
+/**
+ * A set of sparse sequences in the CSR format. Each row is a time point, the
+ * time points of sequence s are the rows [sequencePtr[s], sequencePtr[s + 1]).
+ * A matrix can be a view of selected sequences of another matrix (see
+ * {@link #selectSequences(int[])}).
+ *
+ * @author tim
+ *
+ */
+public class SparseSequenceMatrix extends SparseMatrix {
+	/** first row of each sequence. length: number of sequences + 1 */
+	public final int[] sequencePtr;
+	/**
+	 * sequences of a view in sequencePtr. null if this is not a view. The rows
+	 * of a view are always the rows of the viewed matrix.
+	 */
+	private final int[] sequenceIndex;
+
+	public SparseSequenceMatrix(int[] sequencePtr, int[] rowPtr,
+			int[] colIdx, double[] values) {
+		this(sequencePtr, rowPtr, colIdx, values, null);
+	}
+
+	private SparseSequenceMatrix(int[] sequencePtr, int[] rowPtr,
+			int[] colIdx, double[] values, int[] sequenceIndex) {
+		super(rowPtr, colIdx, values);
+		this.sequencePtr = sequencePtr;
+		this.sequenceIndex = sequenceIndex;
+	}
+
+	/**
+	 * Number of sequences.
+	 *
+	 * @return
+	 */
+	public int sequences() {
+		return sequenceIndex == null ? sequencePtr.length - 1
+				: sequenceIndex.length;
+	}
+
+	/** sequence of the viewed matrix. */
+	private int base(int s) {
+		return sequenceIndex == null ? s : sequenceIndex[s];
+	}
+
+	/**
+	 * Number of time points of sequence s.
+	 *
+	 * @param s
+	 * @return
+	 */
+	public int sequenceLength(int s) {
+		s = base(s);
+		return sequencePtr[s + 1] - sequencePtr[s];
+	}
+
+	/**
+	 * Row of time point t in sequence s.
+	 *
+	 * @param s
+	 * @param t
+	 * @return
+	 */
+	public int row(int s, int t) {
+		return sequencePtr[base(s)] + t;
+	}
+
+	/**
+	 * View of the given sequences of this matrix in the given order, e.g. the
+	 * training set of a cross validation fold (see {@link Folds}). Nothing is
+	 * copied.
+	 *
+	 * @param selection
+	 *            sequence indices of this matrix
+	 * @return
+	 */
+	public SparseSequenceMatrix selectSequences(int[] selection) {
+		int[] viewIndex = new int[selection.length];
+		for (int i = 0; i < selection.length; i++)
+			viewIndex[i] = base(selection[i]);
+		return new SparseSequenceMatrix(sequencePtr, rowPtr, colIdx, values,
+				viewIndex);
+	}
+
+	/**
+	 * Create a matrix from a set of sequences. Features which are not in
+	 * features are ignored.
+	 *
+	 * @param ds
+	 * @param features
+	 * @param bias
+	 *            add a bias input with value 1.0 and index features.size() to
+	 *            each time point
+	 * @return
+	 */
+	public static SparseSequenceMatrix fromSequences(
+			DataSet<? extends SparseSequence> ds, Features features,
+			boolean bias) {
+		Builder builder = new Builder();
+		for (SparseSequence each : ds) {
+			each.appendTo(builder, features, bias);
+			builder.endSequence();
+		}
+		return builder.buildSequences();
+	}
+}
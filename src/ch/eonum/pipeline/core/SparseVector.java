@@ -0,0 +1,159 @@
+package ch.eonum.pipeline.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable sorted index/value representation of the non zero features of an
+ * instance. Feature labels are mapped to indices with a {@link Dictionary},
+ * hence the vectors of the same dictionary can be merged by their indices
+ * without any hash lookups. The norms are computed once per vector.
+ *
+ * Use {@link Instance#asSparseVector(Dictionary)} to get the (possibly cached)
+ * vector of an instance.
+ *
+ * @author tim
+ *
+ */
+public final class SparseVector {
+	/** dictionary of the indices. */
+	final Dictionary dictionary;
+	/** ascending feature indices. */
+	public final int[] indices;
+	/** values of the features. */
+	public final double[] values;
+	/** sum of the absolute values. */
+	public final double l1;
+	/** sum of the squared values. */
+	public final double sumOfSquares;
+	/** maximal absolute value. */
+	public final double max;
+	/** last exponent and sum of |value|^p for {@link #sumOfPowers(double)}. */
+	private volatile double[] powers;
+
+	private SparseVector(Dictionary dictionary, int[] indices, double[] values) {
+		this.dictionary = dictionary;
+		this.indices = indices;
+		this.values = values;
+		double l1 = 0.0;
+		double sumOfSquares = 0.0;
+		double max = 0.0;
+		for (double v : values) {
+			double a = Math.abs(v);
+			l1 += a;
+			sumOfSquares += v * v;
+			if (a > max)
+				max = a;
+		}
+		this.l1 = l1;
+		this.sumOfSquares = sumOfSquares;
+		this.max = max;
+	}
+
+	/**
+	 * Create the vector of the current features of an instance. Zero values
+	 * are omitted.
+	 *
+	 * @param instance
+	 * @param dictionary
+	 *            mapping of the feature labels to indices
+	 * @return
+	 */
+	public static SparseVector of(Instance instance, Dictionary dictionary) {
+		int n = 0;
+		long[] keys = new long[instance.features().size()];
+		double[] unsorted = new double[keys.length];
+		for (String feature : instance.features()) {
+			double value = instance.get(feature);
+			if (value == 0.0)
+				continue;
+			/** index in the upper, position in the lower half. */
+			keys[n] = ((long) dictionary.intern(feature) << 32) | n;
+			unsorted[n++] = value;
+		}
+		Arrays.sort(keys, 0, n);
+		int[] indices = new int[n];
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++) {
+			indices[i] = (int) (keys[i] >>> 32);
+			values[i] = unsorted[(int) keys[i]];
+		}
+		return new SparseVector(dictionary, indices, values);
+	}
+
+	/**
+	 * Number of non zero values.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return indices.length;
+	}
+
+	/**
+	 * Sum of |value|^p. The sum of the last exponent is cached.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public double sumOfPowers(double p) {
+		double[] last = powers;
+		if (last != null && last[0] == p)
+			return last[1];
+		double sum = 0.0;
+		for (double v : values)
+			sum += Math.pow(Math.abs(v), p);
+		powers = new double[] { p, sum };
+		return sum;
+	}
+
+	/**
+	 * Position of a feature index in {@link #indices} at or after from.
+	 *
+	 * @param index
+	 * @param from
+	 * @return position of index or -(insertion point) - 1
+	 */
+	public int find(int index, int from) {
+		return Arrays.binarySearch(indices, from, indices.length, index);
+	}
+
+	/**
+	 * Mapping of feature labels to indices. Each distance owns its
+	 * dictionary, hence a dictionary only grows with the features of the
+	 * instances compared by its distance and is released with it. Thread
+	 * safe without locking, parallel searches intern concurrently.
+	 */
+	public static final class Dictionary {
+		private final ConcurrentHashMap<String, Integer> indices = new ConcurrentHashMap<String, Integer>();
+		private final AtomicInteger next = new AtomicInteger();
+
+		/**
+		 * Get the index of a feature label. Unknown labels get a new index.
+		 * The indices are distinct but not necessarily consecutive.
+		 *
+		 * @param feature
+		 * @return
+		 */
+		public int intern(String feature) {
+			Integer index = indices.get(feature);
+			if (index == null) {
+				Integer candidate = next.getAndIncrement();
+				index = indices.putIfAbsent(feature, candidate);
+				if (index == null)
+					index = candidate;
+			}
+			return index;
+		}
+
+		/**
+		 * Number of interned feature labels.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return indices.size();
+		}
+	}
+}
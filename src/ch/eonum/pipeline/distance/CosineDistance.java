@@ -1,13 +1,18 @@
 package ch.eonum.pipeline.distance;
 
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 
+import ch.eonum.pipeline.core.DenseInstance;
+import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
+import ch.eonum.pipeline.core.SparseVector;
 
 /**
  * Cosine Distance. Inverse of cosine similarity: {@link http://en.wikipedia.org/wiki/Cosine_similarity}
+ * The norms of sparse instances are cached with their sorted representation
+ * ({@link Instance#asSparseVector(SparseVector.Dictionary)}), the norms of
+ * dense instances with their values ({@link DenseInstance#sumOfSquares()}),
+ * hence only the dot product is computed per pair.
  * @author tim
  *
  * @param <E>
@@ -20,17 +25,43 @@ public class CosineDistance<E extends Instance> extends Distance<E> {
 
 	@Override
 	public double distance(E inst1, E inst2) {
-		double sumTop = 0;
-        double sumOne = 0;
-        double sumTwo = 0;
-        /** merge dimensions. */
-		List<String> union = new ArrayList<String>(inst2.features());
-		union.addAll(inst1.features());
-		for(String feature : new HashSet<String>(union)) {
-            sumTop += inst1.get(feature) * inst2.get(feature);
-            sumOne += inst1.get(feature) * inst1.get(feature);
-            sumTwo += inst2.get(feature) * inst2.get(feature);
-        }
+		if (inst1 instanceof DenseInstance && inst2 instanceof DenseInstance) {
+			Features features = ((DenseInstance) inst1).getFeatures();
+			if (features == ((DenseInstance) inst2).getFeatures()) {
+				double[] a = inst1.asArray(features);
+				double[] b = inst2.asArray(features);
+				return distance(Kernels.dot(a, b),
+						((DenseInstance) inst1).sumOfSquares(),
+						((DenseInstance) inst2).sumOfSquares());
+			}
+		}
+		SparseVector.Dictionary dictionary = getDictionary();
+		SparseVector a = inst1.asSparseVector(dictionary);
+		SparseVector b = inst2.asSparseVector(dictionary);
+		return distance(Kernels.dot(a, b), a.sumOfSquares, b.sumOfSquares);
+	}
+
+	@Override
+	public double[] distances(E query, List<? extends E> candidates) {
+		if (query instanceof DenseInstance)
+			return super.distances(query, candidates);
+		SparseVector.Dictionary dictionary = getDictionary();
+		SparseVector q = query.asSparseVector(dictionary);
+		double[] distances = new double[candidates.size()];
+		for (int i = 0; i < distances.length; i++) {
+			E candidate = candidates.get(i);
+			if (candidate instanceof DenseInstance) {
+				distances[i] = distance(query, candidate);
+				continue;
+			}
+			SparseVector c = candidate.asSparseVector(dictionary);
+			distances[i] = distance(Kernels.dot(q, c), q.sumOfSquares,
+					c.sumOfSquares);
+		}
+		return distances;
+	}
+
+	private static double distance(double sumTop, double sumOne, double sumTwo) {
         double cosSimilarity = sumTop / (Math.sqrt(sumOne) * Math.sqrt(sumTwo));
         if (cosSimilarity < 0)
             cosSimilarity = 0; /** This should not happen, but does due to rounding errors. */
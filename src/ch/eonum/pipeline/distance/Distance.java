@@ -1,8 +1,10 @@
 package ch.eonum.pipeline.distance;
 
+import java.util.List;
 
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.core.Parameters;
+import ch.eonum.pipeline.core.SparseVector;
 
 /**
  * Abstract distance metric. Provides a distance metric between two instances.
@@ -12,6 +14,8 @@ import ch.eonum.pipeline.core.Parameters;
 public abstract class Distance<E extends Instance> extends Parameters {
 	/** zero instance. used to calculate the length of an instance. */
 	protected E zeroInstance;
+	/** feature indices of the sparse vectors compared by this distance. */
+	private SparseVector.Dictionary dictionary = new SparseVector.Dictionary();
 	
 	/**
 	 * @param zi Zero instance.
@@ -20,6 +24,28 @@ public abstract class Distance<E extends Instance> extends Parameters {
 		this.zeroInstance = zi;
 	}
 
+	/**
+	 * Get the dictionary of the sparse vectors compared by this distance
+	 * ({@link Instance#asSparseVector(SparseVector.Dictionary)}).
+	 * 
+	 * @return
+	 */
+	public SparseVector.Dictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Share a dictionary with other distances used on the same instances. A
+	 * sparse instance only caches the vector of the last dictionary, hence
+	 * distances with different dictionaries alternating on the same
+	 * instances rebuild the vectors on every call.
+	 * 
+	 * @param dictionary
+	 */
+	public void setDictionary(SparseVector.Dictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
 	/**
 	 * Get the distance between two instances.
 	 * @param inst1
@@ -45,6 +71,50 @@ public abstract class Distance<E extends Instance> extends Parameters {
 		return distance(inst1, inst2);
 	}
 	
+	/**
+	 * Get the distance between two instances if it is not larger than
+	 * bestSoFar. Distances which abandon early ({@link #abandonsEarly()})
+	 * return positive infinity as soon as the distance is known to be larger
+	 * than bestSoFar, e.g. by a lower bound. Used by nearest neighbor searches
+	 * with the distance of the k'th neighbor so far.
+	 * 
+	 * @param inst1
+	 *            query
+	 * @param inst2
+	 *            candidate
+	 * @param bestSoFar
+	 * @return
+	 */
+	public double boundedDistance(E inst1, E inst2, double bestSoFar) {
+		return distance(inst1, inst2);
+	}
+
+	/**
+	 * Does {@link #boundedDistance(Instance, Instance, double)} save work
+	 * compared to {@link #distance(Instance, Instance)}.
+	 * 
+	 * @return
+	 */
+	public boolean abandonsEarly() {
+		return false;
+	}
+
+	/**
+	 * Get the distances between a query and many candidates. Distances with
+	 * vector kernels resolve their parameters and the representation of the
+	 * query only once.
+	 * 
+	 * @param query
+	 * @param candidates
+	 * @return distance between the query and each candidate
+	 */
+	public double[] distances(E query, List<? extends E> candidates) {
+		double[] distances = new double[candidates.size()];
+		for (int i = 0; i < distances.length; i++)
+			distances[i] = distance(query, candidates.get(i));
+		return distances;
+	}
+
 	/**
 	 * Calculate the length of an instance. The length is the same as the
 	 * distance to a 0-instance.
@@ -0,0 +1,320 @@
+package ch.eonum.pipeline.distance;
+
+/**
+ * Dynamic time warping engine shared by {@link DynamicTimeWarpingDense} and
+ * {@link DynamicTimeWarpingSparse}.
+ *
+ * <ul>
+ * <li>The warping path can be constrained to a Sakoe-Chiba band around the
+ * (scaled) diagonal and/or an Itakura parallelogram. The band of each row is
+ * widened to contain the diagonal and to stay connected, hence there is always
+ * a warping path.</li>
+ * <li>Only two rows of the dynamic programming matrix are kept.</li>
+ * <li>The computation is abandoned as soon as the minimum of a row exceeds the
+ * best distance so far (costs are non negative).</li>
+ * <li>Lower bounds for a cascade in nearest neighbor searches: LB_Kim (the
+ * first and the last points are always matched) and LB_Keogh (distance of
+ * each point to the envelope of the other sequence within the band).</li>
+ * </ul>
+ *
+ * @author tim
+ *
+ */
+public final class DynamicTimeWarping {
+
+	/** Cost of matching point i of the first with point j of the second sequence. */
+	public interface Cost {
+		double cost(int i, int j);
+	}
+
+	/** euclidian cost of two dense sequences. */
+	public static final class DenseCost implements Cost {
+		private final double[][] s;
+		private final double[][] t;
+
+		public DenseCost(double[][] s, double[][] t) {
+			this.s = s;
+			this.t = t;
+		}
+
+		@Override
+		public double cost(int i, int j) {
+			return Math.sqrt(Kernels.squared(s[i], t[j]));
+		}
+	}
+
+	/**
+	 * Sakoe-Chiba band and Itakura parallelogram.
+	 */
+	public static final class Band {
+		/** maximal distance from the diagonal as a fraction of the longer sequence. */
+		private final double window;
+		/** maximal slope of the Itakura parallelogram. 0: no parallelogram. */
+		private final double slope;
+
+		/**
+		 * @param window
+		 *            Sakoe-Chiba radius as a fraction of the length of the
+		 *            longer sequence. 1.0 or more: no constraint.
+		 * @param slope
+		 *            maximal slope of the warping path (Itakura
+		 *            parallelogram). values smaller than 1.0: no constraint.
+		 */
+		public Band(double window, double slope) {
+			this.window = window;
+			this.slope = slope;
+		}
+
+		/**
+		 * Is the whole matrix inside the band.
+		 *
+		 * @return
+		 */
+		public boolean isUnconstrained() {
+			return window >= 1.0 && slope < 1.0;
+		}
+
+		/** column of the diagonal in row i. */
+		private static double diagonal(int i, int n, int m) {
+			return n == 1 ? 0.0 : (double) i * (m - 1) / (n - 1);
+		}
+
+		/**
+		 * First column of row i in the band.
+		 *
+		 * @param i
+		 * @param n
+		 *            length of the first sequence (rows)
+		 * @param m
+		 *            length of the second sequence (columns)
+		 * @return
+		 */
+		public int lo(int i, int n, int m) {
+			if (isUnconstrained())
+				return 0;
+			double c = diagonal(i, n, m);
+			double lo = 0.0;
+			if (window < 1.0)
+				lo = c - window * Math.max(n, m);
+			if (slope >= 1.0 && n > 1) {
+				double x = (double) i / (n - 1);
+				lo = Math.max(lo, (m - 1) * Math.max(x / slope, 1.0 - (1.0 - x) * slope));
+			}
+			return (int) Math.max(0, Math.min(Math.floor(c), Math.ceil(lo)));
+		}
+
+		/**
+		 * Last column of row i in the band.
+		 *
+		 * @param i
+		 * @param n
+		 * @param m
+		 * @return
+		 */
+		public int hi(int i, int n, int m) {
+			if (isUnconstrained())
+				return m - 1;
+			double c = diagonal(i, n, m);
+			double hi = m - 1;
+			if (window < 1.0)
+				hi = c + window * Math.max(n, m);
+			if (slope >= 1.0 && n > 1) {
+				double x = (double) i / (n - 1);
+				hi = Math.min(hi, (m - 1) * Math.min(x * slope, 1.0 - (1.0 - x) / slope));
+			}
+			hi = Math.max(Math.floor(hi), Math.ceil(c));
+			/** the next row has to be reachable. */
+			if (i + 1 < n)
+				hi = Math.max(hi, Math.floor(diagonal(i + 1, n, m)) - 1);
+			return (int) Math.min(m - 1, hi);
+		}
+	}
+
+	private DynamicTimeWarping() {}
+
+	/**
+	 * DTW distance with a constrained warping path and early abandoning.
+	 *
+	 * @param n
+	 *            length of the first sequence
+	 * @param m
+	 *            length of the second sequence
+	 * @param cost
+	 * @param band
+	 * @param bestSoFar
+	 *            the computation is abandoned if the distance is known to be
+	 *            larger
+	 * @return the distance or positive infinity if abandoned
+	 */
+	public static double distance(int n, int m, Cost cost, Band band,
+			double bestSoFar) {
+		return distance(n, m, cost, band, bestSoFar, null);
+	}
+
+	/**
+	 * DTW distance with a constrained warping path and early abandoning. The
+	 * computation is abandoned as soon as the minimum of a row plus the lower
+	 * bound of the remaining rows exceeds bestSoFar.
+	 *
+	 * @param n
+	 * @param m
+	 * @param cost
+	 * @param band
+	 * @param bestSoFar
+	 * @param remaining
+	 *            remaining[i]: lower bound of the costs of the rows i..n-1,
+	 *            length n + 1 (see {@link #remainingBound(double[][][], double[][])}).
+	 *            null: no bound
+	 * @return the distance or positive infinity if abandoned
+	 */
+	public static double distance(int n, int m, Cost cost, Band band,
+			double bestSoFar, double[] remaining) {
+		if (n == 0 || m == 0)
+			return n == m ? 0.0 : Double.POSITIVE_INFINITY;
+		double[] prev = new double[m];
+		double[] cur = new double[m];
+		int loPrev = 0, hiPrev = -1;
+		for (int i = 0; i < n; i++) {
+			int lo = band.lo(i, n, m);
+			int hi = band.hi(i, n, m);
+			double rowMin = Double.POSITIVE_INFINITY;
+			for (int j = lo; j <= hi; j++) {
+				double best;
+				if (i == 0 && j == 0)
+					best = 0.0;
+				else {
+					/** insertion, deletion, match. */
+					double up = j >= loPrev && j <= hiPrev ? prev[j] : Double.POSITIVE_INFINITY;
+					double left = j > lo ? cur[j - 1] : Double.POSITIVE_INFINITY;
+					double diag = j - 1 >= loPrev && j - 1 <= hiPrev ? prev[j - 1]
+							: Double.POSITIVE_INFINITY;
+					best = Math.min(up, Math.min(left, diag));
+				}
+				double d = best == Double.POSITIVE_INFINITY ? best : best + cost.cost(i, j);
+				cur[j] = d;
+				if (d < rowMin)
+					rowMin = d;
+			}
+			if (rowMin + (remaining == null ? 0.0 : remaining[i + 1]) > bestSoFar)
+				return Double.POSITIVE_INFINITY;
+			double[] tmp = prev;
+			prev = cur;
+			cur = tmp;
+			loPrev = lo;
+			hiPrev = hi;
+		}
+		return hiPrev == m - 1 ? prev[m - 1] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * LB_Kim: every warping path matches the first and the last points.
+	 *
+	 * @param n
+	 * @param m
+	 * @param cost
+	 * @return
+	 */
+	public static double lowerBoundKim(int n, int m, Cost cost) {
+		if (n == 0 || m == 0)
+			return n == m ? 0.0 : Double.POSITIVE_INFINITY;
+		double lb = cost.cost(0, 0);
+		if (n > 1 || m > 1)
+			lb += cost.cost(n - 1, m - 1);
+		return lb;
+	}
+
+	/**
+	 * Envelope of a dense sequence within the band: the minimum and maximum
+	 * of each feature over the points a point of an equally long sequence
+	 * can be matched with. The band is widened by one point on each side to be
+	 * safe from rounding in the band limits.
+	 *
+	 * @param s
+	 * @param band
+	 * @return lower and upper envelope [2][length][features]
+	 */
+	public static double[][][] envelope(double[][] s, Band band) {
+		int n = s.length;
+		double[][][] env = new double[2][n][];
+		for (int j = 0; j < n; j++) {
+			double[] lower = s[j].clone();
+			double[] upper = s[j].clone();
+			int hi = Math.min(n - 1, band.hi(j, n, n) + 1);
+			for (int i = Math.max(0, band.lo(j, n, n) - 1); i <= hi; i++)
+				for (int f = 0; f < lower.length; f++) {
+					if (s[i][f] < lower[f])
+						lower[f] = s[i][f];
+					if (s[i][f] > upper[f])
+						upper[f] = s[i][f];
+				}
+			env[0][j] = lower;
+			env[1][j] = upper;
+		}
+		return env;
+	}
+
+	/**
+	 * LB_Keogh for two dense sequences of the same length with the euclidian
+	 * cost: each point of t is matched with at least one point of the
+	 * envelope of s.
+	 *
+	 * @param envelope
+	 *            envelope of the first sequence, see
+	 *            {@link #envelope(double[][], Band)}
+	 * @param t
+	 *            second sequence of the same length
+	 * @param bestSoFar
+	 *            the sum is abandoned if it is larger
+	 * @return the lower bound or a value larger than bestSoFar
+	 */
+	public static double lowerBoundKeogh(double[][][] envelope, double[][] t,
+			double bestSoFar) {
+		double[][] lower = envelope[0];
+		double[][] upper = envelope[1];
+		double lb = 0.0;
+		for (int j = 0; j < t.length; j++) {
+			double[] x = t[j];
+			double[] l = lower[j];
+			double[] u = upper[j];
+			double sum = 0.0;
+			for (int f = 0; f < x.length; f++) {
+				double d = x[f] > u[f] ? x[f] - u[f] : x[f] < l[f] ? l[f] - x[f] : 0.0;
+				sum += d * d;
+			}
+			lb += Math.sqrt(sum);
+			if (lb > bestSoFar)
+				return lb;
+		}
+		return lb;
+	}
+
+	/**
+	 * Per point LB_Keogh of s against the envelope of a sequence of the same
+	 * length, summed from the back. Each row of the DTW matrix (point of s)
+	 * is visited at least once within the band.
+	 *
+	 * @param envelope
+	 *            envelope of the second sequence
+	 * @param s
+	 *            first sequence
+	 * @return r[i]: lower bound of the costs of the points i..n-1 of s. r[0]
+	 *         is LB_Keogh, r[n] = 0.
+	 */
+	public static double[] remainingBound(double[][][] envelope, double[][] s) {
+		double[][] lower = envelope[0];
+		double[][] upper = envelope[1];
+		double[] remaining = new double[s.length + 1];
+		for (int i = s.length - 1; i >= 0; i--) {
+			double[] x = s[i];
+			double[] l = lower[i];
+			double[] u = upper[i];
+			double sum = 0.0;
+			for (int f = 0; f < x.length; f++) {
+				double d = x[f] > u[f] ? x[f] - u[f] : x[f] < l[f] ? l[f] - x[f] : 0.0;
+				sum += d * d;
+			}
+			remaining[i] = remaining[i + 1] + Math.sqrt(sum);
+		}
+		return remaining;
+	}
+}
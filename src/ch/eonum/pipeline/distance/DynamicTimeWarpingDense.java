@@ -1,15 +1,27 @@
 package ch.eonum.pipeline.distance;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import ch.eonum.pipeline.core.DenseSequence;
 import ch.eonum.pipeline.core.Features;
 
 /**
  * Dynamic Time Warping. @see http://en.wikipedia.org/wiki/Dynamic_time_warping.
  * Measures the similarity/distance between two temporal sequences by aligning
- * them using dynamic programming. Currently this is a simple dynamic time
- * warping distance without any optimization. Setting different weights for
+ * them using dynamic programming. Setting different weights for
  * different features is done by scaling those features.
  * 
+ * The warping path can be constrained by a Sakoe-Chiba band and an Itakura
+ * parallelogram. Nearest neighbor searches ({@link #boundedDistance}) prune
+ * candidates with the cascade LB_Kim, LB_Keogh in both directions (sequences
+ * of equal length) and DTW abandoned early with the LB_Keogh of the remaining
+ * rows. The envelopes for LB_Keogh are cached, hence sequences must not be
+ * changed while the distance is in use.
+ * See {@link DynamicTimeWarping}.
+ * 
  * Only for dense sequences. Cost function is a simple euclidian distance.
  * 
  * @author tim
@@ -17,9 +29,33 @@ import ch.eonum.pipeline.core.Features;
  * @param <E>
  */
 public class DynamicTimeWarpingDense<E extends DenseSequence> extends Distance<E> {
+	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
+
+	static {
+		PARAMETERS.put("window", "Sakoe-Chiba band: maximal distance of the warping path from the diagonal "
+				+ "as a fraction of the longer sequence, 1.0 => no constraint :  (default 1.0)");
+		PARAMETERS.put("slope", "Itakura parallelogram: maximal slope of the warping path, "
+				+ "0.0 => no constraint :  (default 0.0)");
+	}
 
 	/** Feature set. */
 	private Features features;
+	/** LB_Keogh envelopes of the queries and the candidates. */
+	private Map<E, Envelope> envelopes = Collections
+			.synchronizedMap(new WeakHashMap<E, Envelope>());
+
+	/** envelope of a sequence for one band. */
+	private static class Envelope {
+		final double window;
+		final double slope;
+		final double[][][] envelope;
+
+		Envelope(double window, double slope, double[][][] envelope) {
+			this.window = window;
+			this.slope = slope;
+			this.envelope = envelope;
+		}
+	}
 
 	/**
 	 * 
@@ -32,37 +68,76 @@ public class DynamicTimeWarpingDense<E extends DenseSequence> extends Distance<E
 	public DynamicTimeWarpingDense(E zi, Features features) {
 		super(zi);
 		this.features = features;
+		this.setSupportedParameters(DynamicTimeWarpingDense.PARAMETERS);
+		this.putParameter("window", 1.0);
+		this.putParameter("slope", 0.0);
 	}
 
 	@Override
 	public double distance(E s, E t) {
-		int n = s.getSequenceLength() + 1;
-		int m = t.getSequenceLength() + 1;
+		return DynamicTimeWarping.distance(s.getSequenceLength(),
+				t.getSequenceLength(), cost(s, t), band(),
+				Double.POSITIVE_INFINITY);
+	}
+
+	@Override
+	public double boundedDistance(E s, E t, double bestSoFar) {
+		int n = s.getSequenceLength();
+		int m = t.getSequenceLength();
+		DynamicTimeWarping.Cost cost = cost(s, t);
+		double window = getDoubleParameter("window");
+		double slope = getDoubleParameter("slope");
+		DynamicTimeWarping.Band band = new DynamicTimeWarping.Band(window, slope);
+		if (bestSoFar == Double.POSITIVE_INFINITY)
+			return DynamicTimeWarping.distance(n, m, cost, band, bestSoFar);
+		if (DynamicTimeWarping.lowerBoundKim(n, m, cost) > bestSoFar)
+			return Double.POSITIVE_INFINITY;
+		if (n != m || n == 0)
+			return DynamicTimeWarping.distance(n, m, cost, band, bestSoFar);
 		double[][] sArray = s.getDenseRepresentation(features);
 		double[][] tArray = t.getDenseRepresentation(features);
+		/** LB_Keogh in both directions, the second one per row. */
+		if (DynamicTimeWarping.lowerBoundKeogh(envelope(s, window, slope, band),
+				tArray, bestSoFar) > bestSoFar)
+			return Double.POSITIVE_INFINITY;
+		double[] remaining = DynamicTimeWarping.remainingBound(
+				envelope(t, window, slope, band), sArray);
+		if (remaining[0] > bestSoFar)
+			return Double.POSITIVE_INFINITY;
+		return DynamicTimeWarping.distance(n, m, cost, band, bestSoFar, remaining);
+	}
+
+	@Override
+	public boolean abandonsEarly() {
+		return true;
+	}
+
+	private DynamicTimeWarping.Cost cost(E s, E t) {
+		return new DynamicTimeWarping.DenseCost(s.getDenseRepresentation(features),
+				t.getDenseRepresentation(features));
+	}
 
-		double[][] DTW = new double[n][m];
-
-		for (int i = 0; i < n; i++)
-			DTW[i][0] = Double.POSITIVE_INFINITY;
-		for (int i = 0; i < m; i++)
-			DTW[0][i] = Double.POSITIVE_INFINITY;
-		DTW[0][0] = 0;
-
-		for (int i = 1; i < n; i++) {
-			for (int j = 1; j < m; j++) {
-				double cost = 0;
-				for(int f = 0; f < features.size(); f++){
-					cost += Math.pow(sArray[i-1][f] - tArray[j-1][f], 2);
-				}
-				cost = Math.sqrt(cost);
-				DTW[i][j] = cost + Math.min(DTW[i - 1][j], Math.min( // insertion
-						DTW[i][j - 1], // deletion
-						DTW[i - 1][j - 1])); // match
-			}
+	private DynamicTimeWarping.Band band() {
+		return new DynamicTimeWarping.Band(getDoubleParameter("window"),
+				getDoubleParameter("slope"));
+	}
+
+	private double[][][] envelope(E s, double window, double slope,
+			DynamicTimeWarping.Band band) {
+		Envelope e = envelopes.get(s);
+		if (e == null || e.window != window || e.slope != slope) {
+			e = new Envelope(window, slope, DynamicTimeWarping.envelope(
+					s.getDenseRepresentation(features), band));
+			envelopes.put(s, e);
 		}
+		return e.envelope;
+	}
 
-		return DTW[n - 1][m - 1];
+	/**
+	 * Forget the cached envelopes, e.g. after changing sequences.
+	 */
+	public void clearCache() {
+		envelopes.clear();
 	}
 
 }
@@ -1,27 +1,50 @@
 package ch.eonum.pipeline.distance;
 
-import ch.eonum.pipeline.core.DataSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import ch.eonum.pipeline.core.SparseInstance;
 import ch.eonum.pipeline.core.SparseSequence;
 
 /**
  * Dynamic Time Warping. @see http://en.wikipedia.org/wiki/Dynamic_time_warping.
  * Measures the similarity/distance between two temporal sequences by aligning
- * them using dynamic programming. Currently this is a simple dynamic time
- * warping distance without any optimization. Setting different weights for
+ * them using dynamic programming. Setting different weights for
  * different features is done by scaling those features.
  * 
+ * The warping path can be constrained by a Sakoe-Chiba band and an Itakura
+ * parallelogram. Nearest neighbor searches ({@link #boundedDistance}) prune
+ * candidates with LB_Kim and early abandoned DTW. LB_Keogh is not available
+ * for an arbitrary cost function. The time points of the sequences are
+ * cached (and with them the sorted vectors of the cost function), hence
+ * sequences must not be changed while the distance is in use. See
+ * {@link DynamicTimeWarping}.
+ * 
  * @author tim
  * 
  * @param <E>
  */
 public class DynamicTimeWarpingSparse<E extends SparseSequence> extends Distance<E> {
+	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
+
+	static {
+		PARAMETERS.put("window", "Sakoe-Chiba band: maximal distance of the warping path from the diagonal "
+				+ "as a fraction of the longer sequence, 1.0 => no constraint :  (default 1.0)");
+		PARAMETERS.put("slope", "Itakura parallelogram: maximal slope of the warping path, "
+				+ "0.0 => no constraint :  (default 0.0)");
+	}
 
 	/**
 	 * Cost function to measure the transformation cost from one point in a
 	 * sequence to another point in a sequence.
 	 */
 	private Distance<SparseInstance> costFunction;
+	/** time points of the sequences. */
+	private Map<E, List<SparseInstance>> timePoints = Collections
+			.synchronizedMap(new WeakHashMap<E, List<SparseInstance>>());
 
 	/**
 	 * 
@@ -34,34 +57,55 @@ public class DynamicTimeWarpingSparse<E extends SparseSequence> extends Distance
 	public DynamicTimeWarpingSparse(E zi, Distance<SparseInstance> costFunction) {
 		super(zi);
 		this.costFunction = costFunction;
+		this.setSupportedParameters(DynamicTimeWarpingSparse.PARAMETERS);
+		this.putParameter("window", 1.0);
+		this.putParameter("slope", 0.0);
 	}
 
 	@Override
 	public double distance(E s, E t) {
-		int n = s.getSequenceLength() + 1;
-		int m = t.getSequenceLength() + 1;
-		DataSet<SparseInstance> sPoints = s.getDataSetFromTimePoints();
-		DataSet<SparseInstance> tPoints = t.getDataSetFromTimePoints();
+		return boundedDistance(s, t, Double.POSITIVE_INFINITY);
+	}
 
-		double[][] DTW = new double[n][m];
+	@Override
+	public double boundedDistance(E s, E t, double bestSoFar) {
+		int n = s.getSequenceLength();
+		int m = t.getSequenceLength();
+		final List<SparseInstance> sPoints = timePoints(s);
+		final List<SparseInstance> tPoints = timePoints(t);
+		DynamicTimeWarping.Cost cost = new DynamicTimeWarping.Cost() {
+			@Override
+			public double cost(int i, int j) {
+				return costFunction.distance(sPoints.get(i), tPoints.get(j));
+			}
+		};
+		if (bestSoFar < Double.POSITIVE_INFINITY
+				&& DynamicTimeWarping.lowerBoundKim(n, m, cost) > bestSoFar)
+			return Double.POSITIVE_INFINITY;
+		return DynamicTimeWarping.distance(n, m, cost,
+				new DynamicTimeWarping.Band(getDoubleParameter("window"),
+						getDoubleParameter("slope")), bestSoFar);
+	}
 
-		for (int i = 0; i < n; i++)
-			DTW[i][0] = Double.POSITIVE_INFINITY;
-		for (int i = 0; i < m; i++)
-			DTW[0][i] = Double.POSITIVE_INFINITY;
-		DTW[0][0] = 0;
+	@Override
+	public boolean abandonsEarly() {
+		return true;
+	}
 
-		for (int i = 1; i < n; i++) {
-			for (int j = 1; j < m; j++) {
-				double cost = this.costFunction.distance(sPoints.get(i - 1),
-						tPoints.get(j - 1));
-				DTW[i][j] = cost + Math.min(DTW[i - 1][j], Math.min( // insertion
-						DTW[i][j - 1], // deletion
-						DTW[i - 1][j - 1])); // match
-			}
+	private List<SparseInstance> timePoints(E s) {
+		List<SparseInstance> points = timePoints.get(s);
+		if (points == null) {
+			points = s.getDataSetFromTimePoints();
+			timePoints.put(s, points);
 		}
+		return points;
+	}
 
-		return DTW[n - 1][m - 1];
+	/**
+	 * Forget the cached time points, e.g. after changing sequences.
+	 */
+	public void clearCache() {
+		timePoints.clear();
 	}
 
 }
@@ -1,29 +1,530 @@
 package ch.eonum.pipeline.distance;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import ch.eonum.pipeline.core.Graph;
 
 
 /**
  * Calculate an edit distance between two graphs.
- * 
- * Not yet implemented.
- * 
+ *
+ * Approximation by bipartite assignment (Riesen and Bunke): the costs of
+ * substituting, deleting and inserting each node, including an estimate of
+ * the costs of its incident edges (local assignment of the edges), form a
+ * square cost matrix of size nodes1 + nodes2. The optimal assignment
+ * ({@link LinearAssignment}) defines an edit path of the nodes, the edges
+ * follow from it. The returned distance is the exact cost of this edit path,
+ * hence an upper bound of the graph edit distance. With a beam width > 0 the
+ * assignment is refined by a beam search over swaps of assigned nodes
+ * (BP-Beam).
+ *
+ * Substituting a node or an edge costs the weighted cost of their attributes
+ * ({@link AttributeCost}), deleting or inserting costs a constant. Directed
+ * edges are only substituted by directed edges in the same direction.
+ *
+ * Distances between pairs of graphs and the indexed structure of each graph
+ * are cached, hence graphs must not be changed while the distance is in use
+ * (see {@link #clearCache()}). The cache is cleared when the parameters
+ * change. The distance cache keeps the cacheSize most recently used pairs,
+ * each entry takes about 100 bytes and keeps both graphs reachable.
+ *
  * @author tim
  *
  */
 public class GraphEditDistance<E extends Graph> extends Distance<E> {
-	
+	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
+
+	static {
+		PARAMETERS.put("nodeCost", "cost of deleting or inserting a node :  (default 1.0)");
+		PARAMETERS.put("edgeCost", "cost of deleting or inserting an edge :  (default 1.0)");
+		PARAMETERS.put("nodeAttributeWeight", "weight of the attribute cost when substituting a node :  (default 1.0)");
+		PARAMETERS.put("edgeAttributeWeight", "weight of the attribute cost when substituting an edge :  (default 1.0)");
+		PARAMETERS.put("beamWidth", "number of assignments kept in the beam search refining the "
+				+ "bipartite assignment, 0.0 => no refinement :  (default 0.0)");
+		PARAMETERS.put("cacheSize", "maximum number of cached distances between pairs of graphs, "
+				+ "the least recently used are dropped, 0.0 => no cache :  (default 100000.0)");
+	}
+
+	/**
+	 * Cost of substituting the attributes of a node or an edge by the
+	 * attributes of another one. Attributes can be null.
+	 */
+	public interface AttributeCost {
+		double cost(Map<String, Double> attributes1, Map<String, Double> attributes2);
+	}
+
+	/** euclidian distance of the attributes, missing attributes are 0. */
+	public static final AttributeCost EUCLIDIAN = new AttributeCost() {
+		@Override
+		public double cost(Map<String, Double> a, Map<String, Double> b) {
+			if (a == null || a.isEmpty())
+				return b == null ? 0.0 : length(b);
+			if (b == null || b.isEmpty())
+				return length(a);
+			double sum = 0.0;
+			for (Map.Entry<String, Double> e : a.entrySet()) {
+				Double other = b.get(e.getKey());
+				double d = e.getValue() - (other == null ? 0.0 : other);
+				sum += d * d;
+			}
+			for (Map.Entry<String, Double> e : b.entrySet())
+				if (!a.containsKey(e.getKey()))
+					sum += e.getValue() * e.getValue();
+			return Math.sqrt(sum);
+		}
+
+		private double length(Map<String, Double> a) {
+			double sum = 0.0;
+			for (double v : a.values())
+				sum += v * v;
+			return Math.sqrt(sum);
+		}
+	};
+
+	private AttributeCost nodeAttributeCost = EUCLIDIAN;
+	private AttributeCost edgeAttributeCost = EUCLIDIAN;
+	/** indexed structure of each graph. */
+	private Map<E, Indexed> indexed = Collections
+			.synchronizedMap(new WeakHashMap<E, Indexed>());
+	/** maximum number of cached distances. */
+	private int maxCached;
+	/** distances by pair of graphs. least recently used first. */
+	private final Map<Pair, Double> cache = new LinkedHashMap<Pair, Double>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Pair, Double> eldest) {
+			return size() > maxCached;
+		}
+	};
+	/** parameters the cached distances have been computed with. */
+	private Costs cachedCosts;
+
+	/** parameters of one distance computation. */
+	private static final class Costs {
+		final double node;
+		final double edge;
+		final double nodeWeight;
+		final double edgeWeight;
+		final int beamWidth;
+		final int cacheSize;
+		final AttributeCost nodeAttributes;
+		final AttributeCost edgeAttributes;
+
+		Costs(GraphEditDistance<?> d) {
+			node = d.getDoubleParameter("nodeCost");
+			edge = d.getDoubleParameter("edgeCost");
+			nodeWeight = d.getDoubleParameter("nodeAttributeWeight");
+			edgeWeight = d.getDoubleParameter("edgeAttributeWeight");
+			beamWidth = (int) d.getDoubleParameter("beamWidth");
+			cacheSize = (int) d.getDoubleParameter("cacheSize");
+			nodeAttributes = d.nodeAttributeCost;
+			edgeAttributes = d.edgeAttributeCost;
+		}
+
+		boolean same(Costs o) {
+			return o != null && node == o.node && edge == o.edge
+					&& nodeWeight == o.nodeWeight && edgeWeight == o.edgeWeight
+					&& beamWidth == o.beamWidth
+					&& nodeAttributes == o.nodeAttributes
+					&& edgeAttributes == o.edgeAttributes;
+		}
+	}
+
+	/** ordered pair of graphs, compared by identity. */
+	private static final class Pair {
+		final Graph first;
+		final Graph second;
+
+		Pair(Graph first, Graph second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(first)
+					+ System.identityHashCode(second);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Pair && ((Pair) o).first == first
+					&& ((Pair) o).second == second;
+		}
+	}
+
+	/** nodes and edges of a graph by index. */
+	private static final class Indexed {
+		final List<Map<String, Double>> nodes = new ArrayList<Map<String, Double>>();
+		final List<Map<String, Double>> edges = new ArrayList<Map<String, Double>>();
+		final int[] start;
+		final int[] end;
+		final boolean[] directed;
+		/** incident edges of each node. */
+		final int[][] incident;
+		/** edge by {@link #key(int, int, boolean)}. */
+		final Map<Long, Integer> lookup = new HashMap<Long, Integer>();
+
+		Indexed(Graph graph) {
+			Map<Graph.Node, Integer> index = new HashMap<Graph.Node, Integer>();
+			for (Graph.Node node : graph.nodes()) {
+				index.put(node, nodes.size());
+				nodes.add(node.attributes);
+			}
+			int numEdges = graph.edges().size();
+			start = new int[numEdges];
+			end = new int[numEdges];
+			directed = new boolean[numEdges];
+			int[] degrees = new int[nodes.size()];
+			for (Graph.Edge edge : graph.edges()) {
+				Integer s = index.get(edge.start);
+				Integer t = index.get(edge.end);
+				if (s == null || t == null)
+					throw new IllegalArgumentException("Edge of graph "
+							+ graph.id + " with a node which is not in the graph");
+				int e = edges.size();
+				edges.add(edge.attributes);
+				start[e] = s;
+				end[e] = t;
+				directed[e] = edge.directed;
+				degrees[s]++;
+				if (t.intValue() != s.intValue())
+					degrees[t]++;
+				Long key = key(s, t, edge.directed);
+				if (!lookup.containsKey(key))
+					lookup.put(key, e);
+			}
+			incident = new int[nodes.size()][];
+			for (int i = 0; i < incident.length; i++)
+				incident[i] = new int[degrees[i]];
+			Arrays.fill(degrees, 0);
+			for (int e = 0; e < numEdges; e++) {
+				incident[start[e]][degrees[start[e]]++] = e;
+				if (end[e] != start[e])
+					incident[end[e]][degrees[end[e]]++] = e;
+			}
+		}
+
+		Long key(int s, int t, boolean isDirected) {
+			if (!isDirected && s > t) {
+				int tmp = s;
+				s = t;
+				t = tmp;
+			}
+			return ((long) s * nodes.size() + t) * 2 + (isDirected ? 1 : 0);
+		}
+
+		/**
+		 * direction of edge e seen from node: 0 undirected, 1 outgoing, 2
+		 * incoming.
+		 */
+		int direction(int e, int node) {
+			return !directed[e] ? 0 : start[e] == node ? 1 : 2;
+		}
+	}
+
+	/** node of the beam search. */
+	private static final class State {
+		final int[] assignment;
+		final int depth;
+		final double cost;
+
+		State(int[] assignment, int depth, double cost) {
+			this.assignment = assignment;
+			this.depth = depth;
+			this.cost = cost;
+		}
+	}
+
 	/**
 	 * Constructor. Initialize the zero graph.
 	 * @param zeroGraph
 	 */
 	public GraphEditDistance(E zeroGraph) {
 		super(zeroGraph);
+		this.setSupportedParameters(GraphEditDistance.PARAMETERS);
+		this.putParameter("nodeCost", 1.0);
+		this.putParameter("edgeCost", 1.0);
+		this.putParameter("nodeAttributeWeight", 1.0);
+		this.putParameter("edgeAttributeWeight", 1.0);
+		this.putParameter("beamWidth", 0.0);
+		this.putParameter("cacheSize", 100000.0);
+	}
+
+	/**
+	 * Set the cost of substituting the attributes of nodes.
+	 *
+	 * @param cost
+	 */
+	public void setNodeAttributeCost(AttributeCost cost) {
+		this.nodeAttributeCost = cost;
+	}
+
+	/**
+	 * Set the cost of substituting the attributes of edges.
+	 *
+	 * @param cost
+	 */
+	public void setEdgeAttributeCost(AttributeCost cost) {
+		this.edgeAttributeCost = cost;
 	}
 
 	public double distance(E graph1, E graph2) {
-		// TODO Auto-generated method stub
-		return 0;
+		if (graph1 == graph2)
+			return 0.0;
+		Costs costs = new Costs(this);
+		if (costs.cacheSize <= 0)
+			return distance(index(graph1), index(graph2), costs);
+		Pair pair = new Pair(graph1, graph2);
+		Double cached = cached(pair, costs);
+		if (cached != null)
+			return cached;
+		double d = distance(index(graph1), index(graph2), costs);
+		synchronized (cache) {
+			if (costs.same(cachedCosts))
+				cache.put(pair, d);
+		}
+		return d;
+	}
+
+	/**
+	 * The difference of the number of nodes and edges is a lower bound of the
+	 * edit distance.
+	 */
+	@Override
+	public double boundedDistance(E graph1, E graph2, double bestSoFar) {
+		if (bestSoFar < Double.POSITIVE_INFINITY) {
+			Costs costs = new Costs(this);
+			if (costs.cacheSize <= 0
+					|| cached(new Pair(graph1, graph2), costs) == null) {
+				double lb = Math.abs(graph1.nodes().size() - graph2.nodes().size())
+						* costs.node
+						+ Math.abs(graph1.edges().size() - graph2.edges().size())
+						* costs.edge;
+				if (lb > bestSoFar)
+					return Double.POSITIVE_INFINITY;
+			}
+		}
+		return distance(graph1, graph2);
+	}
+
+	@Override
+	public boolean abandonsEarly() {
+		return true;
+	}
+
+	/**
+	 * Forget the cached distances and graph structures, e.g. after changing
+	 * graphs.
+	 */
+	public void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+		indexed.clear();
+	}
+
+	/**
+	 * Cached distance, null if not cached. Clears the cache if the parameters
+	 * have changed and drops the least recently used distances if the cache
+	 * size has been reduced.
+	 */
+	private Double cached(Pair pair, Costs costs) {
+		synchronized (cache) {
+			maxCached = costs.cacheSize;
+			if (!costs.same(cachedCosts)) {
+				cache.clear();
+				cachedCosts = costs;
+				return null;
+			}
+			Iterator<Pair> eldest = cache.keySet().iterator();
+			while (cache.size() > maxCached) {
+				eldest.next();
+				eldest.remove();
+			}
+			return cache.get(pair);
+		}
+	}
+
+	private Indexed index(E graph) {
+		Indexed g = indexed.get(graph);
+		if (g == null) {
+			g = new Indexed(graph);
+			indexed.put(graph, g);
+		}
+		return g;
+	}
+
+	private double distance(Indexed g1, Indexed g2, Costs costs) {
+		int n = g1.nodes.size();
+		int m = g2.nodes.size();
+		int size = n + m;
+		if (size == 0)
+			return 0.0;
+		double[][] nodeCosts = new double[n][m];
+		double[][] matrix = new double[size][size];
+		for (double[] row : matrix)
+			Arrays.fill(row, Double.POSITIVE_INFINITY);
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < m; j++) {
+				nodeCosts[i][j] = costs.nodeWeight
+						* costs.nodeAttributes.cost(g1.nodes.get(i), g2.nodes.get(j));
+				/** each edge is estimated at both of its nodes. */
+				matrix[i][j] = nodeCosts[i][j] + 0.5
+						* incidentEdgeCost(g1, i, g2, j, costs);
+			}
+			matrix[i][m + i] = costs.node + 0.5 * costs.edge * g1.incident[i].length;
+		}
+		for (int j = 0; j < m; j++)
+			matrix[n + j][j] = costs.node + 0.5 * costs.edge * g2.incident[j].length;
+		for (int i = n; i < size; i++)
+			Arrays.fill(matrix[i], m, size, 0.0);
+
+		int[] assignment = LinearAssignment.solve(matrix);
+		double best = editPathCost(g1, g2, assignment, nodeCosts, costs);
+		if (costs.beamWidth > 0)
+			best = Math.min(best, beamSearch(g1, g2, assignment, best, nodeCosts, costs));
+		return best;
+	}
+
+	/**
+	 * Cost of the optimal assignment of the edges incident to node i of g1 to
+	 * the edges incident to node j of g2. Deleting and inserting an edge
+	 * instead of substituting it always costs 2 * edgeCost, hence the
+	 * substitution costs are capped at 2 * edgeCost and only the smaller set
+	 * of edges is assigned to the larger one: cost = (d1 + d2) * edgeCost +
+	 * min sum (capped substitution - 2 * edgeCost).
+	 */
+	private double incidentEdgeCost(Indexed g1, int i, Indexed g2, int j,
+			Costs costs) {
+		int[] e1 = g1.incident[i];
+		int[] e2 = g2.incident[j];
+		double cost = costs.edge * (e1.length + e2.length);
+		if (e1.length == 0 || e2.length == 0)
+			return cost;
+		boolean transposed = e1.length > e2.length;
+		int rows = transposed ? e2.length : e1.length;
+		int columns = transposed ? e1.length : e2.length;
+		double[][] matrix = new double[rows][columns];
+		boolean any = false;
+		for (int a = 0; a < e1.length; a++)
+			for (int b = 0; b < e2.length; b++) {
+				double c = 0.0;
+				if (g1.direction(e1[a], i) == g2.direction(e2[b], j))
+					c = Math.min(0.0, costs.edgeWeight
+							* costs.edgeAttributes.cost(g1.edges.get(e1[a]),
+									g2.edges.get(e2[b])) - 2 * costs.edge);
+				if (c < 0.0)
+					any = true;
+				if (transposed)
+					matrix[b][a] = c;
+				else
+					matrix[a][b] = c;
+			}
+		if (!any)
+			return cost;
+		int[] assignment = LinearAssignment.solve(matrix);
+		for (int a = 0; a < rows; a++)
+			cost += matrix[a][assignment[a]];
+		return cost;
+	}
+
+	/**
+	 * Exact cost of the edit path defined by an assignment of the nodes. Row
+	 * i < n assigned to column j < m substitutes node i of g1 by node j of g2,
+	 * to a column j >= m deletes node i. Nodes of g2 not assigned to a row
+	 * < n are inserted. Edges between substituted nodes are substituted if g2
+	 * has such an edge.
+	 */
+	private double editPathCost(Indexed g1, Indexed g2, int[] assignment,
+			double[][] nodeCosts, Costs costs) {
+		int n = g1.nodes.size();
+		int m = g2.nodes.size();
+		double cost = 0.0;
+		int substituted = 0;
+		for (int i = 0; i < n; i++) {
+			if (assignment[i] < m) {
+				cost += nodeCosts[i][assignment[i]];
+				substituted++;
+			} else
+				cost += costs.node;
+		}
+		cost += (m - substituted) * costs.node;
+
+		int numEdges2 = g2.edges.size();
+		boolean[] used = new boolean[numEdges2];
+		int usedEdges = 0;
+		for (int e = 0; e < g1.edges.size(); e++) {
+			int s = assignment[g1.start[e]];
+			int t = assignment[g1.end[e]];
+			Integer other = s < m && t < m ? g2.lookup.get(g2.key(s, t,
+					g1.directed[e])) : null;
+			if (other == null || used[other]) {
+				cost += costs.edge;
+				continue;
+			}
+			used[other] = true;
+			usedEdges++;
+			cost += Math.min(2 * costs.edge, costs.edgeWeight
+					* costs.edgeAttributes.cost(g1.edges.get(e), g2.edges.get(other)));
+		}
+		return cost + (numEdges2 - usedEdges) * costs.edge;
+	}
+
+	/**
+	 * BP-Beam: the assignments are refined along the nodes of g1. At depth q
+	 * the assignment of node q is swapped with each later row. The beamWidth
+	 * cheapest assignments are kept.
+	 *
+	 * @return cost of the best edit path found
+	 */
+	private double beamSearch(Indexed g1, Indexed g2, int[] assignment,
+			double cost, double[][] nodeCosts, Costs costs) {
+		int n = g1.nodes.size();
+		int m = g2.nodes.size();
+		Comparator<State> byCost = new Comparator<State>() {
+			@Override
+			public int compare(State a, State b) {
+				return Double.compare(a.cost, b.cost);
+			}
+		};
+		double best = cost;
+		List<State> open = new ArrayList<State>();
+		open.add(new State(assignment, 0, cost));
+		while (!open.isEmpty()) {
+			State state = open.remove(0);
+			int q = state.depth;
+			if (q >= n)
+				continue;
+			for (int j = q; j < assignment.length; j++) {
+				int[] a = state.assignment;
+				/** swapping two deletions or empty rows changes nothing. */
+				if (j != q && a[q] >= m && a[j] >= m)
+					continue;
+				int[] swapped = a.clone();
+				swapped[q] = a[j];
+				swapped[j] = a[q];
+				double c = j == q ? state.cost : editPathCost(g1, g2, swapped,
+						nodeCosts, costs);
+				best = Math.min(best, c);
+				open.add(new State(swapped, q + 1, c));
+			}
+			Collections.sort(open, byCost);
+			while (open.size() > costs.beamWidth)
+				open.remove(open.size() - 1);
+		}
+		return best;
 	}
 
 }
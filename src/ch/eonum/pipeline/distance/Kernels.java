@@ -0,0 +1,300 @@
+package ch.eonum.pipeline.distance;
+
+import ch.eonum.pipeline.core.SparseVector;
+
+/**
+ * Allocation free kernels for the vector distances. Sparse vectors are merged
+ * by their sorted indices, dense vectors are processed in unrolled loops. The
+ * exponents 1, 2 and infinity are computed without {@link Math#pow}.
+ *
+ * The power sums are not rooted. For p = infinity the maximum absolute
+ * difference is returned.
+ *
+ * @author tim
+ *
+ */
+public final class Kernels {
+	/**
+	 * use a binary search into the larger vector instead of a merge if it has
+	 * this many times more entries.
+	 */
+	private static final int GALLOP_RATIO = 8;
+
+	private Kernels() {}
+
+	/**
+	 * Sum of |a_i - b_i|^p over the union of both vectors.
+	 *
+	 * @param a
+	 * @param b
+	 * @param p
+	 * @return
+	 */
+	static double powerSum(SparseVector a, SparseVector b, double p) {
+		if (p == 1.0)
+			return manhattan(a, b);
+		if (p == 2.0)
+			return squared(a, b);
+		if (p == Double.POSITIVE_INFINITY)
+			return chebyshev(a, b);
+		int[] ia = a.indices, ib = b.indices;
+		double[] va = a.values, vb = b.values;
+		int i = 0, j = 0;
+		double sum = 0.0;
+		while (i < ia.length && j < ib.length) {
+			if (ia[i] == ib[j])
+				sum += Math.pow(Math.abs(va[i++] - vb[j++]), p);
+			else if (ia[i] < ib[j])
+				sum += Math.pow(Math.abs(va[i++]), p);
+			else
+				sum += Math.pow(Math.abs(vb[j++]), p);
+		}
+		while (i < ia.length)
+			sum += Math.pow(Math.abs(va[i++]), p);
+		while (j < ib.length)
+			sum += Math.pow(Math.abs(vb[j++]), p);
+		return sum;
+	}
+
+	private static double manhattan(SparseVector a, SparseVector b) {
+		int[] ia = a.indices, ib = b.indices;
+		double[] va = a.values, vb = b.values;
+		int i = 0, j = 0;
+		double sum = 0.0;
+		while (i < ia.length && j < ib.length) {
+			if (ia[i] == ib[j])
+				sum += Math.abs(va[i++] - vb[j++]);
+			else if (ia[i] < ib[j])
+				sum += Math.abs(va[i++]);
+			else
+				sum += Math.abs(vb[j++]);
+		}
+		while (i < ia.length)
+			sum += Math.abs(va[i++]);
+		while (j < ib.length)
+			sum += Math.abs(vb[j++]);
+		return sum;
+	}
+
+	private static double squared(SparseVector a, SparseVector b) {
+		int[] ia = a.indices, ib = b.indices;
+		double[] va = a.values, vb = b.values;
+		int i = 0, j = 0;
+		double sum = 0.0;
+		while (i < ia.length && j < ib.length) {
+			double d;
+			if (ia[i] == ib[j])
+				d = va[i++] - vb[j++];
+			else if (ia[i] < ib[j])
+				d = va[i++];
+			else
+				d = vb[j++];
+			sum += d * d;
+		}
+		for (; i < ia.length; i++)
+			sum += va[i] * va[i];
+		for (; j < ib.length; j++)
+			sum += vb[j] * vb[j];
+		return sum;
+	}
+
+	private static double chebyshev(SparseVector a, SparseVector b) {
+		int[] ia = a.indices, ib = b.indices;
+		double[] va = a.values, vb = b.values;
+		int i = 0, j = 0;
+		double max = 0.0;
+		while (i < ia.length && j < ib.length) {
+			double d;
+			if (ia[i] == ib[j])
+				d = Math.abs(va[i++] - vb[j++]);
+			else if (ia[i] < ib[j])
+				d = Math.abs(va[i++]);
+			else
+				d = Math.abs(vb[j++]);
+			if (d > max)
+				max = d;
+		}
+		for (; i < ia.length; i++)
+			max = Math.max(max, Math.abs(va[i]));
+		for (; j < ib.length; j++)
+			max = Math.max(max, Math.abs(vb[j]));
+		return max;
+	}
+
+	/**
+	 * Sum of |b_i - a_i|^p - |b_i|^p over the entries of a. Adding |b|_p^p
+	 * gives the power sum of the distance. Costs O(|a| log |b|), hence this
+	 * is fast if b has many more entries than a.
+	 *
+	 * @param a
+	 * @param b
+	 * @param p
+	 *            finite exponent
+	 * @return
+	 */
+	static double partialPowerSum(SparseVector a, SparseVector b, double p) {
+		int[] ia = a.indices;
+		double[] va = a.values, vb = b.values;
+		int from = 0;
+		double sum = 0.0;
+		for (int i = 0; i < ia.length; i++) {
+			int pos = b.find(ia[i], from);
+			double vbi = 0.0;
+			if (pos >= 0) {
+				vbi = vb[pos];
+				from = pos + 1;
+			} else
+				from = -pos - 1;
+			double d = Math.abs(vbi - va[i]);
+			double v = Math.abs(vbi);
+			if (p == 1.0)
+				sum += d - v;
+			else if (p == 2.0)
+				sum += d * d - v * v;
+			else
+				sum += Math.pow(d, p) - Math.pow(v, p);
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product over the intersection of both vectors.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static double dot(SparseVector a, SparseVector b) {
+		if (a.size() > b.size()) {
+			SparseVector t = a;
+			a = b;
+			b = t;
+		}
+		int[] ia = a.indices, ib = b.indices;
+		double[] va = a.values, vb = b.values;
+		double sum = 0.0;
+		if (ia.length * GALLOP_RATIO < ib.length) {
+			int from = 0;
+			for (int i = 0; i < ia.length && from < ib.length; i++) {
+				int pos = b.find(ia[i], from);
+				if (pos >= 0) {
+					sum += va[i] * vb[pos];
+					from = pos + 1;
+				} else
+					from = -pos - 1;
+			}
+			return sum;
+		}
+		int i = 0, j = 0;
+		while (i < ia.length && j < ib.length) {
+			if (ia[i] == ib[j])
+				sum += va[i++] * vb[j++];
+			else if (ia[i] < ib[j])
+				i++;
+			else
+				j++;
+		}
+		return sum;
+	}
+
+	/**
+	 * Sum of |a_i - b_i|^p of two dense vectors of the same length.
+	 *
+	 * @param a
+	 * @param b
+	 * @param p
+	 * @return
+	 */
+	public static double powerSum(double[] a, double[] b, double p) {
+		if (p == 1.0)
+			return manhattan(a, b);
+		if (p == 2.0)
+			return squared(a, b);
+		if (p == Double.POSITIVE_INFINITY)
+			return chebyshev(a, b);
+		double sum = 0.0;
+		for (int i = 0; i < a.length; i++)
+			sum += Math.pow(Math.abs(a[i] - b[i]), p);
+		return sum;
+	}
+
+	private static double manhattan(double[] a, double[] b) {
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int n = a.length & ~3;
+		int i = 0;
+		for (; i < n; i += 4) {
+			s0 += Math.abs(a[i] - b[i]);
+			s1 += Math.abs(a[i + 1] - b[i + 1]);
+			s2 += Math.abs(a[i + 2] - b[i + 2]);
+			s3 += Math.abs(a[i + 3] - b[i + 3]);
+		}
+		for (; i < a.length; i++)
+			s0 += Math.abs(a[i] - b[i]);
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Squared euclidian distance of two dense vectors of the same length.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static double squared(double[] a, double[] b) {
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int n = a.length & ~3;
+		int i = 0;
+		for (; i < n; i += 4) {
+			double d0 = a[i] - b[i];
+			double d1 = a[i + 1] - b[i + 1];
+			double d2 = a[i + 2] - b[i + 2];
+			double d3 = a[i + 3] - b[i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		for (; i < a.length; i++) {
+			double d = a[i] - b[i];
+			s0 += d * d;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	private static double chebyshev(double[] a, double[] b) {
+		double m0 = 0.0, m1 = 0.0, m2 = 0.0, m3 = 0.0;
+		int n = a.length & ~3;
+		int i = 0;
+		for (; i < n; i += 4) {
+			m0 = Math.max(m0, Math.abs(a[i] - b[i]));
+			m1 = Math.max(m1, Math.abs(a[i + 1] - b[i + 1]));
+			m2 = Math.max(m2, Math.abs(a[i + 2] - b[i + 2]));
+			m3 = Math.max(m3, Math.abs(a[i + 3] - b[i + 3]));
+		}
+		for (; i < a.length; i++)
+			m0 = Math.max(m0, Math.abs(a[i] - b[i]));
+		return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+	}
+
+	/**
+	 * Dot product of two dense vectors of the same length.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static double dot(double[] a, double[] b) {
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int n = a.length & ~3;
+		int i = 0;
+		for (; i < n; i += 4) {
+			s0 += a[i] * b[i];
+			s1 += a[i + 1] * b[i + 1];
+			s2 += a[i + 2] * b[i + 2];
+			s3 += a[i + 3] * b[i + 3];
+		}
+		for (; i < a.length; i++)
+			s0 += a[i] * b[i];
+		return (s0 + s1) + (s2 + s3);
+	}
+}
@@ -0,0 +1,89 @@
+package ch.eonum.pipeline.distance;
+
+import java.util.Arrays;
+
+/**
+ * Linear sum assignment problem: assign each row of a cost matrix with at
+ * least as many columns as rows to a distinct column with minimal total cost.
+ * Hungarian algorithm with shortest augmenting paths and dual potentials
+ * (Jonker-Volgenant), O(rows^2 columns).
+ *
+ * Forbidden assignments can have the cost positive infinity as long as there
+ * is at least one assignment with finite cost.
+ *
+ * @author tim
+ *
+ */
+final class LinearAssignment {
+
+	private LinearAssignment() {}
+
+	/**
+	 * Solve the assignment problem.
+	 *
+	 * @param cost
+	 *            cost matrix [rows][columns], rows <= columns
+	 * @return column assigned to each row
+	 */
+	static int[] solve(double[][] cost) {
+		int n = cost.length;
+		int m = n == 0 ? 0 : cost[0].length;
+		/** potentials of the rows and columns, 1-based, 0 is the virtual row. */
+		double[] u = new double[n + 1];
+		double[] v = new double[m + 1];
+		/** row assigned to each column. */
+		int[] p = new int[m + 1];
+		/** previous column on the shortest path. */
+		int[] way = new int[m + 1];
+		double[] minv = new double[m + 1];
+		boolean[] used = new boolean[m + 1];
+		for (int i = 1; i <= n; i++) {
+			p[0] = i;
+			int j0 = 0;
+			Arrays.fill(minv, Double.POSITIVE_INFINITY);
+			Arrays.fill(used, false);
+			do {
+				used[j0] = true;
+				int i0 = p[j0];
+				double delta = Double.POSITIVE_INFINITY;
+				int j1 = 0;
+				double[] row = cost[i0 - 1];
+				for (int j = 1; j <= m; j++) {
+					if (used[j])
+						continue;
+					double cur = row[j - 1] - u[i0] - v[j];
+					if (cur < minv[j]) {
+						minv[j] = cur;
+						way[j] = j0;
+					}
+					if (minv[j] < delta) {
+						delta = minv[j];
+						j1 = j;
+					}
+				}
+				if (j1 == 0)
+					throw new IllegalArgumentException(
+							"No assignment with finite cost");
+				for (int j = 0; j <= m; j++) {
+					if (used[j]) {
+						u[p[j]] += delta;
+						v[j] -= delta;
+					} else
+						minv[j] -= delta;
+				}
+				j0 = j1;
+			} while (p[j0] != 0);
+			/** augment along the path. */
+			do {
+				int j1 = way[j0];
+				p[j0] = p[j1];
+				j0 = j1;
+			} while (j0 != 0);
+		}
+		int[] assignment = new int[n];
+		for (int j = 1; j <= m; j++)
+			if (p[j] != 0)
+				assignment[p[j] - 1] = j - 1;
+		return assignment;
+	}
+}
@@ -1,13 +1,14 @@
 package ch.eonum.pipeline.distance;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
+import ch.eonum.pipeline.core.DenseInstance;
+import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.core.SparseInstance;
+import ch.eonum.pipeline.core.SparseVector;
 
 /**
  * Minkowski distance. Generalization of the Euclidian distance.
@@ -16,6 +17,11 @@ import ch.eonum.pipeline.core.SparseInstance;
  * 
  * d = ((x1 - y1)^k + ... + (xn - yn)^k)^(1/k)
  *  
+ * k = infinity gives the maximum metric max(|x1 - y1|, ..., |xn - yn|). The
+ * distances are computed with the kernels in {@link Kernels} on the sorted
+ * representation of the instances ({@link Instance#asSparseVector(SparseVector.Dictionary)}) or
+ * directly on the arrays of dense instances with the same features.
+ * 
  * @author tim
  *
  */
@@ -23,7 +29,7 @@ public class MinkowskiDistance<E extends Instance> extends Distance<E> {
 	protected static final Map<String, String> PARAMETERS = new HashMap<String, String>();
 	
 	static {
-		PARAMETERS.put("minkowski", "minkowski constant for the minkowski metric, 2.0 => euclidian metric" +
+		PARAMETERS.put("minkowski", "minkowski constant for the minkowski metric, 2.0 => euclidian metric, Infinity => maximum metric" +
 				":  (default 2.0)");
 	}
 
@@ -41,27 +47,77 @@ public class MinkowskiDistance<E extends Instance> extends Distance<E> {
 	@Override
 	public double distance(Instance inst1, Instance inst2, double lengthInstance2) {
 		double minkowski = getDoubleParameter("minkowski");
-		double distance = lengthInstance2;
-		for(String feature : inst1.features())
-			distance += Math.pow(Math.abs(
-					inst2.get(feature) - inst1.get(feature)), minkowski)
-					- Math.abs(Math.pow(inst2.get(feature), minkowski));
-		
-		if(distance < 0.000000000001) return 0.0;// avoid NaN
-		return Math.abs(Math.pow(distance, 1/minkowski));
+		if (minkowski == Double.POSITIVE_INFINITY || isDense(inst1, inst2))
+			return root(powerSum(inst1, inst2, minkowski), minkowski);
+		/** the length is a distance, the sum runs over the p'th powers. */
+		double distance = minkowski == 2.0 ? lengthInstance2 * lengthInstance2
+				: Math.pow(lengthInstance2, minkowski);
+		SparseVector.Dictionary dictionary = getDictionary();
+		distance += Kernels.partialPowerSum(inst1.asSparseVector(dictionary),
+				inst2.asSparseVector(dictionary), minkowski);
+		return root(distance, minkowski);
 	}
 
 	@Override
 	public double distance(Instance inst1, Instance inst2) {
 		double minkowski = getDoubleParameter("minkowski");
-		double distance = 0.0;
-		List<String> union = new ArrayList<String>(inst2.features());
-		union.addAll(inst1.features());
-		for(String feature : new HashSet<String>(union))
-			distance += Math.pow(Math.abs(
-					inst2.get(feature) - inst1.get(feature)), minkowski);
-		
+		return root(powerSum(inst1, inst2, minkowski), minkowski);
+	}
+
+	@Override
+	public double[] distances(E query, List<? extends E> candidates) {
+		double minkowski = getDoubleParameter("minkowski");
+		double[] distances = new double[candidates.size()];
+		for (int i = 0; i < distances.length; i++)
+			distances[i] = root(powerSum(query, candidates.get(i), minkowski),
+					minkowski);
+		return distances;
+	}
+
+	/**
+	 * The length is computed from the cached norms of the instance.
+	 */
+	@Override
+	public double length(E inst) {
+		double minkowski = getDoubleParameter("minkowski");
+		SparseVector v = inst.asSparseVector(getDictionary());
+		if (minkowski == 1.0)
+			return root(v.l1, minkowski);
+		if (minkowski == 2.0)
+			return root(v.sumOfSquares, minkowski);
+		if (minkowski == Double.POSITIVE_INFINITY)
+			return root(v.max, minkowski);
+		return root(v.sumOfPowers(minkowski), minkowski);
+	}
+
+	private static boolean isDense(Instance inst1, Instance inst2) {
+		return inst1 instanceof DenseInstance && inst2 instanceof DenseInstance
+				&& ((DenseInstance) inst1).getFeatures() == ((DenseInstance) inst2)
+						.getFeatures();
+	}
+
+	/**
+	 * Sum of the p'th powers of the differences (maximum difference for p =
+	 * infinity).
+	 */
+	private double powerSum(Instance inst1, Instance inst2,
+			double minkowski) {
+		if (isDense(inst1, inst2)) {
+			Features features = ((DenseInstance) inst1).getFeatures();
+			return Kernels.powerSum(inst1.asArray(features),
+					inst2.asArray(features), minkowski);
+		}
+		SparseVector.Dictionary dictionary = getDictionary();
+		return Kernels.powerSum(inst1.asSparseVector(dictionary), inst2.asSparseVector(dictionary),
+				minkowski);
+	}
+
+	private static double root(double distance, double minkowski) {
 		if(distance < 0.000000000001) return 0.0;// avoid NaN
+		if (minkowski == 1.0 || minkowski == Double.POSITIVE_INFINITY)
+			return distance;
+		if (minkowski == 2.0)
+			return Math.sqrt(distance);
 		return Math.abs(Math.pow(distance, 1/minkowski));
 	}
 
@@ -0,0 +1,44 @@
+package ch.eonum.pipeline.distance.index;
+
+import ch.eonum.pipeline.core.Instance;
+import ch.eonum.pipeline.distance.Distance;
+
+/**
+ * Exact search comparing the query with every prototype. Works with any
+ * distance. The k nearest prototypes are kept in a bounded heap, hence a
+ * query costs O(n log k) without allocations per prototype. Distances which
+ * abandon early get the distance of the k'th neighbor so far as bound.
+ *
+ * @author tim
+ *
+ * @param <E>
+ */
+public class BruteForceIndex<E extends Instance> extends NeighborIndex<E> {
+	private Distance<E> distance;
+
+	public BruteForceIndex(Distance<E> distance) {
+		this.distance = distance;
+	}
+
+	@Override
+	protected void buildIndex() {}
+
+	@Override
+	public NeighborHeap search(E query, int k, Instance exclude) {
+		NeighborHeap heap = new NeighborHeap(Math.min(k, size()));
+		if (distance.abandonsEarly()) {
+			for (int i = 0; i < prototypes.size(); i++)
+				if (!isExcluded(i, exclude))
+					heap.offer(i, distance.boundedDistance(query,
+							prototypes.get(i), heap.worst()));
+			return heap.sort();
+		}
+		double[] distances = distance.distances(query, prototypes);
+		for (int i = 0; i < distances.length; i++) {
+			if (isExcluded(i, exclude))
+				continue;
+			heap.offer(i, distances[i]);
+		}
+		return heap.sort();
+	}
+}
@@ -0,0 +1,257 @@
+package ch.eonum.pipeline.distance.index;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import ch.eonum.pipeline.core.Instance;
+import ch.eonum.pipeline.distance.Distance;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin). Approximate
+ * k nearest neighbor search for arbitrary distances, suited for high
+ * dimensional sparse data where space partitioning trees degenerate to a
+ * linear scan.
+ *
+ * Each prototype is inserted on a random number of layers and connected to its
+ * nearest prototypes on each of these layers. A query descends greedily from
+ * the top layer and runs a best first search with a candidate list of size
+ * efSearch on the bottom layer. Larger values for m, efConstruction and
+ * efSearch increase the recall and the costs.
+ *
+ * @author tim
+ *
+ * @param <E>
+ */
+public class HNSW<E extends Instance> extends NeighborIndex<E> {
+	private final Distance<E> distance;
+	/** maximum number of links per prototype and layer (2m on layer 0). */
+	private final int m;
+	private final int efConstruction;
+	private final int efSearch;
+	private final Random rand;
+
+	/** links[prototype][layer] and the number of used links. */
+	private int[][][] links;
+	private int[][] numLinks;
+	private int entryPoint;
+	private int maxLayer;
+
+	/**
+	 * @param distance
+	 * @param m
+	 *            maximum number of links per prototype and layer (e.g. 16)
+	 * @param efConstruction
+	 *            size of the candidate list during the construction (e.g.
+	 *            200)
+	 * @param efSearch
+	 *            size of the candidate list during a search (e.g. 50). At
+	 *            least k is used.
+	 * @param seed
+	 */
+	public HNSW(Distance<E> distance, int m, int efConstruction,
+			int efSearch, int seed) {
+		this.distance = distance;
+		this.m = Math.max(2, m);
+		this.efConstruction = efConstruction;
+		this.efSearch = efSearch;
+		this.rand = new Random(seed);
+	}
+
+	@Override
+	protected void buildIndex() {
+		int n = prototypes.size();
+		links = new int[n][][];
+		numLinks = new int[n][];
+		entryPoint = -1;
+		maxLayer = -1;
+		double levelFactor = 1.0 / Math.log(m);
+		for (int i = 0; i < n; i++)
+			insert(i, (int) (-Math.log(1.0 - rand.nextDouble()) * levelFactor));
+	}
+
+	private void insert(int q, int level) {
+		links[q] = new int[level + 1][];
+		numLinks[q] = new int[level + 1];
+		for (int l = 0; l <= level; l++)
+			links[q][l] = new int[maxLinks(l) + 1];
+		if (entryPoint == -1) {
+			entryPoint = q;
+			maxLayer = level;
+			return;
+		}
+		E query = prototypes.get(q);
+		int ep = entryPoint;
+		for (int l = maxLayer; l > level; l--)
+			ep = greedy(query, ep, l);
+		int[] entryPoints = { ep };
+		for (int l = Math.min(level, maxLayer); l >= 0; l--) {
+			NeighborHeap candidates = searchLayer(query, entryPoints,
+					efConstruction, l);
+			candidates.sort();
+			int num = Math.min(m, candidates.size());
+			for (int i = 0; i < num; i++) {
+				int neighbor = candidates.getIndex(i);
+				links[q][l][numLinks[q][l]++] = neighbor;
+				connect(neighbor, q, l);
+			}
+			entryPoints = new int[candidates.size()];
+			for (int i = 0; i < entryPoints.length; i++)
+				entryPoints[i] = candidates.getIndex(i);
+		}
+		if (level > maxLayer) {
+			maxLayer = level;
+			entryPoint = q;
+		}
+	}
+
+	private int maxLinks(int layer) {
+		return layer == 0 ? 2 * m : m;
+	}
+
+	/**
+	 * Add a link from node to neighbor. If node has too many links, only the
+	 * nearest are kept.
+	 */
+	private void connect(int node, int neighbor, int layer) {
+		int[] l = links[node][layer];
+		l[numLinks[node][layer]++] = neighbor;
+		int max = maxLinks(layer);
+		if (numLinks[node][layer] <= max)
+			return;
+		E inst = prototypes.get(node);
+		NeighborHeap nearest = new NeighborHeap(max);
+		for (int i = 0; i < numLinks[node][layer]; i++)
+			nearest.offer(l[i], distance.distance(inst, prototypes.get(l[i])));
+		for (int i = 0; i < max; i++)
+			l[i] = nearest.getIndex(i);
+		numLinks[node][layer] = max;
+	}
+
+	/** greedy descent to the nearest prototype on one layer. */
+	private int greedy(E query, int ep, int layer) {
+		double d = distance.distance(prototypes.get(ep), query);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < numLinks[ep][layer]; i++) {
+				int next = links[ep][layer][i];
+				double dn = distance.distance(prototypes.get(next), query);
+				if (dn < d) {
+					d = dn;
+					ep = next;
+					changed = true;
+				}
+			}
+		}
+		return ep;
+	}
+
+	/**
+	 * Best first search on one layer.
+	 *
+	 * @return the ef nearest prototypes found (unsorted)
+	 */
+	private NeighborHeap searchLayer(E query, int[] entryPoints, int ef,
+			int layer) {
+		BitSet visited = new BitSet(prototypes.size());
+		NeighborHeap results = new NeighborHeap(ef);
+		/** min-heap of the candidates to expand. */
+		int[] candidates = new int[16];
+		double[] candidateDistances = new double[16];
+		int numCandidates = 0;
+		for (int ep : entryPoints) {
+			visited.set(ep);
+			double d = distance.distance(prototypes.get(ep), query);
+			results.offer(ep, d);
+			if (numCandidates == candidates.length) {
+				candidates = Arrays.copyOf(candidates, 2 * numCandidates);
+				candidateDistances = Arrays.copyOf(candidateDistances,
+						2 * numCandidates);
+			}
+			push(candidates, candidateDistances, numCandidates++, ep, d);
+		}
+		while (numCandidates > 0) {
+			int c = candidates[0];
+			double dc = candidateDistances[0];
+			pop(candidates, candidateDistances, numCandidates--);
+			if (dc > results.worst())
+				break;
+			if (layer >= numLinks[c].length)
+				continue;
+			for (int i = 0; i < numLinks[c][layer]; i++) {
+				int e = links[c][layer][i];
+				if (visited.get(e))
+					continue;
+				visited.set(e);
+				double d = distance.distance(prototypes.get(e), query);
+				if (d < results.worst() || !results.isFull()) {
+					results.offer(e, d);
+					if (numCandidates == candidates.length) {
+						candidates = Arrays.copyOf(candidates,
+								2 * numCandidates);
+						candidateDistances = Arrays.copyOf(
+								candidateDistances, 2 * numCandidates);
+					}
+					push(candidates, candidateDistances, numCandidates++, e, d);
+				}
+			}
+		}
+		return results;
+	}
+
+	/** insert into the min-heap of size n. */
+	private static void push(int[] heap, double[] dist, int n, int index,
+			double d) {
+		int i = n;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (dist[parent] <= d)
+				break;
+			heap[i] = heap[parent];
+			dist[i] = dist[parent];
+			i = parent;
+		}
+		heap[i] = index;
+		dist[i] = d;
+	}
+
+	/** remove the minimum from the min-heap of size n. */
+	private static void pop(int[] heap, double[] dist, int n) {
+		int last = heap[n - 1];
+		double d = dist[n - 1];
+		n--;
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n)
+				break;
+			if (child + 1 < n && dist[child + 1] < dist[child])
+				child++;
+			if (dist[child] >= d)
+				break;
+			heap[i] = heap[child];
+			dist[i] = dist[child];
+			i = child;
+		}
+		heap[i] = last;
+		dist[i] = d;
+	}
+
+	@Override
+	public NeighborHeap search(E query, int k, Instance exclude) {
+		NeighborHeap heap = new NeighborHeap(Math.min(k, size()));
+		if (entryPoint == -1)
+			return heap;
+		int ep = entryPoint;
+		for (int l = maxLayer; l > 0; l--)
+			ep = greedy(query, ep, l);
+		NeighborHeap candidates = searchLayer(query, new int[] { ep },
+				Math.max(efSearch, k + 1), 0);
+		candidates.sort();
+		for (int i = 0; i < candidates.size() && !heap.isFull(); i++)
+			if (!isExcluded(candidates.getIndex(i), exclude))
+				heap.offer(candidates.getIndex(i), candidates.getDistance(i));
+		return heap.sort();
+	}
+}
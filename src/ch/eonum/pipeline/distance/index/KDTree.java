@@ -0,0 +1,276 @@
+package ch.eonum.pipeline.distance.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.eonum.pipeline.core.Features;
+import ch.eonum.pipeline.core.Instance;
+
+/**
+ * Exact k-d tree for the Minkowski distance on dense rows. Suited for low
+ * dimensional data (up to about 20 features). The prototypes are converted to
+ * dense rows in the order of the provided features.
+ *
+ * Each node splits its prototypes at the median of the dimension with the
+ * largest spread. A subtree is only visited if the distance of the query to
+ * the splitting plane is smaller than the distance of the current k'th
+ * neighbor. NaN values in the query are ignored (the dimension does not
+ * contribute to the distance), prototypes must not contain NaN values.
+ *
+ * @author tim
+ *
+ * @param <E>
+ */
+public class KDTree<E extends Instance> extends NeighborIndex<E> {
+	/** maximum number of prototypes in a terminal node. */
+	private static final int LEAF_SIZE = 16;
+
+	private final Features features;
+	/** minkowski constant. */
+	private final double p;
+
+	/** prototypes as dense rows. */
+	private double[][] rows;
+	/** prototype indices, each node owns a contiguous range. */
+	private int[] order;
+	/** split dimension by node. -1 for terminal nodes. */
+	private int[] dimension;
+	private double[] splitValue;
+	/** children by node: left (< split value) and right (>= split value). */
+	private int[] left;
+	private int[] right;
+	/** range [from, to) of order by node. */
+	private int[] from;
+	private int[] to;
+	private int numNodes;
+
+	/**
+	 * @param features
+	 *            dimensions of the tree
+	 * @param p
+	 *            minkowski constant (2.0: euclidian distance)
+	 */
+	public KDTree(Features features, double p) {
+		this.features = features;
+		this.p = p;
+	}
+
+	@Override
+	protected void buildIndex() {
+		int n = prototypes.size();
+		rows = new double[n][];
+		order = new int[n];
+		for (int i = 0; i < n; i++) {
+			rows[i] = prototypes.get(i).asArray(features);
+			order[i] = i;
+		}
+		/** each split leaves at least one prototype on both sides. */
+		int capacity = Math.max(1, 2 * n);
+		dimension = new int[capacity];
+		splitValue = new double[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		from = new int[capacity];
+		to = new int[capacity];
+		numNodes = 0;
+		buildNode(0, n);
+	}
+
+	private int buildNode(int start, int end) {
+		int node = numNodes++;
+		from[node] = start;
+		to[node] = end;
+		dimension[node] = -1;
+		if (end - start <= LEAF_SIZE)
+			return node;
+		int dim = -1;
+		double maxSpread = 0.0;
+		for (int d = 0; d < features.size(); d++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = start; i < end; i++) {
+				double v = rows[order[i]][d];
+				if (v < min)
+					min = v;
+				if (v > max)
+					max = v;
+			}
+			if (max - min > maxSpread) {
+				maxSpread = max - min;
+				dim = d;
+			}
+		}
+		/** all prototypes are equal. */
+		if (dim == -1)
+			return node;
+		int mid = (start + end) >>> 1;
+		select(start, end, mid, dim);
+		double split = rows[order[mid]][dim];
+		int m = partition(start, end, dim, split);
+		if (m == start) {
+			/** the median is the minimum. split above it. */
+			double next = Double.POSITIVE_INFINITY;
+			for (int i = start; i < end; i++)
+				if (rows[order[i]][dim] > split && rows[order[i]][dim] < next)
+					next = rows[order[i]][dim];
+			split = next;
+			m = partition(start, end, dim, split);
+		}
+		dimension[node] = dim;
+		splitValue[node] = split;
+		left[node] = buildNode(start, m);
+		right[node] = buildNode(m, end);
+		return node;
+	}
+
+	/**
+	 * Move all prototypes of order[start, end) with a value smaller than split
+	 * in dimension dim to the front.
+	 *
+	 * @return the index of the first prototype with a value >= split
+	 */
+	private int partition(int start, int end, int dim, double split) {
+		int j = start;
+		for (int i = start; i < end; i++)
+			if (rows[order[i]][dim] < split) {
+				int t = order[i];
+				order[i] = order[j];
+				order[j++] = t;
+			}
+		return j;
+	}
+
+	/**
+	 * Partially sort order[start, end) such that order[k] is the element of
+	 * rank k in dimension dim, all smaller elements are before and all larger
+	 * elements after it (quickselect).
+	 */
+	private void select(int start, int end, int k, int dim) {
+		int lo = start;
+		int hi = end - 1;
+		while (hi > lo) {
+			double pivot = rows[order[(lo + hi) >>> 1]][dim];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (rows[order[i]][dim] < pivot)
+					i++;
+				while (rows[order[j]][dim] > pivot)
+					j--;
+				if (i <= j) {
+					int t = order[i];
+					order[i++] = order[j];
+					order[j--] = t;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	@Override
+	public NeighborHeap search(E query, int k, Instance exclude) {
+		return search(query.asArray(features), k, exclude);
+	}
+
+	/**
+	 * Find the k nearest prototypes of a dense row.
+	 *
+	 * @param query
+	 *            row in the order of the features of this tree. NaN values
+	 *            are ignored.
+	 * @param k
+	 * @param exclude
+	 *            prototype which is never returned. null: no exclusion
+	 * @return the neighbors sorted by ascending distance
+	 */
+	public NeighborHeap search(double[] query, int k, Instance exclude) {
+		NeighborHeap heap = new NeighborHeap(Math.min(k, size()));
+		if (size() > 0)
+			searchNode(0, query, heap, exclude);
+		/** the search runs on the sum of the p'th powers. */
+		heap.root(p);
+		return heap.sort();
+	}
+
+	private void searchNode(int node, double[] query, NeighborHeap heap,
+			Instance exclude) {
+		int dim = dimension[node];
+		if (dim == -1) {
+			for (int i = from[node]; i < to[node]; i++) {
+				int index = order[i];
+				if (!isExcluded(index, exclude))
+					heap.offer(index, powerDistance(rows[index], query));
+			}
+			return;
+		}
+		double q = query[dim];
+		if (Double.isNaN(q)) {
+			searchNode(left[node], query, heap, exclude);
+			searchNode(right[node], query, heap, exclude);
+			return;
+		}
+		double diff = q - splitValue[node];
+		int near = diff < 0 ? left[node] : right[node];
+		int far = diff < 0 ? right[node] : left[node];
+		searchNode(near, query, heap, exclude);
+		if (power(Math.abs(diff)) <= heap.worst())
+			searchNode(far, query, heap, exclude);
+	}
+
+	/** sum of the p'th powers of the absolute differences. */
+	private double powerDistance(double[] row, double[] query) {
+		double sum = 0.0;
+		if (p == 2.0) {
+			for (int d = 0; d < row.length; d++) {
+				double diff = row[d] - query[d];
+				if (diff == diff)
+					sum += diff * diff;
+			}
+		} else if (p == 1.0) {
+			for (int d = 0; d < row.length; d++) {
+				double diff = row[d] - query[d];
+				if (diff == diff)
+					sum += Math.abs(diff);
+			}
+		} else {
+			for (int d = 0; d < row.length; d++) {
+				double diff = row[d] - query[d];
+				if (diff == diff)
+					sum += Math.pow(Math.abs(diff), p);
+			}
+		}
+		return sum;
+	}
+
+	private double power(double diff) {
+		return p == 2.0 ? diff * diff : p == 1.0 ? diff : Math.pow(diff, p);
+	}
+
+	/**
+	 * Build a k-d tree over the prototypes without NaN values.
+	 *
+	 * @param prototypes
+	 * @param features
+	 * @param p
+	 * @return
+	 */
+	public static <T extends Instance> KDTree<T> buildComplete(
+			List<? extends T> prototypes, Features features, double p) {
+		List<T> complete = new ArrayList<T>();
+		for (T each : prototypes) {
+			boolean nan = false;
+			for (int f = 0; f < features.size() && !nan; f++)
+				nan = Double.isNaN(each.get(features.getFeatureByIndex(f)));
+			if (!nan)
+				complete.add(each);
+		}
+		KDTree<T> tree = new KDTree<T>(features, p);
+		tree.build(complete);
+		return tree;
+	}
+}
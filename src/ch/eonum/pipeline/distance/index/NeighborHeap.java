@@ -0,0 +1,179 @@
+package ch.eonum.pipeline.distance.index;
+
+/**
+ * Bounded max-heap keeping the k nearest neighbors seen so far, represented by
+ * the index of the prototype and its distance. Ties are broken by the index of
+ * the prototype, hence the result does not depend on the order in which the
+ * prototypes are offered.
+ *
+ * After {@link #sort()} the neighbors are ordered by ascending distance and no
+ * more neighbors can be offered.
+ *
+ * @author tim
+ *
+ */
+public class NeighborHeap {
+	private final int k;
+	private final int[] indices;
+	private final double[] distances;
+	private int size;
+	private boolean sorted;
+
+	/**
+	 * @param k
+	 *            maximum number of neighbors
+	 */
+	public NeighborHeap(int k) {
+		this.k = k;
+		this.indices = new int[k];
+		this.distances = new double[k];
+	}
+
+	/**
+	 * Offer a neighbor.
+	 *
+	 * @param index
+	 *            index of the prototype
+	 * @param distance
+	 * @return true if the neighbor has been kept
+	 */
+	public boolean offer(int index, double distance) {
+		if (sorted)
+			throw new IllegalStateException("The heap has already been sorted");
+		if (size < k) {
+			indices[size] = index;
+			distances[size] = distance;
+			siftUp(size++);
+			return true;
+		}
+		if (k == 0 || !less(distance, index, distances[0], indices[0]))
+			return false;
+		indices[0] = index;
+		distances[0] = distance;
+		siftDown(0, size);
+		return true;
+	}
+
+	/**
+	 * Distance of the farthest kept neighbor. Positive infinity as long as
+	 * less than k neighbors have been offered.
+	 *
+	 * @return
+	 */
+	public double worst() {
+		return size < k ? Double.POSITIVE_INFINITY : distances[0];
+	}
+
+	/**
+	 * Check if k neighbors are kept.
+	 *
+	 * @return
+	 */
+	public boolean isFull() {
+		return size == k;
+	}
+
+	/**
+	 * Number of kept neighbors.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sort the kept neighbors by ascending distance (in place heap sort).
+	 *
+	 * @return this heap
+	 */
+	public NeighborHeap sort() {
+		if (sorted)
+			return this;
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		sorted = true;
+		return this;
+	}
+
+	/**
+	 * Index of the prototype of the i'th neighbor. The i'th nearest neighbor
+	 * if the heap has been sorted.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public int getIndex(int i) {
+		return indices[i];
+	}
+
+	/**
+	 * Distance of the i'th neighbor.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public double getDistance(int i) {
+		return distances[i];
+	}
+
+	/**
+	 * Replace the distance of each neighbor by f(distance). f has to be
+	 * monotonic. Used by indices searching on a transformed distance (e.g.
+	 * the p'th power of the Minkowski distance).
+	 *
+	 * @param p
+	 *            the distances are replaced by distance^(1/p)
+	 */
+	void root(double p) {
+		for (int i = 0; i < size; i++)
+			distances[i] = p == 1.0 ? distances[i] : p == 2.0 ? Math
+					.sqrt(distances[i]) : Math.pow(distances[i], 1.0 / p);
+	}
+
+	private static boolean less(double d1, int i1, double d2, int i2) {
+		return d1 < d2 || (d1 == d2 && i1 < i2);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!less(distances[parent], indices[parent], distances[i],
+					indices[i]))
+				return;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int end) {
+		while (true) {
+			int largest = i;
+			int l = 2 * i + 1;
+			int r = l + 1;
+			if (l < end
+					&& less(distances[largest], indices[largest], distances[l],
+							indices[l]))
+				largest = l;
+			if (r < end
+					&& less(distances[largest], indices[largest], distances[r],
+							indices[r]))
+				largest = r;
+			if (largest == i)
+				return;
+			swap(i, largest);
+			i = largest;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int ti = indices[a];
+		indices[a] = indices[b];
+		indices[b] = ti;
+		double td = distances[a];
+		distances[a] = distances[b];
+		distances[b] = td;
+	}
+}
@@ -0,0 +1,125 @@
+package ch.eonum.pipeline.distance.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ch.eonum.pipeline.core.Instance;
+
+/**
+ * Index over a set of prototypes answering k nearest neighbor queries. The
+ * prototypes are referenced by their position in the list the index has been
+ * built with. An index is immutable after {@link #build(List)}, hence queries
+ * can be run concurrently.
+ *
+ * @author tim
+ *
+ * @param <E>
+ */
+public abstract class NeighborIndex<E extends Instance> {
+	/** minimum number of queries per thread for parallel searches. */
+	private static final int MIN_QUERIES_PER_THREAD = 32;
+
+	protected List<E> prototypes;
+
+	/**
+	 * Build the index over the prototypes. The list is copied.
+	 *
+	 * @param prototypes
+	 */
+	public void build(List<? extends E> prototypes) {
+		this.prototypes = new ArrayList<E>(prototypes);
+		this.buildIndex();
+	}
+
+	/**
+	 * Build the index structure over {@link #prototypes}.
+	 */
+	protected abstract void buildIndex();
+
+	/**
+	 * Find the k nearest prototypes of a query.
+	 *
+	 * @param query
+	 * @param k
+	 * @param exclude
+	 *            prototype which is never returned (compared by identity),
+	 *            e.g. the query itself when testing the training set. null:
+	 *            no exclusion
+	 * @return the neighbors sorted by ascending distance. Less than k if the
+	 *         index has less prototypes.
+	 */
+	public abstract NeighborHeap search(E query, int k, Instance exclude);
+
+	/**
+	 * Find the k nearest prototypes of each query. The queries are
+	 * distributed over all available processors.
+	 *
+	 * @param queries
+	 * @param k
+	 * @param excludeSelf
+	 *            if true, a query is never its own neighbor
+	 * @return the sorted neighbors by query
+	 */
+	public NeighborHeap[] searchAll(List<? extends E> queries, final int k,
+			final boolean excludeSelf) {
+		final List<? extends E> q = new ArrayList<E>(queries);
+		final NeighborHeap[] results = new NeighborHeap[q.size()];
+		int numThreads = Math.min(Runtime.getRuntime().availableProcessors(),
+				q.size() / MIN_QUERIES_PER_THREAD);
+		if (numThreads <= 1) {
+			for (int i = 0; i < results.length; i++)
+				results[i] = search(q.get(i), k, excludeSelf ? q.get(i) : null);
+			return results;
+		}
+		ExecutorService service = Executors.newFixedThreadPool(numThreads);
+		for (int t = 0; t < numThreads; t++) {
+			final int from = (int) ((long) t * results.length / numThreads);
+			final int to = (int) ((long) (t + 1) * results.length / numThreads);
+			service.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = from; i < to; i++)
+						results[i] = search(q.get(i), k,
+								excludeSelf ? q.get(i) : null);
+				}
+			});
+		}
+		service.shutdown();
+		try {
+			service.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		return results;
+	}
+
+	/**
+	 * Get a prototype by its index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public E get(int index) {
+		return prototypes.get(index);
+	}
+
+	/**
+	 * Number of prototypes.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return prototypes == null ? 0 : prototypes.size();
+	}
+
+	/**
+	 * Check if the prototype with the given index is the excluded instance.
+	 */
+	protected boolean isExcluded(int index, Instance exclude) {
+		return exclude != null && prototypes.get(index) == exclude;
+	}
+}
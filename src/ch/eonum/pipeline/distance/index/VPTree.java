@@ -0,0 +1,152 @@
+package ch.eonum.pipeline.distance.index;
+
+import java.util.Random;
+
+import ch.eonum.pipeline.core.Instance;
+import ch.eonum.pipeline.distance.Distance;
+
+/**
+ * Vantage point tree. Exact search for arbitrary metrics, only the distance
+ * function is used. Each node holds a vantage point and the median distance mu
+ * of its subtree to it: The inner subtree contains all prototypes closer than
+ * mu, the outer subtree all others. Subtrees are pruned with the triangle
+ * inequality, hence the distance has to be a metric. For distances violating
+ * the triangle inequality (e.g. the cosine distance) the search is
+ * approximate.
+ *
+ * @author tim
+ *
+ * @param <E>
+ */
+public class VPTree<E extends Instance> extends NeighborIndex<E> {
+	private Distance<E> distance;
+	private Random rand;
+
+	/** vantage point (prototype index) by node. */
+	private int[] vantagePoint;
+	/** median distance to the vantage point by node. */
+	private double[] mu;
+	/** inner and outer subtree by node. -1: empty */
+	private int[] inner;
+	private int[] outer;
+	private int numNodes;
+
+	/**
+	 * @param distance
+	 * @param seed
+	 *            seed for the selection of the vantage points
+	 */
+	public VPTree(Distance<E> distance, int seed) {
+		this.distance = distance;
+		this.rand = new Random(seed);
+	}
+
+	@Override
+	protected void buildIndex() {
+		int n = prototypes.size();
+		vantagePoint = new int[n];
+		mu = new double[n];
+		inner = new int[n];
+		outer = new int[n];
+		numNodes = 0;
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		buildNode(order, new double[n], 0, n);
+	}
+
+	/**
+	 * Build the subtree over order[start, end).
+	 *
+	 * @return node index or -1 for an empty range
+	 */
+	private int buildNode(int[] order, double[] dist, int start, int end) {
+		if (start == end)
+			return -1;
+		int node = numNodes++;
+		/** random vantage point moved to the front. */
+		int v = start + rand.nextInt(end - start);
+		int t = order[start];
+		order[start] = order[v];
+		order[v] = t;
+		vantagePoint[node] = order[start];
+		inner[node] = -1;
+		outer[node] = -1;
+		if (end - start == 1)
+			return node;
+		E vp = prototypes.get(order[start]);
+		for (int i = start + 1; i < end; i++)
+			dist[i] = distance.distance(vp, prototypes.get(order[i]));
+		int mid = (start + 1 + end) >>> 1;
+		select(order, dist, start + 1, end, mid);
+		mu[node] = dist[mid];
+		inner[node] = buildNode(order, dist, start + 1, mid);
+		outer[node] = buildNode(order, dist, mid, end);
+		return node;
+	}
+
+	/**
+	 * Quickselect on dist[start, end), order is permuted along.
+	 */
+	private static void select(int[] order, double[] dist, int start, int end,
+			int k) {
+		int lo = start;
+		int hi = end - 1;
+		while (hi > lo) {
+			double pivot = dist[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (dist[i] < pivot)
+					i++;
+				while (dist[j] > pivot)
+					j--;
+				if (i <= j) {
+					double td = dist[i];
+					dist[i] = dist[j];
+					dist[j] = td;
+					int to = order[i];
+					order[i++] = order[j];
+					order[j--] = to;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	@Override
+	public NeighborHeap search(E query, int k, Instance exclude) {
+		NeighborHeap heap = new NeighborHeap(Math.min(k, size()));
+		if (numNodes > 0)
+			searchNode(0, query, heap, exclude);
+		return heap.sort();
+	}
+
+	private void searchNode(int node, E query, NeighborHeap heap,
+			Instance exclude) {
+		int vp = vantagePoint[node];
+		double d = distance.distance(prototypes.get(vp), query);
+		if (!isExcluded(vp, exclude))
+			heap.offer(vp, d);
+		/**
+		 * inner: distance to vp <= mu, outer: distance to vp >= mu (the
+		 * median may be on both sides).
+		 */
+		if (d < mu[node]) {
+			if (inner[node] != -1)
+				searchNode(inner[node], query, heap, exclude);
+			if (outer[node] != -1 && d + heap.worst() >= mu[node])
+				searchNode(outer[node], query, heap, exclude);
+		} else {
+			if (outer[node] != -1)
+				searchNode(outer[node], query, heap, exclude);
+			if (inner[node] != -1 && d - heap.worst() <= mu[node])
+				searchNode(inner[node], query, heap, exclude);
+		}
+	}
+}
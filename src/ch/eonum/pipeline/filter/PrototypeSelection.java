@@ -1,8 +1,7 @@
 package ch.eonum.pipeline.filter;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
@@ -11,6 +10,9 @@ import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.core.SparseInstance;
 import ch.eonum.pipeline.distance.EuclidianDistance;
+import ch.eonum.pipeline.distance.index.BruteForceIndex;
+import ch.eonum.pipeline.distance.index.NeighborHeap;
+import ch.eonum.pipeline.distance.index.NeighborIndex;
 
 /**
  * Prototype selection algorithms. Currently only for two class problems and ratio adjusting. 
@@ -31,8 +33,28 @@ public class PrototypeSelection <E extends Instance> {
 		BORDER, /** select prototypes at the border of the class. */
 	}
 	
+	/** index used to find the instances nearest to a class center. */
+	private NeighborIndex<E> index;
+	/**
+	 * distance of the default index and of the other selection modes. one
+	 * distance, hence the sparse vectors of the instances are built once.
+	 */
+	private final EuclidianDistance<E> distance = new EuclidianDistance<E>();
+	
 	public PrototypeSelection(ProtoTypeSelectionMode mode) {
 		this.prototypeSelectionMode = mode;
+		this.index = new BruteForceIndex<E>(distance);
+	}
+
+	/**
+	 * Use another neighbor index (e.g. the index of a nearest neighbor
+	 * classifier) for the selection of the instances in the center of a
+	 * class. The index is rebuilt on the instances of the larger class.
+	 * 
+	 * @param index
+	 */
+	public void setNeighborIndex(NeighborIndex<E> index) {
+		this.index = index;
 	}
 
 	/**
@@ -93,7 +115,7 @@ public class PrototypeSelection <E extends Instance> {
 				new SparseInstance("small", smallerClass, new HashMap<String, Double>());
 		int large = 0;
 		int small = 0;
-		List<Instance> larger = new ArrayList<Instance>();
+		List<E> larger = new ArrayList<E>();
 		for(E each : data)
 			if(each.groundTruth.equals(largerClass)){
 				larger.add(each);
@@ -108,28 +130,22 @@ public class PrototypeSelection <E extends Instance> {
 		centerSmallClass.divideBy((double)small);
 		
 		/** select small instances from the large class. */
-		EuclidianDistance<E> d = new EuclidianDistance<E>();
-		ArrayList<E> distances = new ArrayList<E>();
-		for(E each : data)
-			if(each.groundTruth.equals(largerClass)){
-				each.putResult("distance", d.distance(smallCenter ? centerSmallClass
-						: centerLargeClass, each));
-				distances.add(each);
-			}
-		Collections.sort(distances, new Comparator<Instance>(){
-			@Override
-			public int compare(Instance arg0, Instance arg1) {
-				int c = ((Double)arg1.getResult("distance")).compareTo(arg0.getResult("distance"));
-				return max ? c : -c;
-			}});
-		
-		for(int i = 1; i < small; i ++){
-			ds.addInstance(distances.get(i));
+		@SuppressWarnings("unchecked")
+		E center = (E) (smallCenter ? centerSmallClass : centerLargeClass);
+		NeighborHeap selected;
+		if (max) {
+			/** farthest instances: bounded heap on the negated distances. */
+			EuclidianDistance<E> d = distance;
+			selected = new NeighborHeap(Math.min(small, larger.size()));
+			for (int i = 0; i < larger.size(); i++)
+				selected.offer(i, -d.distance(center, larger.get(i)));
+			selected.sort();
+		} else {
+			index.build(larger);
+			selected = index.search(center, small, null);
 		}
-		for(Instance i : data)
-			i.removeResult("distance");
-		for(Instance i : ds)
-			i.removeResult("distance");
+		for (int i = 1; i < selected.size(); i++)
+			ds.addInstance(larger.get(selected.getIndex(i)));
 
 		return ds;
 	}
@@ -149,35 +165,35 @@ public class PrototypeSelection <E extends Instance> {
 				ds.addInstance(each);
 			} 
 
-		EuclidianDistance<E> d = new EuclidianDistance<E>();
+		EuclidianDistance<E> d = distance;
 
 		ds.add(larger.get(0));
 		Instance last = larger.get(0);
 		larger.remove(0);
-		for(Instance inst : larger)
-			inst.putResult("distance", Double.MAX_VALUE);
-		for(int i = 1; i < small; i ++){
-			double max = 0;
-			E maxInst = null;
+		/** distance of each remaining instance to the selected prototypes. */
+		double[] distances = new double[larger.size()];
+		Arrays.fill(distances, Double.MAX_VALUE);
+		int remaining = larger.size();
+		for(int i = 1; i < small && remaining > 0; i ++){
+			double max = -1;
 			int index = 0;
-			for(E inst : larger){
-				double dist = d.distance(last, inst);
-				if(inst.getResult("distance") > dist)
-					inst.putResult("distance", dist);
-				if(max < inst.getResult("distance")){
-					max = inst.getResult("distance");
-					maxInst = inst;
-					index = larger.indexOf(inst);
+			for(int j = 0; j < remaining; j++){
+				double dist = d.distance(last, larger.get(j));
+				if(distances[j] > dist)
+					distances[j] = dist;
+				if(max < distances[j]){
+					max = distances[j];
+					index = j;
 				}
 			}
+			E maxInst = larger.get(index);
 			ds.add(maxInst);
-			larger.remove(index);
+			/** remove by moving the last remaining instance to its place. */
+			remaining--;
+			larger.set(index, larger.get(remaining));
+			distances[index] = distances[remaining];
 			last = maxInst;
 		}
-		for(Instance i : data)
-			i.removeResult("distance");
-		for(Instance i : ds)
-			i.removeResult("distance");
 
 		return ds;
 	}
@@ -53,17 +53,18 @@ public class LetterReader {
 				continue;
 			
 			for(int i = 0; i < line.length(); i++){
-				String c = "" + line.charAt(i);
-				if(features.hasFeature(c)){
+				int index = features.indexOf("" + line.charAt(i));
+				if(index != -1){
 					double[] point = new double[features.size()];
-					point[features.getIndexFromFeature(c)] = 1.0;
+					point[index] = 1.0;
 					seq.addTimePoint(point);
 				}
 			}
 			
-			if(addNewLine && features.hasFeature("\n")){
+			int newLine = features.indexOf("\n");
+			if(addNewLine && newLine != -1){
 				double[] point = new double[features.size()];
-				point[features.getIndexFromFeature("\n")] = 1.0;
+				point[newLine] = 1.0;
 				seq.addTimePoint(point);
 			}	
 			
@@ -4,6 +4,8 @@ import ch.eonum.pipeline.core.DataSet;
 import ch.eonum.pipeline.core.Features;
 import ch.eonum.pipeline.core.Instance;
 import ch.eonum.pipeline.core.SparseInstance;
+import ch.eonum.pipeline.distance.index.KDTree;
+import ch.eonum.pipeline.distance.index.NeighborHeap;
 import ch.eonum.pipeline.util.Log;
 
 /**
@@ -18,6 +20,7 @@ public class NearestNeighborImputation<E extends Instance> extends Transformer<E
 
 	private DataSet<SparseInstance> neighbors;
 	private Features features;
+	private KDTree<SparseInstance> index;
 
 	public NearestNeighborImputation(DataSet<SparseInstance> dataTraining, Features features) {
 		this.neighbors = dataTraining;
@@ -27,6 +30,8 @@ public class NearestNeighborImputation<E extends Instance> extends Transformer<E
 	@Override
 	public void extract(){
 		super.extract();
+		/** instances with NaN values have an infinite distance to all others. */
+		this.index = KDTree.buildComplete(neighbors, features, 2.0);
 		int t = 0;
 		int j = 0;
 		for(Instance each : this.dataSet){
@@ -46,42 +51,15 @@ public class NearestNeighborImputation<E extends Instance> extends Transformer<E
 		}
 	}
 	
-	private Instance getNeighbor(Instance inst) {
-		Instance nearestNeighbor = null;
-		double minDistance = Double.POSITIVE_INFINITY;
-		for(Instance each : neighbors){
-			if(each == inst) continue;
-			double dist = distance(each, inst);	
-			if(dist < minDistance){
-				minDistance = dist;
-				nearestNeighbor = each;
-			}
-		}
-		return nearestNeighbor;
-	}
-
 	/**
-	 * Euclidian distance handling NaN values. NaN values in the second instance
-	 * are ignored. NaN values in the first instance lead to an infinite
-	 * distance.
+	 * Nearest complete neighbor. NaN values of the instance are ignored.
 	 * 
-	 * @param each
 	 * @param inst
 	 * @return
 	 */
-	private double distance(Instance inst1, Instance inst2) {
-		double distance = 0.0;
-		for (int i = 0; i < features.size(); i++) {
-			String feature = features.getFeatureByIndex(i);
-			if (Double.isNaN(inst1.get(feature)))
-				return Double.POSITIVE_INFINITY;
-			if (Double.isNaN(inst2.get(feature)))
-				continue;
-			distance += Math.pow(
-					Math.abs(inst2.get(feature) - inst1.get(feature)), 2.);
-		}
-
-		return distance;
+	private Instance getNeighbor(Instance inst) {
+		NeighborHeap nearest = index.search(inst.asArray(features), 1, inst);
+		return nearest.size() == 0 ? null : index.get(nearest.getIndex(0));
 	}
 
 }
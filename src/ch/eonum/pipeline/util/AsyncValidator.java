@@ -0,0 +1,168 @@
+package ch.eonum.pipeline.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous validation during the training of a model. A snapshot of the
+ * weights is evaluated on a separate thread while the training continues with
+ * the next epoch. The weights of the best validation so far are kept in
+ * memory, checkpoints and plots are written on the validation thread.
+ *
+ * At most one validation is pending at a time. The training thread collects
+ * the result of a validation with {@link #await()} before it submits the next
+ * one. Hence the early stopping decision is taken one epoch later than in a
+ * synchronous validation, but the same snapshots are evaluated.
+ *
+ * @author tim
+ *
+ */
+public class AsyncValidator {
+
+	/**
+	 * Evaluation of a snapshot. Both methods are called on the validation
+	 * thread and must not use the state of the training.
+	 */
+	public interface Validation {
+		/**
+		 * Error of the weights on the validation set (smaller is better).
+		 * Plots can be written here.
+		 *
+		 * @param epoch
+		 * @param weights
+		 * @return
+		 */
+		double validate(int epoch, double[][][] weights);
+
+		/**
+		 * A new minimum of the validation error has been reached. Write a
+		 * checkpoint.
+		 *
+		 * @param epoch
+		 * @param weights
+		 *            the best weights. must not be modified.
+		 */
+		void improved(int epoch, double[][][] weights);
+	}
+
+	private final Validation validation;
+	private final ExecutorService service;
+	/** copy of the weights under validation. */
+	private final double[][][] snapshot;
+	/** weights of the best validation so far. */
+	private final double[][][] best;
+	private double minimum = Double.POSITIVE_INFINITY;
+	private int bestEpoch = -1;
+	private Future<Double> pending;
+
+	/**
+	 * @param weights
+	 *            weight matrices of the model. defines the shape of the
+	 *            snapshots.
+	 * @param validation
+	 */
+	public AsyncValidator(double[][][] weights, Validation validation) {
+		this.validation = validation;
+		this.snapshot = allocate(weights);
+		this.best = allocate(weights);
+		this.service = Executors.newSingleThreadExecutor();
+	}
+
+	private static double[][][] allocate(double[][][] weights) {
+		double[][][] copy = new double[weights.length][][];
+		for (int l = 0; l < weights.length; l++) {
+			copy[l] = new double[weights[l].length][];
+			for (int i = 0; i < weights[l].length; i++)
+				copy[l][i] = new double[weights[l][i].length];
+		}
+		return copy;
+	}
+
+	private static void copy(double[][][] from, double[][][] to) {
+		for (int l = 0; l < from.length; l++)
+			for (int i = 0; i < from[l].length; i++)
+				System.arraycopy(from[l][i], 0, to[l][i], 0, from[l][i].length);
+	}
+
+	/**
+	 * Snapshot the weights and validate them on the validation thread. Waits
+	 * for a pending validation first (its result is lost if it has not been
+	 * collected with {@link #await()}).
+	 *
+	 * @param epoch
+	 * @param weights
+	 */
+	public void submit(final int epoch, double[][][] weights) {
+		await();
+		copy(weights, snapshot);
+		pending = service.submit(new Callable<Double>() {
+			@Override
+			public Double call() {
+				double error = validation.validate(epoch, snapshot);
+				if (error < minimum) {
+					minimum = error;
+					bestEpoch = epoch;
+					copy(snapshot, best);
+					validation.improved(epoch, best);
+				}
+				return error;
+			}
+		});
+	}
+
+	/**
+	 * Wait for the pending validation.
+	 *
+	 * @return its validation error or NaN if there is no pending validation.
+	 */
+	public double await() {
+		if (pending == null)
+			return Double.NaN;
+		double error = Double.NaN;
+		try {
+			error = pending.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		pending = null;
+		return error;
+	}
+
+	/**
+	 * Copy the weights of the best validation into weights. Call
+	 * {@link #await()} first.
+	 *
+	 * @param weights
+	 * @return false if there has not been any validation.
+	 */
+	public boolean restoreBest(double[][][] weights) {
+		if (bestEpoch < 0)
+			return false;
+		copy(best, weights);
+		return true;
+	}
+
+	/**
+	 * Minimum validation error. Call {@link #await()} first.
+	 *
+	 * @return
+	 */
+	public double getMinimum() {
+		return minimum;
+	}
+
+	/**
+	 * Wait for the pending validation and stop the validation thread.
+	 */
+	public void shutdown() {
+		await();
+		service.shutdown();
+	}
+}
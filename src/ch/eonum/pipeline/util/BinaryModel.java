@@ -0,0 +1,290 @@
+package ch.eonum.pipeline.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary format for the weights of a neural net. The file consists of
+ * a header with the architecture (a list of integers defined by the net) and a
+ * list of (possibly jagged) weight matrices, stored as little endian float64
+ * or float32 values:
+ *
+ * <pre>
+ * int magic, int version, int bytes per value (8 or 4)
+ * int header length, int[] header
+ * int number of blocks
+ * per block: int number of rows, int[] row lengths, values row by row
+ * </pre>
+ *
+ * Files are loaded through a memory mapped {@link FileChannel}. Loaded models
+ * are kept in a small in-memory cache, such that repeated loads of the same
+ * file (e.g. the nets of a classifier on every call of test()) do not read and
+ * parse the file again. The cache is invalidated when a file is saved through
+ * this class or modified on disk.
+ *
+ * @author tim
+ *
+ */
+public class BinaryModel {
+	/** "EONM" in little endian byte order. */
+	private static final int MAGIC = 0x4d4e4f45;
+	private static final int VERSION = 1;
+	/** maximum number of models in the cache. */
+	private static final int MAX_CACHED_MODELS = 32;
+
+	/** cached models by canonical path. least recently used first. */
+	private static final Map<String, CachedModel> cache = new LinkedHashMap<String, CachedModel>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedModel> eldest) {
+			return size() > MAX_CACHED_MODELS;
+		}
+	};
+
+	private final int[] header;
+	private final double[][][] blocks;
+
+	/**
+	 * @param header
+	 *            architecture of the net
+	 * @param blocks
+	 *            weight matrices. rows may have different lengths.
+	 */
+	public BinaryModel(int[] header, double[][]... blocks) {
+		this.header = header;
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Get the header entry i.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public int getHeader(int i) {
+		return header[i];
+	}
+
+	public int getHeaderLength() {
+		return header.length;
+	}
+
+	public int getNumberOfBlocks() {
+		return blocks.length;
+	}
+
+	/**
+	 * Get a copy of weight matrix i. The model itself may be shared through
+	 * the cache and is never modified.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public double[][] copyBlock(int i) {
+		double[][] block = new double[blocks[i].length][];
+		for (int r = 0; r < block.length; r++)
+			block[r] = blocks[i][r].clone();
+		return block;
+	}
+
+	/**
+	 * Copy weight matrix i into an existing matrix with the same shape.
+	 *
+	 * @param i
+	 * @param target
+	 * @throws IOException
+	 *             if the shapes do not match
+	 */
+	public void copyBlock(int i, double[][] target) throws IOException {
+		double[][] block = blocks[i];
+		if (block.length != target.length)
+			throw new IOException("Block " + i + " has " + block.length
+					+ " rows, expected " + target.length);
+		for (int r = 0; r < block.length; r++) {
+			if (block[r].length != target[r].length)
+				throw new IOException("Row " + r + " of block " + i + " has "
+						+ block[r].length + " values, expected "
+						+ target[r].length);
+			System.arraycopy(block[r], 0, target[r], 0, block[r].length);
+		}
+	}
+
+	/**
+	 * Write the model to a file.
+	 *
+	 * @param fileName
+	 * @param singlePrecision
+	 *            store the weights as float32 instead of float64
+	 * @throws IOException
+	 */
+	public void save(String fileName, boolean singlePrecision)
+			throws IOException {
+		int bytes = singlePrecision ? 4 : 8;
+		long size = 4 * (5 + header.length);
+		for (double[][] block : blocks) {
+			size += 4 * (1 + block.length);
+			for (double[] row : block)
+				size += (long) bytes * row.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(
+				ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(bytes);
+		buffer.putInt(header.length);
+		for (int h : header)
+			buffer.putInt(h);
+		buffer.putInt(blocks.length);
+		for (double[][] block : blocks) {
+			buffer.putInt(block.length);
+			for (double[] row : block)
+				buffer.putInt(row.length);
+			for (double[] row : block)
+				for (double w : row)
+					if (singlePrecision)
+						buffer.putFloat((float) w);
+					else
+						buffer.putDouble(w);
+		}
+		buffer.flip();
+
+		File file = new File(fileName);
+		synchronized (cache) {
+			cache.remove(file.getCanonicalPath());
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Check if a file is in the binary model format.
+	 *
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBinaryModel(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			if (file.length() < 4)
+				return false;
+			return Integer.reverseBytes(file.readInt()) == MAGIC;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Load a model from a file or from the cache.
+	 *
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	public static BinaryModel load(String fileName) throws IOException {
+		File file = new File(fileName);
+		String key = file.getCanonicalPath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		synchronized (cache) {
+			CachedModel cached = cache.get(key);
+			if (cached != null && cached.lastModified == lastModified
+					&& cached.length == length)
+				return cached.model;
+		}
+		BinaryModel model = read(file);
+		synchronized (cache) {
+			cache.put(key, new CachedModel(model, lastModified, length));
+		}
+		return model;
+	}
+
+	/**
+	 * Remove all models from the cache.
+	 */
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private static BinaryModel read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.remaining() < 12 || buffer.getInt() != MAGIC)
+				throw new IOException(file + " is not a binary model");
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported model version " + version
+						+ " in " + file);
+			int bytes = buffer.getInt();
+			if (bytes != 4 && bytes != 8)
+				throw new IOException("Unsupported value size " + bytes
+						+ " in " + file);
+			int[] header = new int[buffer.getInt()];
+			for (int i = 0; i < header.length; i++)
+				header[i] = buffer.getInt();
+			double[][][] blocks = new double[buffer.getInt()][][];
+			for (int b = 0; b < blocks.length; b++) {
+				double[][] block = new double[buffer.getInt()][];
+				for (int r = 0; r < block.length; r++)
+					block[r] = new double[buffer.getInt()];
+				if (bytes == 8) {
+					DoubleBuffer values = buffer.asDoubleBuffer();
+					for (double[] row : block)
+						values.get(row);
+					buffer.position(buffer.position() + 8
+							* values.position());
+				} else {
+					FloatBuffer values = buffer.asFloatBuffer();
+					float[] tmp = new float[0];
+					for (double[] row : block) {
+						if (tmp.length < row.length)
+							tmp = new float[row.length];
+						values.get(tmp, 0, row.length);
+						for (int j = 0; j < row.length; j++)
+							row[j] = tmp[j];
+					}
+					buffer.position(buffer.position() + 4
+							* values.position());
+				}
+				blocks[b] = block;
+			}
+			return new BinaryModel(header, blocks);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static class CachedModel {
+		private final BinaryModel model;
+		private final long lastModified;
+		private final long length;
+
+		private CachedModel(BinaryModel model, long lastModified, long length) {
+			this.model = model;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+}
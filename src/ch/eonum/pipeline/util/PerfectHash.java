@@ -0,0 +1,147 @@
+package ch.eonum.pipeline.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable perfect hash table mapping a fixed set of strings to their
+ * position in a list. Implemented using the hash and displace method: The
+ * keys are distributed into small buckets, and for each bucket a displacement
+ * is searched, which places all keys of the bucket into free slots. A lookup
+ * needs exactly one probe and one string comparison.
+ *
+ * Construction fails if two keys have the same {@link String#hashCode()}. Use
+ * {@link #create(List)}, which returns null in this case.
+ *
+ * @author tim
+ *
+ */
+public final class PerfectHash {
+	/** average number of keys per bucket. */
+	private static final int BUCKET_SIZE = 4;
+	/** maximum number of displacements tried per bucket. */
+	private static final int MAX_DISPLACEMENT = 1 << 16;
+
+	/** keys by slot. null for empty slots. */
+	private final String[] keys;
+	/** indices of the keys by slot. */
+	private final int[] values;
+	/** displacement by bucket. */
+	private final int[] displacements;
+
+	private PerfectHash(int numKeys) {
+		int numSlots = Math.max(1, numKeys + numKeys / 4);
+		this.keys = new String[numSlots];
+		this.values = new int[numSlots];
+		this.displacements = new int[Math.max(1, numKeys / BUCKET_SIZE)];
+	}
+
+	/**
+	 * Create a perfect hash for the provided keys. The value of each key is
+	 * its index in the list.
+	 *
+	 * @param list
+	 *            distinct keys
+	 * @return the perfect hash or null if no perfect hash could be found.
+	 */
+	public static PerfectHash create(List<String> list) {
+		final PerfectHash ph = new PerfectHash(list.size());
+		final int numBuckets = ph.displacements.length;
+		List<List<Integer>> buckets = new ArrayList<List<Integer>>(numBuckets);
+		for (int b = 0; b < numBuckets; b++)
+			buckets.add(new ArrayList<Integer>());
+		for (int i = 0; i < list.size(); i++)
+			buckets.get(bucket(list.get(i).hashCode(), numBuckets)).add(i);
+
+		/** place large buckets first. */
+		List<Integer> order = new ArrayList<Integer>(numBuckets);
+		for (int b = 0; b < numBuckets; b++)
+			order.add(b);
+		final List<List<Integer>> bs = buckets;
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return bs.get(b).size() - bs.get(a).size();
+			}
+		});
+
+		boolean[] occupied = new boolean[ph.keys.length];
+		int[] slots = new int[BUCKET_SIZE * 8];
+		for (int b : order) {
+			List<Integer> bucket = buckets.get(b);
+			if (bucket.isEmpty())
+				break;
+			if (slots.length < bucket.size())
+				slots = new int[bucket.size()];
+			boolean placed = false;
+			for (int d = 0; d < MAX_DISPLACEMENT && !placed; d++) {
+				placed = true;
+				for (int k = 0; k < bucket.size(); k++) {
+					int slot = ph.slot(list.get(bucket.get(k)).hashCode(), d);
+					boolean taken = occupied[slot];
+					for (int j = 0; j < k && !taken; j++)
+						taken = slots[j] == slot;
+					if (taken) {
+						placed = false;
+						break;
+					}
+					slots[k] = slot;
+				}
+				if (placed) {
+					ph.displacements[b] = d;
+					for (int k = 0; k < bucket.size(); k++) {
+						occupied[slots[k]] = true;
+						ph.keys[slots[k]] = list.get(bucket.get(k));
+						ph.values[slots[k]] = bucket.get(k);
+					}
+				}
+			}
+			if (!placed)
+				return null;
+		}
+		return ph;
+	}
+
+	/**
+	 * Get the index of a key. -1 if the key is not part of this hash.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public int get(String key) {
+		int h = key.hashCode();
+		int slot = slot(h, displacements[bucket(h, displacements.length)]);
+		String candidate = keys[slot];
+		return (candidate != null && candidate.equals(key)) ? values[slot] : -1;
+	}
+
+	/**
+	 * Number of slots in the table.
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	private static int bucket(int hash, int numBuckets) {
+		return (mix(hash) & Integer.MAX_VALUE) % numBuckets;
+	}
+
+	private int slot(int hash, int displacement) {
+		return (mix(hash ^ (displacement * 0x9E3779B9 + 0x7F4A7C15)) & Integer.MAX_VALUE)
+				% keys.length;
+	}
+
+	/** murmur3 finalizer. */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
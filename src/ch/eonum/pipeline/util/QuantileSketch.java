@@ -0,0 +1,179 @@
+package ch.eonum.pipeline.util;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile sketch after Greenwald and Khanna. The sketch keeps a
+ * small, sorted summary of (value, g, delta) tuples, such that the rank of
+ * each returned quantile is within relativeError * count of the requested
+ * rank. Inserted values are buffered and merged in sorted batches, hence an
+ * insert costs amortized O(log(bufferSize)).
+ *
+ * NaN and infinite values are ignored.
+ *
+ * @author tim
+ *
+ */
+public class QuantileSketch {
+	/** number of buffered values before they are merged into the summary. */
+	private static final int BUFFER_SIZE = 10000;
+
+	private final double relativeError;
+	/** summary size at which the summary is compressed. */
+	private final int compressThreshold;
+
+	private double[] buffer;
+	private int bufferSize;
+
+	/** summary: values, ranks gaps and rank uncertainties. */
+	private double[] values;
+	private long[] g;
+	private long[] delta;
+	private int size;
+	/** number of inserted values. */
+	private long count;
+
+	/**
+	 * @param relativeError
+	 *            maximum rank error relative to the number of values. (0, 1)
+	 */
+	public QuantileSketch(double relativeError) {
+		if (relativeError <= 0.0 || relativeError >= 1.0)
+			throw new IllegalArgumentException("relative error has to be in (0, 1): "
+					+ relativeError);
+		this.relativeError = relativeError;
+		this.compressThreshold = (int) Math.ceil(1.0 / relativeError);
+		this.buffer = new double[BUFFER_SIZE];
+		this.values = new double[16];
+		this.g = new long[16];
+		this.delta = new long[16];
+	}
+
+	/**
+	 * Insert a value.
+	 *
+	 * @param value
+	 */
+	public void insert(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return;
+		buffer[bufferSize++] = value;
+		if (bufferSize == buffer.length) {
+			flush();
+			if (size >= compressThreshold)
+				compress();
+		}
+	}
+
+	/**
+	 * Number of inserted values.
+	 *
+	 * @return
+	 */
+	public long count() {
+		return count + bufferSize;
+	}
+
+	/**
+	 * Get the approximate q-quantile.
+	 *
+	 * @param q
+	 *            [0,1]
+	 * @return the quantile or NaN if no values have been inserted.
+	 */
+	public double query(double q) {
+		flush();
+		if (size == 0)
+			return Double.NaN;
+		if (q <= 0.0)
+			return values[0];
+		if (q >= 1.0)
+			return values[size - 1];
+		long rank = (long) Math.ceil(q * count);
+		long targetError = (long) Math.ceil(relativeError * count);
+		long minRank = 0;
+		for (int i = 0; i < size; i++) {
+			minRank += g[i];
+			long maxRank = minRank + delta[i];
+			if (maxRank - targetError <= rank && rank <= minRank + targetError)
+				return values[i];
+		}
+		return values[size - 1];
+	}
+
+	/**
+	 * Merge the buffered values into the summary.
+	 */
+	private void flush() {
+		if (bufferSize == 0)
+			return;
+		Arrays.sort(buffer, 0, bufferSize);
+		int newSize = size + bufferSize;
+		double[] nv = new double[newSize];
+		long[] ng = new long[newSize];
+		long[] nd = new long[newSize];
+		long newCount = count + bufferSize;
+		int i = 0;
+		int n = 0;
+		for (int b = 0; b < bufferSize; b++) {
+			double value = buffer[b];
+			while (i < size && values[i] <= value) {
+				nv[n] = values[i];
+				ng[n] = g[i];
+				nd[n++] = delta[i++];
+			}
+			/** first and last value have an exact rank. */
+			boolean extreme = n == 0 || (i == size && b == bufferSize - 1);
+			nv[n] = value;
+			ng[n] = 1;
+			nd[n++] = extreme ? 0 : (long) Math.floor(2 * relativeError * count);
+		}
+		while (i < size) {
+			nv[n] = values[i];
+			ng[n] = g[i];
+			nd[n++] = delta[i++];
+		}
+		values = nv;
+		g = ng;
+		delta = nd;
+		size = newSize;
+		count = newCount;
+		bufferSize = 0;
+	}
+
+	/**
+	 * Merge adjacent tuples as long as the error bound allows it.
+	 */
+	private void compress() {
+		long mergeThreshold = (long) Math.floor(2 * relativeError * count);
+		int n = size - 1;
+		/** the last tuple is always kept. walk backwards. */
+		double[] nv = new double[size];
+		long[] ng = new long[size];
+		long[] nd = new long[size];
+		nv[n] = values[size - 1];
+		ng[n] = g[size - 1];
+		nd[n] = delta[size - 1];
+		for (int i = size - 2; i >= 1; i--) {
+			if (g[i] + ng[n] + nd[n] < mergeThreshold) {
+				ng[n] += g[i];
+			} else {
+				n--;
+				nv[n] = values[i];
+				ng[n] = g[i];
+				nd[n] = delta[i];
+			}
+		}
+		/** the first tuple is always kept as well. */
+		if (size > 1) {
+			n--;
+			nv[n] = values[0];
+			ng[n] = g[0];
+			nd[n] = delta[0];
+		}
+		size = size - n;
+		values = Arrays.copyOfRange(nv, n, n + size);
+		g = Arrays.copyOfRange(ng, n, n + size);
+		delta = Arrays.copyOfRange(nd, n, n + size);
+	}
+}